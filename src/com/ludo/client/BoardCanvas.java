@@ -0,0 +1,377 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javafx.event.EventHandler;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+
+/**
+ * The board drawn on a canvas, instead of a node per piece. The board
+ * image is scaled once for the size of the canvas and kept, and when
+ * pieces move only the squares they left and entered are drawn again:
+ * the board image is copied back into them and the pieces over them are
+ * drawn on top, clipped to the squares.
+ *
+ * The board keeps square and fills as much of its space as it can. When
+ * the size changes, the board image and the positions of the pieces are
+ * scaled once, and the whole board is drawn. Boards of the same size share
+ * the scaled image, so a view of several boards scales it once.
+ * @author Petter
+ *
+ */
+public class BoardCanvas extends Region implements BoardView {
+    
+    /**
+     * Side of the board in board coordinates, the size of the board in the game view
+     */
+    public static final double SIZE = 630;
+    
+    /**
+     * Radius of a piece and of the indicator, in board coordinates
+     */
+    private static final double RADIUS = 17;
+    
+    /**
+     * Piece colors by player color, as in the game view
+     */
+    private static final Color[] COLORS = { Color.web("#ff1b00"), Color.web("#00aaff"), Color.web("#f5ff00"), Color.web("#29ff00") };
+    
+    private static final Color INDICATOR = Color.web("#ff6e00");
+    
+    /**
+     * Max scaled board images kept
+     */
+    private static final int IMAGES = 8;
+    
+    /**
+     * Scaled board images by image and side in pixels, only used on the JavaFX thread
+     */
+    private static Map<String, Image> images = new HashMap<String, Image>();
+    
+    private Canvas canvas = new Canvas();
+    
+    /**
+     * Board image URL
+     */
+    private String url;
+    
+    /**
+     * Board image at the size of the canvas
+     */
+    private Image board;
+    
+    /**
+     * Pixels per board coordinate
+     */
+    private double scale = 0;
+    
+    /**
+     * Positions of the pieces, then the indicator, in board coordinates.
+     * Only used on the JavaFX thread.
+     */
+    private double[] x;
+    private double[] y;
+    
+    /**
+     * Positions in pixels, scaled when the size or a position changes
+     */
+    private double[] px;
+    private double[] py;
+    
+    /**
+     * Positions set since the last redraw, by any thread. Guarded by this.
+     */
+    private double[] nextX;
+    private double[] nextY;
+    private boolean[] moved;
+    
+    /**
+     * Set while a redraw is queued
+     */
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    
+    /**
+     * Squares to draw again, in pixels: x, y, side
+     */
+    private List<double[]> dirty = new ArrayList<double[]>();
+    
+    /**
+     * Draws the moves, in the next pulse
+     */
+    private Runnable redraw = new Runnable() {
+        public void run() {
+            redraw();
+        }
+    };
+    
+    private PieceListener listener;
+    
+    /**
+     * Create a board
+     * @param url Board image
+     * @param pieceX Where the pieces start, red, blue, yellow, then green
+     * @param pieceY
+     * @param indicatorX Where the indicator starts
+     * @param indicatorY
+     */
+    public BoardCanvas(String url, double[] pieceX, double[] pieceY, double indicatorX, double indicatorY) {
+        this.url = url;
+        
+        int shapes = pieceX.length + 1;
+        this.x = new double[shapes];
+        this.y = new double[shapes];
+        System.arraycopy(pieceX, 0, this.x, 0, pieceX.length);
+        System.arraycopy(pieceY, 0, this.y, 0, pieceY.length);
+        this.x[shapes - 1] = indicatorX;
+        this.y[shapes - 1] = indicatorY;
+        
+        this.px = new double[shapes];
+        this.py = new double[shapes];
+        this.nextX = new double[shapes];
+        this.nextY = new double[shapes];
+        this.moved = new boolean[shapes];
+        
+        getChildren().add(this.canvas);
+        
+        this.canvas.setOnMousePressed(new EventHandler<MouseEvent>() {
+            public void handle(MouseEvent event) {
+                pressed(event.getX(), event.getY());
+            }
+        });
+    }
+    
+    /**
+     * Set who is told when a piece is pressed
+     * @param listener
+     */
+    public void setOnPiecePressed(PieceListener listener) {
+        this.listener = listener;
+    }
+    
+    public void movePiece(int piece, double x, double y) {
+        move(piece, x, y);
+    }
+    
+    public void moveIndicator(double x, double y) {
+        move(this.x.length - 1, x, y);
+    }
+    
+    /**
+     * Set where a shape goes, and queue a redraw unless one is queued
+     * @param shape
+     * @param x
+     * @param y
+     */
+    private void move(int shape, double x, double y) {
+        synchronized(this) {
+            this.nextX[shape] = x;
+            this.nextY[shape] = y;
+            this.moved[shape] = true;
+        }
+        
+        if(this.scheduled.compareAndSet(false, true)) {
+            UiDispatcher.getInstance().execute(this.redraw);
+        }
+    }
+    
+    @Override
+    protected double computePrefWidth(double height) {
+        return SIZE;
+    }
+    
+    @Override
+    protected double computePrefHeight(double width) {
+        return SIZE;
+    }
+    
+    /**
+     * Fit the board to the space it has, and draw it all if its size changed
+     */
+    @Override
+    protected void layoutChildren() {
+        double side = Math.floor(Math.min(getWidth(), getHeight()));
+        if(side <= 0 || side / SIZE == this.scale) {
+            return;
+        }
+        
+        this.scale = side / SIZE;
+        this.canvas.setWidth(side);
+        this.canvas.setHeight(side);
+        this.board = scaledBoard(this.url, (int) side);
+        
+        for(int shape = 0; shape < this.x.length; shape++) {
+            this.px[shape] = this.x[shape] * this.scale;
+            this.py[shape] = this.y[shape] * this.scale;
+        }
+        
+        this.dirty.clear();
+        this.dirty.add(new double[] { 0, 0, side });
+        paint();
+    }
+    
+    /**
+     * Take the moves since the last redraw, and draw the squares they touch
+     */
+    private void redraw() {
+        this.scheduled.set(false);
+        
+        double r = (RADIUS + 2) * this.scale;
+        synchronized(this) {
+            for(int shape = 0; shape < this.x.length; shape++) {
+                if(!this.moved[shape]) {
+                    continue;
+                }
+                this.moved[shape] = false;
+                
+                if(this.x[shape] == this.nextX[shape] && this.y[shape] == this.nextY[shape]) {
+                    continue;
+                }
+                
+                // Where it was, then where it is
+                this.dirty.add(new double[] { this.px[shape] - r, this.py[shape] - r, 2 * r });
+                this.x[shape] = this.nextX[shape];
+                this.y[shape] = this.nextY[shape];
+                this.px[shape] = this.x[shape] * this.scale;
+                this.py[shape] = this.y[shape] * this.scale;
+                this.dirty.add(new double[] { this.px[shape] - r, this.py[shape] - r, 2 * r });
+            }
+        }
+        
+        // Not laid out yet, the first layout draws everything
+        if(this.scale == 0) {
+            this.dirty.clear();
+            return;
+        }
+        
+        paint();
+    }
+    
+    /**
+     * Draw the dirty squares: the board, then every shape over them, in order
+     */
+    private void paint() {
+        if(this.dirty.isEmpty()) {
+            return;
+        }
+        
+        GraphicsContext gc = this.canvas.getGraphicsContext2D();
+        gc.save();
+        
+        // Only draw inside the squares
+        gc.beginPath();
+        for(double[] square : this.dirty) {
+            gc.rect(square[0], square[1], square[2], square[2]);
+        }
+        gc.clip();
+        
+        for(double[] square : this.dirty) {
+            gc.drawImage(this.board, square[0], square[1], square[2], square[2], square[0], square[1], square[2], square[2]);
+        }
+        
+        double r = RADIUS * this.scale;
+        gc.setStroke(Color.BLACK);
+        gc.setLineWidth(Math.max(1, this.scale));
+        for(int shape = 0; shape < this.x.length; shape++) {
+            if(!touches(shape, r)) {
+                continue;
+            }
+            
+            boolean indicator = shape == this.x.length - 1;
+            gc.setFill(indicator ? INDICATOR : COLORS[(shape / 4) % COLORS.length]);
+            gc.fillOval(this.px[shape] - r, this.py[shape] - r, 2 * r, 2 * r);
+            gc.strokeOval(this.px[shape] - r, this.py[shape] - r, 2 * r, 2 * r);
+        }
+        
+        gc.restore();
+        this.dirty.clear();
+    }
+    
+    /**
+     * Check if a shape overlaps a dirty square
+     * @param shape
+     * @param r Radius in pixels
+     * @return boolean
+     */
+    private boolean touches(int shape, double r) {
+        for(double[] square : this.dirty) {
+            if(this.px[shape] + r >= square[0] && this.px[shape] - r <= square[0] + square[2]
+                    && this.py[shape] + r >= square[1] && this.py[shape] - r <= square[1] + square[2]) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Tell the listener about the topmost piece under a press
+     * @param x Pixels
+     * @param y
+     */
+    private void pressed(double x, double y) {
+        if(this.listener == null) {
+            return;
+        }
+        
+        double r = RADIUS * this.scale;
+        for(int piece = this.x.length - 2; piece >= 0; piece--) {
+            double dx = x - this.px[piece];
+            double dy = y - this.py[piece];
+            if(dx * dx + dy * dy <= r * r) {
+                this.listener.piecePressed(piece);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Get the board image at a size, scaling it the first time
+     * @param url
+     * @param side Pixels
+     * @return Image
+     */
+    private static Image scaledBoard(String url, int side) {
+        String key = url + "@" + side;
+        
+        Image image = images.get(key);
+        if(image == null) {
+            
+            // Sizes seen while the window was being resized are not kept for long
+            if(images.size() >= IMAGES) {
+                images.clear();
+            }
+            
+            image = new Image(url, side, side, false, true);
+            images.put(key, image);
+        }
+        
+        return image;
+    }
+    
+    /**
+     * Told when a piece is pressed
+     * @author Petter
+     *
+     */
+    public interface PieceListener {
+        
+        /**
+         * A piece was pressed, on the JavaFX thread
+         * @param piece Index in the list of pieces
+         */
+        public void piecePressed(int piece);
+    }
+
+}
@@ -0,0 +1,31 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+/**
+ * Shows the pieces and the turn indicator of a game board. Positions are
+ * in the coordinates of the board in the game view, see
+ * GameController.getCoordinates(), and can be set from any thread, the
+ * board shows them in the next pulse.
+ * @author Petter
+ *
+ */
+public interface BoardView {
+    
+    /**
+     * Move a piece
+     * @param piece Index in the list of pieces, red, blue, yellow, then green
+     * @param x
+     * @param y
+     */
+    public void movePiece(int piece, double x, double y);
+    
+    /**
+     * Move the turn indicator
+     * @param x
+     * @param y
+     */
+    public void moveIndicator(double x, double y);
+
+}
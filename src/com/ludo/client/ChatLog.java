@@ -0,0 +1,188 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * The chat messages of a chat view. The latest messages are kept in a ring
+ * buffer of a fixed depth, overwriting the oldest, and the list shows the
+ * newest of them, one page at first and one more page every time older
+ * messages are loaded, up to the depth of the buffer.
+ *
+ * Adding messages costs the same however long the chat has run, and the
+ * list tells the view exactly which rows came and went, so the view only
+ * updates the rows it shows. Only used on the JavaFX thread.
+ * @author Petter
+ *
+ */
+public class ChatLog extends ObservableListBase<ChatMessage> {
+    
+    /**
+     * Ring buffer of the latest messages
+     */
+    private ChatMessage[] ring;
+    
+    /**
+     * Index of the oldest message in the ring
+     */
+    private int head = 0;
+    
+    /**
+     * Messages in the ring
+     */
+    private int count = 0;
+    
+    /**
+     * Messages shown, the newest in the ring
+     */
+    private int shown = 0;
+    
+    /**
+     * Max messages shown, grows by a page when older messages are loaded
+     */
+    private int limit;
+    
+    /**
+     * Messages per page
+     */
+    private int page;
+    
+    /**
+     * Create a chat log
+     * @param depth Messages kept
+     * @param page Messages shown at first, and loaded at a time
+     */
+    public ChatLog(int depth, int page) {
+        this.ring = new ChatMessage[Math.max(1, depth)];
+        this.page = Math.max(1, Math.min(page, this.ring.length));
+        this.limit = this.page;
+    }
+    
+    /**
+     * Get a shown message, oldest first
+     */
+    public ChatMessage get(int index) {
+        if(index < 0 || index >= this.shown) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + this.shown);
+        }
+        
+        return this.ring[(this.head + this.count - this.shown + index) % this.ring.length];
+    }
+    
+    /**
+     * Number of messages shown
+     */
+    public int size() {
+        return this.shown;
+    }
+    
+    /**
+     * Add a message
+     * @param message
+     */
+    public void addMessage(ChatMessage message) {
+        List<ChatMessage> messages = new ArrayList<ChatMessage>(1);
+        messages.add(message);
+        addMessages(messages);
+    }
+    
+    /**
+     * Add messages, as a single change of the list
+     * @param messages Messages, oldest first
+     */
+    public void addMessages(List<ChatMessage> messages) {
+        int added = messages.size();
+        if(added == 0) {
+            return;
+        }
+        
+        // Only the newest messages that fit in the ring matter
+        int skip = Math.max(0, added - this.ring.length);
+        int newCount = Math.min(this.ring.length, this.count + added);
+        int newShown = Math.min(this.limit, newCount);
+        
+        // Shown messages that are pushed out, oldest first
+        int kept = Math.min(this.shown, Math.max(0, newShown - added));
+        List<ChatMessage> removed = new ArrayList<ChatMessage>(this.shown - kept);
+        for(int i = 0; i < this.shown - kept; i++) {
+            removed.add(get(i));
+        }
+        
+        for(int i = skip; i < added; i++) {
+            if(this.count < this.ring.length) {
+                this.ring[(this.head + this.count) % this.ring.length] = messages.get(i);
+                this.count++;
+            } else {
+                this.ring[this.head] = messages.get(i);
+                this.head = (this.head + 1) % this.ring.length;
+            }
+        }
+        this.shown = newShown;
+        
+        beginChange();
+        if(!removed.isEmpty()) {
+            nextRemove(0, removed);
+        }
+        nextAdd(kept, newShown);
+        endChange();
+    }
+    
+    /**
+     * Show another page of older messages, if there are any
+     * @return Number of messages added to the top of the list
+     */
+    public int loadOlder() {
+        this.limit = Math.min(this.ring.length, this.limit + this.page);
+        
+        int older = Math.min(this.count, this.limit) - this.shown;
+        if(older <= 0) {
+            return 0;
+        }
+        
+        this.shown += older;
+        
+        beginChange();
+        nextAdd(0, older);
+        endChange();
+        
+        return older;
+    }
+    
+    /**
+     * Remove every message, and show one page again
+     */
+    @Override
+    public void clear() {
+        List<ChatMessage> removed = new ArrayList<ChatMessage>(this.shown);
+        for(int i = 0; i < this.shown; i++) {
+            removed.add(get(i));
+        }
+        
+        Arrays.fill(this.ring, null);
+        this.head = 0;
+        this.count = 0;
+        this.shown = 0;
+        this.limit = this.page;
+        
+        if(!removed.isEmpty()) {
+            beginChange();
+            nextRemove(0, removed);
+            endChange();
+        }
+    }
+    
+    /**
+     * Check if there are older messages than the ones shown
+     * @return boolean
+     */
+    public boolean hasOlder() {
+        return this.count > this.shown;
+    }
+
+}
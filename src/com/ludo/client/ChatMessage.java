@@ -0,0 +1,42 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+/**
+ * A chat message as shown in a chat view
+ * @author Petter
+ *
+ */
+public class ChatMessage {
+    
+    /**
+     * Who sent the message
+     */
+    private String sender;
+    
+    private String text;
+    
+    /**
+     * Create a chat message
+     * @param sender
+     * @param text
+     */
+    public ChatMessage(String sender, String text) {
+        this.sender = sender;
+        this.text = text;
+    }
+    
+    public String getSender() {
+        return this.sender;
+    }
+    
+    public String getText() {
+        return this.text;
+    }
+    
+    public String toString() {
+        return this.sender + ": " + this.text;
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+import java.util.List;
+
+import com.ludo.config.Config;
+import com.ludo.i18n.MessageBundle;
+
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.scene.control.Button;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.util.Callback;
+
+/**
+ * A chat view for the FXML views. Messages are kept in a ChatLog of
+ * chatHistoryDepth messages, shown chatPageSize at a time, and drawn by a
+ * list view that only creates rows for the messages in sight. A button
+ * above the list loads a page of older messages.
+ *
+ * The view follows the newest message until older messages are loaded.
+ * Only used on the JavaFX thread, see UiDispatcher.
+ * @author Petter
+ *
+ */
+public class ChatView extends VBox {
+    
+    private ChatLog log;
+    
+    private ListView<ChatMessage> list;
+    
+    /**
+     * Loads a page of older messages
+     */
+    private Button olderBtn;
+    
+    /**
+     * Scroll to the newest message when one arrives
+     */
+    private boolean follow = true;
+    
+    /**
+     * Create a chat view with the history depth and page size from config
+     */
+    public ChatView() {
+        Config config = new Config();
+        this.log = new ChatLog(config.getInt("chatHistoryDepth", 1000), config.getInt("chatPageSize", 100));
+        
+        this.list = new ListView<ChatMessage>(this.log);
+        this.list.setCellFactory(new Callback<ListView<ChatMessage>, ListCell<ChatMessage>>() {
+            public ListCell<ChatMessage> call(ListView<ChatMessage> list) {
+                return new MessageCell();
+            }
+        });
+        VBox.setVgrow(this.list, Priority.ALWAYS);
+        
+        this.olderBtn = new Button(new MessageBundle().retriveText("chat.loadOlder"));
+        this.olderBtn.setMaxWidth(Double.MAX_VALUE);
+        this.olderBtn.setDisable(true);
+        this.olderBtn.setOnAction(new EventHandler<ActionEvent>() {
+            public void handle(ActionEvent event) {
+                loadOlder();
+            }
+        });
+        
+        getChildren().addAll(this.olderBtn, this.list);
+    }
+    
+    /**
+     * Add a message
+     * @param message
+     */
+    public void add(ChatMessage message) {
+        this.log.addMessage(message);
+        shown();
+    }
+    
+    /**
+     * Add messages, in one change of the list
+     * @param messages Messages, oldest first
+     */
+    public void add(List<ChatMessage> messages) {
+        this.log.addMessages(messages);
+        shown();
+    }
+    
+    /**
+     * Remove every message, and follow the newest again
+     */
+    public void clear() {
+        this.log.clear();
+        this.follow = true;
+        this.olderBtn.setDisable(true);
+    }
+    
+    /**
+     * Show a page of older messages, and stay where they start
+     */
+    private void loadOlder() {
+        int older = this.log.loadOlder();
+        this.follow = false;
+        this.list.scrollTo(Math.max(0, older - 1));
+        this.olderBtn.setDisable(!this.log.hasOlder());
+    }
+    
+    /**
+     * Update the view after messages were added
+     */
+    private void shown() {
+        this.olderBtn.setDisable(!this.log.hasOlder());
+        if(this.follow && this.log.size() > 0) {
+            this.list.scrollTo(this.log.size() - 1);
+        }
+    }
+    
+    /**
+     * A row of the chat, wrapping long messages
+     * @author Petter
+     *
+     */
+    private static class MessageCell extends ListCell<ChatMessage> {
+        
+        public MessageCell() {
+            setWrapText(true);
+            
+            // Wrap at the width of the list, not the length of the text
+            setPrefWidth(0);
+        }
+        
+        @Override
+        protected void updateItem(ChatMessage message, boolean empty) {
+            super.updateItem(message, empty);
+            setText(empty || message == null ? null : message.toString());
+        }
+    }
+
+}
@@ -6,7 +6,16 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import javax.swing.JOptionPane;
 
@@ -14,14 +23,17 @@ import com.ludo.client.controllers.GameController;
 import com.ludo.client.controllers.LoginController;
 import com.ludo.client.controllers.MainController;
 import com.ludo.config.Config;
+import com.ludo.game.BoardTopology;
+import com.ludo.game.PlayerColor;
+import com.ludo.game.Rules;
 import com.ludo.i18n.MessageBundle;
+import com.ludo.protocol.Message;
+import com.ludo.protocol.MessageDispatcher;
+import com.ludo.protocol.MessageHandler;
+import com.ludo.protocol.MessageStream;
+import com.ludo.protocol.MessageType;
 
-import javafx.fxml.FXMLLoader;
-import javafx.scene.Parent;
 import javafx.scene.Scene;
-import javafx.scene.control.TextArea;
-import javafx.scene.shape.Circle;
-import javafx.scene.shape.Ellipse;
 import javafx.stage.Stage;
 
 /**
@@ -56,13 +68,16 @@ public class ClientManager {
      * Input from server
      */
     private BufferedReader chatIn;
-    private BufferedReader gameIn;
     
     /**
      * Output to server
      */
     private PrintWriter chatOut;
-    private PrintWriter gameOut;
+    
+    /**
+     * Messages to and from game server
+     */
+    private MessageStream gameStream;
     
     /**
      * Application configuration
@@ -75,11 +90,16 @@ public class ClientManager {
     private String username;
     
     /**
-     * Chat thread to handle incoming chat messages
+     * Requests to the chat server, and the chat server's single reader
      */
-    Thread chatThread;
+    private RequestChannel chat;
     Thread gameThread;
     
+    /**
+     * Loaded views, reused when switching screens
+     */
+    private ViewRegistry views = new ViewRegistry();
+    
     /**
      * Constructor to hold scene and create a socket connection to the server.
      * @param scene
@@ -90,7 +110,8 @@ public class ClientManager {
         this.scene = scene;
         this.stage = stage;
         
-        // Display login screen first
+        // Load the views in the background, and display login screen first
+        this.views.preload(ViewRegistry.LOGIN, ViewRegistry.MAIN, ViewRegistry.GAME);
         showLoginScreen();
         
         // Set socket to connect to server.
@@ -102,41 +123,25 @@ public class ClientManager {
      * Attempt to register a user by sending a REGISTER <username> <password> to server
      * @param username
      * @param password
-     * @return int Response 0=REGISTERACCEPTED, 1=ALREADYEXISTS
+     * @return Future completed on the JavaFX thread with 0=REGISTERACCEPTED, 1=ALREADYEXISTS,
+     *         or failed if the server does not answer in time
      */
-    public int register(String username, String password) {
+    public CompletableFuture<Integer> register(String username, String password) {
         
         // Send register request to server with username and password
-        this.chatOut.println("REGISTER " + username + " " + password);
-        
-        // Listen for response from server
-        String line = null;
-        
-        while(true) {
-            
-            // Read server message
-            try {
-                line = chatIn.readLine();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            
-            // Continue if no input
-            if(line == null) {
-                continue;
-            }
-            
-            // Registration accepted
-            if(line.startsWith("REGISTERACCEPTED")) {
-                return 0;
-            }
-            
-            // Username already exists
-            if(line.startsWith("ALREADYEXISTS")) {
-                return 1;
-            }
-            
-        }
+        return onFxThread(this.chat.request("REGISTER " + username + " " + password, "REGISTERACCEPTED", "ALREADYEXISTS")
+            .thenApply(new Function<String, Integer>() {
+                public Integer apply(String line) {
+                    
+                    // Registration accepted
+                    if(line.startsWith("REGISTERACCEPTED")) {
+                        return 0;
+                    }
+                    
+                    // Username already exists
+                    return 1;
+                }
+            }));
         
     }
     
@@ -144,49 +149,58 @@ public class ClientManager {
      * Authenticate user by sending a login request to the server and wait for a reply
      * @param username
      * @param password
-     * @return int Response 0=LOGINACCEPTED, 1=LOGINDENIED, 2=ALREADYLOGGEDIN
+     * @return Future completed on the JavaFX thread with 0=LOGINACCEPTED, 1=LOGINDENIED,
+     *         2=ALREADYLOGGEDIN, or failed if the server does not answer in time
      */
-    public int authenticate(String username, String password) {
-        
-        this.username = username;
+    public CompletableFuture<Integer> authenticate(final String username, String password) {
         
         // Send login request to server with username and password
-        this.chatOut.println("LOGIN " + this.username + " " + password);
-        
-        // Listen for response to see if it was accepted or not
-        String line = null;
-        
-        while(true) {
-            
-            // Try reading server message
-            try {
-                line = chatIn.readLine();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            
-            // Continue if no input
-            if(line == null) {
-                continue;
-            }
-            
-            // Login accepted
-            if(line.startsWith("LOGINACCEPTED")) {
-                return 0;
-            }
-            
-            // Login denied
-            if(line.startsWith("LOGINDENIED")) {
-                return 1;
-            }
-            
-            // Already logged in
-            if(line.startsWith("ALREADYLOGGEDIN")) {
-                return 2;
+        return onFxThread(this.chat.request("LOGIN " + username + " " + password, "LOGINACCEPTED", "LOGINDENIED", "ALREADYLOGGEDIN")
+            .thenApply(new Function<String, Integer>() {
+                public Integer apply(String line) {
+                    
+                    // Login accepted
+                    if(line.startsWith("LOGINACCEPTED")) {
+                        ClientManager.this.username = username;
+                        return 0;
+                    }
+                    
+                    // Login denied
+                    if(line.startsWith("LOGINDENIED")) {
+                        return 1;
+                    }
+                    
+                    // Already logged in
+                    return 2;
+                }
+            }));
+    }
+    
+    /**
+     * Pass the outcome of a request on to the JavaFX thread, whether it
+     * succeeded or failed, so callers can update the view right away.
+     * If the request timed out, the server may still have acted on it, so
+     * the chat connection is replaced before the caller hears about it.
+     * @param future
+     * @return Future completed on the JavaFX thread
+     */
+    private <T> CompletableFuture<T> onFxThread(CompletableFuture<T> future) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        future.whenCompleteAsync(new BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable error) {
+                if(error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if(cause instanceof TimeoutException) {
+                        System.out.println("No reply from chat server, reconnecting");
+                        reconnectToChatServer();
+                    }
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
             }
-            
-            
-        }
+        }, UiDispatcher.getInstance());
+        return result;
     }
     
     /**
@@ -194,35 +208,39 @@ public class ClientManager {
      */
     public void logout() {
         
-        // Send logout request
-        this.chatOut.println("LOGOUT");
-        
-        // Put thread to sleep and kill it before disconnecting the socket.
-        try {
-            Thread.sleep(1);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        ((ChatHandler) this.chatThread).kill();
-        
-        // Close current socket
-        try {
-            this.chatSocket.close();
-        } catch (IOException e) {
-            System.out.println("Error disconnecting from server");
-            e.printStackTrace();
-        }
+        // Send logout request, and stop showing chat messages
+        this.chat.send("LOGOUT");
+        this.chat.setListener(null);
         
         // Clear username variable
         this.username = null;
         
         // Reconnect to server with a new socket
-        this.chatSocket = connectToChatServer(true);
+        reconnectToChatServer();
         
         // Display login screen to user
         showLoginScreen();
     }
     
+    /**
+     * Close the current chat connection and open a new one. The server
+     * logs out a session when its connection closes.
+     */
+    private void reconnectToChatServer() {
+        
+        // Close current socket
+        if(this.chatSocket != null) {
+            try {
+                this.chatSocket.close();
+            } catch (IOException e) {
+                System.out.println("Error disconnecting from server");
+                e.printStackTrace();
+            }
+        }
+        
+        this.chatSocket = connectToChatServer(true);
+    }
+    
     /**
      * Connect to remote chat server
      * @param Boolean useConfig WHether the program should use the config file or not to find IP address
@@ -249,6 +267,7 @@ public class ClientManager {
         try {
             this.chatIn  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             this.chatOut = new PrintWriter(socket.getOutputStream(), true);
+            this.chat = new RequestChannel(this.chatIn, this.chatOut, TimeUnit.SECONDS.toMillis(this.config.getInt("requestTimeout", 10)));
         } catch (IOException e) {
             System.out.println("Error establishing I/O with chat server");
             e.printStackTrace();
@@ -289,15 +308,18 @@ public class ClientManager {
      */
     public void showLoginScreen() {
         try {
-            FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/ludo/client/views/LoginView.fxml"));
-            scene.setRoot((Parent) loader.load());
+            ViewRegistry.View view = this.views.get(ViewRegistry.LOGIN);
+            scene.setRoot(view.getRoot());
             
             stage.setTitle(messageBundle.retriveText("login.topText"));
             stage.sizeToScene();
             
             // Login View Controller
-            LoginController controller = loader.<LoginController>getController();
+            LoginController controller = view.<LoginController>getController();
             controller.initManager(this);
+            
+            // Load the other views again if the language was changed
+            this.views.preload(ViewRegistry.MAIN, ViewRegistry.GAME);
         } catch(IOException e) {
             //Logger.getLogger(LoginManager.class.getName()).log(Level.SEVERE, null, e);
             System.out.println("Error showing login screen: " + e);
@@ -309,18 +331,17 @@ public class ClientManager {
      */
     public void showMainScreen() throws IOException {
         try {
-            FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/ludo/client/views/MainView.fxml"));
-            scene.setRoot((Parent) loader.load());
+            ViewRegistry.View view = this.views.get(ViewRegistry.MAIN);
+            scene.setRoot(view.getRoot());
             stage.setTitle(messageBundle.retriveText("main.topText"));
             stage.sizeToScene();
             
             // Main View Controller
-            MainController controller = loader.<MainController>getController();
+            MainController controller = view.<MainController>getController();
             controller.initManager(this, this.chatOut);
             
-            // Start chat thread
-            this.chatThread = new ChatHandler(controller, chatIn);
-            this.chatThread.start();
+            // Show incoming chat messages
+            this.chat.setListener(new ChatHandler(controller));
             
         } catch(IOException e) {
             System.out.println("Error showing main view: " + e);
@@ -339,90 +360,36 @@ public class ClientManager {
      * @author Petter
      *
      */
-    private static class ChatHandler extends Thread {
-        
-        /**
-         * Global Chat text area
-         */
-        private TextArea globalChat;
-        
-        /**
-         * Request from chat server
-         */
-        private String request;
-        
-        /**
-         * Request arguments
-         */
-        private String[] args;
-        
-        /**
-         * Input from chat server
-         */
-        private BufferedReader in;
-        
-        /**
-         * Decides if thread should be listening on server messages
-         */
-        private Boolean running;
+    private static class ChatHandler implements RequestChannel.LineListener {
         
         /**
-         * MainController to access JavaFX elements.
+         * Global chat
          */
-        private MainController controller;
+        private ChatView globalChat;
         
         /**
-         * Set controller and the input reader from chat server
+         * Set controller
          * @param controller MainController for JavaFX elements
-         * @param in Reads messages coming in from chat server
          */
-        public ChatHandler(MainController controller, BufferedReader in) {
-            this.controller = controller;
-            this.in = in;
-            this.running = true;
+        public ChatHandler(MainController controller) {
             
             // JavaFX elements from controller
             this.globalChat = controller.getGlobalChat();
         }
         
         /**
-         * "Kill" thread to make it stop listening for new server messages
-         */
-        public void kill() {
-            System.out.println("Killing thread");
-            this.running = false;
-        }
-        
-        /**
-         * Run thread that listens for incoming chat messages
+         * Handle a line from the chat server, on the chat reader thread
          */
-        public void run() {
-            
-            // Listen for incoming messages while thread is running
-            while(this.running) {
-                
-                // Try reading from server
-                try {
-                    this.request = this.in.readLine();
-                    
-                    if(this.request == null) {
-                        continue;
-                    }
-                    
-                    if(this.request.startsWith("MESSAGE")) {
-                        this.args = this.request.split(" ");
-                        
-                        // Add text to chat
-                        this.globalChat.appendText(args[1] + ": " + this.request.substring("MESSAGE ".length() + this.args[1].length() + 1) + "\n");
-                        
-                    }
-                    
-                } catch (IOException e) {
-                    System.out.println("Lost connection to chat server.");
-                    break;
+        public void lineReceived(String request) {
+            if(request.startsWith("MESSAGE")) {
+                String[] args = request.split(" ");
+                if(args.length < 2) {
+                    return;
                 }
+                
+                // Add message to chat, in the next pulse
+                UiDispatcher.getInstance().append(this.globalChat, new ChatMessage(args[1], request.substring(Math.min(request.length(), "MESSAGE ".length() + args[1].length() + 1))));
             }
-            
         }
         
     }
@@ -458,8 +425,7 @@ public class ClientManager {
         
         // Open I/O stream with server
         try {
-            this.gameIn  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.gameOut = new PrintWriter(socket.getOutputStream(), true);
+            this.gameStream = new MessageStream(socket, false);
         } catch (IOException e) {
             System.out.println("Error establishing I/O with game server");
             e.printStackTrace();
@@ -473,22 +439,38 @@ public class ClientManager {
      */
     public void showGameScreen() {
         
+        // Leave the last game, its view is reused. Its token takes the
+        // seat back if the game is still waiting for this player.
+        String reconnectToken = null;
+        if(this.gameThread != null) {
+            reconnectToken = ((GameHandler) this.gameThread).getReconnectToken();
+            ((GameHandler) this.gameThread).kill();
+            this.gameThread = null;
+            try {
+                if(this.gameSocket != null) {
+                    this.gameSocket.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error disconnecting from game server");
+            }
+        }
+        
         // Connect to game server
         this.gameSocket = connectToGameServer();
         
         try {
             // Change view
-            FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/ludo/client/views/GameView.fxml"));
-            scene.setRoot((Parent) loader.load());
+            ViewRegistry.View view = this.views.get(ViewRegistry.GAME);
+            scene.setRoot(view.getRoot());
             stage.setTitle(messageBundle.retriveText("main.topText"));
             stage.sizeToScene();
             
             // Main View Controller
-            GameController controller = loader.<GameController>getController();
-            controller.initManager(this, this.gameOut);
+            GameController controller = view.<GameController>getController();
+            controller.initManager(this, this.gameStream);
             
             // Start chat thread
-            this.gameThread = new GameHandler(controller, this.gameIn, this.gameOut, this.username);
+            this.gameThread = new GameHandler(controller, this.gameStream, this.username, config.getBoolean("binaryProtocol", true), reconnectToken);
             this.gameThread.start();
             
         } catch(IOException e) {
@@ -498,23 +480,37 @@ public class ClientManager {
     }
     
     /**
-     * Game Handler
-     * TODO Description
+     * Runs the handlers of game server messages
+     */
+    private static final ExecutorService HANDLERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private AtomicInteger count = new AtomicInteger();
+        
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "game-handler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Game Handler is the single reader of the game server connection. Every
+     * line is parsed once, and dispatched to the game handler or the game chat
+     * handler, which each handle their messages in order on their own.
      * @author Petter
      *
      */
-    private static class GameHandler extends Thread {
+    private static class GameHandler extends Thread implements MessageHandler {
         
         /**
-         * List of pieces
+         * Board showing the pieces
          * 
-         * Index
+         * Piece index
          * 1-4   : red
          * 5-8   : blue
          * 9-12  : yellow
          * 13-16 : green
          */
-        private List<Circle> pieces;
+        private BoardView board;
         
         /**
          * Fields positions
@@ -526,11 +522,6 @@ public class ClientManager {
          */
         private Coordinates[] indicators;
         
-        /**
-         * Indicator ellipse
-         */
-        private Ellipse indicator;
-        
         /**
          * Player color
          */
@@ -547,29 +538,30 @@ public class ClientManager {
         private int dice;
         
         /**
-         * GameController for accessing JavaFX elements
+         * Version of the game state shown, updates with an older version are already shown
          */
-        private GameController controller;
+        private int version = 0;
         
         /**
-         * Game Chat Manager to handle private game chats
+         * Home coordinates of every piece, where they are placed in the view
          */
-        private GameChatHandler gameChat;
+        private double[] homeX;
+        private double[] homeY;
         
         /**
-         * Input from server
+         * GameController for accessing JavaFX elements
          */
-        private BufferedReader in;
+        private GameController controller;
         
         /**
-         * Output to server
+         * Reads and dispatches messages from server
          */
-        private PrintWriter out;
+        private MessageDispatcher dispatcher;
         
         /**
-         * Used to indicate if thread is running or not.
+         * Messages to and from server
          */
-        private Boolean running = true;
+        private MessageStream stream;
         
         /**
          * Username
@@ -577,27 +569,59 @@ public class ClientManager {
         private String username;
         
         /**
-         * Set GameController and get the input buffer reader to get output from server
+         * Ask the server for the binary protocol
+         */
+        private boolean binary;
+        
+        /**
+         * Token to take this player's seat back with, while the game runs
+         */
+        private volatile String reconnectToken;
+        
+        /**
+         * Set GameController and register the handlers for messages from server
          * @param controller To interact with the GameController
-         * @param in To read output from server
-         * @param out Send messages to server
+         * @param stream To read from and send messages to server
          * @param username This player's username
+         * @param binary Ask the server for the binary protocol
+         * @param reconnectToken Token from the last game, or null
          */
-        public GameHandler(GameController controller, BufferedReader in, PrintWriter out, String username) {
+        public GameHandler(GameController controller, MessageStream stream, String username, boolean binary, String reconnectToken) {
+            super("game-reader");
+            setDaemon(true);
+            
             this.controller = controller;
             this.username = username;
-            this.in = in;
-            this.out = out;
+            this.stream = stream;
+            this.binary = binary;
+            this.reconnectToken = reconnectToken;
             
             // JavaFX elements
-            this.pieces     = controller.getPieces();
+            this.board      = controller.getBoard();
             this.fields     = controller.getCoordinates();
             this.indicators = controller.getIndicators();
-            this.indicator  = controller.getIndicator();
             
-            // Game Chat
-            this.gameChat = new GameChatHandler(controller, in);
-            this.gameChat.start();
+            this.homeX = new double[PlayerColor.values().length * Rules.PIECES];
+            this.homeY = new double[this.homeX.length];
+            for(int i = 0; i < this.homeX.length; i++) {
+                this.homeX[i] = controller.getHomeX(i);
+                this.homeY[i] = controller.getHomeY(i);
+            }
+            
+            // Game messages and game chat are handled apart, so a busy chat never holds up the game
+            this.dispatcher = new MessageDispatcher(stream, HANDLERS);
+            this.dispatcher.register(this, MessageType.USERNAMEREQUEST, MessageType.NEWUSERINQUEUE, MessageType.STARTGAME,
+                    MessageType.TURN, MessageType.MOVE, MessageType.MOVEDENIED, MessageType.NOWIN, MessageType.WIN,
+                    MessageType.FORFEIT, MessageType.GAMEOVER, MessageType.SNAPSHOT);
+            this.dispatcher.register(new GameChatHandler(controller), MessageType.MESSAGE);
+        }
+        
+        /**
+         * Get the token to take this player's seat back with
+         * @return token, or null if the game is over
+         */
+        public String getReconnectToken() {
+            return this.reconnectToken;
         }
         
         /**
@@ -605,104 +629,45 @@ public class ClientManager {
          */
         public void kill() {
             System.out.println("Killing thread");
-            this.running = false;
+            this.dispatcher.stop();
         }
         
         /**
-         * Calculate position and move the piece
+         * Look up the piece's field on the board and move the piece there.
+         * Moving a piece to where it already is changes nothing, so the
+         * same update can safely be applied twice.
          * @param pieceId
          * @param color
-         * @param steps
+         * @param fieldsMoved Position along the color's route
          */
         private void movePiece(int pieceId, String color, int fieldsMoved) {
             
-            /**
-             * Offset in list of pieces.
-             * 1-4   : red
-             * 5-8   : blue
-             * 9-12  : yellow
-             * 13-16 : green
-             */
-            int pieceIdOffset = 0;
-            
-            /**
-             * Piece offset from global "start" position
-             * of map which is set to red's first field.
-             */
-            int positionOffset = 0;
-            
-            /**
-             * Position as of where the piece will jump onto the
-             * colored field to goal.
-             */
-            int positionHop = 0;
-            
-            /**
-             * Where to hop to (first field of colored road to goal)
-             */
-            int positionHopTo = 0;
-            
-            // Set the above values based on which color is moving.
-            if(color.equals("red")) {
-                pieceIdOffset = 0;
-                positionOffset = 0;
-                positionHop = 1;
-                positionHopTo = 53;
-            }
-            
-            if(color.equals("blue")) {
-                pieceIdOffset = 4;
-                positionOffset = 13;
-                positionHop = 14;
-                positionHopTo = 59;
-            }
-            
-            if(color.equals("yellow")) {
-                pieceIdOffset = 8;
-                positionOffset = 26;
-                positionHop = 27;
-                positionHopTo = 65;
-            }
-            
-            if(color.equals("green")) {
-                pieceIdOffset = 12;
-                positionOffset = 39;
-                positionHop = 40;
-                positionHopTo = 71;
+            PlayerColor playerColor = PlayerColor.fromName(color);
+            if(playerColor == null || pieceId < 0 || pieceId >= Rules.PIECES || fieldsMoved < 0 || fieldsMoved > BoardTopology.GOAL) {
+                return;
             }
             
-            // Default values that are shared between every color
-            
-            /**
-             * Which field id to wrap around and continue at 1.
-             */
-            int positionWrap = 52;
-            
             /**
-             * If the user has wrapped (made 1 lap)
+             * Absolute field, 0 if the piece is at home
              */
-            boolean hasWrapped = false;
-            
+            int position = BoardTopology.field(playerColor.ordinal(), fieldsMoved);
+            if(position == 0) {
+                int piece = pieceId + playerColor.ordinal() * Rules.PIECES;
+                this.board.movePiece(piece, this.homeX[piece], this.homeY[piece]);
+                return;
+            }
             
             /**
-             * Calculate position
+             * Offset in list of pieces.
+             * 1-4   : red
+             * 5-8   : blue
+             * 9-12  : yellow
+             * 13-16 : green
              */
-            int position = fieldsMoved + positionOffset;
-            
-            // Check if piece have wrapped
-            if(position > positionWrap) {
-                hasWrapped = true;
-                position = position % positionWrap;
-            }
-            
-            // Check if piece has hopped
-            if(position > positionHop && hasWrapped) {
-                position = position % positionHop + positionHopTo;
-            }
+            int pieceIdOffset = playerColor.ordinal() * Rules.PIECES;
             
-            // Movie piece's X and Y coordinated to the calculated position.
-            this.pieces.get(pieceId + pieceIdOffset).setLayoutX(fields[position].getXCoordinates());
-            this.pieces.get(pieceId + pieceIdOffset).setLayoutY(fields[position].getYCoordinates());
+            // Movie piece's X and Y coordinated to the calculated position, in the next pulse
+            this.board.movePiece(pieceId + pieceIdOffset, fields[position].getXCoordinates(), fields[position].getYCoordinates());
             
         }
         
@@ -712,176 +677,145 @@ public class ClientManager {
          */
         public void moveIndicator(String color) {
             
-            int colorNumber = 1;
-            if(color.equals("red"))    colorNumber = 1;
-            if(color.equals("blue"))   colorNumber = 2;
-            if(color.equals("yellow")) colorNumber = 3;
-            if(color.equals("green"))  colorNumber = 4;
+            PlayerColor playerColor = PlayerColor.fromName(color);
+            int colorNumber = playerColor != null ? playerColor.ordinal() + 1 : 1;
             
-            // Move indicator
-            this.indicator.setLayoutX(indicators[colorNumber].getXCoordinates());
-            this.indicator.setLayoutY(indicators[colorNumber].getYCoordinates());
+            // Move indicator, in the next pulse
+            this.board.moveIndicator(indicators[colorNumber].getXCoordinates(), indicators[colorNumber].getYCoordinates());
         }
         
         /**
-         * Run thread to read incoming game server messsages
+         * Run thread to read and dispatch incoming game server messages.
+         * The username request is answered here, on the reader, so the
+         * reader switches to the binary protocol, if the server offers
+         * it, before reading anything after the request.
          */
         public void run() {
+            try {
+                Message request = this.stream.read();
+                if(request != null && request.getType() == MessageType.USERNAMEREQUEST) {
+                    boolean offered = MessageStream.BINARY.equals(request.get(0));
+                    
+                    this.stream.send("USERNAME " + this.username + (this.binary && offered ? " " + MessageStream.BINARY : "")
+                            + (this.reconnectToken != null ? " " + MessageStream.RECONNECT + " " + this.reconnectToken : ""));
+                    if(this.binary && offered) {
+                        this.stream.useBinary();
+                    }
+                    
+                    this.dispatcher.dispatch(request);
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading from game server: " + e);
+            }
+            
+            this.dispatcher.run();
+        }
             
-            // Input from server
-            String line = null;
+        /**
+         * Handle a game message from server. A snapshot replaces the whole
+         * board, and updates carry the version of the game they lead to, so
+         * updates the board already shows, e.g. after coming back to a game,
+         * are skipped.
+         * @param message
+         */
+        public void handle(Message message) {
+            switch(message.getType()) {
             
-            /**
-             * A game has been created and the player
-             * is waiting for other players to connect.
-             */
+            // Username has been sent, the player is waiting for a game
+            case USERNAMEREQUEST:
             
-            // Tell user there is a game queue
-            controller.waitingInQueue();
+                // Tell user there is a game queue
+                controller.waitingInQueue();
+                break;
             
-            while(true) {
-                
-                // Try reading server message
-                try {
-                    line = in.readLine();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            // The game is starting: STARTGAME <color> <reconnect token>
+            case STARTGAME:
+                System.out.println("Starting game");
+                this.color = message.get(0);
+                this.reconnectToken = message.get(1);
+            
+                // Tell user the game is starting
+                controller.gameHasStarted(this.color);
+                break;
+            
+            // The whole game: SNAPSHOT <version> <players> <color> <dice> <forfeited> <16 positions>
+            case SNAPSHOT:
+                if(message.getInt(0, 0) < this.version) {
+                    break;
                 }
+                this.version = message.getInt(0, 0);
+                this.turn = message.get(2);
+                this.dice = message.getInt(3, 0);
                 
-                // If not message, continue
-                if(line == null) {
-                    continue;
+                for(PlayerColor color : PlayerColor.values()) {
+                    for(int piece = 0; piece < Rules.PIECES; piece++) {
+                        this.movePiece(piece, color.getName(), message.getInt(5 + color.ordinal() * Rules.PIECES + piece, 0));
+                    }
                 }
                 
-                // Server is requesting username
-                if(line.startsWith("USERNAMEREQUEST")) {
-                    out.println("USERNAME " + this.username);
-                }
+                this.moveIndicator(this.turn);
+                break;
                 
-                // New user in queue
-                if(line.startsWith("NEWUSERINQUEUE")) {
-                    // New user in queue
-                }
+            // Turn message received: TURN <color> <dice> <version>
+            case TURN:
                 
-                // The game is starting. Broadcast: STARTGAME <player.getColor()>
-                if(line.startsWith("STARTGAME")) {
-                    System.out.println("Starting game");
-                    
-                    // Split to get color
-                    String[] args = line.split(" ");
-                    this.color = args[1];
-                    
+                // Turns are shown again, a snapshot has no prompt to move
+                if(message.getInt(2, this.version) < this.version) {
                     break;
                 }
-                
-            }
-            
-            // Tell user the game is starting
-            controller.gameHasStarted(this.color);
-            
-            /**
-             * All players have connected and the game has started.
-             */
-            System.out.println("Game loop started");
-            String[] args;
-            while(true) {
-                
-                // Get turn
-                while(true) {
-                    try {
-                        line = in.readLine();
-                    } catch (IOException e) {
-                        System.out.println(e);
-                    }
-                    
-                    // If no message from server
-                    if(line == null) {
-                        continue;
-                    }
-                    
-                    // Turn message received
-                    if(line.startsWith("TURN")) {
-                        args = line.split(" ");
-                        
-                        this.turn = args[1];
-                        this.dice = Integer.parseInt(args[2]);
-                        
-                        // It's your turn
-                        if(this.turn.equals(this.color)) {
-                            System.out.println("My turn");
-                            controller.itsYourTurn(this.dice);
-                        }else {
-                            System.out.println(this.turn + " turn");
-                        }
-                        
-                        // Move indicator
-                        this.moveIndicator(this.turn);
+                this.version = message.getInt(2, this.version);
+                this.turn = message.get(0);
+                this.dice = message.getInt(1, 0);
                         
-                        break;
-                        
-                    }
+                // It's your turn
+                if(this.turn != null && this.turn.equals(this.color)) {
+                    System.out.println("My turn");
+                    controller.itsYourTurn(this.dice);
+                } else {
+                    System.out.println(this.turn + " turn");
                 }
-                
-                // Get move from whoever's turn it is
-                while(true) {
-                    try {
-                        line = in.readLine();
-                    } catch (IOException e) {
-                        System.out.println(e);
-                    }
-                    
-                    // If no message from server
-                    if(line == null) {
-                        continue;
-                    }
-                    
-                    // Move request received: MOVE <pieceId (1-4)> <position>
-                    if(line.startsWith("MOVE")) {
-                        args = line.split(" ");
-                        
-                        System.out.println(line);
                         
-                        this.movePiece(Integer.parseInt(args[1]), this.turn, Integer.parseInt(args[2]));
+                // Move indicator
+                this.moveIndicator(this.turn);
+                break;
                         
-                        break;
-                    }
-                    
-                    // If move was denied
-                    if(line.startsWith("MOVEDENIED")) {
-                    	controller.moveDenied();
-                    }
+            // Move made by whoever's turn it is: MOVE <pieceId (0-3)> <position> <color> <version>
+            case MOVE:
+                System.out.println(message);
+                if(message.getInt(3, Integer.MAX_VALUE) <= this.version) {
+                    break;
                 }
+                this.version = message.getInt(3, this.version);
+                this.movePiece(message.getInt(0, -1), message.size() > 3 ? message.get(2) : this.turn, message.getInt(1, -1));
+                break;
                 
-                // Check if there is a winner
-                while(true) {
-                    try {
-                        line = in.readLine();
-                    } catch (IOException e) {
-                        System.out.println(e);
-                    }
-                    
-                    // If no message from server
-                    if(line == null) {
-                        continue;
-                    }
+            // A player has left for good: FORFEIT <color> <version>
+            case FORFEIT:
+                this.version = Math.max(this.version, message.getInt(1, this.version));
+                break;
+                
+            // If move was denied
+            case MOVEDENIED:
+                controller.moveDenied();
+                break;
                     
-                    // No winners
-                    if(line.startsWith("NOWIN")) {
-                        break;
-                    }
+            // There is a winner: WIN <color>
+            case WIN:
+                this.reconnectToken = null;
                     
-                    // There is a winner
-                    if(line.startsWith("WIN")) {
-                        args = line.split(" ");
-                        
-                        // Show end screen with winner color
-                        this.controller.endGame(args[1]);
-                    }
-                }
-                
+                // Show end screen with winner color
+                this.controller.endGame(message.get(0));
+                break;
                 
+            // The game is over, there is no seat to come back to
+            case GAMEOVER:
+                this.reconnectToken = null;
+                break;
+                        
+            // New user in queue, or no winner yet
+            default:
+                break;
             }
-            
         }
         
         /**
@@ -890,7 +824,7 @@ public class ClientManager {
          * @author Petter
          *
          */
-        public class GameChatHandler extends Thread {
+        public class GameChatHandler implements MessageHandler {
             
             /**
              * GameController for JavaFX objects and running controller functions
@@ -900,56 +834,31 @@ public class ClientManager {
             /**
              * Game chat
              */
-            private TextArea gameChat;
-            
-            /**
-             * Buffered reader to read incoming server messages
-             */
-            private BufferedReader in;
+            private ChatView gameChat;
             
             /**
-             * Set controller and buffered reader for incoming server messages
+             * Set controller
              * @param controller GameVier controller for accessing JavaFX objects
-             * @param in input from server
              */
-            public GameChatHandler(GameController controller, BufferedReader in) {
+            public GameChatHandler(GameController controller) {
                 this.controller = controller;
-                this.in = in;
                 
                 // Java FX objects
                 this.gameChat = controller.getGameChat();
             }
             
             /**
-             * Run thread to handle incoming server messages
+             * Append incoming message to the chat: MESSAGE <color> <text>
+             * @param message
              */
-            public void run() {
-                String line = null;
-                String[] args;
-                
-                // Listen for new messages
-                while(true) {
-                    
-                    try {
-                        line = in.readLine();
-                    } catch (IOException e) {
-                        break;
-                    }
-                    
-                    // If incoming message is empty
-                    if(line == null) {
-                        continue;
-                    }
-                    
-                    // If incoming message, append it to to the chat
-                    if(line.startsWith("MESSAGE")) {
-                        args = line.split(" ");
-                        
-                        // Add text to chat
-                        this.gameChat.appendText(args[1].substring(0, 1).toUpperCase() + args[1].substring(1) + " Ninja: " + line.substring("MESSAGE ".length() + args[1].length() + 1) + "\n");
-                        
-                    }
+            public void handle(Message message) {
+                String color = message.get(0);
+                if(color == null) {
+                    return;
                 }
+                    
+                // Add message to chat, in the next pulse
+                UiDispatcher.getInstance().append(this.gameChat, new ChatMessage(color.substring(0, 1).toUpperCase() + color.substring(1) + " Ninja", message.getText(1)));
             }
         }
         
@@ -0,0 +1,41 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+import java.util.List;
+
+import javafx.scene.Node;
+import javafx.scene.shape.Circle;
+
+/**
+ * The board as nodes of the game view: a circle per piece and an ellipse
+ * for the turn indicator, moved through the UiDispatcher.
+ * @author Petter
+ *
+ */
+public class NodeBoard implements BoardView {
+    
+    private List<Circle> pieces;
+    
+    private Node indicator;
+    
+    /**
+     * Create a board of the nodes of a view
+     * @param pieces Pieces, red, blue, yellow, then green
+     * @param indicator Turn indicator
+     */
+    public NodeBoard(List<Circle> pieces, Node indicator) {
+        this.pieces = pieces;
+        this.indicator = indicator;
+    }
+    
+    public void movePiece(int piece, double x, double y) {
+        UiDispatcher.getInstance().relocate(this.pieces.get(piece), x, y);
+    }
+    
+    public void moveIndicator(double x, double y) {
+        UiDispatcher.getInstance().relocate(this.indicator, x, y);
+    }
+
+}
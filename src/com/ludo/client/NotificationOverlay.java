@@ -0,0 +1,137 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+import com.ludo.config.Config;
+
+import javafx.animation.FadeTransition;
+import javafx.animation.PauseTransition;
+import javafx.animation.SequentialTransition;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.geometry.Pos;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.layout.VBox;
+import javafx.util.Duration;
+
+/**
+ * Notifications shown on top of a view, for the FXML views. A notification
+ * is a banner that fades away after notificationDuration seconds, and at
+ * most notificationLimit are shown, the oldest give way to new ones.
+ *
+ * Notifications can be shown from any thread. They are queued with the
+ * UiDispatcher and shown in the next pulse, so a network thread never waits
+ * for the user, as it did for a message dialog. The overlay does not take
+ * mouse clicks, the view under it can be used while notifications show.
+ * @author Petter
+ *
+ */
+public class NotificationOverlay extends VBox {
+    
+    /**
+     * How long a notification is faded out, in milliseconds
+     */
+    private static final int FADE = 300;
+    
+    private static final String STYLE = "-fx-background-color: rgba(0, 0, 0, 0.75); -fx-background-radius: 6; -fx-text-fill: white; -fx-font-size: 16; -fx-padding: 8 14 8 14;";
+    
+    /**
+     * How long a notification is shown
+     */
+    private Duration duration;
+    
+    /**
+     * Max notifications shown
+     */
+    private int limit;
+    
+    /**
+     * Create an overlay with the duration and limit from config
+     */
+    public NotificationOverlay() {
+        super(6);
+        
+        Config config = new Config();
+        this.duration = Duration.seconds(Math.max(1, config.getInt("notificationDuration", 4)));
+        this.limit = Math.max(1, config.getInt("notificationLimit", 3));
+        
+        setAlignment(Pos.TOP_CENTER);
+        setMouseTransparent(true);
+    }
+    
+    /**
+     * Show a notification, in the next pulse. Can be called from any thread.
+     * @param text
+     */
+    public void show(final String text) {
+        UiDispatcher.getInstance().execute(new Runnable() {
+            public void run() {
+                showNow(text);
+            }
+        });
+    }
+    
+    /**
+     * Show a notification, on the JavaFX thread. The same text shown twice
+     * in a row is shown once, for longer.
+     * @param text
+     */
+    private void showNow(String text) {
+        int last = getChildren().size() - 1;
+        if(last >= 0 && text.equals(((Label) getChildren().get(last)).getText())) {
+            Label banner = (Label) getChildren().get(last);
+            banner.setOpacity(1);
+            ((SequentialTransition) banner.getUserData()).playFromStart();
+            return;
+        }
+        
+        while(getChildren().size() >= this.limit) {
+            dismiss(getChildren().get(0));
+        }
+        
+        final Label banner = new Label(text);
+        banner.setStyle(STYLE);
+        banner.setWrapText(true);
+        banner.setMaxWidth(Double.MAX_VALUE);
+        
+        // Wait, fade out, then leave
+        FadeTransition fade = new FadeTransition(Duration.millis(FADE), banner);
+        fade.setFromValue(1);
+        fade.setToValue(0);
+        SequentialTransition life = new SequentialTransition(new PauseTransition(this.duration), fade);
+        life.setOnFinished(new EventHandler<ActionEvent>() {
+            public void handle(ActionEvent event) {
+                getChildren().remove(banner);
+            }
+        });
+        banner.setUserData(life);
+        
+        getChildren().add(banner);
+        life.play();
+    }
+    
+    /**
+     * Remove a notification at once
+     * @param banner
+     */
+    private void dismiss(Node banner) {
+        ((SequentialTransition) banner.getUserData()).stop();
+        getChildren().remove(banner);
+    }
+    
+    /**
+     * Remove all notifications, in the next pulse
+     */
+    public void clear() {
+        UiDispatcher.getInstance().execute(new Runnable() {
+            public void run() {
+                while(!getChildren().isEmpty()) {
+                    dismiss(getChildren().get(0));
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,244 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Requests to the chat server. A request sends a line and returns a future
+ * that is completed by the first reply line starting with one of the
+ * request's reply words. The server answers requests in order, so replies
+ * are matched to the oldest request still waiting for one.
+ *
+ * A single background thread reads every line from the server. Replies
+ * complete their request, all other lines go to the line listener. A request
+ * fails with a TimeoutException if no reply comes in time, and every waiting
+ * request fails with an IOException when the connection closes. Futures are
+ * completed on the reader or timer thread, callers hop to their own thread.
+ *
+ * A request that times out is no longer waited for, but the server may
+ * still act on it, a LOGIN can log the connection in after all. Callers
+ * should not trust the connection after a timeout and open a new one.
+ * @author Petter
+ *
+ */
+public class RequestChannel {
+    
+    /**
+     * Receives lines from the server that are not replies
+     * @author Petter
+     *
+     */
+    public interface LineListener {
+        
+        /**
+         * A line from the server, on the reader thread
+         * @param line
+         */
+        void lineReceived(String line);
+    }
+    
+    /**
+     * Times out requests of every channel
+     */
+    private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "request-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Requests waiting for a reply, oldest first
+     */
+    private ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<Request>();
+    
+    private BufferedReader in;
+    private PrintWriter out;
+    
+    /**
+     * Time to wait for a reply, in milliseconds
+     */
+    private long timeout;
+    
+    /**
+     * Receives lines that are not replies, may be null
+     */
+    private volatile LineListener listener;
+    
+    /**
+     * Set once the connection has closed
+     */
+    private volatile boolean closed = false;
+    
+    /**
+     * Create a channel and start reading from the server
+     * @param in Input from the server
+     * @param out Output to the server
+     * @param timeout Time to wait for a reply, in milliseconds
+     */
+    public RequestChannel(BufferedReader in, PrintWriter out, long timeout) {
+        this.in = in;
+        this.out = out;
+        this.timeout = timeout;
+        
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readLoop();
+            }
+        }, "chat-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    /**
+     * Send a request
+     * @param line Request line
+     * @param replies Words a reply line may start with
+     * @return Future completed with the reply line
+     */
+    public CompletableFuture<String> request(String line, String... replies) {
+        final Request request = new Request(replies);
+        
+        // Queue before sending, so the reply cannot arrive first
+        synchronized(this.out) {
+            this.pending.add(request);
+            this.out.println(line);
+        }
+        
+        // Fail right away if the connection has closed meanwhile
+        if(this.closed) {
+            failAll();
+        }
+        
+        final ScheduledFuture<?> timer = TIMEOUTS.schedule(new Runnable() {
+            public void run() {
+                pending.remove(request);
+                request.future.completeExceptionally(new TimeoutException("No reply in " + timeout + " ms"));
+            }
+        }, this.timeout, TimeUnit.MILLISECONDS);
+        request.future.whenComplete(new BiConsumer<String, Throwable>() {
+            public void accept(String reply, Throwable error) {
+                timer.cancel(false);
+            }
+        });
+        
+        return request.future;
+    }
+    
+    /**
+     * Send a line that gets no reply
+     * @param line
+     */
+    public void send(String line) {
+        synchronized(this.out) {
+            this.out.println(line);
+        }
+    }
+    
+    /**
+     * Set the receiver of lines that are not replies
+     * @param listener May be null
+     */
+    public void setListener(LineListener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Read lines until the connection closes
+     */
+    private void readLoop() {
+        try {
+            String line;
+            while((line = this.in.readLine()) != null) {
+                
+                if(reply(line)) {
+                    continue;
+                }
+                
+                LineListener listener = this.listener;
+                if(listener != null) {
+                    listener.lineReceived(line);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Lost connection to chat server.");
+        } finally {
+            this.closed = true;
+            failAll();
+        }
+    }
+    
+    /**
+     * Complete the oldest waiting request a line is a reply to. Requests
+     * queued before the one replied to will get no reply. A late reply to a
+     * request that timed out is not a reply to any request.
+     * @param line
+     * @return true if the line was a reply
+     */
+    private boolean reply(String line) {
+        for(Request request : this.pending) {
+            if(request.accepts(line)) {
+                Request skipped;
+                while((skipped = this.pending.poll()) != request) {
+                    skipped.future.completeExceptionally(new IOException("No reply from chat server"));
+                }
+                request.future.complete(line);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Fail every waiting request
+     */
+    private void failAll() {
+        Request request;
+        while((request = this.pending.poll()) != null) {
+            request.future.completeExceptionally(new IOException("Connection to chat server closed"));
+        }
+    }
+    
+    /**
+     * A request waiting for its reply
+     * @author Petter
+     *
+     */
+    private static class Request {
+        private String[] replies;
+        private CompletableFuture<String> future = new CompletableFuture<String>();
+        
+        public Request(String[] replies) {
+            this.replies = replies;
+        }
+        
+        /**
+         * Check if a line is a reply to this request
+         * @param line
+         * @return boolean
+         */
+        public boolean accepts(String line) {
+            for(String reply : this.replies) {
+                if(line.startsWith(reply)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+/**
+ * A view controller whose view can be shown again. The ViewRegistry resets
+ * a cached view before it is shown again, so it looks like a new one.
+ * @author Petter
+ *
+ */
+public interface ReusableView {
+    
+    /**
+     * Put the view back the way it was loaded, on the JavaFX thread
+     */
+    public void reset();
+
+}
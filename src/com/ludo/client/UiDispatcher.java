@@ -0,0 +1,207 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.Node;
+
+/**
+ * Applies view updates from background threads on the JavaFX thread, in
+ * one batch per pulse. Updates are put in a lock-free queue, and while
+ * there are any, an AnimationTimer drains the queue once per pulse.
+ *
+ * Chat messages for the same chat view during a pulse are added as one
+ * change, and only the last position of a node is set, so a burst of 500
+ * chat lines costs one update and one layout instead of 500. Other
+ * updates run in the order they were queued, before the appends and moves
+ * of their batch. The timer stops when the queue is empty, so an idle
+ * client does not ask for pulses.
+ * @author Petter
+ *
+ */
+public class UiDispatcher implements Executor {
+    
+    /**
+     * Max updates applied in one pulse, the rest wait for the next one
+     */
+    private static final int MAX_BATCH = 20000;
+    
+    /**
+     * Shared dispatcher, there is only one JavaFX thread
+     */
+    private static UiDispatcher instance;
+    
+    /**
+     * Updates waiting for the next pulse
+     */
+    private ConcurrentLinkedQueue<Update> queue = new ConcurrentLinkedQueue<Update>();
+    
+    /**
+     * Set while the timer is running or about to start
+     */
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    
+    /**
+     * Drains the queue on every pulse
+     */
+    private AnimationTimer timer = new AnimationTimer() {
+        public void handle(long now) {
+            pulse();
+        }
+    };
+    
+    /**
+     * Starts the timer, on the JavaFX thread
+     */
+    private Runnable start = new Runnable() {
+        public void run() {
+            timer.start();
+        }
+    };
+    
+    /**
+     * Messages to add to each chat view in this pulse, only used on the JavaFX thread
+     */
+    private Map<ChatView, List<ChatMessage>> appends = new IdentityHashMap<ChatView, List<ChatMessage>>();
+    
+    /**
+     * Last position of each node in this pulse, only used on the JavaFX thread
+     */
+    private Map<Node, Update> moves = new IdentityHashMap<Node, Update>();
+    
+    /**
+     * Get the shared dispatcher
+     * @return UiDispatcher
+     */
+    public static synchronized UiDispatcher getInstance() {
+        if(instance == null) {
+            instance = new UiDispatcher();
+        }
+        
+        return instance;
+    }
+    
+    /**
+     * Run a task on the JavaFX thread, in the next pulse
+     * @param task
+     */
+    public void execute(Runnable task) {
+        queue(new Update(task, null, null, 0, 0));
+    }
+    
+    /**
+     * Add a message to a chat view in the next pulse
+     * @param view
+     * @param message
+     */
+    public void append(ChatView view, ChatMessage message) {
+        queue(new Update(null, view, message, 0, 0));
+    }
+    
+    /**
+     * Move a node in the next pulse
+     * @param node
+     * @param x Layout X
+     * @param y Layout Y
+     */
+    public void relocate(Node node, double x, double y) {
+        queue(new Update(null, node, null, x, y));
+    }
+    
+    /**
+     * Queue an update and make sure the timer is running
+     * @param update
+     */
+    private void queue(Update update) {
+        this.queue.add(update);
+        
+        if(this.scheduled.compareAndSet(false, true)) {
+            Platform.runLater(this.start);
+        }
+    }
+    
+    /**
+     * Apply the queued updates, on the JavaFX thread
+     */
+    private void pulse() {
+        Update update;
+        int count = 0;
+        while(count < MAX_BATCH && (update = this.queue.poll()) != null) {
+            count++;
+            
+            if(update.task != null) {
+                try {
+                    update.task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Error updating view: " + e);
+                    e.printStackTrace();
+                }
+            } else if(update.message != null) {
+                ChatView view = (ChatView) update.node;
+                List<ChatMessage> messages = this.appends.get(view);
+                if(messages == null) {
+                    messages = new ArrayList<ChatMessage>();
+                    this.appends.put(view, messages);
+                }
+                messages.add(update.message);
+            } else {
+                this.moves.put(update.node, update);
+            }
+        }
+        
+        // One change per chat view and one move per node
+        for(Map.Entry<ChatView, List<ChatMessage>> append : this.appends.entrySet()) {
+            append.getKey().add(append.getValue());
+        }
+        this.appends.clear();
+        
+        for(Update move : this.moves.values()) {
+            move.node.setLayoutX(move.x);
+            move.node.setLayoutY(move.y);
+        }
+        this.moves.clear();
+        
+        if(!this.queue.isEmpty()) {
+            return;
+        }
+        
+        // Stop until there is something to do. An update queued after the
+        // last poll has either seen the flag set, or starts the timer again.
+        this.scheduled.set(false);
+        if(this.queue.isEmpty() || !this.scheduled.compareAndSet(false, true)) {
+            this.timer.stop();
+        }
+    }
+    
+    /**
+     * A queued view update: a task, a chat message or a position
+     * @author Petter
+     *
+     */
+    private static class Update {
+        private Runnable task;
+        private Node node;
+        private ChatMessage message;
+        private double x;
+        private double y;
+        
+        public Update(Runnable task, Node node, ChatMessage message, double x, double y) {
+            this.task = task;
+            this.node = node;
+            this.message = message;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+}
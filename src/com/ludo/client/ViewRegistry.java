@@ -0,0 +1,178 @@
+/**
+ * 
+ */
+package com.ludo.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.ludo.i18n.MessageBundle;
+
+import javafx.fxml.FXMLLoader;
+import javafx.scene.Parent;
+
+/**
+ * Loads the FXML views once and keeps them, so switching screens does not
+ * parse FXML and build the scene graph again. Views are preloaded on a
+ * background thread, which is safe as long as they are not in a scene yet,
+ * and a view that has been shown before is reset by its controller, see
+ * ReusableView, before it is shown again.
+ *
+ * The texts of a view are set when it is loaded, so views loaded in
+ * another language than the current one are loaded again. Only used on
+ * the JavaFX thread, apart from the loading itself.
+ * @author Petter
+ *
+ */
+public class ViewRegistry {
+    
+    public static final String LOGIN = "/com/ludo/client/views/LoginView.fxml";
+    public static final String MAIN  = "/com/ludo/client/views/MainView.fxml";
+    public static final String GAME  = "/com/ludo/client/views/GameView.fxml";
+    
+    /**
+     * Loads views in the background, one at a time
+     */
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "view-loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Loaded or loading views by FXML path
+     */
+    private Map<String, Future<View>> views = new HashMap<String, Future<View>>();
+    
+    /**
+     * Start loading views in the background, unless they are loaded, or
+     * loading, already. Views that failed to load or are in another
+     * language are loaded again.
+     * @param names FXML paths
+     */
+    public void preload(String... names) {
+        for(final String name : names) {
+            Future<View> future = this.views.get(name);
+            if(future != null && (!future.isDone() || current(future))) {
+                continue;
+            }
+            
+            this.views.put(name, LOADER.submit(new Callable<View>() {
+                public View call() throws IOException {
+                    return load(name);
+                }
+            }));
+        }
+    }
+    
+    /**
+     * Get a view to show. A preloaded view is waited for if it is still
+     * loading, a view shown before is reset, and a view that failed to
+     * load or is in another language is loaded now.
+     * @param name FXML path
+     * @return View
+     * @throws IOException If the view cannot be loaded
+     */
+    public View get(String name) throws IOException {
+        View view = null;
+        
+        Future<View> future = this.views.get(name);
+        if(future != null) {
+            try {
+                view = future.get();
+            } catch (ExecutionException e) {
+                System.out.println("Error preloading " + name + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        if(view == null || !view.locale.equals(MessageBundle.getLocale())) {
+            view = load(name);
+            this.views.put(name, CompletableFuture.completedFuture(view));
+        } else if(view.shown && view.controller instanceof ReusableView) {
+            ((ReusableView) view.controller).reset();
+        }
+        
+        view.shown = true;
+        return view;
+    }
+    
+    /**
+     * Check if a loaded view can be used as it is
+     * @param future Done future of the view
+     * @return True if it loaded, in the current language
+     */
+    private static boolean current(Future<View> future) {
+        try {
+            return future.get().locale.equals(MessageBundle.getLocale());
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    /**
+     * Load a view
+     * @param name FXML path
+     * @return View
+     * @throws IOException
+     */
+    private static View load(String name) throws IOException {
+        Locale locale = MessageBundle.getLocale();
+        
+        FXMLLoader loader = new FXMLLoader(ViewRegistry.class.getResource(name));
+        Parent root = loader.load();
+        
+        return new View(root, loader.getController(), locale);
+    }
+    
+    /**
+     * A loaded view: its root node and its controller
+     * @author Petter
+     *
+     */
+    public static class View {
+        private Parent root;
+        private Object controller;
+        
+        /**
+         * Language of the view's texts
+         */
+        private Locale locale;
+        
+        /**
+         * Set once the view has been shown
+         */
+        private boolean shown = false;
+        
+        public View(Parent root, Object controller, Locale locale) {
+            this.root = root;
+            this.controller = controller;
+            this.locale = locale;
+        }
+        
+        public Parent getRoot() {
+            return this.root;
+        }
+        
+        @SuppressWarnings("unchecked")
+        public <T> T getController() {
+            return (T) this.controller;
+        }
+    }
+
+}
@@ -1,17 +1,25 @@
 package com.ludo.client.controllers;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ResourceBundle;
 
-import javax.swing.JOptionPane;
-
+import com.ludo.client.BoardCanvas;
+import com.ludo.client.BoardView;
+import com.ludo.client.ChatView;
 import com.ludo.client.Coordinates;
+import com.ludo.client.NodeBoard;
+import com.ludo.client.NotificationOverlay;
+import com.ludo.client.ReusableView;
+import com.ludo.client.UiDispatcher;
+import com.ludo.config.Config;
+import com.ludo.game.PlayerColor;
+import com.ludo.game.Rules;
 import com.ludo.i18n.MessageBundle;
 import com.ludo.client.ClientManager;
+import com.ludo.protocol.MessageStream;
 
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
@@ -20,13 +28,15 @@ import javafx.fxml.Initializable;
 import javafx.scene.Node;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
-import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
+import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.AnchorPane;
+import javafx.scene.layout.Pane;
 import javafx.scene.shape.Circle;
 import javafx.scene.shape.Ellipse;
 
-public class GameController implements Initializable{
+public class GameController implements Initializable, ReusableView {
     
     /**
      * Message Bundle
@@ -42,9 +52,29 @@ public class GameController implements Initializable{
      * Last dice roll
      */
     private int dice;
+    
+    /**
+     * Where the pieces and the indicator are in the view as loaded
+     */
+    private double[] homeX;
+    private double[] homeY;
+    private double indicatorX;
+    private double indicatorY;
+    
+    /**
+     * Board showing the pieces, the nodes of the view or a canvas
+     */
+    private BoardView board;
+    
+    /**
+     * Field coordinates, the same for every view
+     */
+    private static Coordinates[] coordinates;
 
     // FXML Fields
-    @FXML private TextArea gameChatTextArea;
+    @FXML private ChatView gameChatView;
+    @FXML private NotificationOverlay notifications;
+    @FXML private ImageView boardImage;
     @FXML private TextField commentTextField;
     
     // FXML Labels
@@ -187,6 +217,89 @@ public class GameController implements Initializable{
     @Override
     public void initialize(URL arg0, ResourceBundle arg1) {
         
+        // Remember the home of every piece, the view may be reset after pieces have moved
+        List<Circle> pieces = getPieces();
+        homeX = new double[pieces.size()];
+        homeY = new double[pieces.size()];
+        for(int i = 0; i < pieces.size(); i++) {
+            homeX[i] = pieces.get(i).getLayoutX();
+            homeY[i] = pieces.get(i).getLayoutY();
+        }
+        indicatorX = turneIndicatorEllipse.getLayoutX();
+        indicatorY = turneIndicatorEllipse.getLayoutY();
+        
+        // Draw the board on a canvas instead of moving nodes, if set in config
+        if("canvas".equals(new Config().getConfig("boardRenderer"))) {
+            useCanvas();
+        } else {
+            board = new NodeBoard(pieces, turneIndicatorEllipse);
+        }
+    }
+    
+    /**
+     * Replace the board image, the pieces and the indicator with a canvas
+     * drawing them, in the same place
+     */
+    private void useCanvas() {
+        BoardCanvas canvas = new BoardCanvas(getClass().getResource("/com/ludo/resources/ludo.jpg").toExternalForm(), homeX, homeY, indicatorX, indicatorY);
+        
+        // Keep the board's place, and let it shrink with the window
+        AnchorPane.setLeftAnchor(canvas, boardImage.getLayoutX());
+        AnchorPane.setTopAnchor(canvas, boardImage.getLayoutY());
+        AnchorPane.setBottomAnchor(canvas, 0.0);
+        
+        Pane view = (Pane) boardImage.getParent();
+        view.getChildren().set(view.getChildren().indexOf(boardImage), canvas);
+        view.getChildren().removeAll(getPieces());
+        view.getChildren().remove(turneIndicatorEllipse);
+        
+        board = canvas;
+    }
+    
+    /**
+     * Put the pieces home and clear the last game, before the view is shown
+     * again. The pieces are moved like any other move, in the next pulse,
+     * so moves still queued from the last game do not win over the reset.
+     */
+    @Override
+    public void reset() {
+        myTurn = false;
+        dice = 0;
+        
+        for(int i = 0; i < homeX.length; i++) {
+            board.movePiece(i, homeX[i], homeY[i]);
+        }
+        board.moveIndicator(indicatorX, indicatorY);
+        
+        gameChatView.clear();
+        commentTextField.setText("");
+        notifications.clear();
+    }
+    
+    /**
+     * Get the board showing the pieces
+     * @return BoardView
+     */
+    public BoardView getBoard() {
+        return board;
+    }
+    
+    /**
+     * Get the home X of a piece
+     * @param piece Index in the list of pieces
+     * @return Layout X
+     */
+    public double getHomeX(int piece) {
+        return homeX[piece];
+    }
+    
+    /**
+     * Get the home Y of a piece
+     * @param piece Index in the list of pieces
+     * @return Layout Y
+     */
+    public double getHomeY(int piece) {
+        return homeY[piece];
     }
     
     /**
@@ -194,7 +307,7 @@ public class GameController implements Initializable{
      * @param gameManager
      * @param out
      */
-    public void initManager(ClientManager clientManager, PrintWriter out) {
+    public void initManager(ClientManager clientManager, MessageStream out) {
         
         writeBtn.setOnAction(new EventHandler<ActionEvent>() {
             
@@ -205,7 +318,7 @@ public class GameController implements Initializable{
                 if(!commentTextField.getText().trim().isEmpty()) {
                     
                     // Send message to server
-                    out.println("MESSAGE " + commentTextField.getText().trim());
+                    out.send("MESSAGE " + commentTextField.getText().trim());
                     
                     // Clear chat input field
                     commentTextField.setText("");
@@ -223,7 +336,7 @@ public class GameController implements Initializable{
                     StringBuilder sb = new StringBuilder();
                     sb.append("");
                     sb.append(dice);
-                    JOptionPane.showMessageDialog(null, messageBundle.retriveText("game.moveDice") + " " + sb.toString() + " " + messageBundle.retriveText("game.moveDice.steps"));
+                    notifications.show(messageBundle.retriveText("game.moveDice") + " " + sb.toString() + " " + messageBundle.retriveText("game.moveDice.steps"));
                     myTurn = false;
                  
                 }
@@ -231,6 +344,15 @@ public class GameController implements Initializable{
             }
         });
         
+        // Pieces drawn on a canvas are pressed through the canvas
+        if(board instanceof BoardCanvas) {
+            ((BoardCanvas) board).setOnPiecePressed(new BoardCanvas.PieceListener() {
+                public void piecePressed(int piece) {
+                    out.send("MOVE " + (piece % Rules.PIECES + 1) + " " + PlayerColor.get(piece / Rules.PIECES).getName());
+                }
+            });
+        }
+        
         //---- Pieces ---- //
         
         // Red
@@ -238,28 +360,28 @@ public class GameController implements Initializable{
 
             @Override
             public void handle(MouseEvent event) {
-            out.println("MOVE 1 red");
+            out.send("MOVE 1 red");
             }
         });
         redPiece2.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-             out.println("MOVE 2 red");
+             out.send("MOVE 2 red");
             }
         });
         redPiece3.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-             out.println("MOVE 3 red");
+             out.send("MOVE 3 red");
             }
         });
         redPiece4.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-             out.println("MOVE 4 red");
+             out.send("MOVE 4 red");
             }
         });
 
@@ -268,28 +390,28 @@ public class GameController implements Initializable{
 
             @Override
             public void handle(MouseEvent event) {
-              out.println("MOVE 1 blue");
+              out.send("MOVE 1 blue");
             }
         });
         bluePiece2.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-              out.println("MOVE 2 blue");
+              out.send("MOVE 2 blue");
             }
         });
         bluePiece3.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-              out.println("MOVE 3 blue");
+              out.send("MOVE 3 blue");
             }
         });
         bluePiece4.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-              out.println("MOVE 4 blue");
+              out.send("MOVE 4 blue");
             }
         });
 
@@ -298,28 +420,28 @@ public class GameController implements Initializable{
 
             @Override
             public void handle(MouseEvent event) {
-                out.println("MOVE 1 yellow");
+                out.send("MOVE 1 yellow");
             }
         });
         yellowPiece2.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-                out.println("MOVE 2 yellow");
+                out.send("MOVE 2 yellow");
             }
         });
         yellowPiece3.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-                out.println("MOVE 3 yellow");
+                out.send("MOVE 3 yellow");
             }
         });
         yellowPiece4.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-                out.println("MOVE 4 yellow");
+                out.send("MOVE 4 yellow");
             }
         });
 
@@ -328,28 +450,28 @@ public class GameController implements Initializable{
 
             @Override
             public void handle(MouseEvent event) {
-               out.println("MOVE 1 green");
+               out.send("MOVE 1 green");
             }
         });
         greenPiece2.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-               out.println("MOVE 2 green");
+               out.send("MOVE 2 green");
             }
         });
         greenPiece3.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-               out.println("MOVE 3 green");
+               out.send("MOVE 3 green");
             }
         });
         greenPiece4.setOnMousePressed(new EventHandler<MouseEvent>() {
 
             @Override
             public void handle(MouseEvent event) {
-               out.println("MOVE 4 green");
+               out.send("MOVE 4 green");
             }
         });
     }
@@ -359,6 +481,9 @@ public class GameController implements Initializable{
      * @return coordinate fields
      */
     public Coordinates[] getCoordinates() {
+        if(coordinates != null) {
+            return coordinates;
+        }
         
         Coordinates[] fieldArray = new Coordinates[76+1];
         fieldArray[1]  = new Coordinates(63, 272);  // Red field
@@ -446,6 +571,7 @@ public class GameController implements Initializable{
         fieldArray[75] = new Coordinates(314, 400);
         fieldArray[76] = new Coordinates(331, 359); // Arrow yellow - 7 p X
         
+        coordinates = fieldArray;
         return fieldArray;
     }
     
@@ -509,10 +635,11 @@ public class GameController implements Initializable{
     }
     
     /**
-     * Display a message that the user is in a game queue
+     * Display a message that the user is in a game queue.
+     * Can be called from any thread, like the other notifications.
      */
     public void waitingInQueue() {
-        JOptionPane.showMessageDialog(null, messageBundle.retriveText("game.alert.queue.message"), messageBundle.retriveText("game.alert.queue.title"), JOptionPane.INFORMATION_MESSAGE);
+        notifications.show(messageBundle.retriveText("game.alert.queue.message"));
     }
     
     /**
@@ -521,7 +648,7 @@ public class GameController implements Initializable{
      * @param color
      */
     public void gameHasStarted(String color) {
-        JOptionPane.showMessageDialog(null, messageBundle.retriveText("game.alert.hasStarted.message") + ": " + color.substring(0, 1).toUpperCase() + color.substring(1) + " Ninja", messageBundle.retriveText("game.alert.hasStarted.title"), JOptionPane.INFORMATION_MESSAGE);
+        notifications.show(messageBundle.retriveText("game.alert.hasStarted.message") + ": " + color.substring(0, 1).toUpperCase() + color.substring(1) + " Ninja");
     }
     
     /**
@@ -529,34 +656,39 @@ public class GameController implements Initializable{
      * @param string
      */
     public void endGame(String winner) {
-        JOptionPane.showMessageDialog(null, messageBundle.retriveText("game.end.message") + ": " + winner);
+        notifications.show(messageBundle.retriveText("game.end.message") + ": " + winner);
         
     }
     
     /**
-     * It's your turn
+     * It's your turn. The turn is taken on the JavaFX thread, where
+     * the dice button reads it.
      */
-    public void itsYourTurn(int dice) {
-        JOptionPane.showMessageDialog(null, messageBundle.retriveText("game.btn.roll"));
-        this.dice = dice;
-        this.myTurn = true;
+    public void itsYourTurn(final int dice) {
+        UiDispatcher.getInstance().execute(new Runnable() {
+            public void run() {
+                GameController.this.dice = dice;
+                myTurn = true;
+            }
+        });
+        notifications.show(messageBundle.retriveText("game.btn.roll"));
     }
     
     /**
      * Move is denied, show message
      */
 	public void moveDenied() {
-        JOptionPane.showMessageDialog(null, messageBundle.retriveText("game.alert.moveDenied"));
+        notifications.show(messageBundle.retriveText("game.alert.moveDenied"));
 
 		
 	}
 	
 	/**
-	 * Get game chat TextArea
+	 * Get game chat view
 	 * @return Game chat
 	 */
-    public TextArea getGameChat() {
-        return gameChatTextArea;
+    public ChatView getGameChat() {
+        return gameChatView;
     }
 
 }
@@ -3,10 +3,12 @@ package com.ludo.client.controllers;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ResourceBundle;
+import java.util.function.BiConsumer;
 
 import javax.swing.JOptionPane;
 
 import com.ludo.client.ClientManager;
+import com.ludo.client.ReusableView;
 import com.ludo.config.Config;
 import com.ludo.i18n.MessageBundle;
 
@@ -19,7 +21,7 @@ import javafx.scene.control.Label;
 import javafx.scene.control.PasswordField;
 import javafx.scene.control.TextField;
 
-public class LoginController implements Initializable {
+public class LoginController implements Initializable, ReusableView {
     
     // Config
     Config config = new Config();
@@ -68,25 +70,14 @@ public class LoginController implements Initializable {
         			return;
         		}
         		
-        		// Check if username and password are correct
-				int response = clientManager.authenticate(username, password);
-				
-				// Success
-        		if(response == 0) {
-				    try {
-                        clientManager.showMainScreen();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-				}
-        		// Login denied
-        		else if(response == 1) {
-				    errorLabel.setText(messageBundle.retriveText("login.error.loginDenied"));
-				}
-        		// Already logged in
-        		else if(response == 2) {
-        		    errorLabel.setText(messageBundle.retriveText("login.error.alreadyLoggedIn"));
-				}
+        		// Check if username and password are correct, the view stays responsive meanwhile
+        		setBusy(true);
+        		clientManager.authenticate(username, password).whenComplete(new BiConsumer<Integer, Throwable>() {
+        		    public void accept(Integer response, Throwable error) {
+        		        setBusy(false);
+        		        loginAnswered(clientManager, response, error);
+        		    }
+        		});
             }
         });
         
@@ -111,32 +102,41 @@ public class LoginController implements Initializable {
                 
                 System.out.println("Not empty");
                 
-                // Check if username and password are correct
-                int response = clientManager.register(username, password);
-                
-                // Success
-                if(response == 0) {
-                    // Display registration success message
-                    JOptionPane.showMessageDialog(null, messageBundle.retriveText("registration.complete") + ": " + username);
-                    
-                    // Authenticate and switch to main view
-                    if(clientManager.authenticate(username, password) == 0) {
-                        try {
-                            clientManager.showMainScreen();
-                        } catch (IOException e) {
-                            e.printStackTrace();
+                // Register, the view stays responsive meanwhile
+                setBusy(true);
+                clientManager.register(username, password).whenComplete(new BiConsumer<Integer, Throwable>() {
+                    public void accept(Integer response, Throwable error) {
+                        
+                        // No answer
+                        if(error != null) {
+                            setBusy(false);
+                            errorLabel.setText(messageBundle.retriveText("login.error.noResponse"));
+                            return;
+                        }
+                        
+                        // Username is taken
+                        if(response != 0) {
+                            setBusy(false);
+                            errorLabel.setText(messageBundle.retriveText("registration.error.usernameTaken"));
+                            return;
                         }
-                    } else {
-                        JOptionPane.showMessageDialog(null, messageBundle.retriveText("registration.error.auth"));
+                        
+                        // Display registration success message
+                        JOptionPane.showMessageDialog(null, messageBundle.retriveText("registration.complete") + ": " + username);
+                        
+                        // Authenticate and switch to main view
+                        clientManager.authenticate(username, password).whenComplete(new BiConsumer<Integer, Throwable>() {
+                            public void accept(Integer response, Throwable error) {
+                                setBusy(false);
+                                if(error == null && response == 0) {
+                                    loginAnswered(clientManager, response, null);
+                                } else {
+                                    JOptionPane.showMessageDialog(null, messageBundle.retriveText("registration.error.auth"));
+                                }
+                            }
+                        });
                     }
-                }
-                
-                // Username is taken
-                else if(response == 1) {
-                    errorLabel.setText(messageBundle.retriveText("registration.error.usernameTaken"));
-                } else {
-                    
-                }
+                });
             }
         });
         
@@ -165,8 +165,7 @@ public class LoginController implements Initializable {
             @Override
             public void handle(ActionEvent event) {
                 System.out.println("Change to Norwegian");
-                config.setConfig("language", "no");
-                config.setConfig("country", "NO");
+                MessageBundle.setLocale("no", "NO");
                 clientManager.showLoginScreen();
             }
         });
@@ -179,14 +178,75 @@ public class LoginController implements Initializable {
             @Override
             public void handle(ActionEvent event) {
                 System.out.println("Change to English");
-                config.setConfig("language", "en");
-                config.setConfig("country", "US");
+                MessageBundle.setLocale("en", "US");
                 clientManager.showLoginScreen();
             }
         });
         
     }
     
+    /**
+     * Show the answer to a login request, on the JavaFX thread
+     * @param clientManager
+     * @param response 0=LOGINACCEPTED, 1=LOGINDENIED, 2=ALREADYLOGGEDIN
+     * @param error Set if the server did not answer
+     */
+    private void loginAnswered(ClientManager clientManager, Integer response, Throwable error) {
+        
+        // No answer in time, or the connection is gone
+        if(error != null) {
+            errorLabel.setText(messageBundle.retriveText("login.error.noResponse"));
+        }
+        // Success
+        else if(response == 0) {
+            try {
+                clientManager.showMainScreen();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        // Login denied
+        else if(response == 1) {
+            errorLabel.setText(messageBundle.retriveText("login.error.loginDenied"));
+        }
+        // Already logged in
+        else if(response == 2) {
+            errorLabel.setText(messageBundle.retriveText("login.error.alreadyLoggedIn"));
+        }
+    }
+    
+    /**
+     * Disable the buttons while a request is waiting for the server
+     * @param busy
+     */
+    private void setBusy(boolean busy) {
+        loginBtn.setDisable(busy);
+        registerBtn.setDisable(busy);
+    }
+    
+    /**
+     * Clear the fields and errors from the last login, before the view is shown again
+     */
+    @Override
+    public void reset() {
+        usernameField.setText("");
+        passwordField.setText("");
+        errorLabel.setText("");
+        setBusy(false);
+        showServerAddress();
+    }
+    
+    /**
+     * Show the server address in its label
+     */
+    private void showServerAddress() {
+        if(config.getConfig("ipaddress") != null && !config.getConfig("ipaddress").equals("null")) {
+            serverLabel.setText(messageBundle.retriveText("login.ipaddress") + ": " + config.getConfig("ipaddress"));
+        } else {
+            serverLabel.setText(messageBundle.retriveText("login.no.ipaddress"));
+        }
+    }
+    
     @Override
 	public void initialize(URL location, ResourceBundle resources) {
 		welcomeLabel.setText(messageBundle.retriveText("login.welcomeMessage"));	// Welcome message
@@ -197,11 +257,7 @@ public class LoginController implements Initializable {
         registerBtn.setText(messageBundle.retriveText("login.registerBtn"));		// Register Button 
         
         // IP Address label
-        if(config.getConfig("ipaddress") != null && !config.getConfig("ipaddress").equals("null")) {
-            serverLabel.setText(messageBundle.retriveText("login.ipaddress") + ": " + config.getConfig("ipaddress"));
-        } else {
-            serverLabel.setText(messageBundle.retriveText("login.no.ipaddress"));
-        }
+        showServerAddress();
         
         serverAddressBtn.setText(messageBundle.retriveText("login.changeip.btn"));
         
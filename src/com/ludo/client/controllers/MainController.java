@@ -4,7 +4,9 @@ import java.io.PrintWriter;
 import java.net.URL;
 import java.util.ResourceBundle;
 
+import com.ludo.client.ChatView;
 import com.ludo.client.ClientManager;
+import com.ludo.client.ReusableView;
 import com.ludo.i18n.MessageBundle;
 
 import javafx.event.ActionEvent;
@@ -17,7 +19,7 @@ import javafx.scene.control.Tab;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 
-public class MainController implements Initializable {
+public class MainController implements Initializable, ReusableView {
 
 	// FXML Labels
 	@FXML private Label globalChatLabel;
@@ -28,8 +30,10 @@ public class MainController implements Initializable {
 	@FXML private Tab friendTab;
 	@FXML private Tab chatTab;
 	
+	// FXML Chat
+	@FXML private ChatView globalChatView;
+	
 	// FXML TextArea
-	@FXML private TextArea globalChatTextArea;
 	@FXML private TextArea friendTextArea;
 	@FXML private TextArea chatTextArea;
 	
@@ -116,12 +120,20 @@ public class MainController implements Initializable {
 	}
     
     /**
-     * Return chat window TextArea
-     * @return TextArea Chat
+     * Clear the chat from the last session, before the view is shown again
+     */
+    @Override
+    public void reset() {
+        globalChatView.clear();
+        globalChatTextField.setText("");
+    }
+    
+    /**
+     * Return global chat view
+     * @return ChatView Chat
      */
-    public TextArea getGlobalChat() {
-        globalChatTextArea.setWrapText(true);
-        return globalChatTextArea;
+    public ChatView getGlobalChat() {
+        return globalChatView;
     }
 
 }
@@ -4,12 +4,24 @@
 package com.ludo.config;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Petter
@@ -17,22 +29,47 @@ import java.util.Map;
  */
 
 /**
- * Config loads configuration settings from config.ini into a configuration map.
- * On every config request, the program looks up the current config value in
- * the configuration map and any new changes to the configuration is written to
- * the configuration file, config.ini, and reloaded to the configuration map.
+ * Config loads configuration settings from config.ini into an immutable
+ * snapshot, which is shared by every Config object for the same file.
+ * Lookups only read the current snapshot, numbers and booleans are parsed
+ * once per snapshot. When config.ini changes on disk, or a value is set
+ * through setConfig, a new snapshot is loaded and swapped in atomically.
+ * A file that changed on disk is only read once its size and modification
+ * time have settled, and a read that fails or loses keys the current
+ * snapshot has is thrown away, so a half written file is never used.
  * @author Petter
  *
  */
 public class Config {
+    
+    /**
+     * Current snapshot of every loaded configuration file, by absolute path
+     */
+    private static Map<Path, Snapshot> snapshots = new ConcurrentHashMap<Path, Snapshot>();
+    
+    /**
+     * Watches the directories of loaded configuration files for changes
+     */
+    private static WatchService watchService;
+    
+    /**
+     * Directories registered with the watch service
+     */
+    private static Set<Path> watchedDirectories = new HashSet<Path>();
+    
+    /**
+     * How long a changed file must stay the same before it is read, in milliseconds
+     */
+    private static final long SETTLE_TIME = 50;
+    
     private String filename = "config.ini";
-    private Map<String, String> configuration = new HashMap<String, String>();
+    private Path path;
     
     /**
      * Load Configurations
      */
     public Config() {
-        readFromFile(this.filename);
+        this("config.ini");
     }
     
     /**
@@ -41,17 +78,56 @@ public class Config {
      */
     public Config(String filename) {
         this.filename = filename;
-        readFromFile(this.filename);
+        this.path = Paths.get(filename).toAbsolutePath().normalize();
+        
+        // Load the file the first time it is used
+        if(!snapshots.containsKey(this.path)) {
+            synchronized(Config.class) {
+                if(!snapshots.containsKey(this.path)) {
+                    snapshots.put(this.path, new Snapshot(readFromFile(this.filename)));
+                    watch(this.path);
+                }
+            }
+        }
     }
     
     /**
-     * Get a configuration value from configuration map.
+     * Get a configuration value from the current snapshot.
      * @param configName
      * @return
      */
     public String getConfig(String configName) {
-        readFromFile(this.filename);
-        return configuration.get(configName);
+        return snapshots.get(this.path).get(configName);
+    }
+    
+    /**
+     * Get a configuration value as an integer
+     * @param configName Config name
+     * @param defaultValue Returned if the value is missing or not a number
+     * @return int
+     */
+    public int getInt(String configName, int defaultValue) {
+        return snapshots.get(this.path).getInt(configName, defaultValue);
+    }
+    
+    /**
+     * Get a configuration value as a long
+     * @param configName Config name
+     * @param defaultValue Returned if the value is missing or not a number
+     * @return long
+     */
+    public long getLong(String configName, long defaultValue) {
+        return snapshots.get(this.path).getLong(configName, defaultValue);
+    }
+    
+    /**
+     * Get a configuration value as a boolean
+     * @param configName Config name
+     * @param defaultValue Returned if the value is missing
+     * @return boolean
+     */
+    public boolean getBoolean(String configName, boolean defaultValue) {
+        return snapshots.get(this.path).getBoolean(configName, defaultValue);
     }
     
     /**
@@ -62,12 +138,19 @@ public class Config {
      */
     public void setConfig(String key, String value) {
         
-        // Update configuration Map
-        this.configuration.put(key, value);
-        
-        // Save configuration Map to file
-        saveToFile(this.configuration, this.filename);
-        
+        synchronized(Config.class) {
+            
+            // Copy the current configuration with the new value
+            Map<String, String> configuration = new HashMap<String, String>(snapshots.get(this.path).values);
+            configuration.put(key, value);
+            
+            // Save configuration Map to file
+            saveToFile(configuration, this.filename);
+            
+            // Swap in the new snapshot
+            snapshots.put(this.path, new Snapshot(configuration));
+        }
+    
     }
     
     /**
@@ -91,7 +174,7 @@ public class Config {
             
             // Close file
             output.close();
-            
+        
         } catch (FileNotFoundException e) {
             System.out.println("File not found: " + filename);
             e.printStackTrace();
@@ -104,12 +187,32 @@ public class Config {
      * configKey=configValue
      * anotherKey=anotherValue
      * @param filename
+     * @return Map of configuration names and values
      */
-    private void readFromFile(String filename) {
+    private static Map<String, String> readFromFile(String filename) {
+        Map<String, String> configuration = new HashMap<String, String>();
+        
+        try {
+            configuration = load(filename);
+        } catch(IOException e) {
+            System.out.println("Error reading from " + filename + ": " + e );
+        }
+        
+        return configuration;
+    }
+    
+    /**
+     * Read a configuration file, see readFromFile
+     * @param filename
+     * @return Map of configuration names and values
+     * @throws IOException If the file cannot be read
+     */
+    private static Map<String, String> load(String filename) throws IOException {
+        Map<String, String> configuration = new HashMap<String, String>();
+        
+        // File Reader
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
         try {
-            
-            // File Reader
-            BufferedReader reader = new BufferedReader(new FileReader(filename));
             
             String line = null;
             
@@ -130,14 +233,191 @@ public class Config {
                 }
                 
                 // Load configuration name and value to the configuration map.
-                this.configuration.put(config[0].trim(), config[1].trim());
+                configuration.put(config[0].trim(), config[1].trim());
             }
+        } finally {
             
             // Close file
             reader.close();
+        }
+        
+        return configuration;
+    }
+    
+    /**
+     * Read a configuration file that changed on disk into a new snapshot,
+     * once it has stopped changing. Keeps the current snapshot if the file
+     * cannot be read or is missing keys the current snapshot has.
+     * @param file
+     */
+    private static void reload(Path file) {
+        File current = file.toFile();
+        
+        // Wait for the writer to finish
+        long size = -1;
+        long modified = -1;
+        try {
+            while(current.length() != size || current.lastModified() != modified) {
+                size = current.length();
+                modified = current.lastModified();
+                Thread.sleep(SETTLE_TIME);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        
+        Map<String, String> configuration;
+        try {
+            configuration = load(file.toString());
+        } catch (IOException e) {
+            System.out.println("Error reloading " + file + ", keeping the current configuration: " + e);
+            return;
+        }
+        
+        synchronized(Config.class) {
+            Set<String> missing = new HashSet<String>(snapshots.get(file).values.keySet());
+            missing.removeAll(configuration.keySet());
+            if(!missing.isEmpty()) {
+                System.out.println("Not reloading " + file + ", keeping the current configuration, missing " + missing);
+                return;
+            }
             
-        } catch(IOException e) {
-            System.out.println("Error reading from " + filename + ": " + e );
+            snapshots.put(file, new Snapshot(configuration));
+        }
+    }
+    
+    /**
+     * Start watching the directory of a configuration file, starting
+     * the watcher thread on first use. Must hold the Config class lock.
+     * @param file
+     */
+    private static void watch(Path file) {
+        Path directory = file.getParent();
+        
+        try {
+            if(watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                
+                Thread watcher = new Thread(new Runnable() {
+                    public void run() {
+                        watchLoop();
+                    }
+                }, "config-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            
+            if(watchedDirectories.add(directory)) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to watch " + file + " for changes: " + e);
+        }
+    }
+    
+    /**
+     * Reload configuration files when they change on disk
+     */
+    private static void watchLoop() {
+        while(true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            
+            Path directory = (Path) key.watchable();
+            
+            for(WatchEvent<?> event : key.pollEvents()) {
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    continue;
+                }
+                
+                Path changed = directory.resolve((Path) event.context());
+                
+                // Only reload files that are in use
+                if(snapshots.containsKey(changed)) {
+                    reload(changed);
+                }
+            }
+            
+            key.reset();
+        }
+    }
+    
+    /**
+     * An immutable set of configuration values, with typed
+     * values parsed on first use.
+     * @author Petter
+     *
+     */
+    private static class Snapshot {
+        
+        /**
+         * Cached for values that are missing or not a number
+         */
+        private static final Object NOT_A_NUMBER = new Object();
+        
+        private Map<String, String> values;
+        private Map<String, Object> ints = new ConcurrentHashMap<String, Object>();
+        private Map<String, Object> longs = new ConcurrentHashMap<String, Object>();
+        
+        public Snapshot(Map<String, String> values) {
+            this.values = Collections.unmodifiableMap(new HashMap<String, String>(values));
+        }
+        
+        public String get(String name) {
+            return this.values.get(name);
+        }
+        
+        public int getInt(String name, int defaultValue) {
+            Object value = this.ints.get(name);
+            
+            if(value == null) {
+                String text = this.values.get(name);
+                value = NOT_A_NUMBER;
+                if(text != null) {
+                    try {
+                        value = Integer.valueOf(text);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Config " + name + " is not a number: " + text);
+                    }
+                }
+                this.ints.put(name, value);
+            }
+            
+            return value == NOT_A_NUMBER ? defaultValue : (Integer) value;
+        }
+        
+        public long getLong(String name, long defaultValue) {
+            Object value = this.longs.get(name);
+            
+            if(value == null) {
+                String text = this.values.get(name);
+                value = NOT_A_NUMBER;
+                if(text != null) {
+                    try {
+                        value = Long.valueOf(text);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Config " + name + " is not a number: " + text);
+                    }
+                }
+                this.longs.put(name, value);
+            }
+            
+            return value == NOT_A_NUMBER ? defaultValue : (Long) value;
+        }
+        
+        public boolean getBoolean(String name, boolean defaultValue) {
+            String value = this.values.get(name);
+            
+            if(value == null) {
+                return defaultValue;
+            }
+            
+            return Boolean.parseBoolean(value);
         }
     }
 }
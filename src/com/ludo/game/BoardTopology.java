@@ -0,0 +1,189 @@
+/**
+ * 
+ */
+package com.ludo.game;
+
+/**
+ * The layout of the Ludo board, precomputed into flat lookup tables shared
+ * by the server rules and the client's piece placement.
+ *
+ * Every color moves along its own route of relative positions: 0 is home,
+ * 1 is the color's start field on the main track, 53 is the start field
+ * again after a full lap, and 54 to 59 is the color's road to goal, where
+ * 59 is the goal. Absolute fields are numbered like the client's board
+ * coordinates: 1-52 is the main track starting at red's start field, and
+ * the roads to goal are 53-58 (red), 59-64 (blue), 65-70 (yellow) and
+ * 71-76 (green). Field 0 means the piece is at home.
+ * @author Petter
+ *
+ */
+public final class BoardTopology {
+    
+    /**
+     * Fields on the main track
+     */
+    public static final int TRACK = 52;
+    
+    /**
+     * Fields between the start fields of two colors
+     */
+    public static final int COLOR_OFFSET = TRACK / 4;
+    
+    /**
+     * Fields on a color's road to goal, including the goal
+     */
+    public static final int ROAD = 6;
+    
+    /**
+     * Relative position of the last field on the main track, which is the start field again
+     */
+    public static final int LAP = TRACK + 1;
+    
+    /**
+     * Relative position of the goal
+     */
+    public static final int GOAL = LAP + ROAD;
+    
+    /**
+     * Number of absolute fields, including 0 for home
+     */
+    public static final int FIELDS = 1 + TRACK + 4 * ROAD;
+    
+    /**
+     * Relative positions per color, 0 to GOAL
+     */
+    public static final int POSITIONS = GOAL + 1;
+    
+    /**
+     * Highest dice roll
+     */
+    public static final int MAX_DICE = 6;
+    
+    /**
+     * Absolute field by color and relative position: [color * POSITIONS + position]
+     */
+    private static final int[] FIELD = new int[4 * POSITIONS];
+    
+    /**
+     * Relative position after a dice roll, or -1 if the move is not allowed:
+     * [position * (MAX_DICE + 1) + dice]
+     */
+    private static final int[] TARGET = new int[POSITIONS * (MAX_DICE + 1)];
+    
+    /**
+     * Absolute field after a dice roll, or -1 if the move is not allowed:
+     * [(color * POSITIONS + position) * (MAX_DICE + 1) + dice]
+     */
+    private static final int[] FIELD_AFTER = new int[4 * POSITIONS * (MAX_DICE + 1)];
+    
+    static {
+        for(int color = 0; color < 4; color++) {
+            for(int position = 0; position < POSITIONS; position++) {
+                FIELD[color * POSITIONS + position] = computeField(color, position);
+            }
+        }
+        
+        for(int position = 0; position < POSITIONS; position++) {
+            for(int dice = 0; dice <= MAX_DICE; dice++) {
+                TARGET[position * (MAX_DICE + 1) + dice] = computeTarget(position, dice);
+            }
+        }
+        
+        for(int color = 0; color < 4; color++) {
+            for(int position = 0; position < POSITIONS; position++) {
+                for(int dice = 0; dice <= MAX_DICE; dice++) {
+                    int target = TARGET[position * (MAX_DICE + 1) + dice];
+                    FIELD_AFTER[(color * POSITIONS + position) * (MAX_DICE + 1) + dice] = target < 0 ? -1 : FIELD[color * POSITIONS + target];
+                }
+            }
+        }
+    }
+    
+    private BoardTopology() {
+    }
+    
+    /**
+     * Get the absolute field of a relative position
+     * @param color Color ordinal
+     * @param position Relative position, 0 to GOAL
+     * @return Absolute field, 0 for home
+     */
+    public static int field(int color, int position) {
+        return FIELD[color * POSITIONS + position];
+    }
+    
+    /**
+     * Get the relative position after a dice roll
+     * @param position Relative position, 0 to GOAL
+     * @param dice Dice roll, 1 to MAX_DICE
+     * @return The new position, or -1 if the move is not allowed
+     */
+    public static int target(int position, int dice) {
+        return TARGET[position * (MAX_DICE + 1) + dice];
+    }
+    
+    /**
+     * Get the absolute field after a dice roll
+     * @param color Color ordinal
+     * @param position Relative position, 0 to GOAL
+     * @param dice Dice roll, 1 to MAX_DICE
+     * @return Absolute field, or -1 if the move is not allowed
+     */
+    public static int fieldAfter(int color, int position, int dice) {
+        return FIELD_AFTER[(color * POSITIONS + position) * (MAX_DICE + 1) + dice];
+    }
+    
+    /**
+     * Get the color whose road to goal an absolute field is on
+     * @param field Absolute field
+     * @return Color ordinal, or -1 for home and the main track
+     */
+    public static int roadColor(int field) {
+        return field > TRACK ? (field - TRACK - 1) / ROAD : -1;
+    }
+    
+    /**
+     * Absolute field of a relative position
+     * @param color
+     * @param position
+     * @return int
+     */
+    private static int computeField(int color, int position) {
+        
+        // At home
+        if(position == Rules.HOME) {
+            return 0;
+        }
+        
+        // Main track, wrapping around after field 52
+        if(position <= LAP) {
+            return (position - 1 + color * COLOR_OFFSET) % TRACK + 1;
+        }
+        
+        // Road to goal
+        return TRACK + 1 + color * ROAD + (position - LAP - 1);
+    }
+    
+    /**
+     * Relative position after a dice roll
+     * @param position
+     * @param dice
+     * @return The new position, or -1 if the move is not allowed
+     */
+    private static int computeTarget(int position, int dice) {
+        
+        // No roll, or a piece in the goal stays there
+        if(dice < 1 || position == GOAL) {
+            return -1;
+        }
+        
+        // If piece is in home, a 6 is required to move out
+        if(position == Rules.HOME) {
+            return dice == Rules.LEAVE_HOME ? Rules.START : -1;
+        }
+        
+        // The goal must be reached exactly, not passed
+        int target = position + dice;
+        return target <= GOAL ? target : -1;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * 
+ */
+package com.ludo.game;
+
+/**
+ * Player colors, in turn order. The ordinal is used to index the
+ * pieces of a color in the board state.
+ * @author Petter
+ *
+ */
+public enum PlayerColor {
+    RED("red"),
+    BLUE("blue"),
+    YELLOW("yellow"),
+    GREEN("green");
+    
+    /**
+     * Every color, by ordinal
+     */
+    private static final PlayerColor[] COLORS = values();
+    
+    /**
+     * Name used in the protocol
+     */
+    private final String name;
+    
+    private PlayerColor(String name) {
+        this.name = name;
+    }
+    
+    /**
+     * Get the name used in the protocol
+     * @return String
+     */
+    public String getName() {
+        return this.name;
+    }
+    
+    /**
+     * Get a color by ordinal
+     * @param ordinal
+     * @return PlayerColor
+     */
+    public static PlayerColor get(int ordinal) {
+        return COLORS[ordinal];
+    }
+    
+    /**
+     * Get a color by its protocol name
+     * @param name
+     * @return PlayerColor, or null if there is no such color
+     */
+    public static PlayerColor fromName(String name) {
+        for(PlayerColor color : COLORS) {
+            if(color.name.equals(name)) {
+                return color;
+            }
+        }
+        return null;
+    }
+    
+    public String toString() {
+        return this.name;
+    }
+}
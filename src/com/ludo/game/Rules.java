@@ -0,0 +1,150 @@
+/**
+ * 
+ */
+package com.ludo.game;
+
+/**
+ * The Ludo rules, as pure functions over a board state.
+ *
+ * A board state is a byte[16] holding the position of every piece, where
+ * the pieces of a color are at index color.ordinal() * 4 to + 3. Positions
+ * are counted along the color's own route, see BoardTopology: 0 is home,
+ * 1 is the color's start field and GOAL is the goal. Moves are looked up in
+ * the topology tables. None of the functions allocate, so they can run on
+ * every move of every game.
+ * @author Petter
+ *
+ */
+public final class Rules {
+    
+    /**
+     * Pieces per color
+     */
+    public static final int PIECES = 4;
+    
+    /**
+     * Size of a board state
+     */
+    public static final int BOARD_SIZE = PIECES * 4;
+    
+    /**
+     * Position of a piece at home
+     */
+    public static final int HOME = 0;
+    
+    /**
+     * Position of a piece that has just left home
+     */
+    public static final int START = 1;
+    
+    /**
+     * Dice roll needed to leave home
+     */
+    public static final int LEAVE_HOME = 6;
+    
+    /**
+     * Position of the goal
+     */
+    public static final int GOAL = BoardTopology.GOAL;
+    
+    private Rules() {
+    }
+    
+    /**
+     * Create an empty board with every piece at home
+     * @return byte[]
+     */
+    public static byte[] newBoard() {
+        return new byte[BOARD_SIZE];
+    }
+    
+    /**
+     * Index of a piece in the board state
+     * @param color Color ordinal
+     * @param piece Piece (0-3)
+     * @return int
+     */
+    public static int index(int color, int piece) {
+        return color * PIECES + piece;
+    }
+    
+    /**
+     * Check if a piece can move with a dice roll
+     * @param board Board state
+     * @param color Color ordinal
+     * @param piece Piece (0-3)
+     * @param dice Dice roll
+     * @return boolean
+     */
+    public static boolean isLegal(byte[] board, int color, int piece, int dice) {
+        return BoardTopology.target(board[index(color, piece)], dice) >= 0;
+    }
+    
+    /**
+     * Find every piece of a color that can move with a dice roll
+     * @param board Board state
+     * @param color Color ordinal
+     * @param dice Dice roll
+     * @return Bit mask of movable pieces, bit 0 for piece 0. 0 if none can move.
+     */
+    public static int legalMoves(byte[] board, int color, int dice) {
+        int moves = 0;
+        int first = color * PIECES;
+        
+        for(int piece = 0; piece < PIECES; piece++) {
+            if(BoardTopology.target(board[first + piece], dice) >= 0) {
+                moves |= 1 << piece;
+            }
+        }
+        
+        return moves;
+    }
+    
+    /**
+     * Move a piece, if the move is legal
+     * @param board Board state, updated in place
+     * @param color Color ordinal
+     * @param piece Piece (0-3)
+     * @param dice Dice roll
+     * @return The new position, or -1 if the move is not allowed and the board is unchanged
+     */
+    public static int apply(byte[] board, int color, int piece, int dice) {
+        int index = index(color, piece);
+        int target = BoardTopology.target(board[index], dice);
+        
+        if(target >= 0) {
+            board[index] = (byte) target;
+        }
+        
+        return target;
+    }
+    
+    /**
+     * Check if every piece of a color has reached the goal
+     * @param board Board state
+     * @param color Color ordinal
+     * @return boolean
+     */
+    public static boolean hasWon(byte[] board, int color) {
+        int first = color * PIECES;
+        
+        for(int piece = 0; piece < PIECES; piece++) {
+            if(board[first + piece] != GOAL) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Get the position of a piece
+     * @param board Board state
+     * @param color Color ordinal
+     * @param piece Piece (0-3)
+     * @return int
+     */
+    public static int position(byte[] board, int color, int piece) {
+        return board[index(color, piece)];
+    }
+}
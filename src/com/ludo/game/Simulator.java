@@ -0,0 +1,255 @@
+/**
+ * 
+ */
+package com.ludo.game;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Headless self-play. Plays complete games between bot strategies in
+ * memory, split across every core with fork/join, and reports the
+ * throughput, the average game length and the win rate of every seat.
+ *
+ * Every block of games gets its own random seed from --seed, so a run
+ * gives the same results however many threads play it.
+ * @author Petter
+ *
+ */
+public class Simulator {
+    
+    /**
+     * Games played by a single fork/join task
+     */
+    private static final int BLOCK = 4096;
+    
+    /**
+     * Turns before a game is given up
+     */
+    private static final int MAX_TURNS = 100000;
+    
+    /**
+     * Strategy of every seat, seat n plays color n
+     */
+    private Strategy[] seats;
+    
+    private long seed;
+    
+    /**
+     * Create a simulator
+     * @param seats Strategy per seat, 1 to 4 seats
+     * @param seed Random seed
+     */
+    public Simulator(Strategy[] seats, long seed) {
+        if(seats.length < 1 || seats.length > 4) {
+            throw new IllegalArgumentException("A game has 1 to 4 seats, not " + seats.length);
+        }
+        this.seats = seats.clone();
+        this.seed = seed;
+    }
+    
+    /**
+     * Play games on a fork/join pool
+     * @param games Number of games
+     * @param pool
+     * @return Result
+     */
+    public Result run(long games, ForkJoinPool pool) {
+        return pool.invoke(new Block(0, (games + BLOCK - 1) / BLOCK, games));
+    }
+    
+    /**
+     * Play a single game
+     * @param board Board state to play on, cleared first
+     * @param random
+     * @param result Result to add the game to
+     */
+    public void play(byte[] board, SplittableRandom random, Result result) {
+        Arrays.fill(board, (byte) 0);
+        
+        for(int turn = 0; turn < MAX_TURNS; turn++) {
+            int seat = turn % this.seats.length;
+            int dice = 1 + random.nextInt(BoardTopology.MAX_DICE);
+            
+            int moves = Rules.legalMoves(board, seat, dice);
+            if(moves == 0) {
+                continue;
+            }
+            
+            int piece = this.seats[seat].choose(board, seat, dice, moves, random);
+            if(piece < 0 || piece >= Rules.PIECES || (moves & (1 << piece)) == 0) {
+                throw new IllegalStateException(this.seats[seat] + " picked illegal piece " + piece + " with " + dice + " on " + Arrays.toString(board));
+            }
+            
+            Rules.apply(board, seat, piece, dice);
+            
+            if(Rules.hasWon(board, seat)) {
+                result.games++;
+                result.turns += turn + 1;
+                result.wins[seat]++;
+                return;
+            }
+        }
+        
+        result.games++;
+        result.turns += MAX_TURNS;
+        result.unfinished++;
+    }
+    
+    /**
+     * Plays a range of blocks, splitting it in half until a single block is left
+     * @author Petter
+     *
+     */
+    private class Block extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+        
+        private long from;
+        private long to;
+        private long games;
+        
+        public Block(long from, long to, long games) {
+            this.from = from;
+            this.to = to;
+            this.games = games;
+        }
+        
+        protected Result compute() {
+            if(this.to - this.from > 1) {
+                long middle = (this.from + this.to) >>> 1;
+                Block left = new Block(this.from, middle, this.games);
+                left.fork();
+                Result result = new Block(middle, this.to, this.games).compute();
+                result.add(left.join());
+                return result;
+            }
+            
+            Result result = new Result(seats.length);
+            SplittableRandom random = new SplittableRandom(seed ^ (this.from * 0x9E3779B97F4A7C15L));
+            byte[] board = Rules.newBoard();
+            
+            long end = Math.min(this.games, (this.from + 1) * BLOCK);
+            for(long game = this.from * BLOCK; game < end; game++) {
+                play(board, random, result);
+            }
+            
+            return result;
+        }
+    }
+    
+    /**
+     * Totals of a number of games
+     * @author Petter
+     *
+     */
+    public static class Result {
+        private long games;
+        private long turns;
+        private long unfinished;
+        private long[] wins;
+        
+        public Result(int seats) {
+            this.wins = new long[seats];
+        }
+        
+        /**
+         * Add the totals of another result
+         * @param other
+         */
+        public void add(Result other) {
+            this.games += other.games;
+            this.turns += other.turns;
+            this.unfinished += other.unfinished;
+            for(int seat = 0; seat < this.wins.length; seat++) {
+                this.wins[seat] += other.wins[seat];
+            }
+        }
+        
+        public long getGames() {
+            return this.games;
+        }
+        
+        public long getTurns() {
+            return this.turns;
+        }
+        
+        public long getUnfinished() {
+            return this.unfinished;
+        }
+        
+        public long getWins(int seat) {
+            return this.wins[seat];
+        }
+    }
+    
+    /**
+     * Run a simulation and print the results.
+     * 
+     * Run arguments:
+     * --games=N              Number of games (default 1000000)
+     * --strategies=a,b,...   Strategy per seat: random, greedy or safe (default random,random,random,random)
+     * --seed=N               Random seed (default 1)
+     * --threads=N            Fork/join parallelism (default every core)
+     * 
+     * @param args Run arguments
+     */
+    public static void main(String[] args) {
+        
+        long games = 1000000;
+        String strategies = "random,random,random,random";
+        long seed = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--games=")) {
+                    games = Long.parseLong(arg.substring("--games=".length()));
+                } else if(arg.startsWith("--strategies=")) {
+                    strategies = arg.substring("--strategies=".length());
+                } else if(arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else if(arg.startsWith("--threads=")) {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        String[] names = strategies.split(",");
+        Strategy[] seats = new Strategy[names.length];
+        for(int seat = 0; seat < names.length; seat++) {
+            seats[seat] = Strategies.fromName(names[seat].trim());
+            if(seats[seat] == null) {
+                System.out.println("Unknown strategy: " + names[seat] + ", use random, greedy or safe");
+                return;
+            }
+        }
+        
+        Simulator simulator = new Simulator(seats, seed);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        
+        System.out.println("Simulating " + games + " games on " + threads + " threads...");
+        
+        long start = System.nanoTime();
+        Result result = simulator.run(games, pool);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        
+        pool.shutdown();
+        
+        System.out.printf("Games: %d in %.2f s (%.0f games/s)%n", result.getGames(), seconds, result.getGames() / seconds);
+        System.out.printf("Average turns: %.1f%n", result.getGames() > 0 ? (double) result.getTurns() / result.getGames() : 0.0);
+        for(int seat = 0; seat < seats.length; seat++) {
+            System.out.printf("Seat %d (%s, %s): %.2f%% wins%n", seat + 1, PlayerColor.get(seat), seats[seat].toString().toLowerCase(), 100.0 * result.getWins(seat) / Math.max(1, result.getGames()));
+        }
+        if(result.getUnfinished() > 0) {
+            System.out.println("Unfinished: " + result.getUnfinished());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * 
+ */
+package com.ludo.game;
+
+import java.util.SplittableRandom;
+
+/**
+ * The built in bot strategies
+ * @author Petter
+ *
+ */
+public enum Strategies implements Strategy {
+    
+    /**
+     * Any legal move
+     */
+    RANDOM {
+        public int choose(byte[] board, int color, int dice, int moves, SplittableRandom random) {
+            int pick = random.nextInt(Integer.bitCount(moves));
+            
+            for(int piece = 0; piece < Rules.PIECES; piece++) {
+                if((moves & (1 << piece)) != 0 && pick-- == 0) {
+                    return piece;
+                }
+            }
+            
+            return Integer.numberOfTrailingZeros(moves);
+        }
+    },
+    
+    /**
+     * The move that gets a piece furthest along its route
+     */
+    GREEDY {
+        public int choose(byte[] board, int color, int dice, int moves, SplittableRandom random) {
+            int best = Integer.numberOfTrailingZeros(moves);
+            int bestTarget = -1;
+            
+            for(int piece = 0; piece < Rules.PIECES; piece++) {
+                if((moves & (1 << piece)) != 0) {
+                    int target = BoardTopology.target(Rules.position(board, color, piece), dice);
+                    if(target > bestTarget) {
+                        best = piece;
+                        bestTarget = target;
+                    }
+                }
+            }
+            
+            return best;
+        }
+    },
+    
+    /**
+     * The move that leaves the piece least exposed: on the road to goal if
+     * possible, otherwise on the field with the fewest opponent pieces up
+     * to 6 fields behind it. Ties go to the piece furthest along.
+     */
+    SAFE {
+        public int choose(byte[] board, int color, int dice, int moves, SplittableRandom random) {
+            int best = Integer.numberOfTrailingZeros(moves);
+            int bestExposure = Integer.MAX_VALUE;
+            int bestTarget = -1;
+            
+            for(int piece = 0; piece < Rules.PIECES; piece++) {
+                if((moves & (1 << piece)) != 0) {
+                    int target = BoardTopology.target(Rules.position(board, color, piece), dice);
+                    int exposure = exposure(board, color, BoardTopology.field(color, target));
+                    
+                    if(exposure < bestExposure || (exposure == bestExposure && target > bestTarget)) {
+                        best = piece;
+                        bestExposure = exposure;
+                        bestTarget = target;
+                    }
+                }
+            }
+            
+            return best;
+        }
+    };
+    
+    /**
+     * Count the opponent pieces on the main track that are 1 to 6 fields behind a field
+     * @param board
+     * @param color Color ordinal of the player
+     * @param field Absolute field
+     * @return Number of opponent pieces, 0 off the main track
+     */
+    static int exposure(byte[] board, int color, int field) {
+        if(field < 1 || field > BoardTopology.TRACK) {
+            return 0;
+        }
+        
+        int exposure = 0;
+        for(int other = 0; other < 4; other++) {
+            if(other == color) {
+                continue;
+            }
+            
+            for(int piece = 0; piece < Rules.PIECES; piece++) {
+                int position = Rules.position(board, other, piece);
+                if(position == Rules.HOME || position > BoardTopology.LAP) {
+                    continue;
+                }
+                
+                int distance = field - BoardTopology.field(other, position);
+                if(distance < 0) {
+                    distance += BoardTopology.TRACK;
+                }
+                
+                if(distance >= 1 && distance <= BoardTopology.MAX_DICE) {
+                    exposure++;
+                }
+            }
+        }
+        
+        return exposure;
+    }
+    
+    /**
+     * Get a strategy by name, ignoring case
+     * @param name
+     * @return Strategy, or null if there is no such strategy
+     */
+    public static Strategies fromName(String name) {
+        for(Strategies strategy : values()) {
+            if(strategy.name().equalsIgnoreCase(name)) {
+                return strategy;
+            }
+        }
+        return null;
+    }
+}
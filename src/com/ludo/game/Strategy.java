@@ -0,0 +1,27 @@
+/**
+ * 
+ */
+package com.ludo.game;
+
+import java.util.SplittableRandom;
+
+/**
+ * A bot strategy picks which piece to move. Strategies must not keep
+ * state between calls, so one instance can play every seat of every
+ * simulated game at the same time.
+ * @author Petter
+ *
+ */
+public interface Strategy {
+    
+    /**
+     * Pick a piece to move
+     * @param board Board state, see Rules. Must not be changed.
+     * @param color Color ordinal of the player to move
+     * @param dice Dice roll
+     * @param moves Bit mask of legal moves, never 0
+     * @param random Random numbers for this game
+     * @return Piece (0-3), one of the legal moves
+     */
+    int choose(byte[] board, int color, int dice, int moves, SplittableRandom random);
+}
@@ -1,65 +1,133 @@
 package com.ludo.i18n;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.Locale;
+import java.util.Map;
+import java.util.HashMap;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.ludo.config.Config;
 
+/**
+ * MessageBundle looks up translated texts for the selected language.
+ * 
+ * Every supported MessagesBundle is loaded once into a flat lookup table,
+ * so a lookup is a single map read. The selected language is shared by
+ * every MessageBundle and is switched atomically with setLocale.
+ */
 public class MessageBundle {
     
     /**
-     * Configurations to load settings such
-     * as the language and country code for 
-     * selected language.
+     * Base name of the message bundles
      */
-    Config config = new Config();
+    private static final String BUNDLE = "com.ludo.i18n.MessagesBundle";
     
     /**
-     * Language code
+     * Languages shipped with the application, loaded at startup
+     */
+    private static final Locale[] SUPPORTED = { new Locale("en", "US"), new Locale("no", "NO") };
+    
+    /**
+     * Configurations to load settings such
+     * as the language and country code for 
+     * selected language.
      */
-    private String language;
+    private static Config config = new Config();
     
     /**
-     * Country code
+     * Lookup tables by locale
      */
-    private String country;
+    private static Map<Locale, Map<String, String>> tables = new ConcurrentHashMap<Locale, Map<String, String>>();
     
     /**
      * Locale
      */
-    Locale currentLocale;
+    private static volatile Locale currentLocale;
     
     /**
-     * Resource Bundle
+     * Lookup table for the current locale
      */
-    ResourceBundle resource;
+    private static volatile Map<String, String> resource;
+    
+    static {
+        
+        // Preload every shipped language
+        for(Locale locale : SUPPORTED) {
+            table(locale);
+        }
+        
+        // Select language from config file
+        select(new Locale(config.getConfig("language"), config.getConfig("country")));
+    }
     
     public MessageBundle() {
         
     }
     
+    /**
+     * Get a text in the current language
+     * @param text Message key
+     * @return Translated text, or the key if it is missing
+     */
     public String retriveText(String text) {
         
-        // Load language from config file
-        this.language = config.getConfig("language");
-        this.country = config.getConfig("country");
+        String value = resource.get(text);
+        
+        // Return value
+        return value != null ? value : text;
+    }
+    
+    /**
+     * Switch language for every MessageBundle and save it to the config file
+     * @param language Language code, e.g. "no"
+     * @param country Country code, e.g. "NO"
+     */
+    public static void setLocale(String language, String country) {
+        config.setConfig("language", language);
+        config.setConfig("country", country);
         
-        // Set language and country for locale
-        this.currentLocale = new Locale(this.language, this.country);
+        select(new Locale(language, country));
+    }
+    
+    /**
+     * Get the current locale
+     * @return Locale
+     */
+    public static Locale getLocale() {
+        return currentLocale;
+    }
+    
+    /**
+     * Make a locale current
+     * @param locale
+     */
+    private static synchronized void select(Locale locale) {
+        resource = table(locale);
+        currentLocale = locale;
+    }
+    
+    /**
+     * Get the lookup table for a locale, loading and flattening
+     * its bundle (including parent bundles) the first time.
+     * @param locale
+     * @return Map of message keys and texts
+     */
+    private static Map<String, String> table(Locale locale) {
+        Map<String, String> table = tables.get(locale);
         
-        // Get language bundle with selected locale.
-        this.resource = ResourceBundle.getBundle("com.ludo.i18n.MessagesBundle", this.currentLocale);
+        if(table == null) {
+            
+            // Get language bundle with selected locale, without falling back to the system locale
+            ResourceBundle bundle = ResourceBundle.getBundle(BUNDLE, locale, ResourceBundle.Control.getNoFallbackControl(ResourceBundle.Control.FORMAT_PROPERTIES));
+            
+            table = new HashMap<String, String>();
+            for(String key : bundle.keySet()) {
+                table.put(key, bundle.getString(key));
+            }
+            
+            tables.put(locale, table);
+        }
         
-        // Return value
-        return resource.getString(text);
+        return table;
     }
-}
\ No newline at end of file
+}
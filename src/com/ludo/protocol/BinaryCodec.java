@@ -0,0 +1,488 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.ludo.game.PlayerColor;
+
+/**
+ * The binary protocol. Every message is a frame, the length of the
+ * payload as a varint followed by the payload: an opcode byte and the
+ * fields of the message type in a fixed layout. Colours are sent as
+ * their ordinal, piece ids, positions and dice as a byte, versions as a
+ * varint, and text as a varint length followed by UTF-8.
+ *
+ * The layouts follow the text protocol exactly, including the colour of
+ * the receiving player the server appends to every broadcast, so a
+ * message decodes to the same line it was encoded from. Spectators get
+ * broadcasts without that colour, which is marked by the high bit of the
+ * opcode. A message that does not fit its layout is sent as opcode 0
+ * with the whole line.
+ * @author Petter
+ *
+ */
+public class BinaryCodec implements MessageCodec {
+    
+    /**
+     * Longest frame accepted, in bytes
+     */
+    private static final int MAX_FRAME = 64 * 1024;
+    
+    /**
+     * Opcode of a message sent as a text line
+     */
+    private static final int LINE = 0;
+    
+    /**
+     * A colour, as its ordinal
+     */
+    private static final byte COLOR = 1;
+    
+    /**
+     * A number from 0 to 255
+     */
+    private static final byte BYTE = 2;
+    
+    /**
+     * The rest of the message, as text
+     */
+    private static final byte TEXT = 3;
+    
+    /**
+     * A number from 0 to Integer.MAX_VALUE, as a varint
+     */
+    private static final byte INT = 4;
+    
+    /**
+     * Opcode bit of a message without the last field of its layout
+     */
+    private static final int WITHOUT_LAST = 0x80;
+    
+    /**
+     * Field layout of every message sent by the server, by type ordinal
+     */
+    private static final byte[][] FROM_SERVER = new byte[MessageType.values().length][];
+    
+    /**
+     * Field layout of every message sent by a client, by type ordinal
+     */
+    private static final byte[][] FROM_CLIENT = new byte[MessageType.values().length][];
+    
+    static {
+        layout(FROM_SERVER, MessageType.USERNAMEREQUEST);
+        layout(FROM_SERVER, MessageType.NEWUSERINQUEUE);
+        layout(FROM_SERVER, MessageType.STARTGAME, COLOR, TEXT);
+        layout(FROM_SERVER, MessageType.TURN, COLOR, BYTE, INT, COLOR);
+        layout(FROM_SERVER, MessageType.MOVE, BYTE, BYTE, COLOR, INT, COLOR);
+        layout(FROM_SERVER, MessageType.MOVEDENIED);
+        layout(FROM_SERVER, MessageType.NOWIN, COLOR);
+        layout(FROM_SERVER, MessageType.WIN, COLOR, COLOR);
+        layout(FROM_SERVER, MessageType.FORFEIT, COLOR, INT, COLOR);
+        layout(FROM_SERVER, MessageType.GAMEOVER);
+        layout(FROM_SERVER, MessageType.MESSAGE, COLOR, TEXT);
+        layout(FROM_SERVER, MessageType.SNAPSHOT, INT, BYTE, COLOR, BYTE, BYTE,
+                BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE, BYTE);
+        
+        layout(FROM_CLIENT, MessageType.USERNAME, TEXT);
+        layout(FROM_CLIENT, MessageType.MOVE, BYTE, COLOR);
+        layout(FROM_CLIENT, MessageType.MESSAGE, TEXT);
+    }
+    
+    /**
+     * Numbers 0 to 255 as strings, so decoding them allocates nothing
+     */
+    private static final String[] NUMBERS = new String[256];
+    
+    static {
+        for(int i = 0; i < NUMBERS.length; i++) {
+            NUMBERS[i] = Integer.toString(i);
+        }
+    }
+    
+    private static final MessageType[] TYPES = MessageType.values();
+    
+    private static final PlayerColor[] COLORS = PlayerColor.values();
+    
+    /**
+     * Layouts of the messages this side writes
+     */
+    private byte[][] writeLayouts;
+    
+    /**
+     * Layouts of the messages this side reads
+     */
+    private byte[][] readLayouts;
+    
+    /**
+     * Payload being written
+     */
+    private byte[] out = new byte[64];
+    private int outLength;
+    
+    /**
+     * Payload being read
+     */
+    private byte[] in = new byte[64];
+    private int inPosition;
+    private int inLength;
+    
+    /**
+     * Create a codec for one side of a connection
+     * @param server True for the server side, which writes server messages and reads client messages
+     */
+    public BinaryCodec(boolean server) {
+        this.writeLayouts = server ? FROM_SERVER : FROM_CLIENT;
+        this.readLayouts = server ? FROM_CLIENT : FROM_SERVER;
+    }
+    
+    private static void layout(byte[][] layouts, MessageType type, byte... fields) {
+        layouts[type.ordinal()] = fields;
+    }
+    
+    public Message read(InputStream in) throws IOException {
+        
+        // Frame length
+        int length;
+        int b = in.read();
+        if(b < 0) {
+            return null;
+        }
+        length = b & 0x7f;
+        for(int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if(shift > 21 || (b = in.read()) < 0) {
+                throw new IOException("Bad frame length");
+            }
+            length |= (b & 0x7f) << shift;
+        }
+        if(length < 1 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        
+        // Payload
+        if(this.in.length < length) {
+            this.in = new byte[Math.max(length, this.in.length * 2)];
+        }
+        int read = 0;
+        while(read < length) {
+            int n = in.read(this.in, read, length - read);
+            if(n < 0) {
+                throw new EOFException("Frame cut off");
+            }
+            read += n;
+        }
+        this.inPosition = 1;
+        this.inLength = length;
+        
+        int opcode = this.in[0] & 0xff;
+        if(opcode == LINE) {
+            return Message.parse(readText());
+        }
+        
+        boolean withoutLast = (opcode & WITHOUT_LAST) != 0;
+        opcode &= ~WITHOUT_LAST;
+        if(opcode < 1 || opcode > TYPES.length || this.readLayouts[opcode - 1] == null) {
+            throw new IOException("Unknown opcode: " + opcode);
+        }
+        
+        MessageType type = TYPES[opcode - 1];
+        byte[] fields = this.readLayouts[opcode - 1];
+        String[] args = new String[withoutLast ? Math.max(0, fields.length - 1) : fields.length];
+        for(int i = 0; i < args.length; i++) {
+            switch(fields[i]) {
+            case COLOR:
+                int ordinal = readByte();
+                if(ordinal >= COLORS.length) {
+                    throw new IOException("Bad colour in " + type);
+                }
+                args[i] = COLORS[ordinal].getName();
+                break;
+            case BYTE:
+                args[i] = NUMBERS[readByte()];
+                break;
+            case INT:
+                int value = readVarint();
+                args[i] = value < NUMBERS.length ? NUMBERS[value] : Integer.toString(value);
+                break;
+            default:
+                args[i] = readText();
+                break;
+            }
+        }
+        
+        return new Message(type, args);
+    }
+    
+    public void write(Message message, OutputStream out) throws IOException {
+        this.outLength = 0;
+        
+        if(!encode(message)) {
+            
+            // Does not fit the layout, send the line
+            this.outLength = 0;
+            writeByte(LINE);
+            writeText(message.getLine());
+        }
+        
+        writeFrame(out);
+    }
+    
+    /**
+     * Encode a line straight into its layout, without parsing it into a
+     * Message first, as the server builds its messages as lines
+     */
+    public void write(String line, OutputStream out) throws IOException {
+        this.outLength = 0;
+        
+        if(!encode(line)) {
+            this.outLength = 0;
+            writeByte(LINE);
+            writeText(line);
+        }
+        
+        writeFrame(out);
+    }
+    
+    /**
+     * Write the payload as a frame
+     * @param out
+     * @throws IOException
+     */
+    private void writeFrame(OutputStream out) throws IOException {
+        
+        // Frame length
+        int length = this.outLength;
+        while(length > 0x7f) {
+            out.write((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        
+        out.write(this.out, 0, this.outLength);
+    }
+    
+    /**
+     * Encode a message in its layout
+     * @param message
+     * @return False if the message does not fit its layout
+     */
+    private boolean encode(Message message) {
+        byte[] fields = this.writeLayouts[message.getType().ordinal()];
+        
+        // A text field takes the rest of the message, other fields one argument each
+        if(fields == null) {
+            return false;
+        }
+        boolean text = fields.length > 0 && fields[fields.length - 1] == TEXT;
+        boolean withoutLast = !text && fields.length > 0 && message.size() == fields.length - 1;
+        if(text ? message.size() < fields.length : message.size() != fields.length && !withoutLast) {
+            return false;
+        }
+        
+        writeByte(message.getType().ordinal() + 1 | (withoutLast ? WITHOUT_LAST : 0));
+        for(int i = 0; i < message.size() && i < fields.length; i++) {
+            switch(fields[i]) {
+            case COLOR:
+                PlayerColor color = PlayerColor.fromName(message.get(i));
+                if(color == null) {
+                    return false;
+                }
+                writeByte(color.ordinal());
+                break;
+            case BYTE:
+            case INT:
+                int value = number(message.get(i), 0, message.get(i).length(), fields[i] == BYTE ? 255 : Integer.MAX_VALUE);
+                if(value < 0) {
+                    return false;
+                }
+                if(fields[i] == BYTE) {
+                    writeByte(value);
+                } else {
+                    writeVarint(value);
+                }
+                break;
+            default:
+                writeText(message.getText(i));
+                break;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Encode a line in its layout
+     * @param line
+     * @return False if the line does not fit its layout
+     */
+    private boolean encode(String line) {
+        int end = line.indexOf(' ');
+        MessageType type = MessageType.fromLine(line, end < 0 ? line.length() : end);
+        byte[] fields = this.writeLayouts[type.ordinal()];
+        if(fields == null) {
+            return false;
+        }
+        
+        writeByte(type.ordinal() + 1);
+        int position = end < 0 ? line.length() : end;
+        for(int i = 0; i < fields.length; i++) {
+            
+            // A broadcast to spectators, without the colour of the receiving player
+            if(i == fields.length - 1 && position == line.length() && fields[i] != TEXT) {
+                this.out[0] |= WITHOUT_LAST;
+                return true;
+            }
+            
+            // Every field follows a single space
+            if(position >= line.length() - 1 || line.charAt(position) != ' ' || line.charAt(position + 1) == ' ') {
+                return false;
+            }
+            position++;
+            
+            int next = line.indexOf(' ', position);
+            if(next < 0) {
+                next = line.length();
+            }
+            
+            switch(fields[i]) {
+            case COLOR:
+                int ordinal = colorOrdinal(line, position, next);
+                if(ordinal < 0) {
+                    return false;
+                }
+                writeByte(ordinal);
+                break;
+            case BYTE:
+            case INT:
+                int value = number(line, position, next, fields[i] == BYTE ? 255 : Integer.MAX_VALUE);
+                if(value < 0) {
+                    return false;
+                }
+                if(fields[i] == BYTE) {
+                    writeByte(value);
+                } else {
+                    writeVarint(value);
+                }
+                break;
+            default:
+                writeText(line.substring(position));
+                next = line.length();
+                break;
+            }
+            position = next;
+        }
+        
+        // Nothing may be left over
+        return position == line.length();
+    }
+    
+    /**
+     * Find the colour named in part of a line
+     * @return Ordinal of the colour, or -1
+     */
+    private static int colorOrdinal(String line, int start, int end) {
+        for(PlayerColor color : COLORS) {
+            String name = color.getName();
+            if(name.length() == end - start && line.startsWith(name, start)) {
+                return color.ordinal();
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Read a number written without leading zeros in part of a line
+     * @param max Largest number allowed
+     * @return The number, or -1
+     */
+    private static int number(String line, int start, int end, int max) {
+        if(end - start < 1 || end - start > 10 || (line.charAt(start) == '0' && end - start > 1)) {
+            return -1;
+        }
+        
+        long value = 0;
+        for(int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if(c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + c - '0';
+        }
+        return value <= max ? (int) value : -1;
+    }
+    
+    private void writeByte(int b) {
+        if(this.outLength == this.out.length) {
+            this.out = Arrays.copyOf(this.out, this.out.length * 2);
+        }
+        this.out[this.outLength++] = (byte) b;
+    }
+    
+    /**
+     * Write a varint, seven bits per byte, lowest first
+     * @param value
+     */
+    private void writeVarint(int value) {
+        while(value > 0x7f) {
+            writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+    
+    private void writeText(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        
+        writeVarint(bytes.length);
+        
+        if(this.outLength + bytes.length > this.out.length) {
+            this.out = Arrays.copyOf(this.out, Math.max(this.outLength + bytes.length, this.out.length * 2));
+        }
+        System.arraycopy(bytes, 0, this.out, this.outLength, bytes.length);
+        this.outLength += bytes.length;
+    }
+    
+    private int readByte() throws IOException {
+        if(this.inPosition >= this.inLength) {
+            throw new IOException("Frame too short");
+        }
+        return this.in[this.inPosition++] & 0xff;
+    }
+    
+    private int readVarint() throws IOException {
+        int value = 0;
+        int b;
+        int shift = 0;
+        do {
+            if(shift > 28) {
+                throw new IOException("Bad varint");
+            }
+            b = readByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        
+        if(value < 0) {
+            throw new IOException("Bad varint");
+        }
+        return value;
+    }
+    
+    private String readText() throws IOException {
+        int length = readVarint();
+        
+        if(length > this.inLength - this.inPosition) {
+            throw new IOException("Frame too short");
+        }
+        
+        String text = new String(this.in, this.inPosition, length, StandardCharsets.UTF_8);
+        this.inPosition += length;
+        return text;
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+/**
+ * A parsed protocol line. The line is split once, when the message is
+ * created, and handlers read its typed arguments. Messages decoded from
+ * the binary protocol have no line until one is asked for, and their
+ * text fields are a single argument.
+ * @author Petter
+ *
+ */
+public class Message {
+    
+    private static final String[] NO_ARGS = new String[0];
+    
+    private MessageType type;
+    
+    /**
+     * The line as received, or null until built for a decoded message
+     */
+    private String line;
+    
+    /**
+     * Space separated arguments after the type
+     */
+    private String[] args;
+    
+    /**
+     * Where each argument starts in the line, or null for a decoded message
+     */
+    private int[] offsets;
+    
+    private Message(MessageType type, String line, String[] args, int[] offsets) {
+        this.type = type;
+        this.line = line;
+        this.args = args;
+        this.offsets = offsets;
+    }
+    
+    /**
+     * Create a message from its decoded arguments
+     * @param type
+     * @param args
+     */
+    Message(MessageType type, String[] args) {
+        this(type, null, args, null);
+    }
+    
+    /**
+     * Parse a protocol line
+     * @param line
+     * @return Message, of type UNKNOWN if the line is not a known message
+     */
+    public static Message parse(String line) {
+        int end = line.indexOf(' ');
+        MessageType type = MessageType.fromName(end < 0 ? line : line.substring(0, end));
+        
+        if(end < 0) {
+            return new Message(type, line, NO_ARGS, new int[0]);
+        }
+        
+        // Count the arguments first, so the arrays are allocated once
+        int count = 0;
+        for(int i = end; i < line.length(); i++) {
+            if(line.charAt(i) == ' ' && i + 1 < line.length() && line.charAt(i + 1) != ' ') {
+                count++;
+            }
+        }
+        
+        String[] args = new String[count];
+        int[] offsets = new int[count];
+        int arg = 0;
+        int start = -1;
+        for(int i = end + 1; i <= line.length(); i++) {
+            boolean space = i == line.length() || line.charAt(i) == ' ';
+            if(!space && start < 0) {
+                start = i;
+            } else if(space && start >= 0) {
+                offsets[arg] = start;
+                args[arg++] = line.substring(start, i);
+                start = -1;
+            }
+        }
+        
+        return new Message(type, line, args, offsets);
+    }
+    
+    /**
+     * Get the message type
+     * @return MessageType
+     */
+    public MessageType getType() {
+        return this.type;
+    }
+    
+    /**
+     * Get the line as received
+     * @return String
+     */
+    public String getLine() {
+        if(this.line == null) {
+            StringBuilder line = new StringBuilder(this.type.name());
+            for(String arg : this.args) {
+                line.append(' ').append(arg);
+            }
+            this.line = line.toString();
+        }
+        return this.line;
+    }
+    
+    /**
+     * Get the number of arguments
+     * @return int
+     */
+    public int size() {
+        return this.args.length;
+    }
+    
+    /**
+     * Get an argument
+     * @param index
+     * @return The argument, or null if there are not that many
+     */
+    public String get(int index) {
+        return index >= 0 && index < this.args.length ? this.args[index] : null;
+    }
+    
+    /**
+     * Get an argument as an integer
+     * @param index
+     * @param defaultValue Returned if the argument is missing or not a number
+     * @return int
+     */
+    public int getInt(int index, int defaultValue) {
+        try {
+            return index >= 0 && index < this.args.length ? Integer.parseInt(this.args[index]) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Get the rest of the line from an argument, with its spaces, e.g. a chat text
+     * @param index
+     * @return The text, or an empty string if there are not that many arguments
+     */
+    public String getText(int index) {
+        if(index < 0 || index >= this.args.length) {
+            return "";
+        }
+        
+        // A decoded text field is already whole
+        if(this.offsets == null) {
+            if(index == this.args.length - 1) {
+                return this.args[index];
+            }
+            
+            StringBuilder text = new StringBuilder(this.args[index]);
+            for(int i = index + 1; i < this.args.length; i++) {
+                text.append(' ').append(this.args[i]);
+            }
+            return text.toString();
+        }
+        
+        return getLine().substring(this.offsets[index]);
+    }
+    
+    public String toString() {
+        return getLine();
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes messages in one wire format
+ * @author Petter
+ *
+ */
+public interface MessageCodec {
+    
+    /**
+     * Read the next message. Only called by the reader of a connection.
+     * @param in
+     * @return Message, or null at the end of the stream
+     * @throws IOException
+     */
+    Message read(InputStream in) throws IOException;
+    
+    /**
+     * Write a message, without flushing
+     * @param message
+     * @param out
+     * @throws IOException
+     */
+    void write(Message message, OutputStream out) throws IOException;
+    
+    /**
+     * Write a protocol line, without flushing
+     * @param line
+     * @param out
+     * @throws IOException
+     */
+    void write(String line, OutputStream out) throws IOException;
+}
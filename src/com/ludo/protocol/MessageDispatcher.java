@@ -0,0 +1,164 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The single reader of a connection. Every message is parsed once and
+ * queued for the handler registered for its type. Every handler has its
+ * own lock-free mailbox, drained on a shared executor, so a slow handler,
+ * like a chat window, never holds up the others, and no message is read
+ * by the wrong handler.
+ * @author Petter
+ *
+ */
+public class MessageDispatcher implements Runnable {
+    
+    /**
+     * The connection
+     */
+    private MessageStream in;
+    
+    /**
+     * Runs the handlers
+     */
+    private Executor executor;
+    
+    /**
+     * Mailbox of the handler for each type
+     */
+    private Map<MessageType, Mailbox> mailboxes = new EnumMap<MessageType, Mailbox>(MessageType.class);
+    
+    /**
+     * Called once the connection is closed
+     */
+    private Runnable closedHandler;
+    
+    private volatile boolean running = true;
+    
+    /**
+     * Create a dispatcher for a connection
+     * @param in The connection, only read by the dispatcher
+     * @param executor Runs the handlers
+     */
+    public MessageDispatcher(MessageStream in, Executor executor) {
+        this.in = in;
+        this.executor = executor;
+    }
+    
+    /**
+     * Register a handler for one or more message types. Must be done
+     * before the dispatcher starts reading.
+     * @param handler
+     * @param types
+     */
+    public void register(MessageHandler handler, MessageType... types) {
+        Mailbox mailbox = new Mailbox(handler);
+        for(MessageType type : types) {
+            this.mailboxes.put(type, mailbox);
+        }
+    }
+    
+    /**
+     * Set a task to run once the connection is closed
+     * @param closedHandler
+     */
+    public void onClosed(Runnable closedHandler) {
+        this.closedHandler = closedHandler;
+    }
+    
+    /**
+     * Stop dispatching messages
+     */
+    public void stop() {
+        this.running = false;
+    }
+    
+    /**
+     * Read and dispatch messages until the connection is closed
+     */
+    public void run() {
+        Message message;
+        
+        try {
+            while(this.running && (message = this.in.read()) != null) {
+                dispatch(message);
+            }
+        } catch (IOException e) {
+            System.out.println("Lost connection: " + e);
+        }
+        
+        if(this.closedHandler != null) {
+            this.executor.execute(this.closedHandler);
+        }
+    }
+    
+    /**
+     * Queue a message for its handler
+     * @param message
+     */
+    public void dispatch(Message message) {
+        Mailbox mailbox = this.mailboxes.get(message.getType());
+        if(mailbox != null) {
+            mailbox.post(message);
+        }
+    }
+    
+    /**
+     * Messages waiting for a handler
+     * @author Petter
+     *
+     */
+    private class Mailbox implements Runnable {
+        private MessageHandler handler;
+        private ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<Message>();
+        private AtomicBoolean scheduled = new AtomicBoolean(false);
+        
+        public Mailbox(MessageHandler handler) {
+            this.handler = handler;
+        }
+        
+        /**
+         * Queue a message, scheduling the handler if it is not already
+         * @param message
+         */
+        public void post(Message message) {
+            this.messages.add(message);
+            
+            if(this.scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+        
+        /**
+         * Handle queued messages until the mailbox is empty
+         */
+        public void run() {
+            while(true) {
+                Message message;
+                while((message = this.messages.poll()) != null) {
+                    try {
+                        this.handler.handle(message);
+                    } catch (RuntimeException e) {
+                        System.out.println("Error handling " + message + ": " + e);
+                        e.printStackTrace();
+                    }
+                }
+                
+                this.scheduled.set(false);
+                
+                // A message may have been queued after the last poll
+                if(this.messages.isEmpty() || !this.scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+/**
+ * Handles the messages it is registered for with a MessageDispatcher
+ * @author Petter
+ *
+ */
+public interface MessageHandler {
+    
+    /**
+     * Handle a message. Messages for the same handler are handled one
+     * at a time, in the order they were read.
+     * @param message
+     */
+    void handle(Message message);
+}
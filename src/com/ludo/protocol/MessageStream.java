@@ -0,0 +1,146 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Both directions of a game connection. Messages are read and written in
+ * the text protocol until both sides have agreed to switch to the binary
+ * protocol: the server offers it with "USERNAMEREQUEST BINARY", and a
+ * client that wants it answers "USERNAME <username> BINARY". Both sides
+ * switch right after that line, so a client or server that does not know
+ * the binary protocol keeps talking text.
+ * @author Petter
+ *
+ */
+public class MessageStream {
+    
+    /**
+     * Argument offering or accepting the binary protocol
+     */
+    public static final String BINARY = "BINARY";
+    
+    /**
+     * Argument of a USERNAME line, followed by the reconnect token the
+     * client got with STARTGAME, to take its seat back in a running game
+     */
+    public static final String RECONNECT = "RECONNECT";
+    
+    /**
+     * Size of the input and output buffers, in bytes
+     */
+    private static final int BUFFER_SIZE = 1024;
+    
+    private InputStream in;
+    private OutputStream out;
+    
+    /**
+     * Codec of the reader, only used by the reading thread
+     */
+    private MessageCodec reader = new TextCodec();
+    
+    /**
+     * Codec of the writers, guarded by this
+     */
+    private MessageCodec writer = new TextCodec();
+    
+    private boolean server;
+    private volatile boolean binary = false;
+    
+    /**
+     * Create a stream for a socket
+     * @param socket
+     * @param server True on the server side
+     * @throws IOException
+     */
+    public MessageStream(Socket socket, boolean server) throws IOException {
+        this.in = new WireInput(socket.getInputStream(), BUFFER_SIZE);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        this.server = server;
+    }
+    
+    /**
+     * Read the next message. Only the reader of the connection may call this.
+     * @return Message, or null when the connection is closed
+     * @throws IOException
+     */
+    public Message read() throws IOException {
+        return this.reader.read(this.in);
+    }
+    
+    /**
+     * Send a protocol line. Errors are ignored, as with a PrintWriter,
+     * the reader sees the connection close.
+     * @param line
+     */
+    public void send(String line) {
+        send(line, true);
+    }
+    
+    /**
+     * Send a protocol line, leaving it in the buffer unless flushed, so
+     * a burst of lines can be written together
+     * @param line
+     * @param flush Flush the line, and anything buffered before it
+     */
+    public synchronized void send(String line, boolean flush) {
+        try {
+            this.writer.write(line, this.out);
+            if(flush) {
+                this.out.flush();
+            }
+        } catch (IOException e) {
+            // Connection lost
+        }
+    }
+    
+    /**
+     * Flush the lines sent without flushing
+     */
+    public synchronized void flush() {
+        try {
+            this.out.flush();
+        } catch (IOException e) {
+            // Connection lost
+        }
+    }
+    
+    /**
+     * Send a message
+     * @param message
+     */
+    public synchronized void send(Message message) {
+        try {
+            this.writer.write(message, this.out);
+            this.out.flush();
+        } catch (IOException e) {
+            // Connection lost
+        }
+    }
+    
+    /**
+     * Switch both directions to the binary protocol. Must be called by
+     * the reader, right after the line that agreed on it.
+     */
+    public void useBinary() {
+        this.reader = new BinaryCodec(this.server);
+        synchronized(this) {
+            this.writer = new BinaryCodec(this.server);
+        }
+        this.binary = true;
+    }
+    
+    /**
+     * Check if the binary protocol is in use
+     * @return boolean
+     */
+    public boolean isBinary() {
+        return this.binary;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+/**
+ * Every message of the game protocol. A message is a line starting with
+ * the name of its type, followed by space separated arguments. Messages
+ * that change the state of a game carry its version, which goes up by one
+ * with every change, so clients can tell which updates a snapshot already
+ * holds.
+ * @author Petter
+ *
+ */
+public enum MessageType {
+    
+    /**
+     * Server asks for the client's username
+     */
+    USERNAMEREQUEST,
+    
+    /**
+     * USERNAME <username> [BINARY] [RECONNECT <token>]
+     */
+    USERNAME,
+    
+    /**
+     * Another player has joined the lobby
+     */
+    NEWUSERINQUEUE,
+    
+    /**
+     * STARTGAME <color> <reconnect token>
+     */
+    STARTGAME,
+    
+    /**
+     * TURN <color> <dice> <version>
+     */
+    TURN,
+    
+    /**
+     * From client: MOVE <piece (1-4)> <color>, from server: MOVE <piece (0-3)> <position> <color> <version>
+     */
+    MOVE,
+    
+    /**
+     * The move was not allowed
+     */
+    MOVEDENIED,
+    
+    /**
+     * The move did not win the game
+     */
+    NOWIN,
+    
+    /**
+     * WIN <color>
+     */
+    WIN,
+    
+    /**
+     * FORFEIT <color> <version>
+     */
+    FORFEIT,
+    
+    /**
+     * The game the client tried to return to is over
+     */
+    GAMEOVER,
+    
+    /**
+     * From client: MESSAGE <text>, from server: MESSAGE <color> <text>
+     */
+    MESSAGE,
+    
+    /**
+     * SPECTATE [game id], sent instead of USERNAME to watch a game
+     */
+    SPECTATE,
+    
+    /**
+     * SNAPSHOT <version> <players> <color> <dice> <forfeited> <16 positions>,
+     * the whole state of a game, sent on joining it or coming back to it
+     */
+    SNAPSHOT,
+    
+    /**
+     * Any line that is not a known message
+     */
+    UNKNOWN;
+    
+    /**
+     * Every type, by ordinal
+     */
+    private static final MessageType[] TYPES = values();
+    
+    /**
+     * Get a type by name
+     * @param name
+     * @return MessageType, UNKNOWN if there is no such type
+     */
+    public static MessageType fromName(String name) {
+        for(MessageType type : TYPES) {
+            if(type != UNKNOWN && type.name().equals(name)) {
+                return type;
+            }
+        }
+        return UNKNOWN;
+    }
+    
+    /**
+     * Get the type a line starts with, without cutting the name out of it
+     * @param line
+     * @param end Where the name ends in the line
+     * @return MessageType, UNKNOWN if there is no such type
+     */
+    static MessageType fromLine(String line, int end) {
+        for(MessageType type : TYPES) {
+            if(type != UNKNOWN && type.name().length() == end && line.startsWith(type.name())) {
+                return type;
+            }
+        }
+        return UNKNOWN;
+    }
+}
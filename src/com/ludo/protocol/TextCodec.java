@@ -0,0 +1,69 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The text protocol, one UTF-8 line per message. Lines are read byte by
+ * byte from a buffered stream, so a connection can switch to another
+ * codec right after a line without losing what follows it.
+ * @author Petter
+ *
+ */
+public class TextCodec implements MessageCodec {
+    
+    /**
+     * Longest line accepted, in bytes
+     */
+    private static final int MAX_LINE = 64 * 1024;
+    
+    /**
+     * Bytes of the line being read
+     */
+    private byte[] line = new byte[256];
+    
+    public Message read(InputStream in) throws IOException {
+        int length = 0;
+        int b;
+        
+        while((b = in.read()) != '\n') {
+            if(b < 0) {
+                
+                // A last line without a line break
+                if(length == 0) {
+                    return null;
+                }
+                break;
+            }
+            
+            if(length == this.line.length) {
+                if(length >= MAX_LINE) {
+                    throw new IOException("Line too long");
+                }
+                this.line = Arrays.copyOf(this.line, length * 2);
+            }
+            this.line[length++] = (byte) b;
+        }
+        
+        if(length > 0 && this.line[length - 1] == '\r') {
+            length--;
+        }
+        
+        return Message.parse(new String(this.line, 0, length, StandardCharsets.UTF_8));
+    }
+    
+    public void write(Message message, OutputStream out) throws IOException {
+        write(message.getLine(), out);
+    }
+    
+    public void write(String line, OutputStream out) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A buffered input stream for the reader of a connection. Unlike
+ * BufferedInputStream it takes no lock per byte, as only one thread
+ * ever reads a connection, so codecs can read a byte at a time.
+ * @author Petter
+ *
+ */
+class WireInput extends InputStream {
+    
+    private InputStream in;
+    private byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    
+    /**
+     * Create a buffered input
+     * @param in
+     * @param size Buffer size, in bytes
+     */
+    WireInput(InputStream in, int size) {
+        this.in = in;
+        this.buffer = new byte[size];
+    }
+    
+    /**
+     * Refill the buffer
+     * @return False at the end of the stream
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        int n = this.in.read(this.buffer, 0, this.buffer.length);
+        if(n <= 0) {
+            return false;
+        }
+        this.position = 0;
+        this.limit = n;
+        return true;
+    }
+    
+    public int read() throws IOException {
+        if(this.position == this.limit && !fill()) {
+            return -1;
+        }
+        return this.buffer[this.position++] & 0xff;
+    }
+    
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if(length == 0) {
+            return 0;
+        }
+        if(this.position == this.limit && !fill()) {
+            return -1;
+        }
+        
+        int n = Math.min(length, this.limit - this.position);
+        System.arraycopy(this.buffer, this.position, bytes, offset, n);
+        this.position += n;
+        return n;
+    }
+    
+    public int available() throws IOException {
+        return this.limit - this.position + this.in.available();
+    }
+    
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
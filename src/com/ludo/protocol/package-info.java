@@ -0,0 +1,8 @@
+/**
+ * 
+ */
+/**
+ * @author Petter
+ *
+ */
+package com.ludo.protocol;
\ No newline at end of file
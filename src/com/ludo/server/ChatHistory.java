@@ -0,0 +1,544 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.ludo.config.Config;
+
+/**
+ * Chat history store. Chat messages are appended to fixed-size, memory-mapped
+ * segment files in the chat history directory. A new segment is started when
+ * the current one is full or older than chatSegmentAge seconds, and only the
+ * newest chatHistorySegments segments are kept.
+ *
+ * Every segment keeps an in-memory index of record timestamps and offsets,
+ * so the latest messages, or the messages since a point in time, can be read
+ * without scanning the whole history. Only the active segment is mapped.
+ * Older segments are indexed when a read first reaches them, and read with
+ * plain file reads, so reading the history never leaves mappings behind.
+ *
+ * Record layout: [int length][long timestamp][short username length][username][message]
+ * A length of 0 marks the end of the written part of a segment.
+ * @author Petter
+ *
+ */
+public class ChatHistory {
+    
+    /**
+     * Bytes used by the length field
+     */
+    private static final int LENGTH_BYTES = 4;
+    
+    /**
+     * Bytes used by the timestamp and username length fields
+     */
+    private static final int HEADER_BYTES = 8 + 2;
+    
+    /**
+     * Directory holding the segment files
+     */
+    private File directory;
+    
+    /**
+     * Size of a segment file in bytes
+     */
+    private int segmentSize = 4 * 1024 * 1024;
+    
+    /**
+     * Max age of the active segment in milliseconds
+     */
+    private long segmentAge = 24 * 60 * 60 * 1000L;
+    
+    /**
+     * Max number of segments kept on disk
+     */
+    private int maxSegments = 32;
+    
+    /**
+     * Segments, oldest first. The last one is written to.
+     */
+    private List<Segment> segments = new ArrayList<Segment>();
+    
+    /**
+     * Timestamp of the latest record, used to keep timestamps increasing
+     */
+    private long lastTimestamp = 0;
+    
+    /**
+     * Open the chat history with settings from config
+     * @param config
+     */
+    public ChatHistory(Config config) {
+        
+        String dir = config.getConfig("chatHistoryDir");
+        this.directory = new File(dir != null ? dir : "chatlog");
+        
+        this.segmentSize = config.getInt("chatSegmentSize", this.segmentSize);
+        this.segmentAge = config.getLong("chatSegmentAge", this.segmentAge / 1000) * 1000;
+        this.maxSegments = config.getInt("chatHistorySegments", this.maxSegments);
+        
+        this.directory.mkdirs();
+        
+        // Find existing segments, only the newest is opened right away
+        File[] files = this.directory.listFiles();
+        if(files != null) {
+            Arrays.sort(files);
+            for(File file : files) {
+                String name = file.getName();
+                if(name.startsWith("segment-") && name.endsWith(".dat")) {
+                    long first = Long.parseLong(name.substring("segment-".length(), name.length() - ".dat".length()));
+                    this.segments.add(new Segment(file, first));
+                }
+            }
+        }
+        
+        if(!this.segments.isEmpty()) {
+            Segment active = this.segments.get(this.segments.size() - 1);
+            try {
+                active.open();
+                this.lastTimestamp = active.lastTimestamp();
+            } catch (IOException e) {
+                System.out.println("Error opening chat history segment " + active.file + ": " + e);
+            }
+        }
+    }
+    
+    /**
+     * Append a chat message
+     * @param timestamp Milliseconds since epoch
+     * @param username
+     * @param message
+     */
+    public synchronized void append(long timestamp, String username, String message) {
+        
+        // Keep timestamps increasing, so the index can be searched
+        timestamp = Math.max(timestamp, this.lastTimestamp);
+        
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        
+        // A single record must always fit in an empty segment
+        int maxText = this.segmentSize - LENGTH_BYTES * 2 - HEADER_BYTES - user.length;
+        if(text.length > maxText) {
+            text = truncate(text, Math.max(0, maxText));
+        }
+        
+        int length = HEADER_BYTES + user.length + text.length;
+        
+        try {
+            Segment active = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+            
+            // Rotate by size or age
+            if(active == null || active.buffer == null || !active.fits(length) || timestamp - active.first > this.segmentAge) {
+                active = rotate(timestamp);
+            }
+            
+            active.write(timestamp, user, text);
+            this.lastTimestamp = timestamp;
+        
+        } catch (IOException e) {
+            System.out.println("Error writing chat history: " + e);
+        }
+    }
+    
+    /**
+     * Force written records to disk
+     */
+    public synchronized void force() {
+        if(!this.segments.isEmpty()) {
+            Segment active = this.segments.get(this.segments.size() - 1);
+            if(active.buffer != null) {
+                active.buffer.force();
+            }
+        }
+    }
+    
+    /**
+     * Get the latest messages, oldest first
+     * @param count Max number of messages
+     * @return List of records
+     */
+    public synchronized List<ChatRecord> last(int count) {
+        List<ChatRecord> records = new ArrayList<ChatRecord>();
+        
+        // Walk backwards from the newest segment until enough records are found
+        for(int s = this.segments.size() - 1; s >= 0 && records.size() < count; s--) {
+            Segment segment = this.segments.get(s);
+            
+            // Newest first, turned around below
+            List<ChatRecord> batch;
+            try {
+                segment.index();
+                batch = segment.read(Math.max(0, segment.count - (count - records.size())), segment.count);
+            } catch (IOException e) {
+                System.out.println("Error reading chat history segment " + segment.file + ": " + e);
+                break;
+            }
+            
+            Collections.reverse(batch);
+            records.addAll(batch);
+        }
+        
+        Collections.reverse(records);
+        return records;
+    }
+    
+    /**
+     * Get every message at or after a point in time, oldest first
+     * @param timestamp Milliseconds since epoch
+     * @return List of records
+     */
+    public synchronized List<ChatRecord> since(long timestamp) {
+        List<ChatRecord> records = new ArrayList<ChatRecord>();
+        
+        // Start at the last segment beginning at or before the timestamp
+        int start = 0;
+        for(int s = 0; s < this.segments.size(); s++) {
+            if(this.segments.get(s).first <= timestamp) {
+                start = s;
+            }
+        }
+        
+        for(int s = start; s < this.segments.size(); s++) {
+            Segment segment = this.segments.get(s);
+            
+            try {
+                segment.index();
+                records.addAll(segment.read(segment.search(timestamp), segment.count));
+            } catch (IOException e) {
+                System.out.println("Error reading chat history segment " + segment.file + ": " + e);
+                break;
+            }
+        }
+        
+        return records;
+    }
+    
+    /**
+     * Cut UTF-8 text to at most a number of bytes, without splitting a character
+     * @param text
+     * @param max Max bytes
+     * @return Truncated text
+     */
+    static byte[] truncate(byte[] text, int max) {
+        if(text.length <= max) {
+            return text;
+        }
+        
+        // Back up to the first byte of the character that would be cut
+        int cut = max;
+        while(cut > 0 && (text[cut] & 0xC0) == 0x80) {
+            cut--;
+        }
+        
+        return Arrays.copyOf(text, cut);
+    }
+    
+    /**
+     * Start a new segment and delete the oldest segments beyond the limit
+     * @param timestamp Timestamp of the first record
+     * @return The new active segment
+     * @throws IOException
+     */
+    private Segment rotate(long timestamp) throws IOException {
+        
+        // Segment names must be unique and increasing
+        if(!this.segments.isEmpty()) {
+            Segment previous = this.segments.get(this.segments.size() - 1);
+            timestamp = Math.max(timestamp, previous.first + 1);
+            
+            // Only the active segment stays mapped
+            previous.release();
+        }
+        
+        Segment segment = new Segment(new File(this.directory, String.format("segment-%020d.dat", timestamp)), timestamp);
+        segment.open();
+        this.segments.add(segment);
+        
+        // Retention
+        while(this.segments.size() > this.maxSegments) {
+            Segment oldest = this.segments.remove(0);
+            oldest.release();
+            if(!oldest.file.delete()) {
+                System.out.println("Error deleting chat history segment " + oldest.file);
+            }
+        }
+        
+        return segment;
+    }
+    
+    /**
+     * A chat message read from the history
+     * @author Petter
+     *
+     */
+    public static class ChatRecord {
+        private long timestamp;
+        private String username;
+        private String message;
+        
+        public ChatRecord(long timestamp, String username, String message) {
+            this.timestamp = timestamp;
+            this.username = username;
+            this.message = message;
+        }
+        
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+        
+        public String getUsername() {
+            return this.username;
+        }
+        
+        public String getMessage() {
+            return this.message;
+        }
+    }
+    
+    /**
+     * A single segment file with its record index
+     * @author Petter
+     *
+     */
+    private class Segment {
+        private File file;
+        private long first;
+        
+        /**
+         * Mapping of the active segment, null for sealed segments
+         */
+        private MappedByteBuffer buffer;
+        
+        /**
+         * Set once the index has been built
+         */
+        private boolean indexed = false;
+        private int size = 0;
+        private long[] timestamps = new long[64];
+        private int[] offsets = new int[64];
+        private int count = 0;
+        
+        public Segment(File file, long first) {
+            this.file = file;
+            this.first = first;
+        }
+        
+        /**
+         * Map the segment to write to it, and build its index if not done already
+         * @throws IOException
+         */
+        public void open() throws IOException {
+            if(this.buffer != null) {
+                return;
+            }
+            
+            FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+            } finally {
+                channel.close();
+            }
+            
+            if(!this.indexed) {
+                scan(this.buffer);
+            }
+        }
+        
+        /**
+         * Build the index of a segment, if not done already. A sealed
+         * segment is read once for it, and not kept in memory.
+         * @throws IOException
+         */
+        public void index() throws IOException {
+            if(this.indexed) {
+                return;
+            }
+            
+            FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+                while(contents.hasRemaining() && channel.read(contents, contents.position()) >= 0) {
+                    // Read until the buffer is full or the file ends
+                }
+                contents.flip();
+                scan(contents);
+            } finally {
+                channel.close();
+            }
+        }
+        
+        /**
+         * Index the records in the contents of the segment
+         * @param contents Segment from offset 0
+         */
+        private void scan(ByteBuffer contents) {
+            this.size = 0;
+            this.count = 0;
+            while(this.size + LENGTH_BYTES <= contents.limit()) {
+                int length = contents.getInt(this.size);
+                if(length <= 0 || this.size + LENGTH_BYTES + length > contents.limit()) {
+                    break;
+                }
+                index(contents.getLong(this.size + LENGTH_BYTES), this.size);
+                this.size += LENGTH_BYTES + length;
+            }
+            this.indexed = true;
+        }
+        
+        /**
+         * Drop the mapping once the segment is sealed. The index is kept,
+         * the records are read from the file after this.
+         */
+        public void release() {
+            this.buffer = null;
+        }
+        
+        /**
+         * Check if a record of the given length fits in the segment
+         * @param length
+         * @return boolean
+         */
+        public boolean fits(int length) {
+            return this.size + LENGTH_BYTES + length <= this.buffer.capacity();
+        }
+        
+        /**
+         * Write a record. The length is written last, so a half written
+         * record is never seen as complete.
+         * @param timestamp
+         * @param user
+         * @param text
+         */
+        public void write(long timestamp, byte[] user, byte[] text) {
+            ByteBuffer record = this.buffer.duplicate();
+            record.position(this.size + LENGTH_BYTES);
+            record.putLong(timestamp);
+            record.putShort((short) user.length);
+            record.put(user);
+            record.put(text);
+            
+            this.buffer.putInt(this.size, HEADER_BYTES + user.length + text.length);
+            
+            index(timestamp, this.size);
+            this.size += LENGTH_BYTES + HEADER_BYTES + user.length + text.length;
+        }
+        
+        /**
+         * Read a range of indexed records, from the mapping if the segment
+         * is active, otherwise with a single read from the file
+         * @param from Index of the first record
+         * @param to Index after the last record
+         * @return List of records, oldest first
+         * @throws IOException
+         */
+        public List<ChatRecord> read(int from, int to) throws IOException {
+            List<ChatRecord> records = new ArrayList<ChatRecord>();
+            if(from >= to) {
+                return records;
+            }
+            
+            if(this.buffer != null) {
+                for(int i = from; i < to; i++) {
+                    records.add(read(this.buffer, this.offsets[i]));
+                }
+                return records;
+            }
+            
+            // Every record in the range, in one read
+            int start = this.offsets[from];
+            int end = to < this.count ? this.offsets[to] : this.size;
+            ByteBuffer span = ByteBuffer.allocate(end - start);
+            FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+            try {
+                while(span.hasRemaining()) {
+                    if(channel.read(span, start + span.position()) < 0) {
+                        throw new IOException("Chat history segment " + this.file + " is shorter than its index");
+                    }
+                }
+            } finally {
+                channel.close();
+            }
+            
+            for(int i = from; i < to; i++) {
+                records.add(read(span, this.offsets[i] - start));
+            }
+            return records;
+        }
+        
+        /**
+         * Read the record at an offset
+         * @param contents Segment, or part of it
+         * @param offset Offset of the record in contents
+         * @return ChatRecord
+         */
+        private ChatRecord read(ByteBuffer contents, int offset) {
+            int length = contents.getInt(offset);
+            
+            ByteBuffer record = contents.duplicate();
+            record.position(offset + LENGTH_BYTES);
+            long timestamp = record.getLong();
+            byte[] user = new byte[record.getShort()];
+            record.get(user);
+            byte[] text = new byte[length - HEADER_BYTES - user.length];
+            record.get(text);
+            
+            return new ChatRecord(timestamp, new String(user, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+        }
+        
+        /**
+         * Find the first record at or after a timestamp
+         * @param timestamp
+         * @return Index of the record, or count if there is none
+         */
+        public int search(long timestamp) {
+            int low = 0;
+            int high = this.count;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(this.timestamps[middle] < timestamp) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+        
+        /**
+         * Timestamp of the latest record in the segment
+         * @return long
+         */
+        public long lastTimestamp() {
+            return this.count > 0 ? this.timestamps[this.count - 1] : this.first;
+        }
+        
+        /**
+         * Add a record to the index
+         * @param timestamp
+         * @param offset
+         */
+        private void index(long timestamp, int offset) {
+            if(this.count == this.timestamps.length) {
+                this.timestamps = Arrays.copyOf(this.timestamps, this.count * 2);
+                this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+            }
+            this.timestamps[this.count] = timestamp;
+            this.offsets[this.count] = offset;
+            this.count++;
+        }
+    }
+
+}
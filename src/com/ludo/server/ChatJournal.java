@@ -0,0 +1,247 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.ludo.config.Config;
+import com.ludo.server.ChatHistory.ChatRecord;
+
+/**
+ * The chat journal writes chat messages to the chat history without slowing
+ * down the threads that broadcast them.
+ *
+ * Messages are put in a bounded ring buffer and a single background writer
+ * drains it in batches into the ChatHistory store. A batch is written when it
+ * reaches chatLogBatchSize messages or when chatLogFlushInterval milliseconds
+ * have passed. With chatLogFsync=true every batch is also forced to disk.
+ * Queued messages are drained when the server shuts down.
+ *
+ * The last chatBacklog messages are also kept in memory, in the order they
+ * were logged, so a user who logs in gets them as backlog even while they
+ * are still queued for the history.
+ * @author Petter
+ *
+ */
+public class ChatJournal {
+    
+    /**
+     * Shared journal for the chat servers
+     */
+    private static ChatJournal instance;
+    
+    /**
+     * Queued messages
+     */
+    private ArrayBlockingQueue<ChatRecord> queue;
+    
+    /**
+     * Max messages per batch
+     */
+    private int batchSize = 256;
+    
+    /**
+     * Max time a message waits before it is written, in milliseconds
+     */
+    private long flushInterval = 100;
+    
+    /**
+     * Force every batch to disk
+     */
+    private boolean fsync = false;
+    
+    /**
+     * Segmented chat history the messages are written to
+     */
+    private ChatHistory history;
+    
+    /**
+     * Last messages logged, oldest first. Guarded by itself.
+     */
+    private ArrayDeque<ChatRecord> recent = new ArrayDeque<ChatRecord>();
+    
+    /**
+     * Max messages kept in recent
+     */
+    private int recentSize = 20;
+    
+    /**
+     * Background writer thread
+     */
+    private Thread writer;
+    
+    /**
+     * Set when the server is shutting down
+     */
+    private volatile boolean running = true;
+    
+    /**
+     * Get the shared chat journal, starting it on first use
+     * @return ChatJournal
+     */
+    public static synchronized ChatJournal getInstance() {
+        if(instance == null) {
+            instance = new ChatJournal(new Config());
+        }
+        
+        return instance;
+    }
+    
+    /**
+     * Create a chat journal with settings from config
+     * @param config
+     */
+    public ChatJournal(Config config) {
+        
+        int capacity = 8192;
+        capacity = config.getInt("chatLogQueueSize", capacity);
+        this.batchSize = config.getInt("chatLogBatchSize", this.batchSize);
+        this.flushInterval = config.getLong("chatLogFlushInterval", this.flushInterval);
+        this.fsync = config.getBoolean("chatLogFsync", false);
+        this.recentSize = Math.max(0, config.getInt("chatBacklog", this.recentSize));
+        
+        this.queue = new ArrayBlockingQueue<ChatRecord>(capacity);
+        
+        // Open the chat history once, and start from its last messages
+        this.history = new ChatHistory(config);
+        this.recent.addAll(this.history.last(this.recentSize));
+        
+        // Start background writer
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "chat-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        
+        // Drain queued messages on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "chat-journal-shutdown"));
+    }
+    
+    /**
+     * Get the chat history written by this journal
+     * @return ChatHistory
+     */
+    public ChatHistory getHistory() {
+        return this.history;
+    }
+    
+    /**
+     * Get the last messages logged, including those not written to the
+     * history yet
+     * @param count Max messages, at most chatBacklog are kept
+     * @return List of messages, oldest first
+     */
+    public List<ChatRecord> recent(int count) {
+        synchronized(this.recent) {
+            List<ChatRecord> records = new ArrayList<ChatRecord>(this.recent);
+            return records.subList(Math.max(0, records.size() - count), records.size());
+        }
+    }
+    
+    /**
+     * Queue a chat message for the log. Only blocks if the writer
+     * has fallen a full ring buffer behind.
+     * @param username
+     * @param message
+     */
+    public void log(String username, String message) {
+        ChatRecord record = new ChatRecord(System.currentTimeMillis(), username, message);
+        
+        synchronized(this.recent) {
+            if(this.recentSize > 0) {
+                if(this.recent.size() >= this.recentSize) {
+                    this.recent.removeFirst();
+                }
+                this.recent.addLast(record);
+            }
+        }
+        
+        try {
+            this.queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Stop accepting messages, write everything that is queued and close the log.
+     */
+    public void close() {
+        this.running = false;
+        
+        try {
+            this.writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Drain the queue in batches until the journal is closed
+     */
+    private void writeLoop() {
+        List<ChatRecord> batch = new ArrayList<ChatRecord>(this.batchSize);
+        
+        try {
+            while(this.running || !this.queue.isEmpty()) {
+                
+                // Wait for the first message of a batch
+                ChatRecord first = this.queue.poll(this.flushInterval, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    continue;
+                }
+                batch.add(first);
+                
+                // Collect more messages until the batch is full or the interval has passed
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.flushInterval);
+                while(batch.size() < this.batchSize) {
+                    this.queue.drainTo(batch, this.batchSize - batch.size());
+                    
+                    long remaining = deadline - System.nanoTime();
+                    if(batch.size() >= this.batchSize || remaining <= 0 || !this.running) {
+                        break;
+                    }
+                    
+                    ChatRecord next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                
+                write(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.history.force();
+        }
+    }
+    
+    /**
+     * Write a batch of messages to the history
+     * @param batch
+     */
+    private void write(List<ChatRecord> batch) {
+        for(ChatRecord record : batch) {
+            this.history.append(record.getTimestamp(), record.getUsername(), record.getMessage());
+        }
+        
+        if(this.fsync) {
+            this.history.force();
+        }
+    }
+
+}
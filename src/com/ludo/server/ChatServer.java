@@ -4,15 +4,15 @@
 package com.ludo.server;
 
 import java.io.BufferedReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 
 import com.ludo.config.Config;
+import com.ludo.server.ChatHistory.ChatRecord;
 
 /**
  * @author Petter
@@ -31,19 +31,34 @@ public class ChatServer extends Thread {
     private static int port;
     
     /**
-     * List of connected user names
+     * Online users and their sessions, used for login checks and broadcasting
      */
-    private static HashSet<String> users = new HashSet<String>();
+    private static SessionRegistry sessions = new SessionRegistry();
     
     /**
-     * List of writers for broadcasting messages to every user
+     * Server Socket
      */
-    private static HashSet<PrintWriter> writers = new HashSet<PrintWriter>();
+    ServerSocket listener;
     
     /**
-     * Server Socket
+     * Runs the Handler and writer of every connection
      */
-    ServerSocket listener;
+    private ConnectionExecutor executor;
+    
+    /**
+     * Max number of lines queued for a single client
+     */
+    private static int queueSize = 256;
+    
+    /**
+     * What to do when a client's queue is full
+     */
+    private static OutboundQueue.OverflowPolicy overflowPolicy;
+    
+    /**
+     * Number of recent messages sent to users when they log in
+     */
+    private static int backlog = 20;
     
     /**
      * The chat server constructor listens for new connections on
@@ -52,11 +67,29 @@ public class ChatServer extends Thread {
      * @throws Exception
      */
     public ChatServer() throws Exception {
+        this(ConnectionExecutors.platform());
+    }
+    
+    /**
+     * Chat server running its connection handlers on the given executor
+     * @param executor Connection executor
+     * @throws Exception
+     */
+    public ChatServer(ConnectionExecutor executor) throws Exception {
+        
+        this.executor = executor;
         
         // Set port
         port = Integer.parseInt(config.getConfig("chatPort"));
         
-        System.out.println("Chat server running on port " + port);
+        // Outbound queue settings
+        queueSize = config.getInt("chatQueueSize", queueSize);
+        overflowPolicy = OutboundQueue.OverflowPolicy.parse(config.getConfig("chatOverflowPolicy"));
+        
+        // Chat backlog
+        backlog = config.getInt("chatBacklog", backlog);
+        
+        System.out.println("Chat server (" + executor + ") running on port " + port);
         
     }
     
@@ -72,7 +105,8 @@ public class ChatServer extends Thread {
         // On new connections, start a new thread to handle communications.
         try {
             while(true) {
-                new Handler(this.listener.accept()).start();
+                Socket socket = this.listener.accept();
+                this.executor.execute("chat-" + socket.getRemoteSocketAddress(), new Handler(socket, this.executor));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -90,7 +124,7 @@ public class ChatServer extends Thread {
      * @author Petter
      *
      */
-    private static class Handler extends Thread {
+    private static class Handler implements Runnable, ChatSession {
         private String username;
         private String password;
         private String request;
@@ -98,15 +132,82 @@ public class ChatServer extends Thread {
         private Socket socket;
         private BufferedReader in;
         private PrintWriter out;
+        private OutboundQueue outbound = new OutboundQueue(queueSize, overflowPolicy);
+        private ConnectionExecutor executor;
+        private volatile boolean closed = false;
         private UserHandler userHandler = new UserHandler();
         
         /**
          * Sets the socket for communication between the new
          * client and the server.
          * @param socket
+         * @param executor Runs this client's writer
          */
-        public Handler(Socket socket) {
+        public Handler(Socket socket, ConnectionExecutor executor) {
             this.socket = socket;
+            this.executor = executor;
+        }
+        
+        /**
+         * Queue a line for this client. Never blocks, the line is written
+         * by the client's own writer.
+         * @param line
+         */
+        public void send(String line) {
+            if(this.closed) {
+                return;
+            }
+            
+            // The client is not keeping up, disconnect it
+            if(!this.outbound.offer(line)) {
+                System.out.println("Disconnecting slow client " + this.username);
+                ServerMetrics.slowConsumerDisconnects.incrementAndGet();
+                close();
+            }
+        }
+        
+        /**
+         * Close the connection, which also stops the reader and writer.
+         */
+        private void close() {
+            this.closed = true;
+            
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing socket for " + username + ": " + e);
+            }
+        }
+        
+        /**
+         * Drain the outbound queue to the client, flushing once the
+         * queue is empty so bursts are written together.
+         */
+        private void write() {
+            try {
+                while(!this.closed) {
+                    String line = this.outbound.poll(1, TimeUnit.SECONDS);
+                    
+                    if(line == null) {
+                        continue;
+                    }
+                    
+                    this.out.println(line);
+                    
+                    if(this.outbound.depth() == 0) {
+                        this.out.flush();
+                    }
+                    
+                    // Connection lost
+                    if(this.out.checkError()) {
+                        close();
+                    }
+                }
+            } catch (InterruptedException e) {
+                close();
+            } finally {
+                this.outbound.clear();
+            }
         }
         
         /**
@@ -120,15 +221,20 @@ public class ChatServer extends Thread {
                 // Input reader (from client)
                 this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
                 
-                // Output printer (to client)
-                this.out = new PrintWriter(this.socket.getOutputStream(), true);
+                // Output printer (to client), written by its own writer
+                this.out = new PrintWriter(this.socket.getOutputStream(), false);
+                this.executor.execute("chat-writer-" + this.socket.getRemoteSocketAddress(), new Runnable() {
+                    public void run() {
+                        write();
+                    }
+                });
                 
                 /**
                  * First, send a login request command REQUESTLOGIN
                  * continuously to client until login data has been received.
                  */
                 while(true) {
-                    out.println("LOGINREQUEST");
+                    send("LOGINREQUEST");
                     this.request = in.readLine();
                     
                     // If no login data is received, keep reading inputs
@@ -155,9 +261,9 @@ public class ChatServer extends Thread {
                         // Register username if not already taken.
                         if(!userHandler.usernameTaken(args[1])) {
                             userHandler.newUser(args[1], args[2]);
-                            out.println("REGISTERACCEPTED");
+                            send("REGISTERACCEPTED");
                         } else {
-                            out.println("ALREADYEXISTS");
+                            send("ALREADYEXISTS");
                         }
                     }
                     
@@ -167,26 +273,31 @@ public class ChatServer extends Thread {
                         this.username = args[1].toLowerCase();
                         this.password = args[2];
                         
-                        // Attempt to authenticate user. Make sure the users list is used synchronously
-                        synchronized(users) {
-                            if(userHandler.authenticateUser(username, password)) {
-                                if(!users.contains(username)) {
-                                    users.add(username);
-                                    break;
-                                } else {
-                                    out.println("ALREADYLOGGEDIN");
-                                }
+                        // Attempt to authenticate user, then atomically claim the username
+                        if(userHandler.authenticateUser(username, password)) {
+                            if(sessions.claim(username, this)) {
+                                break;
                             } else {
-                                out.println("LOGINDENIED");
+                                send("ALREADYLOGGEDIN");
                             }
+                        } else {
+                            send("LOGINDENIED");
                         }
                         
                     }
                 }
                 
                 // Report back to client that login authentication succeeded.
-                this.out.println("LOGINACCEPTED");
-                writers.add(out);
+                send("LOGINACCEPTED");
+                
+                // Replay the latest messages to the new user, then start sending it new ones
+                sessions.enable(this.username, this, new Runnable() {
+                    public void run() {
+                        for(ChatRecord record : ChatJournal.getInstance().recent(backlog)) {
+                            send("MESSAGE " + record.getUsername() + " " + record.getMessage());
+                        }
+                    }
+                });
                 
                 /**
                  * Handle incoming chat messages from client and
@@ -195,9 +306,9 @@ public class ChatServer extends Thread {
                 while(true) {
                     this.request = in.readLine();
                     
-                    // Skip if no request
+                    // Client disconnected
                     if(request == null) {
-                        continue;
+                        break;
                     }
                     
                     // Split request into arguments
@@ -206,35 +317,18 @@ public class ChatServer extends Thread {
                     // If this is a MESSAGE request from client, broadcast to everyone in chat
                     if(this.request.startsWith("MESSAGE") && this.args.length >= 2) {
                         
-                        for(PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + this.username + " " + this.request.substring("MESSAGE ".length()));
-                        }
-                        
-                        // Write chat to file
-                        FileWriter fw = new FileWriter("chatlog.dat", true);
-                        fw.write(this.username + ": " + this.request.substring("MESSAGE ".length()) + "\n");
-                        fw.close();
+                        // Write chat to the chat log and send it to everyone
+                        sessions.publish(ChatJournal.getInstance(), this.username, this.request.substring("MESSAGE ".length()));
                     }
                     
                     // Manual logout from client
                     if(this.request.startsWith("LOGOUT")) {
                         
-                        // Remove username from users list
-                        if(this.username != null) {
-                            users.remove(this.username);
-                        }
-                        
-                        // Remove client from writers list
-                        if(this.out != null) {
-                            writers.remove(this.out);
-                        }
+                        // Remove user from the online sessions
+                        sessions.release(this.username, this);
                         
                         // Close socket with client
-                        try {
-                            this.socket.close();
-                        } catch (IOException e) {
-                            System.out.println("Error closing socket for " + username + ": " + e);
-                        }
+                        close();
                     }
                     
                 }
@@ -247,22 +341,11 @@ public class ChatServer extends Thread {
                  * Cleanup when the client is disconnected.
                  */
                 
-                // Remove username from users list
-                if(username != null) {
-                    users.remove(this.username);
-                }
-                
-                // Remove client from writers list
-                if(out != null) {
-                    writers.remove(this.out);
-                }
+                // Remove user from the online sessions
+                sessions.release(this.username, this);
                 
                 // Close socket with client
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    System.out.println("Error closing socket for " + username + ": " + e);
-                }
+                close();
             }
         }
     }
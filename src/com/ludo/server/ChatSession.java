@@ -0,0 +1,20 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+/**
+ * A logged in chat connection, which can be sent lines
+ * from any thread.
+ * @author Petter
+ *
+ */
+public interface ChatSession {
+    
+    /**
+     * Send a line to the client
+     * @param line Line without line break
+     */
+    void send(String line);
+    
+}
@@ -0,0 +1,22 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+/**
+ * Runs the blocking task that serves a single connection (or game session).
+ * The servers only describe what to run; the executor decides which kind
+ * of thread runs it.
+ * @author Petter
+ *
+ */
+public interface ConnectionExecutor {
+    
+    /**
+     * Run a task in its own thread of execution
+     * @param name Thread name, used for debugging
+     * @param task Task to run
+     */
+    void execute(String name, Runnable task);
+    
+}
@@ -0,0 +1,121 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.lang.reflect.Method;
+
+/**
+ * Factory for the available connection executors.
+ * 
+ * platform: one platform thread per task, which is how the servers
+ *           have always run.
+ * virtual:  one virtual thread per task. Blocking reads park the virtual
+ *           thread instead of a platform thread, so tens of thousands of
+ *           mostly idle sockets can be served by a handful of carrier threads.
+ *           Requires a Java runtime with virtual threads (21+), otherwise
+ *           platform threads are used.
+ * @author Petter
+ *
+ */
+public class ConnectionExecutors {
+    
+    /**
+     * Create a connection executor by name
+     * @param mode "platform" or "virtual"
+     * @return ConnectionExecutor
+     */
+    public static ConnectionExecutor forMode(String mode) {
+        if("virtual".equalsIgnoreCase(mode)) {
+            return virtual();
+        }
+        
+        return platform();
+    }
+    
+    /**
+     * One platform thread per task
+     * @return ConnectionExecutor
+     */
+    public static ConnectionExecutor platform() {
+        return new PlatformThreadExecutor();
+    }
+    
+    /**
+     * One virtual thread per task, falling back to platform threads
+     * when the runtime does not support virtual threads.
+     * @return ConnectionExecutor
+     */
+    public static ConnectionExecutor virtual() {
+        try {
+            return new VirtualThreadExecutor();
+        } catch (Exception e) {
+            System.out.println("Virtual threads are not available on this Java runtime, using platform threads");
+            return platform();
+        }
+    }
+    
+    /**
+     * Starts a new platform thread for every task
+     * @author Petter
+     *
+     */
+    private static class PlatformThreadExecutor implements ConnectionExecutor {
+        
+        public void execute(String name, Runnable task) {
+            new Thread(task, name).start();
+        }
+        
+        public String toString() {
+            return "platform threads";
+        }
+    }
+    
+    /**
+     * Starts a new virtual thread for every task. The Thread.Builder API
+     * is looked up reflectively so the server still compiles and runs on
+     * runtimes without virtual threads.
+     * @author Petter
+     *
+     */
+    private static class VirtualThreadExecutor implements ConnectionExecutor {
+        private Method ofVirtual;
+        private Method name;
+        private Method start;
+        
+        /**
+         * Look up the virtual thread builder methods, and start a virtual
+         * thread that does nothing. On JDK 19 and 20 the methods exist but
+         * fail without --enable-preview, which is found out here instead
+         * of in the accept loop.
+         * @throws Exception If virtual threads are not supported
+         */
+        public VirtualThreadExecutor() throws Exception {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            this.ofVirtual = Thread.class.getMethod("ofVirtual");
+            this.name = builder.getMethod("name", String.class);
+            this.start = builder.getMethod("start", Runnable.class);
+            
+            Thread probe = (Thread) this.start.invoke(this.ofVirtual.invoke(null), new Runnable() {
+                public void run() {
+                }
+            });
+            probe.join();
+        }
+        
+        public void execute(String name, Runnable task) {
+            try {
+                Object builder = this.ofVirtual.invoke(null);
+                builder = this.name.invoke(builder, name);
+                this.start.invoke(builder, task);
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to start virtual thread " + name, e);
+            }
+        }
+        
+        public String toString() {
+            return "virtual threads";
+        }
+    }
+    
+}
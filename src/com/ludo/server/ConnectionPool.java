@@ -0,0 +1,270 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of database connections.
+ * 
+ * At most maxSize connections are open at once; callers wait up to
+ * borrowTimeout milliseconds for a free connection. Idle connections are
+ * reused most-recently-used first, validated before reuse if they have been
+ * idle for a while, and closed by a background evictor once they have been
+ * idle longer than idleTimeout. Every pooled connection caches its prepared
+ * statements, so the fixed queries are only prepared once per connection.
+ * @author Petter
+ *
+ */
+public class ConnectionPool {
+    
+    /**
+     * Connections idle for longer than this are validated before reuse, in milliseconds
+     */
+    private static final long VALIDATE_AFTER = 30 * 1000;
+    
+    private String url;
+    private String user;
+    private String password;
+    
+    /**
+     * Max time to wait for a connection, in milliseconds
+     */
+    private long borrowTimeout = 5000;
+    
+    /**
+     * Idle time before a connection is closed, in milliseconds
+     */
+    private long idleTimeout;
+    
+    /**
+     * Idle connections, most recently used first
+     */
+    private LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+    
+    /**
+     * One permit per connection that may be borrowed
+     */
+    private Semaphore permits;
+    
+    /**
+     * Closes connections that have been idle for too long
+     */
+    private ScheduledExecutorService evictor;
+    
+    /**
+     * Create a connection pool
+     * @param url JDBC URL
+     * @param user Database user
+     * @param password Database password
+     * @param maxSize Max number of open connections
+     * @param idleTimeout Idle time before a connection is closed, in milliseconds
+     */
+    public ConnectionPool(String url, String user, String password, int maxSize, long idleTimeout) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.idleTimeout = idleTimeout;
+        this.permits = new Semaphore(maxSize, true);
+        
+        // Evict idle connections in the background
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "connection-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        long interval = Math.max(1000, idleTimeout / 2);
+        this.evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Borrow a connection. It must be given back with release().
+     * @return PooledConnection
+     * @throws SQLException If no connection could be made or the wait timed out
+     */
+    public PooledConnection borrow() throws SQLException {
+        
+        // Wait for a free slot
+        try {
+            if(!this.permits.tryAcquire(this.borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+        
+        try {
+            
+            // Reuse an idle connection if it is still valid
+            PooledConnection pooled;
+            while((pooled = this.idle.pollFirst()) != null) {
+                if(System.currentTimeMillis() - pooled.lastUsed < VALIDATE_AFTER || pooled.isValid()) {
+                    return pooled;
+                }
+                pooled.close();
+            }
+            
+            // Open a new connection
+            return new PooledConnection(DriverManager.getConnection(this.url, this.user, this.password));
+            
+        } catch (SQLException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * Give a borrowed connection back to the pool
+     * @param pooled
+     */
+    public void release(PooledConnection pooled) {
+        if(pooled == null) {
+            return;
+        }
+        
+        pooled.lastUsed = System.currentTimeMillis();
+        this.idle.offerFirst(pooled);
+        this.permits.release();
+    }
+    
+    /**
+     * Close a borrowed connection that is broken instead of giving it back
+     * @param pooled
+     */
+    public void discard(PooledConnection pooled) {
+        if(pooled == null) {
+            return;
+        }
+        
+        pooled.close();
+        this.permits.release();
+    }
+    
+    /**
+     * Close every idle connection and stop the evictor
+     */
+    public void close() {
+        this.evictor.shutdownNow();
+        
+        PooledConnection pooled;
+        while((pooled = this.idle.pollFirst()) != null) {
+            pooled.close();
+        }
+    }
+    
+    /**
+     * Close connections that have been idle longer than the idle timeout.
+     * The least recently used connections are at the end of the deque.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        
+        Iterator<PooledConnection> iterator = this.idle.descendingIterator();
+        while(iterator.hasNext()) {
+            PooledConnection pooled = iterator.next();
+            
+            if(now - pooled.lastUsed < this.idleTimeout) {
+                break;
+            }
+            
+            // Only close it if no one borrowed it in the meantime
+            if(this.idle.remove(pooled)) {
+                pooled.close();
+            }
+        }
+    }
+    
+    /**
+     * A pooled database connection with its prepared statements
+     * @author Petter
+     *
+     */
+    public static class PooledConnection {
+        private Connection connection;
+        private Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        private volatile long lastUsed = System.currentTimeMillis();
+        
+        public PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+        
+        /**
+         * Get a prepared statement for a query, preparing it on first use
+         * @param sql Query with ? placeholders
+         * @return PreparedStatement
+         * @throws SQLException
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = this.statements.get(sql);
+            
+            if(statement == null) {
+                statement = this.connection.prepareStatement(sql);
+                this.statements.put(sql, statement);
+            }
+            
+            return statement;
+        }
+        
+        /**
+         * Get the underlying connection
+         * @return Connection
+         */
+        public Connection getConnection() {
+            return this.connection;
+        }
+        
+        /**
+         * Check if the connection still works
+         * @return boolean
+         */
+        public boolean isValid() {
+            try {
+                return this.connection.isValid(2);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+        
+        /**
+         * Close the statements and the connection
+         */
+        public void close() {
+            for(PreparedStatement statement : this.statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // Closing anyway
+                }
+            }
+            this.statements.clear();
+            
+            try {
+                this.connection.close();
+            } catch (SQLException e) {
+                System.out.println("Error closing database connection: " + e);
+            }
+        }
+    }
+    
+}
@@ -7,12 +7,15 @@
  */
 package com.ludo.server;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.List;
+
+import com.ludo.config.Config;
+import com.ludo.server.ConnectionPool.PooledConnection;
 
 /**
  * @author Petter
@@ -21,9 +24,9 @@ import java.util.ArrayList;
 public class DatabaseHandler {
     
     /**
-     * Database Connection
+     * Database connection pool, shared by every DatabaseHandler
      */
-    private static Connection connection;
+    private static ConnectionPool pool;
     
     /**
      * Database Server URL
@@ -41,31 +44,34 @@ public class DatabaseHandler {
     private static final String password = null;
     
     /**
-     * DatabaseHandler constructor to construct the necessary
-     * database tables.
+     * DatabaseHandler constructor, which sets up the shared
+     * connection pool on first use.
      */
     public DatabaseHandler() {
         
-        createConnection();
+        createPool();
         
     }
     
     /**
-     * Create a connection to the database
-     * @return boolean
+     * Create the connection pool. The database URL, user and password
+     * can be overridden in config.ini, for example to use an embedded database.
      */
-    private boolean createConnection() {
+    private static synchronized void createPool() {
         
-        // Try connecting
-        try {
-            connection = DriverManager.getConnection(url, user, password);
-            
-        } catch (Exception e) {
-            System.out.println("Error connecting to database: " + e);
-            return false;
+        if(pool != null) {
+            return;
         }
         
-        return true;
+        Config config = new Config();
+        
+        String databaseUrl = config.getConfig("databaseUrl") != null ? config.getConfig("databaseUrl") : url;
+        String databaseUser = config.getConfig("databaseUser") != null ? config.getConfig("databaseUser") : user;
+        String databasePassword = config.getConfig("databasePassword") != null ? config.getConfig("databasePassword") : password;
+        
+        pool = new ConnectionPool(databaseUrl, databaseUser, databasePassword,
+                config.getInt("databasePoolSize", 8),
+                config.getLong("databaseIdleTimeout", 5 * 60) * 1000);
     }
     
     /**
@@ -74,16 +80,7 @@ public class DatabaseHandler {
     public void truncateTable(String table) {
         
         // Truncate users table
-        String truncateTable = "TRUNCATE TABLE users";
-        
-        // Try to execute the query
-        try {
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(truncateTable);
-        } catch (SQLException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        execute("TRUNCATE TABLE " + table);
     }
     
     /**
@@ -94,18 +91,11 @@ public class DatabaseHandler {
         ArrayList<String> queries = new ArrayList<String>();
         
         // Create users table query
-        queries.add("CREATE TABLE IF NOT EXISTS `users` (`id` int(11) PRIMARY KEY NOT NULL AUTO_INCREMENT, `username` varchar(45) NOT NULL UNIQUE, `password` varchar(45) NOT NULL)");
+        queries.add("CREATE TABLE IF NOT EXISTS `users` (`id` int(11) PRIMARY KEY NOT NULL AUTO_INCREMENT, `username` varchar(45) NOT NULL UNIQUE, `password` varchar(45) NOT NULL, `win` int(11) NOT NULL DEFAULT 0, `games` int(11) NOT NULL DEFAULT 0)");
         
         // Try to execute the queries
-        try {
-            Statement statement = connection.createStatement();
-            
-            for (String query : queries) {
-                statement.executeUpdate(query);
-            }
-            
-        } catch (SQLException e) {
-            e.printStackTrace();
+        for (String query : queries) {
+            execute(query);
         }
     }
     
@@ -116,58 +106,216 @@ public class DatabaseHandler {
     public void dropTable(String table) {
         
         // Drop user table
-        String dropTable = "DROP TABLE IF EXISTS " + table;
+        execute("DROP TABLE IF EXISTS " + table);
+    }
+    
+    /**
+     * Check if a query with parameters returns any rows.
+     * @param query Query with ? placeholders
+     * @param parameters Query parameters
+     * @return boolean
+     */
+    public boolean exists(String query, Object... parameters) {
+        
+        PooledConnection connection = null;
         
         // Try to execute the query
         try {
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(dropTable);
+            connection = pool.borrow();
+            
+            PreparedStatement statement = connection.prepare(query);
+            bind(statement, parameters);
+            
+            ResultSet results = statement.executeQuery();
+            try {
+                return results.next();
+            } finally {
+                results.close();
+            }
         } catch (SQLException e) {
             e.printStackTrace();
+            
+            // Do not give a broken connection back to the pool
+            if(connection != null && !connection.isValid()) {
+                pool.discard(connection);
+                connection = null;
+            }
+        } finally {
+            pool.release(connection);
         }
+        
+        return false;
     }
     
     /**
-     * Execute an SQL query and resturn the result set.
-     * @param query
-     * @return
+     * Execute an insert, update or delete query with parameters.
+     * @param query Query with ? placeholders
+     * @param parameters Query parameters
+     * @return int Number of affected rows, -1 on errors
      */
-    public ResultSet select(String query) {
+    public int update(String query, Object... parameters) {
+        
+        PooledConnection connection = null;
         
         // Try to execute the query
         try {
-            Statement statement = connection.createStatement();
-            return statement.executeQuery(query);
+            connection = pool.borrow();
+            
+            PreparedStatement statement = connection.prepare(query);
+            bind(statement, parameters);
+            
+            return statement.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
+            
+            // Do not give a broken connection back to the pool
+            if(connection != null && !connection.isValid()) {
+                pool.discard(connection);
+                connection = null;
+            }
+        } finally {
+            pool.release(connection);
         }
         
-        return null;
+        return -1;
     }
     
     /**
-     * Execute an insert query to the database.
-     * @param query
+     * Execute the same insert or update query for many rows of parameters
+     * in a single JDBC batch, in one transaction. A batch that fails is
+     * rolled back, so none of its rows are written.
+     * @param query Query with ? placeholders
+     * @param rows Parameters for every row
+     * @return boolean true if the batch was executed and committed
      */
-    public void insert(String query) {
+    public boolean batch(String query, List<Object[]> rows) {
         
-        // Try to execute the query
+        if(rows.isEmpty()) {
+            return true;
+        }
+        
+        PooledConnection connection = null;
+        PreparedStatement statement = null;
+        
+        // Try to execute the batch
         try {
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(query);
+            connection = pool.borrow();
+            connection.getConnection().setAutoCommit(false);
+            
+            statement = connection.prepare(query);
+            for(Object[] parameters : rows) {
+                bind(statement, parameters);
+                statement.addBatch();
+            }
+            
+            statement.executeBatch();
+            connection.getConnection().commit();
+            return true;
         } catch (SQLException e) {
             e.printStackTrace();
+            rollback(connection);
+            
+            // Do not give a broken connection back to the pool
+            if(connection != null && !connection.isValid()) {
+                pool.discard(connection);
+                connection = null;
+            }
+        } finally {
+            
+            // The statement is cached with the connection, the next batch must start empty
+            clearBatch(statement);
+            
+            // Other queries on the connection commit on their own
+            if(connection != null) {
+                try {
+                    connection.getConnection().setAutoCommit(true);
+                } catch (SQLException e) {
+                    pool.discard(connection);
+                    connection = null;
+                }
+            }
+            pool.release(connection);
         }
+        
+        return false;
     }
     
-    public void update(String query) {
+    /**
+     * Execute a query without parameters, such as table changes.
+     * @param query
+     */
+    private void execute(String query) {
+        
+        PooledConnection connection = null;
         
         // Try to execute the query
         try {
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(query);
+            connection = pool.borrow();
+            
+            Statement statement = connection.getConnection().createStatement();
+            try {
+                statement.executeUpdate(query);
+            } finally {
+                statement.close();
+            }
         } catch (SQLException e) {
             e.printStackTrace();
+            
+            // Do not give a broken connection back to the pool
+            if(connection != null && !connection.isValid()) {
+                pool.discard(connection);
+                connection = null;
+            }
+        } finally {
+            pool.release(connection);
+        }
+    }
+    
+    /**
+     * Roll back the open transaction of a connection
+     * @param connection Connection or null
+     */
+    private void rollback(PooledConnection connection) {
+        if(connection == null) {
+            return;
+        }
+        
+        try {
+            connection.getConnection().rollback();
+        } catch (SQLException e) {
+            
+            // A broken connection is rolled back by the database when it is closed
+        }
+    }
+    
+    /**
+     * Drop the rows added to a cached statement's batch, if any are left
+     * @param statement Statement or null
+     */
+    private void clearBatch(PreparedStatement statement) {
+        if(statement == null) {
+            return;
+        }
+        
+        try {
+            statement.clearBatch();
+        } catch (SQLException e) {
+            
+            // Closed with its broken connection
+        }
+    }
+    
+    /**
+     * Set the parameters of a prepared statement
+     * @param statement
+     * @param parameters
+     * @throws SQLException
+     */
+    private void bind(PreparedStatement statement, Object[] parameters) throws SQLException {
+        statement.clearParameters();
+        
+        for(int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
         }
     }
 }
@@ -0,0 +1,465 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.ludo.config.Config;
+
+/**
+ * The game journal keeps an append-only record of every game: its dice
+ * seed, rolls, moves, forfeits, chat and result, so any game can be
+ * replayed through the rules, see GameReplay.
+ *
+ * Games only put small events in a bounded ring buffer. A single background
+ * writer encodes them in batches into journal files in gameJournalDir,
+ * starting a new file when the current one reaches gameJournalFileSize bytes.
+ * A batch is written when it reaches gameJournalBatchSize events or when
+ * gameJournalFlushInterval milliseconds have passed. With gameJournalFsync=true
+ * every batch is also forced to disk. Queued events are drained when the
+ * server shuts down. A game never waits for the journal: events that find
+ * the buffer full, or arrive once the journal is closing, are dropped and
+ * counted in ServerMetrics.journalDropped. gameJournal=false turns the
+ * journal off.
+ *
+ * A file starts with MAGIC, then holds records of
+ * [varint length][type][varint game id][payload], where the payload is
+ * START:   [long seed][long timestamp][max dice][players][username per player]
+ * ROLL:    [color][dice]
+ * MOVE:    [color][piece][new position]
+ * FORFEIT: [color]
+ * CHAT:    [color][text]
+ * END:     [winner color, or NO_WINNER]
+ * Colors, dice, pieces and positions are single bytes, numbers are varints,
+ * and strings are a varint byte length followed by UTF-8.
+ * @author Petter
+ *
+ */
+public class GameJournal {
+    
+    /**
+     * First bytes of every journal file, the last one is the format version
+     */
+    static final byte[] MAGIC = { 'L', 'U', 'D', 'J', 1 };
+    
+    static final int START = 1;
+    static final int ROLL = 2;
+    static final int MOVE = 3;
+    static final int FORFEIT = 4;
+    static final int CHAT = 5;
+    static final int END = 6;
+    
+    /**
+     * Winner of a game that ended without one
+     */
+    static final int NO_WINNER = 0xFF;
+    
+    /**
+     * Shared journal for the game server
+     */
+    private static GameJournal instance;
+    
+    /**
+     * Queued events, null if the journal is off
+     */
+    private ArrayBlockingQueue<Event> queue;
+    
+    /**
+     * Max events per batch
+     */
+    private int batchSize = 1024;
+    
+    /**
+     * Max time an event waits before it is written, in milliseconds
+     */
+    private long flushInterval = 200;
+    
+    /**
+     * Force every batch to disk
+     */
+    private boolean fsync = false;
+    
+    /**
+     * Directory holding the journal files
+     */
+    private File directory;
+    
+    /**
+     * Size at which a new journal file is started, in bytes
+     */
+    private long fileSize = 64L * 1024 * 1024;
+    
+    /**
+     * Journal file being written, only used by the writer
+     */
+    private FileOutputStream file;
+    
+    /**
+     * Bytes written to the current file
+     */
+    private long written;
+    
+    /**
+     * Background writer thread
+     */
+    private Thread writer;
+    
+    /**
+     * Set when the server is shutting down
+     */
+    private volatile boolean running = true;
+    
+    /**
+     * Get the shared game journal, starting it on first use
+     * @return GameJournal
+     */
+    public static synchronized GameJournal getInstance() {
+        if(instance == null) {
+            instance = new GameJournal(new Config());
+        }
+        
+        return instance;
+    }
+    
+    /**
+     * Create a game journal with settings from config
+     * @param config
+     */
+    public GameJournal(Config config) {
+        if(!config.getBoolean("gameJournal", true)) {
+            return;
+        }
+        
+        String dir = config.getConfig("gameJournalDir");
+        this.directory = new File(dir != null ? dir : "gamelog");
+        this.directory.mkdirs();
+        
+        int capacity = 65536;
+        capacity = config.getInt("gameJournalQueueSize", capacity);
+        this.batchSize = config.getInt("gameJournalBatchSize", this.batchSize);
+        this.flushInterval = config.getLong("gameJournalFlushInterval", this.flushInterval);
+        this.fsync = config.getBoolean("gameJournalFsync", false);
+        this.fileSize = config.getLong("gameJournalFileSize", this.fileSize);
+        
+        this.queue = new ArrayBlockingQueue<Event>(capacity);
+        
+        // Start background writer
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "game-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        
+        // Drain queued events on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "game-journal-shutdown"));
+    }
+    
+    /**
+     * A game has started
+     * @param game Game id
+     * @param seed Seed of the game's dice
+     * @param maxDice Highest dice roll
+     * @param usernames Username of every player, in turn order
+     */
+    public void start(int game, long seed, int maxDice, String[] usernames) {
+        Event event = new Event(START, game, maxDice, usernames.length, 0);
+        event.seed = seed;
+        event.timestamp = System.currentTimeMillis();
+        event.texts = usernames;
+        log(event);
+    }
+    
+    /**
+     * The dice was rolled for a player
+     * @param game Game id
+     * @param color Color ordinal
+     * @param dice
+     */
+    public void roll(int game, int color, int dice) {
+        log(new Event(ROLL, game, color, dice, 0));
+    }
+    
+    /**
+     * A piece was moved
+     * @param game Game id
+     * @param color Color ordinal
+     * @param piece Piece (0-3)
+     * @param position New position of the piece
+     */
+    public void move(int game, int color, int piece, int position) {
+        log(new Event(MOVE, game, color, piece, position));
+    }
+    
+    /**
+     * A player forfeited
+     * @param game Game id
+     * @param color Color ordinal
+     */
+    public void forfeit(int game, int color) {
+        log(new Event(FORFEIT, game, color, 0, 0));
+    }
+    
+    /**
+     * A player sent a chat message to the game
+     * @param game Game id
+     * @param color Color ordinal
+     * @param text
+     */
+    public void chat(int game, int color, String text) {
+        Event event = new Event(CHAT, game, color, 0, 0);
+        event.texts = new String[] { text };
+        log(event);
+    }
+    
+    /**
+     * A game has ended
+     * @param game Game id
+     * @param winner Color ordinal of the winner, or NO_WINNER
+     */
+    public void end(int game, int winner) {
+        log(new Event(END, game, winner, 0, 0));
+    }
+    
+    /**
+     * Queue an event. Never blocks the game: if the writer has fallen a full
+     * ring buffer behind, or the journal is closing, the event is dropped and
+     * counted.
+     * @param event
+     */
+    private void log(Event event) {
+        if(this.queue == null) {
+            return;
+        }
+        
+        if(!this.running || !this.queue.offer(event)) {
+            ServerMetrics.journalDropped.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Stop accepting events, write everything that is queued and close the journal.
+     */
+    public void close() {
+        this.running = false;
+        
+        if(this.writer == null) {
+            return;
+        }
+        
+        try {
+            this.writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        // Events that slipped in while the writer finished are not written
+        List<Event> late = new ArrayList<Event>();
+        this.queue.drainTo(late);
+        ServerMetrics.journalDropped.addAndGet(late.size());
+    }
+    
+    /**
+     * Drain the queue in batches until the journal is closed
+     */
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<Event>(this.batchSize);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        
+        try {
+            while(this.running || !this.queue.isEmpty()) {
+                
+                // Wait for the first event of a batch
+                Event first = this.queue.poll(this.flushInterval, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    continue;
+                }
+                batch.add(first);
+                
+                // Collect more events until the batch is full or the interval has passed
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.flushInterval);
+                while(batch.size() < this.batchSize) {
+                    this.queue.drainTo(batch, this.batchSize - batch.size());
+                    
+                    long remaining = deadline - System.nanoTime();
+                    if(batch.size() >= this.batchSize || remaining <= 0 || !this.running) {
+                        break;
+                    }
+                    
+                    Event next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                
+                buffer.reset();
+                for(Event event : batch) {
+                    event.encode(buffer);
+                }
+                write(buffer);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                if(this.file != null) {
+                    this.file.getChannel().force(false);
+                    this.file.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error closing game journal: " + e);
+            }
+        }
+    }
+    
+    /**
+     * Write an encoded batch to the current file, starting a new one when it is full
+     * @param buffer
+     */
+    private void write(ByteArrayOutputStream buffer) {
+        try {
+            if(this.file == null || this.written >= this.fileSize) {
+                rotate();
+            }
+            
+            buffer.writeTo(this.file);
+            this.written += buffer.size();
+            
+            if(this.fsync) {
+                this.file.getChannel().force(false);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing game journal: " + e);
+        }
+    }
+    
+    /**
+     * Close the current file and start a new one
+     * @throws IOException
+     */
+    private void rotate() throws IOException {
+        if(this.file != null) {
+            this.file.getChannel().force(false);
+            this.file.close();
+            this.file = null;
+        }
+        
+        // File names must be unique and sort in the order they were written
+        long timestamp = System.currentTimeMillis();
+        File next;
+        while((next = new File(this.directory, String.format("games-%020d.log", timestamp))).exists()) {
+            timestamp++;
+        }
+        
+        this.file = new FileOutputStream(next);
+        this.file.write(MAGIC);
+        this.written = MAGIC.length;
+    }
+    
+    /**
+     * Write a varint, 7 bits per byte with the high bit set on every byte but the last
+     * @param out
+     * @param value
+     */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+    
+    /**
+     * A journal event, encoded by the writer
+     * @author Petter
+     *
+     */
+    private static class Event {
+        private int type;
+        private int game;
+        private int a;
+        private int b;
+        private int c;
+        private long seed;
+        private long timestamp;
+        private String[] texts;
+        
+        public Event(int type, int game, int a, int b, int c) {
+            this.type = type;
+            this.game = game;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+        
+        /**
+         * Append the event as a record
+         * @param out
+         */
+        public void encode(ByteArrayOutputStream out) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(32);
+            body.write(this.type);
+            writeVarint(body, this.game & 0xFFFFFFFFL);
+            
+            switch(this.type) {
+            case START:
+                writeLong(body, this.seed);
+                writeLong(body, this.timestamp);
+                body.write(this.a);
+                body.write(this.b);
+                for(String username : this.texts) {
+                    writeText(body, username);
+                }
+                break;
+            case ROLL:
+                body.write(this.a);
+                body.write(this.b);
+                break;
+            case MOVE:
+                body.write(this.a);
+                body.write(this.b);
+                body.write(this.c);
+                break;
+            case CHAT:
+                body.write(this.a);
+                writeText(body, this.texts[0]);
+                break;
+            default:
+                body.write(this.a);
+                break;
+            }
+            
+            writeVarint(out, body.size());
+            out.write(body.toByteArray(), 0, body.size());
+        }
+        
+        private static void writeLong(ByteArrayOutputStream out, long value) {
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (value >>> shift));
+            }
+        }
+        
+        private static void writeText(ByteArrayOutputStream out, String text) {
+            byte[] bytes = (text != null ? text : "").getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+}
@@ -0,0 +1,497 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.ludo.game.PlayerColor;
+import com.ludo.game.Rules;
+
+/**
+ * Replays the games in the game journal through the rules. Every game is
+ * re-run from its seed: the dice are rolled again and must match the
+ * journal, turns must come in order, every move must be legal and land
+ * where the journal says, and the winner must have won. Games are checked
+ * in parallel with fork/join, without any I/O or allocation per event, so
+ * thousands of stored games can be re-validated after a rules change.
+ *
+ * Games whose END is missing, because the server stopped during them or
+ * the journal is still being written, are counted as incomplete.
+ * @author Petter
+ *
+ */
+public class GameReplay {
+    
+    /**
+     * Games checked by a single fork/join task
+     */
+    private static final int BLOCK = 256;
+    
+    /**
+     * Mismatches printed in full
+     */
+    private static final int MAX_REPORTED = 10;
+    
+    /**
+     * Read every journal file in a directory, oldest first
+     * @param directory
+     * @return Games, in the order they started
+     * @throws IOException
+     */
+    public static List<Game> load(File directory) throws IOException {
+        List<Game> games = new ArrayList<Game>();
+        Map<Integer, Game> running = new HashMap<Integer, Game>();
+        
+        File[] files = directory.listFiles();
+        if(files == null) {
+            throw new IOException("No such directory: " + directory);
+        }
+        Arrays.sort(files);
+        
+        for(File file : files) {
+            String name = file.getName();
+            if(name.startsWith("games-") && name.endsWith(".log")) {
+                read(Files.readAllBytes(file.toPath()), file.getName(), games, running);
+            }
+        }
+        
+        return games;
+    }
+    
+    /**
+     * Parse the records of a journal file
+     * @param data File contents
+     * @param name File name, for errors
+     * @param games Games found so far
+     * @param running Games that have started but not ended, by id
+     * @throws IOException If the file is not a game journal
+     */
+    private static void read(byte[] data, String name, List<Game> games, Map<Integer, Game> running) throws IOException {
+        for(int i = 0; i < GameJournal.MAGIC.length; i++) {
+            if(data.length <= i || data[i] != GameJournal.MAGIC[i]) {
+                throw new IOException(name + " is not a game journal");
+            }
+        }
+        
+        int[] at = { GameJournal.MAGIC.length };
+        while(at[0] < data.length) {
+            int length = (int) readVarint(data, at);
+            int end = at[0] + length;
+            
+            // A record cut short by a crash ends the file
+            if(length <= 0 || end > data.length) {
+                System.out.println(name + ": truncated record at " + at[0]);
+                return;
+            }
+            
+            int type = data[at[0]++] & 0xFF;
+            int id = (int) readVarint(data, at);
+            Game game = running.get(id);
+            
+            if(type == GameJournal.START) {
+                long seed = readLong(data, at[0]);
+                long timestamp = readLong(data, at[0] + 8);
+                at[0] += 16;
+                int maxDice = data[at[0]++] & 0xFF;
+                int players = data[at[0]++] & 0xFF;
+                
+                String[] usernames = new String[players];
+                for(int p = 0; p < players; p++) {
+                    int size = (int) readVarint(data, at);
+                    usernames[p] = new String(data, at[0], size, StandardCharsets.UTF_8);
+                    at[0] += size;
+                }
+                
+                // Ids start over when the server restarts
+                game = new Game(id, seed, timestamp, maxDice, usernames);
+                running.put(id, game);
+                games.add(game);
+            } else if(game != null) {
+                switch(type) {
+                case GameJournal.ROLL:
+                case GameJournal.MOVE:
+                    game.add(type, data[at[0]] & 0xFF, data[at[0] + 1] & 0xFF, type == GameJournal.MOVE ? data[at[0] + 2] & 0xFF : 0);
+                    break;
+                case GameJournal.FORFEIT:
+                    game.add(type, data[at[0]] & 0xFF, 0, 0);
+                    break;
+                case GameJournal.CHAT:
+                    game.chat++;
+                    break;
+                case GameJournal.END:
+                    game.add(type, data[at[0]] & 0xFF, 0, 0);
+                    game.complete = true;
+                    running.remove(id);
+                    break;
+                default:
+                    break;
+                }
+            }
+            
+            at[0] = end;
+        }
+    }
+    
+    private static long readVarint(byte[] data, int[] at) {
+        long value = 0;
+        for(int shift = 0; shift < 64 && at[0] < data.length; shift += 7) {
+            int b = data[at[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return value;
+    }
+    
+    private static long readLong(byte[] data, int at) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[at + i] & 0xFF);
+        }
+        return value;
+    }
+    
+    /**
+     * Re-run a game through the rules
+     * @param game
+     * @param board Board state to play on, cleared first
+     * @return null if the game matches the journal, otherwise what went wrong
+     */
+    public static String replay(Game game, byte[] board) {
+        Arrays.fill(board, (byte) 0);
+        SplittableRandom dice = new SplittableRandom(game.seed);
+        
+        int players = game.usernames.length;
+        int turn = -1;
+        int forfeited = 0;
+        int roll = 0;
+        boolean waiting = false;
+        
+        for(int e = 0; e < game.size; e++) {
+            int event = game.events[e];
+            int type = event >>> 24;
+            int color = (event >>> 16) & 0xFF;
+            int b = (event >>> 8) & 0xFF;
+            int c = event & 0xFF;
+            
+            if(type != GameJournal.END && color >= players) {
+                return "event " + e + ": no player with color " + color;
+            }
+            
+            switch(type) {
+            case GameJournal.ROLL:
+                if(waiting) {
+                    return "event " + e + ": roll while " + PlayerColor.get(turn) + " still has to move";
+                }
+                
+                // Next player who has not forfeited
+                int next = -1;
+                for(int i = 0; i < players && next < 0; i++) {
+                    turn = (turn + 1) % players;
+                    if((forfeited & (1 << turn)) == 0) {
+                        next = turn;
+                    }
+                }
+                if(next != color) {
+                    return "event " + e + ": " + PlayerColor.get(color) + " rolled out of turn";
+                }
+                
+                roll = 1 + dice.nextInt(game.maxDice);
+                if(roll != b) {
+                    return "event " + e + ": rolled " + b + ", seed gives " + roll;
+                }
+                waiting = Rules.legalMoves(board, color, roll) != 0;
+                break;
+            
+            case GameJournal.MOVE:
+                if(!waiting || color != turn) {
+                    return "event " + e + ": " + PlayerColor.get(color) + " moved out of turn";
+                }
+                if(b >= Rules.PIECES || !Rules.isLegal(board, color, b, roll)) {
+                    return "event " + e + ": illegal move of piece " + b + " with " + roll;
+                }
+                
+                int position = Rules.apply(board, color, b, roll);
+                if(position != c) {
+                    return "event " + e + ": piece " + b + " landed on " + position + ", journal says " + c;
+                }
+                waiting = false;
+                break;
+            
+            case GameJournal.FORFEIT:
+                forfeited |= 1 << color;
+                if(color == turn) {
+                    waiting = false;
+                }
+                break;
+            
+            case GameJournal.END:
+                if(e != game.size - 1) {
+                    return "event " + e + ": events after the end";
+                }
+                
+                int left = players - Integer.bitCount(forfeited);
+                if(color == GameJournal.NO_WINNER) {
+                    if(left > 0) {
+                        return "ended without a winner with " + left + " players left";
+                    }
+                } else if(color >= players || !(Rules.hasWon(board, color) || (left == 1 && (forfeited & (1 << color)) == 0))) {
+                    return PlayerColor.get(Math.min(color, 3)) + " was named winner without winning";
+                }
+                break;
+            
+            default:
+                return "event " + e + ": unknown type " + type;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Replay a list of games on a fork/join pool
+     * @param games
+     * @param pool
+     * @return Result
+     */
+    public static Result replay(List<Game> games, ForkJoinPool pool) {
+        return pool.invoke(new Block(games, 0, games.size()));
+    }
+    
+    /**
+     * Replays a range of games, splitting it in half until a single block is left
+     * @author Petter
+     *
+     */
+    private static class Block extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+        
+        private List<Game> games;
+        private int from;
+        private int to;
+        
+        public Block(List<Game> games, int from, int to) {
+            this.games = games;
+            this.from = from;
+            this.to = to;
+        }
+        
+        protected Result compute() {
+            if(this.to - this.from > BLOCK) {
+                int middle = (this.from + this.to) >>> 1;
+                Block left = new Block(this.games, this.from, middle);
+                left.fork();
+                Result result = new Block(this.games, middle, this.to).compute();
+                result.add(left.join());
+                return result;
+            }
+            
+            Result result = new Result();
+            byte[] board = Rules.newBoard();
+            
+            for(int g = this.from; g < this.to; g++) {
+                Game game = this.games.get(g);
+                String error = replay(game, board);
+                
+                result.events += game.size + game.chat;
+                if(error != null) {
+                    result.mismatched++;
+                    if(result.errors.size() < MAX_REPORTED) {
+                        result.errors.add("Game " + game.id + " (seed " + game.seed + "): " + error);
+                    }
+                } else if(game.complete) {
+                    result.valid++;
+                } else {
+                    result.incomplete++;
+                }
+            }
+            
+            return result;
+        }
+    }
+    
+    /**
+     * A game read from the journal. Events are packed in ints as
+     * [type][color][piece or dice][position], chat is only counted.
+     * @author Petter
+     *
+     */
+    public static class Game {
+        private int id;
+        private long seed;
+        private long timestamp;
+        private int maxDice;
+        private String[] usernames;
+        private int[] events = new int[64];
+        private int size = 0;
+        private int chat = 0;
+        private boolean complete = false;
+        
+        public Game(int id, long seed, long timestamp, int maxDice, String[] usernames) {
+            this.id = id;
+            this.seed = seed;
+            this.timestamp = timestamp;
+            this.maxDice = Math.max(1, maxDice);
+            this.usernames = usernames;
+        }
+        
+        private void add(int type, int a, int b, int c) {
+            if(this.size == this.events.length) {
+                this.events = Arrays.copyOf(this.events, this.size * 2);
+            }
+            this.events[this.size++] = type << 24 | a << 16 | b << 8 | c;
+        }
+        
+        public int getId() {
+            return this.id;
+        }
+        
+        public long getSeed() {
+            return this.seed;
+        }
+        
+        /**
+         * When the game started, in milliseconds since epoch
+         * @return long
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+        
+        public String[] getUsernames() {
+            return this.usernames.clone();
+        }
+        
+        public boolean isComplete() {
+            return this.complete;
+        }
+    }
+    
+    /**
+     * Totals of a replay
+     * @author Petter
+     *
+     */
+    public static class Result {
+        private long valid;
+        private long mismatched;
+        private long incomplete;
+        private long events;
+        private List<String> errors = new ArrayList<String>();
+        
+        /**
+         * Add the totals of another result
+         * @param other
+         */
+        public void add(Result other) {
+            this.valid += other.valid;
+            this.mismatched += other.mismatched;
+            this.incomplete += other.incomplete;
+            this.events += other.events;
+            for(String error : other.errors) {
+                if(this.errors.size() < MAX_REPORTED) {
+                    this.errors.add(error);
+                }
+            }
+        }
+        
+        public long getValid() {
+            return this.valid;
+        }
+        
+        public long getMismatched() {
+            return this.mismatched;
+        }
+        
+        public long getIncomplete() {
+            return this.incomplete;
+        }
+        
+        public long getEvents() {
+            return this.events;
+        }
+        
+        public List<String> getErrors() {
+            return this.errors;
+        }
+    }
+    
+    /**
+     * Replay the game journal and print the results.
+     *
+     * Run arguments:
+     * --journal=DIR          Journal directory (default gamelog)
+     * --threads=N            Fork/join parallelism (default every core)
+     * --repeat=N             Replay every game N times, for benchmarking (default 1)
+     *
+     * @param args Run arguments
+     */
+    public static void main(String[] args) {
+        
+        String journal = "gamelog";
+        int threads = Runtime.getRuntime().availableProcessors();
+        int repeat = 1;
+        
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--journal=")) {
+                    journal = arg.substring("--journal=".length());
+                } else if(arg.startsWith("--threads=")) {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } else if(arg.startsWith("--repeat=")) {
+                    repeat = Math.max(1, Integer.parseInt(arg.substring("--repeat=".length())));
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        long start = System.nanoTime();
+        List<Game> games;
+        try {
+            games = load(new File(journal));
+        } catch (IOException e) {
+            System.out.println("Error reading game journal: " + e.getMessage());
+            return;
+        }
+        double loaded = (System.nanoTime() - start) / 1e9;
+        
+        System.out.printf("Loaded %d games from %s in %.2f s%n", games.size(), journal, loaded);
+        System.out.println("Replaying on " + threads + " threads...");
+        
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Result result = null;
+        
+        start = System.nanoTime();
+        for(int i = 0; i < repeat; i++) {
+            result = replay(games, pool);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        
+        pool.shutdown();
+        
+        long replayed = (long) games.size() * repeat;
+        System.out.printf("Replayed: %d games in %.2f s (%.0f games/s, %.0f events/s)%n", replayed, seconds, replayed / seconds, result.getEvents() * repeat / seconds);
+        System.out.printf("Valid: %d, mismatched: %d, incomplete: %d%n", result.getValid(), result.getMismatched(), result.getIncomplete());
+        for(String error : result.getErrors()) {
+            System.out.println(error);
+        }
+    }
+}
@@ -1,15 +1,28 @@
 package com.ludo.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ludo.config.Config;
+import com.ludo.game.BoardTopology;
+import com.ludo.game.PlayerColor;
+import com.ludo.game.Rules;
+import com.ludo.game.Strategies;
+import com.ludo.game.Strategy;
+import com.ludo.protocol.Message;
 
 /**
  * The game server runs in its own thread and handles all game
@@ -17,7 +30,7 @@ import com.ludo.config.Config;
  * @author Petter
  *
  */
-public class GameServer extends Thread {
+public class GameServer extends Thread implements Matchmaker.LobbyListener, PlayerConnection.Router {
     
     /**
      * Game server listener
@@ -29,48 +42,155 @@ public class GameServer extends Thread {
      */
     private Config config = new Config();
     
+    /**
+     * Runs the reader of every player connection
+     */
+    private ConnectionExecutor executor;
+    
+    /**
+     * Matches queued connections into games
+     */
+    private Matchmaker matchmaker;
+    
+    /**
+     * Shared threads running the events of every game
+     */
+    private ExecutorService gameThreads;
+    
+    /**
+     * Turn deadlines and reconnection windows of every game
+     */
+    private TimerWheel timers = new TimerWheel(100, TimeUnit.MILLISECONDS, 512, "game-timers");
+    
+    /**
+     * Players who have disconnected and may still come back, by username
+     */
+    private ConcurrentHashMap<String, Game.Player> reconnecting = new ConcurrentHashMap<String, Game.Player>();
+    
+    /**
+     * Makes the reconnect tokens of every seat
+     */
+    private SecureRandom tokens = new SecureRandom();
+    
+    /**
+     * Running games, by id, for spectators to find
+     */
+    private ConcurrentHashMap<Integer, Game> games = new ConcurrentHashMap<Integer, Game>();
+    
+    private AtomicInteger gameIds = new AtomicInteger();
+    
+    /**
+     * Shared threads sending game updates to spectators
+     */
+    private ExecutorService spectatorThreads;
+    
+    /**
+     * Seconds a player has to make a move, 0 to wait forever
+     */
+    private int turnTimeout;
+    
+    /**
+     * What happens when a turn times out
+     */
+    private TimeoutPolicy timeoutPolicy;
+    
+    /**
+     * Strategy for moves made on behalf of players
+     */
+    private Strategy autoMoveStrategy;
+    
+    /**
+     * Seconds a disconnected player has to come back before forfeiting
+     */
+    private int reconnectGrace;
+    
+    /**
+     * Offer clients the binary protocol
+     */
+    private boolean binaryProtocol;
+    
+    /**
+     * Max number of lines queued for a single player or spectator
+     */
+    private int queueSize;
+    
+    /**
+     * Records every game for replay
+     */
+    private GameJournal journal = GameJournal.getInstance();
+    
     /**
      * Game Server constructor
      */
     public GameServer() {
-        System.out.println("Game server running on port " + config.getConfig("gamePort"));
+        this(ConnectionExecutors.platform());
+    }
+    
+    /**
+     * Game server running its games and players on the given executor
+     * @param executor Connection executor
+     */
+    public GameServer(ConnectionExecutor executor) {
+        this.executor = executor;
+        this.gameThreads = Executors.newFixedThreadPool(this.config.getInt("gameThreads", Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+            
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "game-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.spectatorThreads = Executors.newFixedThreadPool(Math.max(1, this.config.getInt("spectatorThreads", 2)), new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+            
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "spectators-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.turnTimeout = this.config.getInt("turnTimeout", 30);
+        this.timeoutPolicy = TimeoutPolicy.parse(this.config.getConfig("turnTimeoutPolicy"));
+        this.reconnectGrace = this.config.getInt("reconnectGrace", 60);
+        this.binaryProtocol = this.config.getBoolean("binaryProtocol", true);
+        this.queueSize = this.config.getInt("gameQueueSize", 256);
+        
+        String strategy = this.config.getConfig("autoMoveStrategy");
+        this.autoMoveStrategy = strategy != null && Strategies.fromName(strategy) != null ? Strategies.fromName(strategy) : Strategies.SAFE;
+        
+        System.out.println("Game server (" + executor + ") running on port " + config.getConfig("gamePort"));
     }
     
     /**
-     * Run game server
+     * Run game server. Connections are accepted continuously, each one
+     * gets its own reader and is routed once the client has sent its
+     * username.
      */
     public void run() {
         
-        // Server socket
+        // Server socket, with room for bursts of connections
         try {
-            this.listener = new ServerSocket(Integer.parseInt(this.config.getConfig("gamePort")));
+            this.listener = new ServerSocket(Integer.parseInt(this.config.getConfig("gamePort")), this.config.getInt("gameBacklog", 512));
         } catch (IOException e) {
             e.printStackTrace();
         }
-       
+        
+        // Start matching players into games
+        this.matchmaker = new Matchmaker(this.config, this);
+        this.matchmaker.start();
+        
         // Listen for new connections
         try{
             while(true) {
-                Game game = new Game();
-                
-                System.out.println("Waiting for players...");
-                
-                // Wait for red user
-                game.addPlayer(game.new Player(listener.accept(), "red"));
-                
-                // Wait for blue user
-                game.addPlayer(game.new Player(listener.accept(), "blue"));
-                
-                // Wait for yellow user
-                game.addPlayer(game.new Player(listener.accept(), "yellow"));
-                
-                // Wait for green user
-                game.addPlayer(game.new Player(listener.accept(), "green"));
-                
-                game.broadcast("STARTGAME");
+                Socket socket = listener.accept();
                 
-                // Start game
-                game.start();
+                try {
+                    this.executor.execute("game-connection", new PlayerConnection(socket, this, this.binaryProtocol, this.executor, this.queueSize));
+                } catch (IOException e) {
+                    System.out.println("Error opening game connection: " + e);
+                    socket.close();
+                }
             }
         } catch (IOException e) {
             // TODO Auto-generated catch block
@@ -86,21 +206,235 @@ public class GameServer extends Thread {
     }
     
     /**
-     * Every game session runs in their own thread and has at least 4 users with 4 ludo pieces each.
+     * Send a connection back to its game if the player is reconnecting
+     * with the token of their seat, otherwise queue it for matchmaking.
+     * The username alone is not proof, anyone can send it.
+     * @param connection
+     */
+    public void route(PlayerConnection connection) {
+        Game.Player player = this.reconnecting.get(connection.getUsername());
+        
+        if(player != null && player.ownsToken(connection.getReconnectToken()) && this.reconnecting.remove(connection.getUsername(), player)) {
+            connection.setMatched();
+            player.reconnect(connection);
+            return;
+        }
+        
+        if(player != null) {
+            System.out.println("Not reconnecting " + connection.getUsername() + ", wrong reconnect token");
+        }
+        this.matchmaker.enqueue(connection);
+    }
+    
+    /**
+     * Make a reconnect token for a seat
+     * @return 128 random bits, as hex
+     */
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        this.tokens.nextBytes(bytes);
+        
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+    
+    /**
+     * Let a connection watch a running game
+     * @param connection
+     * @param gameId Game to watch, or -1 for the latest running game
+     */
+    public void spectate(PlayerConnection connection, int gameId) {
+        Game game = null;
+        
+        if(gameId >= 0) {
+            game = this.games.get(gameId);
+        } else {
+            for(Game running : this.games.values()) {
+                if(game == null || running.getId() > game.getId()) {
+                    game = running;
+                }
+            }
+        }
+        
+        if(game != null) {
+            game.addSpectator(connection);
+            return;
+        }
+        
+        // No such game
+        connection.send("GAMEOVER");
+        connection.close();
+    }
+    
+    /**
+     * Take a closed connection out of the matchmaking queue
+     * @param connection
+     */
+    public void closed(PlayerConnection connection) {
+        this.matchmaker.remove(connection);
+    }
+    
+    /**
+     * Start a game for a lobby formed by the matchmaker. Colors
+     * are given in turn order, by order of arrival.
+     * @param lobby Matched player connections
+     */
+    public void lobbyReady(List<PlayerConnection> lobby) {
+        Game game = new Game();
+        
+        for(int i = 0; i < lobby.size(); i++) {
+            game.addPlayer(game.new Player(lobby.get(i), PlayerColor.get(i)));
+        }
+        
+        // Start game
+        this.games.put(game.getId(), game);
+        game.start();
+    }
+    
+    /**
+     * What happens to a player who does not move in time
+     */
+    enum TimeoutPolicy {
+        
+        /**
+         * A move is made for the player
+         */
+        AUTO_MOVE,
+        
+        /**
+         * The player forfeits the game
+         */
+        FORFEIT;
+        
+        /**
+         * Parse a policy from config, e.g. "autoMove" or "forfeit"
+         * @param value Config value, may be null
+         * @return TimeoutPolicy, AUTO_MOVE by default
+         */
+        public static TimeoutPolicy parse(String value) {
+            if("forfeit".equalsIgnoreCase(value)) {
+                return FORFEIT;
+            }
+            
+            return AUTO_MOVE;
+        }
+    }
+    
+    /**
+     * Game states
+     */
+    enum State {
+        
+        /**
+         * The dice is about to be rolled for the next player
+         */
+        WAITING_FOR_ROLL,
+        
+        /**
+         * Waiting for the current player to send a move
+         */
+        WAITING_FOR_MOVE,
+        
+        /**
+         * The game is over
+         */
+        FINISHED
+    }
+    
+    /**
+     * Every game session is a state machine with at least 2 users with 4 ludo pieces each.
+     * A game has no thread of its own, it is advanced by events, a message from a player,
+     * a player leaving or coming back, or a timeout, which run one at a time on the
+     * shared game threads.
      * @author Petter
      *
      */
-    class Game extends Thread  {
+    class Game {
         
         /**
          * List of player objects for this gaming session
          */
         private List<Player> players = new ArrayList<Player>();
-        private UserHandler userHandler = new UserHandler();
+        
+        /**
+         * Runs the game's events in order
+         */
+        private SerialExecutor events = new SerialExecutor(gameThreads);
+        
+        private State state = State.WAITING_FOR_ROLL;
+        
+        /**
+         * Rolls the dice for the next player
+         */
+        private Runnable roll = new Runnable() {
+            public void run() {
+                nextTurn();
+            }
+        };
+        
+        /**
+         * Index of the player whose turn it is
+         */
+        private int turn = -1;
+        
+        /**
+         * Number of turns so far, to recognise timeouts of earlier turns
+         */
+        private long turns = 0;
+        
+        /**
+         * Deadline of the current turn
+         */
+        private TimerWheel.Timeout deadline;
+        
+        /**
+         * Random numbers for moves made on behalf of players
+         */
+        private SplittableRandom random = new SplittableRandom();
+        
+        /**
+         * Seed of the dice, journaled so the rolls can be replayed
+         */
+        private long seed = new SplittableRandom().nextLong();
+        
+        /**
+         * Rolls the dice, only from the seed
+         */
+        private SplittableRandom diceRandom = new SplittableRandom(this.seed);
+        
+        /**
+         * Highest dice roll
+         */
+        private int maxDice = Math.max(1, Math.min(BoardTopology.MAX_DICE, config.getInt("dice", 6)));
+        
+        /**
+         * Current dice roll
+         */
+        private int dice;
+        
+        /**
+         * Position of every piece, see Rules
+         */
+        private byte[] board = Rules.newBoard();
+        
+        private int id = gameIds.incrementAndGet();
+        
+        /**
+         * Version of the game state, which goes up with every turn, move and forfeit
+         */
+        private int version = 0;
+        
+        /**
+         * Sends the game's updates to its spectators
+         */
+        private SpectatorFeed spectators = new SpectatorFeed(spectatorThreads);
         
         public Game() {
             System.out.println("New Game");
-            
+        
         }
         
         /**
@@ -110,8 +444,6 @@ public class GameServer extends Thread {
         public void addPlayer(Player player) {
             System.out.println(player.getColor() + " has joined.");
             this.players.add(player);
-            
-            broadcast("NEWUSERINQUEUE");
         }
         
         /**
@@ -125,103 +457,442 @@ public class GameServer extends Thread {
             
             // For every player in session; send the message
             for(Player player : players) {
-                player.getOut().println(message + " " + player.getColor());
+                player.send(message + " " + player.getColor());
             }
+            
+            // Once, however many spectators there are
+            this.spectators.publish(message);
         }
         
         /**
-         * Start the game
+         * The whole state of the game, for a client joining it or coming back:
+         * SNAPSHOT <version> <players> <color> <dice> <forfeited> <position of each piece, by color>
+         * @return String
          */
-        public void run() {
+        private String snapshot() {
+            StringBuilder snapshot = new StringBuilder("SNAPSHOT ");
             
-            String line = null;
-            String[] args;
-            int dice;
-            boolean noWinner = true;
+            int forfeited = 0;
+            for(int i = 0; i < players.size(); i++) {
+                if(players.get(i).hasForfeited()) {
+                    forfeited |= 1 << i;
+                }
+            }
             
-            while(noWinner) {
-                
-                // Cycle players for their turn.
-                for (Player player : players) {
-                    
-                    // Roll dice
-                    dice = 1 + (int)(Math.random() * Integer.parseInt(config.getConfig("dice")));
-                    System.out.println("Dice: " + dice);
-                    
-                    // Broadcast that it's player's turn and 
-                    broadcast("TURN " + player.getColor() + " " + dice);
-                    
-                    // Check if player has any possible moves
-                    if(!player.canMoveAny(dice)) {
-                        continue;
+            snapshot.append(this.version).append(' ').append(players.size()).append(' ')
+                .append(players.get(Math.max(0, this.turn)).getColor()).append(' ')
+                .append(this.dice).append(' ').append(forfeited);
+            
+            for(int color = 0; color < Rules.BOARD_SIZE / Rules.PIECES; color++) {
+                for(int piece = 0; piece < Rules.PIECES; piece++) {
+                    snapshot.append(' ').append(Rules.position(this.board, color, piece));
+                }
+            }
+            
+            return snapshot.toString();
+        }
+        
+        /**
+         * Let a connection watch the game. It gets a snapshot, then every update.
+         * @param connection
+         */
+        public void addSpectator(final PlayerConnection connection) {
+            this.events.execute(new Runnable() {
+                public void run() {
+                    if(state == State.FINISHED) {
+                        connection.send("GAMEOVER");
+                        connection.close();
+                        return;
                     }
                     
-                    // Listen for a move request from client
-                    while(true) {
-                        try {
-                            // Read input from client
-                            line = player.getIn().readLine();
-                        } catch (IOException e) {
-                            System.out.println("Lost connection with clients");
-                            break;
+                    connection.attach(new PlayerConnection.Listener() {
+                        public void messageReceived(PlayerConnection connection, Message message) {
+                            // Spectators only watch
                         }
                         
-                        // Continue if no request
-                        if(line == null) {
-                            continue;
-                        }
-                        
-                        // Move request: MOVE <piece_id (1-4)> <color>
-                        if(line.startsWith("MOVE")) {
-                            args = line.split(" ");
-                            
-                            // Get piece ID and correct it for Player object
-                            int pieceId = Integer.parseInt(args[1]) - 1;
-                            
-                            // Continue (ignore) if trying to move another color
-                            if(!args[2].equals(player.getColor())) {
-                                continue;
-                            }
-                            
-                            // Move piece if allowed
-                            if(player.movePieceIfAllowed(pieceId, dice)) {
-                                
-                                // Broadcast move to everyone and continue to next user
-                                broadcast("MOVE " + pieceId + " " + player.getPiecePosition(pieceId));
-                                break;
-                            } else {
-                                // Cannot move piece
-                                player.getOut().println("MOVEDENIED");
-                            }
+                        public void disconnected(PlayerConnection connection) {
+                            spectators.remove(connection);
                         }
+                    });
+                    spectators.add(connection, snapshot());
+                }
+            });
+        }
+        
+        /**
+         * Get the game id
+         * @return int
+         */
+        public int getId() {
+            return this.id;
+        }
+        
+        /**
+         * Start the game, and start listening to the players
+         */
+        public void start() {
+            this.events.execute(new Runnable() {
+                public void run() {
+                    String[] usernames = new String[players.size()];
+                    for(int i = 0; i < usernames.length; i++) {
+                        usernames[i] = players.get(i).getUsername();
                     }
+                    journal.start(id, seed, maxDice, usernames);
                     
-                    // Check if user has won
-                    if(player.hasWon()) {
-                        
-                        // Broadcast win
-                        broadcast("WIN " + player.getColor());
-                        
-                        // Winner is found
-                        noWinner = false;
-                        
-                        // Update winner table
-                        this.userHandler.userWon(player.getUsername());
-                        
-                        // Update every player's table
-                        for (Player selectedPlayer : players) {
-                            this.userHandler.userPlayed(selectedPlayer.getUsername());
-                        }
-                        
-                        // Break from for loop
-                        break;
-                    } else {
-                        broadcast("NOWIN");
+                    // Every player gets the token to take their seat back with
+                    for(Player player : players) {
+                        player.send("STARTGAME " + player.getColor() + " " + player.getToken());
                     }
-                    
+                    spectators.publish("STARTGAME");
+                    nextTurn();
+                }
+            });
+            
+            for(Player player : players) {
+                player.attach();
+            }
+        }
+        
+        /**
+         * Roll the dice for the next player. If the player cannot move with
+         * the roll, the next roll is queued as a new event, so other games
+         * get their turn on the game threads in between.
+         */
+        private void nextTurn() {
+            
+            if(this.state == State.FINISHED) {
+                return;
+            }
+            
+            // Cycle players for their turn, skipping players who have forfeited
+            Player player = null;
+            for(int i = 0; i < players.size() && player == null; i++) {
+                this.turn = (this.turn + 1) % players.size();
+                if(!players.get(this.turn).hasForfeited()) {
+                    player = players.get(this.turn);
                 }
             }
             
+            // Everyone has left
+            if(player == null) {
+                journal.end(this.id, GameJournal.NO_WINNER);
+                finish();
+                return;
+            }
+            
+            this.turns++;
+            
+            // Roll dice
+            this.dice = 1 + this.diceRandom.nextInt(this.maxDice);
+            System.out.println("Dice: " + this.dice);
+            journal.roll(this.id, player.getPlayerColor().ordinal(), this.dice);
+            
+            // Broadcast that it's player's turn and 
+            this.version++;
+            broadcast("TURN " + player.getColor() + " " + this.dice + " " + this.version);
+            
+            // Wait for a move request if the player has any possible moves
+            if(player.canMoveAny(this.dice)) {
+                this.state = State.WAITING_FOR_MOVE;
+                startDeadline();
+                return;
+            }
+            
+            this.state = State.WAITING_FOR_ROLL;
+            this.events.execute(this.roll);
+        }
+        
+        /**
+         * Start the deadline of the current turn
+         */
+        private void startDeadline() {
+            if(turnTimeout <= 0) {
+                return;
+            }
+            
+            final long turn = this.turns;
+            this.deadline = timers.schedule(new Runnable() {
+                public void run() {
+                    events.execute(new Runnable() {
+                        public void run() {
+                            turnExpired(turn);
+                        }
+                    });
+                }
+            }, turnTimeout, TimeUnit.SECONDS);
+        }
+        
+        /**
+         * Stop the deadline of the current turn
+         */
+        private void stopDeadline() {
+            if(this.deadline != null) {
+                this.deadline.cancel();
+                this.deadline = null;
+            }
+        }
+        
+        /**
+         * Handle a turn running out of time. Depending on the timeout policy
+         * a move is made for the player, or the player forfeits.
+         * @param turn Turn the deadline was set for
+         */
+        private void turnExpired(long turn) {
+            
+            // The player moved in time
+            if(this.state != State.WAITING_FOR_MOVE || turn != this.turns) {
+                return;
+            }
+            
+            Player player = players.get(this.turn);
+            System.out.println(player.getColor() + " ran out of time.");
+            ServerMetrics.turnTimeouts.incrementAndGet();
+            this.deadline = null;
+            
+            if(timeoutPolicy == TimeoutPolicy.FORFEIT) {
+                forfeit(player);
+                return;
+            }
+            
+            int moves = Rules.legalMoves(board, player.getPlayerColor().ordinal(), this.dice);
+            int pieceId = autoMoveStrategy.choose(board, player.getPlayerColor().ordinal(), this.dice, moves, this.random);
+            
+            ServerMetrics.autoMoves.incrementAndGet();
+            move(player, pieceId);
+        }
+        
+        /**
+         * Handle a message from a player
+         * @param player
+         * @param message
+         */
+        private void messageReceived(Player player, Message message) {
+            switch(message.getType()) {
+            
+            // Chat messages: MESSAGE <text>
+            case MESSAGE:
+                journal.chat(this.id, player.getPlayerColor().ordinal(), message.getText(0));
+                broadcast("MESSAGE " + player.getColor() + " " + message.getText(0));
+                break;
+            
+            // Move request: MOVE <piece_id (1-4)> <color>
+            case MOVE:
+                moveRequested(player, message);
+                break;
+            
+            default:
+                break;
+            }
+        }
+        
+        /**
+         * Handle a move request, ignoring moves out of turn or for another color
+         * @param player
+         * @param message MOVE <piece_id (1-4)> <color>
+         */
+        private void moveRequested(Player player, Message message) {
+            if(this.state != State.WAITING_FOR_MOVE || player != players.get(this.turn)) {
+                return;
+            }
+            
+            if(PlayerColor.fromName(message.get(1)) != player.getPlayerColor()) {
+                return;
+            }
+            
+            // Get piece ID and correct it for Player object
+            int pieceId = message.getInt(0, 0) - 1;
+            
+            // Move piece if allowed
+            if(pieceId < 0 || pieceId >= Rules.PIECES || !Rules.isLegal(board, player.getPlayerColor().ordinal(), pieceId, this.dice)) {
+                // Cannot move piece
+                player.send("MOVEDENIED");
+                return;
+            }
+            
+            move(player, pieceId);
+        }
+        
+        /**
+         * Make a legal move for the current player and pass the turn on
+         * @param player
+         * @param pieceId Piece ID (0-3)
+         */
+        private void move(Player player, int pieceId) {
+            stopDeadline();
+            player.movePieceIfAllowed(pieceId, this.dice);
+            journal.move(this.id, player.getPlayerColor().ordinal(), pieceId, player.getPiecePosition(pieceId));
+            
+            // Broadcast move to everyone
+            this.version++;
+            broadcast("MOVE " + pieceId + " " + player.getPiecePosition(pieceId) + " " + player.getColor() + " " + this.version);
+            
+            // Check if user has won
+            if(player.hasWon()) {
+                win(player);
+                return;
+            }
+            
+            broadcast("NOWIN");
+            
+            // Continue to next user
+            this.state = State.WAITING_FOR_ROLL;
+            nextTurn();
+        }
+        
+        /**
+         * End the game with a winner
+         * @param player
+         */
+        private void win(Player player) {
+            
+            // Broadcast win
+            broadcast("WIN " + player.getColor());
+            journal.end(this.id, player.getPlayerColor().ordinal());
+            
+            // Update winner table
+            StatsSink.getInstance().userWon(player.getUsername());
+            
+            // Update every player's table
+            for (Player selectedPlayer : players) {
+                StatsSink.getInstance().userPlayed(selectedPlayer.getUsername());
+            }
+            
+            finish();
+        }
+        
+        /**
+         * End the game, stopping its timers
+         */
+        private void finish() {
+            this.state = State.FINISHED;
+            stopDeadline();
+            games.remove(this.id, this);
+            this.spectators.close();
+            
+            for(Player player : players) {
+                player.stopGrace();
+                reconnecting.remove(player.getUsername(), player);
+            }
+        }
+        
+        /**
+         * A player forfeits the game. If it was their turn, the turn passes on.
+         * @param player
+         */
+        private void forfeit(Player player) {
+            if(player.hasForfeited()) {
+                return;
+            }
+            
+            System.out.println(player.getColor() + " has forfeited.");
+            ServerMetrics.forfeits.incrementAndGet();
+            player.setForfeited();
+            journal.forfeit(this.id, player.getPlayerColor().ordinal());
+            this.version++;
+            broadcast("FORFEIT " + player.getColor() + " " + this.version);
+            
+            // The last player left wins
+            Player last = null;
+            int remaining = 0;
+            for(Player other : players) {
+                if(!other.hasForfeited()) {
+                    last = other;
+                    remaining++;
+                }
+            }
+            if(remaining == 1 && players.size() > 1) {
+                win(last);
+                return;
+            }
+            
+            if(this.state == State.WAITING_FOR_MOVE && player == players.get(this.turn)) {
+                stopDeadline();
+                this.state = State.WAITING_FOR_ROLL;
+                nextTurn();
+            }
+        }
+        
+        /**
+         * Handle a player's connection closing. The player keeps their
+         * seat, and their turns time out as usual, until the reconnection
+         * grace window runs out.
+         * @param player
+         * @param connection The connection that closed
+         */
+        private void playerLeft(final Player player, final PlayerConnection connection) {
+            
+            // An old connection, or the game is already over
+            if(connection != player.getConnection() || player.hasForfeited() || this.state == State.FINISHED) {
+                return;
+            }
+            
+            System.out.println(player.getColor() + " has left.");
+            
+            if(reconnectGrace <= 0 || player.getUsername() == null) {
+                forfeit(player);
+                return;
+            }
+            
+            reconnecting.put(player.getUsername(), player);
+            player.startGrace(timers.schedule(new Runnable() {
+                public void run() {
+                    events.execute(new Runnable() {
+                        public void run() {
+                            graceExpired(player, connection);
+                        }
+                    });
+                }
+            }, reconnectGrace, TimeUnit.SECONDS));
+        }
+        
+        /**
+         * Forfeit a player who did not come back in time
+         * @param player
+         * @param connection The connection that closed
+         */
+        private void graceExpired(Player player, PlayerConnection connection) {
+            if(connection != player.getConnection()) {
+                return;
+            }
+            
+            reconnecting.remove(player.getUsername(), player);
+            forfeit(player);
+        }
+        
+        /**
+         * Seat a returning player on their new connection
+         * @param player
+         * @param connection
+         */
+        private void playerReturned(Player player, PlayerConnection connection) {
+            
+            // Too late
+            if(player.hasForfeited() || this.state == State.FINISHED) {
+                connection.send("GAMEOVER");
+                connection.close();
+                return;
+            }
+            
+            System.out.println(player.getColor() + " has reconnected.");
+            ServerMetrics.reconnects.incrementAndGet();
+            player.stopGrace();
+            player.setConnection(connection);
+            connection.attach(player);
+            
+            // Bring the client back into the game
+            connection.send("STARTGAME " + player.getColor() + " " + player.getToken());
+            connection.send(snapshot());
+            if(this.state == State.WAITING_FOR_MOVE && player == players.get(this.turn)) {
+                connection.send("TURN " + player.getColor() + " " + this.dice + " " + this.version + " " + player.getColor());
+            }
+        }
+        
+        /**
+         * Get the game state
+         * @return State
+         */
+        public State getState() {
+            return this.state;
         }
         
         /**
@@ -229,52 +900,36 @@ public class GameServer extends Thread {
          * @author Petter
          *
          */
-        class Player extends Thread {
-            private Piece[] pieces = new Piece[4];
-            private String color;
-            private Socket socket;
-            private PrintWriter out;
-            private BufferedReader in;
-            private String username = null;
+        class Player implements PlayerConnection.Listener {
+            private PlayerColor color;
+            private volatile PlayerConnection connection;
+            private boolean forfeited = false;
+            
+            /**
+             * Proves a reconnecting client is this player
+             */
+            private String token = newToken();
             
             /**
-             * Create a player with a connection socket and color
-             * @param socket
+             * Reconnection window, while disconnected
+             */
+            private TimerWheel.Timeout grace;
+            
+            /**
+             * Create a player on a matched connection with a color
+             * @param connection
              * @param color
              */
-            public Player(Socket socket, String color) {
+            public Player(PlayerConnection connection, PlayerColor color) {
                 
                 System.out.println("New player: " + color);
                 
-                // Pieces
-                pieces[0] = new Piece();
-                pieces[1] = new Piece();
-                pieces[2] = new Piece();
-                pieces[3] = new Piece();
-                
                 // Color
                 this.color = color;
                 
-                // Socket
-                this.socket = socket;
-                
-                // Output
-                try {
-                    this.out = new PrintWriter(this.socket.getOutputStream(), true);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                
-                // Input
-                try {
-                    this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                
-                // Start player thread
-                this.start();
-                
+                // Connection
+                this.connection = connection;
+            
             }
             
             /**
@@ -283,24 +938,15 @@ public class GameServer extends Thread {
              * @return
              */
             public int getPiecePosition(int pieceId) {
-                return pieces[pieceId].getPosition();
+                return Rules.position(board, this.color.ordinal(), pieceId);
             }
-
+            
             /**
              * Check if a player has won, based on their pieces
              * @return
              */
             public boolean hasWon() {
-                
-                // Check if any piece is done.
-                for(Piece piece : pieces) {
-                    if(!piece.isDone()) {
-                        return false;
-                    }
-                }
-                
-                // All pieces are done, player has won!
-                return true;
+                return Rules.hasWon(board, this.color.ordinal());
             }
             
             /**
@@ -309,18 +955,9 @@ public class GameServer extends Thread {
              * @return if the user can move any pieces or not
              */
             public boolean canMoveAny(int dice) {
-                for(Piece piece : pieces) {
-                    if(!piece.validMovie(dice)) {
-                        
-                        // Cannot move any
-                        return false;
-                    }
-                }
-                
-                // Can move any
-                return true;
+                return Rules.legalMoves(board, this.color.ordinal(), dice) != 0;
             }
-
+            
             /**
              * Attempt to move piece if allowed, according to the game rules.
              * @param pieceId Piece ID (0-3)
@@ -328,186 +965,156 @@ public class GameServer extends Thread {
              * @return boolean if the piece has moved
              */
             public boolean movePieceIfAllowed(int pieceId, int steps) {
-                return this.pieces[pieceId].move(steps);
+                return Rules.apply(board, this.color.ordinal(), pieceId, steps) >= 0;
             }
-
+            
             /**
              * Return player socket
              * @return socket
              */
             public Socket getSocket() {
-                return this.socket;
+                return this.connection.getSocket();
             }
             
             /**
-             * Return player output writer
-             * @return
+             * Send a line to the player
+             * @param line
              */
-            public PrintWriter getOut() {
-                return this.out;
+            public void send(String line) {
+                this.connection.send(line);
             }
             
             /**
-             * Return player input reader
-             * @return BufferedReader input from client
+             * Start passing lines from the player's connection to the game
              */
-            public BufferedReader getIn() {
-                return this.in;
+            public void attach() {
+                this.connection.attach(this);
             }
             
             /**
-             * Get player color
+             * Queue a message from the client as a game event
              */
-            public String getColor() {
-                return this.color;
+            public void messageReceived(final PlayerConnection connection, final Message message) {
+                events.execute(new Runnable() {
+                    public void run() {
+                        if(connection == Player.this.connection) {
+                            Game.this.messageReceived(Player.this, message);
+                        }
+                    }
+                });
             }
             
             /**
-             * Get the player's username
-             * @return username
+             * Queue the player leaving as a game event
              */
-            public String getUsername() {
-                return this.username;
+            public void disconnected(final PlayerConnection connection) {
+                events.execute(new Runnable() {
+                    public void run() {
+                        playerLeft(Player.this, connection);
+                    }
+                });
             }
             
             /**
-             * For the game server to be able to update user tables
-             * in the database to increase the winner's score and the
-             * player's total played games, it has to request the client's
-             * username. This will be done in the player's thread.
+             * Queue the player coming back on a new connection as a game event
+             * @param connection
              */
-            public void run() {
-                
-                String line = null;
-                String[] args;
-                out.println("USERNAMEREQUEST");
-                
-                // Wait for client to return username
-                while(true) {
-                    
-                    try {
-                        line = in.readLine();
-                    } catch (IOException e) {
-                        break;
-                    }
-                    
-                    // If no input
-                    if(line == null) {
-                        continue;
-                    }
-                    
-                    // If client sends username: USERNAME <username>
-                    if(line.startsWith("USERNAME")) {
-                        args = line.split(" ");
-                        
-                        this.username = args[1];
-                        break;
-                    }
-                    
-                    // Chat messages
-                    if(line.startsWith("MESSAGE")) {
-                        broadcast("MESSAGE " + this.color + " " + line.substring("MESSAGE ".length()));
+            public void reconnect(final PlayerConnection connection) {
+                events.execute(new Runnable() {
+                    public void run() {
+                        playerReturned(Player.this, connection);
                     }
-                    
-                    
-                }
-                
+                });
             }
-        }
-        
-        /**
-         * A Ludo Piece
-         * @author Petter
-         *
-         */
-        class Piece {
-            private int position;
             
             /**
-             * Default ludo peice position is 0 (home)
+             * Get the player's reconnect token
+             * @return String
              */
-            public Piece() {
-                System.out.println("Piece created");
-                this.position = 0;
+            public String getToken() {
+                return this.token;
             }
             
             /**
-             * Check if piece can move to according to dice,
-             * if so, move the piece back. The result of this
-             * function does not affect the piece's position
-             * @param dice
-             * @return
+             * Check a reconnect token, in constant time
+             * @param token Token sent by the client, may be null
+             * @return boolean
              */
-            public boolean validMovie(int dice) {
-                
-                // Try moving
-                if(this.move(dice)) {
-                    
-                    // Return valid, but first revert move
-                    setPosition(position - dice);
-                    return true;
-                }
-                
-                // Can't move
-                return false;
-                
+            public boolean ownsToken(String token) {
+                return token != null && MessageDigest.isEqual(this.token.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII));
             }
-
+            
             /**
-             * Move piece a specified amount of steps from its current location
-             * @param steps
-             * @return boolean if the piece can move or not
+             * Get the player's current connection
+             * @return PlayerConnection
              */
-            public boolean move(int steps) {
-                int targetPos = this.position += steps;
-                
-                // If the user is trying to move the piece past the end.
-                if(targetPos > Integer.parseInt(config.getConfig("mapLength"))) {
-                    return false;
-                }
-                
-                // If piece is in home, a 6 is required to move out
-                else if(isHome() && steps != 6) {
-                    return false;
-                }
-                
-                // Valid move
-                else {
-                    setPosition(targetPos);
-                    return true;
+            public PlayerConnection getConnection() {
+                return this.connection;
+            }
+            
+            /**
+             * Move the player to a new connection
+             * @param connection
+             */
+            public void setConnection(PlayerConnection connection) {
+                this.connection = connection;
+            }
+            
+            /**
+             * Start the reconnection window
+             * @param grace
+             */
+            public void startGrace(TimerWheel.Timeout grace) {
+                stopGrace();
+                this.grace = grace;
+            }
+            
+            /**
+             * Stop the reconnection window
+             */
+            public void stopGrace() {
+                if(this.grace != null) {
+                    this.grace.cancel();
+                    this.grace = null;
                 }
             }
             
             /**
-             * Set a position for this piece
-             * @param position
+             * Check if the player has forfeited the game
+             * @return boolean
              */
-            private void setPosition(int position) {
-                this.position = position;
+            public boolean hasForfeited() {
+                return this.forfeited;
             }
             
             /**
-             * Get position for this piece
-             * @return
+             * Take the player out of the game
              */
-            public int getPosition() {
-                return this.position;
+            public void setForfeited() {
+                this.forfeited = true;
             }
             
             /**
-             * Check if ludo piece is still in home
-             * @return
+             * Get player color, as named in the protocol
              */
-            public boolean isHome() {
-                return this.position == 0;
+            public String getColor() {
+                return this.color.getName();
             }
             
             /**
-             * Check if ludo piece has received the goal.
-             * @return
+             * Get player color
+             * @return PlayerColor
+             */
+            public PlayerColor getPlayerColor() {
+                return this.color;
+            }
+            
+            /**
+             * Get the player's username
+             * @return username
              */
-            public boolean isDone() {
-                return this.position == Integer.parseInt(config.getConfig("mapLength"));
+            public String getUsername() {
+                return this.connection.getUsername();
             }
         }
     }
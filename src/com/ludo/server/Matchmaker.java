@@ -0,0 +1,184 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.ludo.config.Config;
+
+/**
+ * The matchmaker assembles lobbies from the connections waiting in the
+ * matchmaking queue and hands them to a listener to start a game.
+ *
+ * A lobby starts as soon as it has maxPlayers players, or when it has at
+ * least minPlayers players and its first player has waited lobbyTimeout
+ * seconds. Connections that disconnect while waiting are dropped from the
+ * queue and the lobby. The matcher only moves connections between queues,
+ * so lobbies form as fast as players arrive and every game runs on its own.
+ * @author Petter
+ *
+ */
+public class Matchmaker extends Thread {
+    
+    /**
+     * Receives lobbies that are ready to play
+     * @author Petter
+     *
+     */
+    public interface LobbyListener {
+        
+        /**
+         * Start a game with the players of a lobby, in order of arrival
+         * @param lobby
+         */
+        void lobbyReady(List<PlayerConnection> lobby);
+    }
+    
+    /**
+     * Connections waiting for a lobby
+     */
+    private LinkedBlockingQueue<PlayerConnection> queue = new LinkedBlockingQueue<PlayerConnection>();
+    
+    /**
+     * Lobby currently being filled. Only used by the matcher thread.
+     */
+    private List<PlayerConnection> lobby = new ArrayList<PlayerConnection>();
+    
+    private LobbyListener listener;
+    
+    private int minPlayers = 2;
+    private int maxPlayers = 4;
+    
+    /**
+     * Time before a lobby starts with fewer than maxPlayers players, in nanoseconds
+     */
+    private long lobbyTimeout = TimeUnit.SECONDS.toNanos(30);
+    
+    /**
+     * Create a matchmaker with settings from config
+     * @param config
+     * @param listener Receives lobbies that are ready
+     */
+    public Matchmaker(Config config, LobbyListener listener) {
+        super("matchmaker");
+        setDaemon(true);
+        
+        this.listener = listener;
+        this.maxPlayers = Math.max(1, Math.min(4, config.getInt("maxPlayers", this.maxPlayers)));
+        this.minPlayers = Math.max(1, Math.min(this.maxPlayers, config.getInt("minPlayers", this.minPlayers)));
+        this.lobbyTimeout = TimeUnit.SECONDS.toNanos(config.getLong("lobbyTimeout", 30));
+    }
+    
+    /**
+     * Place a connection in the matchmaking queue
+     * @param connection
+     */
+    public void enqueue(PlayerConnection connection) {
+        connection.setQueuedAt(System.nanoTime());
+        this.queue.add(connection);
+    }
+    
+    /**
+     * Remove a disconnected connection from the queue. If it has already
+     * been moved to the lobby, the matcher drops it from there.
+     * @param connection
+     */
+    public void remove(PlayerConnection connection) {
+        this.queue.remove(connection);
+    }
+    
+    /**
+     * Number of connections waiting for a game
+     * @return int
+     */
+    public int waiting() {
+        return this.queue.size();
+    }
+    
+    /**
+     * Match queued connections into lobbies
+     */
+    public void run() {
+        while(true) {
+            
+            // Wait for a player, but wake up regularly to check the lobby timeout
+            PlayerConnection next;
+            try {
+                next = this.queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            
+            if(next != null) {
+                join(next);
+            }
+            
+            // Fill the lobby from the queue without waiting
+            while(this.lobby.size() < this.maxPlayers && (next = this.queue.poll()) != null) {
+                join(next);
+            }
+            
+            // Drop players who left while in the lobby
+            Iterator<PlayerConnection> it = this.lobby.iterator();
+            while(it.hasNext()) {
+                if(it.next().isDisconnected()) {
+                    it.remove();
+                }
+            }
+            
+            if(this.lobby.size() >= this.maxPlayers) {
+                startLobby();
+            } else if(this.lobby.size() >= this.minPlayers && System.nanoTime() - this.lobby.get(0).getQueuedAt() >= this.lobbyTimeout) {
+                startLobby();
+            }
+        }
+    }
+    
+    /**
+     * Move a connection into the lobby and tell everyone in it
+     * @param connection
+     */
+    private void join(PlayerConnection connection) {
+        if(connection.isDisconnected()) {
+            return;
+        }
+        
+        this.lobby.add(connection);
+        for(PlayerConnection player : this.lobby) {
+            player.send("NEWUSERINQUEUE");
+        }
+        
+        // Start a full lobby before taking the next player
+        if(this.lobby.size() >= this.maxPlayers) {
+            startLobby();
+        }
+    }
+    
+    /**
+     * Hand the lobby to the listener and start a new one
+     */
+    private void startLobby() {
+        long now = System.nanoTime();
+        
+        for(PlayerConnection player : this.lobby) {
+            ServerMetrics.queueWait.record(TimeUnit.NANOSECONDS.toMillis(now - player.getQueuedAt()));
+            player.setMatched();
+        }
+        ServerMetrics.gamesFormed.incrementAndGet();
+        
+        List<PlayerConnection> players = this.lobby;
+        this.lobby = new ArrayList<PlayerConnection>();
+        
+        try {
+            this.listener.lobbyReady(players);
+        } catch (RuntimeException e) {
+            System.out.println("Error starting game: " + e);
+        }
+    }
+
+}
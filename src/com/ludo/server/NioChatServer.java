@@ -0,0 +1,550 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ludo.config.Config;
+import com.ludo.server.ChatHistory.ChatRecord;
+
+/**
+ * Non-blocking chat server. Instead of starting one thread per client,
+ * every chat connection is multiplexed over a small, fixed set of
+ * selector threads (event loops). It speaks the exact same line based
+ * protocol as ChatServer (LOGIN, REGISTER, MESSAGE and LOGOUT), and is
+ * enabled with chatMode=nio in config.ini.
+ * @author Petter
+ *
+ */
+public class NioChatServer extends Thread {
+    
+    /**
+     * Longest line a client may send before being disconnected
+     */
+    private static final int MAX_LINE_LENGTH = 8192;
+    
+    /**
+     * Configurations
+     */
+    private static Config config = new Config();
+    
+    /**
+     * Chat server port
+     */
+    private static int port;
+    
+    /**
+     * Online users and their sessions, used for login checks and broadcasting
+     */
+    private static SessionRegistry sessions = new SessionRegistry();
+    
+    /**
+     * Server socket channel
+     */
+    private ServerSocketChannel listener;
+    
+    /**
+     * Selector threads sharing the connections between them
+     */
+    private EventLoop[] loops;
+    
+    /**
+     * Worker threads for database lookups, so that slow logins
+     * never stall an event loop.
+     */
+    private ExecutorService workers;
+    
+    /**
+     * User handler shared by the worker threads
+     */
+    private UserHandler userHandler = new UserHandler();
+    
+    /**
+     * Max number of lines queued for a single client
+     */
+    private int queueSize = 256;
+    
+    /**
+     * What to do when a client's queue is full
+     */
+    private OutboundQueue.OverflowPolicy overflowPolicy;
+    
+    /**
+     * Number of recent messages sent to users when they log in
+     */
+    private int backlog = 20;
+    
+    /**
+     * The NIO chat server constructor sets up the event loops and
+     * workers which will handle every chat connection.
+     * @throws Exception
+     */
+    public NioChatServer() throws Exception {
+        
+        // Set port
+        port = Integer.parseInt(config.getConfig("chatPort"));
+        
+        // Number of selector threads, defaults to one per core
+        int threads = Runtime.getRuntime().availableProcessors();
+        threads = config.getInt("chatIoThreads", threads);
+        
+        // Create event loops
+        this.loops = new EventLoop[threads];
+        for(int i = 0; i < threads; i++) {
+            this.loops[i] = new EventLoop(i);
+        }
+        
+        this.workers = Executors.newFixedThreadPool(threads);
+        
+        // Outbound queue settings
+        this.queueSize = config.getInt("chatQueueSize", this.queueSize);
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.parse(config.getConfig("chatOverflowPolicy"));
+        
+        // Chat backlog
+        this.backlog = config.getInt("chatBacklog", this.backlog);
+        
+        System.out.println("Chat server (nio, " + threads + " I/O threads) running on port " + port);
+    }
+    
+    /**
+     * Accept new connections and hand them out to the event loops round-robin.
+     */
+    public void run() {
+        
+        // Start event loops
+        for(EventLoop loop : this.loops) {
+            loop.start();
+        }
+        
+        // Open server socket channel for specified port.
+        try {
+            this.listener = ServerSocketChannel.open();
+            this.listener.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        
+        // On new connections, register them with the next event loop.
+        try {
+            int next = 0;
+            while(true) {
+                SocketChannel channel = this.listener.accept();
+                this.loops[next].register(channel);
+                next = (next + 1) % this.loops.length;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                this.listener.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * An event loop owns a selector and every connection registered with it.
+     * Other threads only talk to the loop through its queues.
+     * @author Petter
+     *
+     */
+    private class EventLoop extends Thread {
+        
+        /**
+         * Selector for this loop's connections
+         */
+        private Selector selector;
+        
+        /**
+         * Newly accepted channels waiting to be registered
+         */
+        private ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        
+        /**
+         * Connections with pending output
+         */
+        private ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+        
+        /**
+         * Connections closed by other threads, waiting for the loop to cancel their keys
+         */
+        private ConcurrentLinkedQueue<Connection> pendingCloses = new ConcurrentLinkedQueue<Connection>();
+        
+        /**
+         * Create an event loop
+         * @param id Loop number, used for the thread name
+         * @throws IOException
+         */
+        public EventLoop(int id) throws IOException {
+            super("chat-io-" + id);
+            this.selector = Selector.open();
+        }
+        
+        /**
+         * Hand a newly accepted channel to this loop
+         * @param channel
+         */
+        public void register(SocketChannel channel) {
+            this.newChannels.add(channel);
+            this.selector.wakeup();
+        }
+        
+        /**
+         * Ask the loop to flush a connection's outbound queue
+         * @param connection
+         */
+        public void wantWrite(Connection connection) {
+            this.pendingWrites.add(connection);
+            this.selector.wakeup();
+        }
+        
+        /**
+         * Ask the loop to close a connection's channel. Keys are only
+         * cancelled on the loop, so a key never goes invalid while the
+         * loop is using it.
+         * @param connection
+         */
+        public void wantClose(Connection connection) {
+            this.pendingCloses.add(connection);
+            this.selector.wakeup();
+        }
+        
+        /**
+         * Run the selector loop
+         */
+        public void run() {
+            while(true) {
+                try {
+                    this.selector.select();
+                    
+                    // Register new connections and send them a login request
+                    SocketChannel channel;
+                    while((channel = this.newChannels.poll()) != null) {
+                        channel.configureBlocking(false);
+                        Connection connection = new Connection(channel, this);
+                        connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+                        connection.send("LOGINREQUEST");
+                    }
+                    
+                    // Close connections closed by other threads
+                    Connection pending;
+                    while((pending = this.pendingCloses.poll()) != null) {
+                        pending.closeChannel();
+                    }
+                    
+                    // Start listening for writability on connections with output
+                    while((pending = this.pendingWrites.poll()) != null) {
+                        try {
+                            if(pending.key != null && pending.key.isValid()) {
+                                pending.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Closed since it asked to write
+                        }
+                    }
+                    
+                    // Handle ready connections
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        
+                        Connection connection = (Connection) key.attachment();
+                        
+                        try {
+                            if(key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            
+                            if(key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                
+                } catch (IOException e) {
+                    System.out.println("Error in chat event loop: " + e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * A single chat connection. Incoming bytes are framed into lines
+     * and handled according to the chat protocol, outgoing lines are
+     * queued and written when the channel is writable.
+     * @author Petter
+     *
+     */
+    private class Connection implements ChatSession {
+        private SocketChannel channel;
+        private EventLoop loop;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+        private ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private OutboundQueue outbound = new OutboundQueue(queueSize, overflowPolicy);
+        private ByteBuffer writing;
+        private volatile String username;
+        private volatile boolean closed = false;
+        
+        /**
+         * Set while a LOGIN is being checked on a worker, so a connection
+         * can never claim two usernames
+         */
+        private AtomicBoolean loggingIn = new AtomicBoolean(false);
+        
+        /**
+         * Create a connection owned by an event loop
+         * @param channel
+         * @param loop
+         */
+        public Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+        
+        /**
+         * Queue a line for the client. Safe to call from any thread.
+         * @param message
+         */
+        public void send(String message) {
+            if(this.closed) {
+                return;
+            }
+            
+            // The client is not keeping up, disconnect it
+            if(!this.outbound.offer(message)) {
+                System.out.println("Disconnecting slow client " + this.username);
+                ServerMetrics.slowConsumerDisconnects.incrementAndGet();
+                close();
+                return;
+            }
+            
+            this.loop.wantWrite(this);
+        }
+        
+        /**
+         * Read available bytes and handle every complete line
+         * @throws IOException
+         */
+        private void read() throws IOException {
+            int read = this.channel.read(this.readBuffer);
+            
+            // Client disconnected
+            if(read < 0) {
+                close();
+                return;
+            }
+            
+            this.readBuffer.flip();
+            while(this.readBuffer.hasRemaining()) {
+                byte b = this.readBuffer.get();
+                
+                if(b == '\n') {
+                    String request = this.line.toString().trim();
+                    this.line.reset();
+                    handle(request);
+                } else if(b != '\r') {
+                    this.line.write(b);
+                }
+            }
+            this.readBuffer.clear();
+            
+            // Protect the server against clients that never send a line break
+            if(this.line.size() > MAX_LINE_LENGTH) {
+                close();
+            }
+        }
+        
+        /**
+         * Write as much queued output as the socket accepts
+         * @throws IOException
+         */
+        private void write() throws IOException {
+            while(true) {
+                
+                // Encode the next queued line
+                if(this.writing == null) {
+                    String message = this.outbound.poll();
+                    if(message == null) {
+                        break;
+                    }
+                    this.writing = ByteBuffer.wrap((message + "\n").getBytes());
+                }
+                
+                this.channel.write(this.writing);
+                
+                // Socket buffer is full, wait for the next writable event
+                if(this.writing.hasRemaining()) {
+                    return;
+                }
+                
+                this.writing = null;
+            }
+            
+            // Everything is written, stop listening for writability
+            if(this.key.isValid()) {
+                this.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        
+        /**
+         * Handle a single request line from the client
+         * @param request
+         */
+        private void handle(final String request) {
+            
+            if(this.closed || request.isEmpty()) {
+                return;
+            }
+            
+            // Split incoming message
+            final String[] args = request.split(" ");
+            
+            /**
+             * Login and register requests are handled before
+             * the client is logged in.
+             */
+            if(this.username == null) {
+                
+                System.out.println(request);
+                
+                // If client is attempting to register a new user REGISTER <username> <password>
+                if(request.startsWith("REGISTER") && args.length == 3) {
+                    workers.execute(new Runnable() {
+                        public void run() {
+                            if(!userHandler.usernameTaken(args[1])) {
+                                userHandler.newUser(args[1], args[2]);
+                                send("REGISTERACCEPTED");
+                            } else {
+                                send("ALREADYEXISTS");
+                            }
+                            send("LOGINREQUEST");
+                        }
+                    });
+                }
+                
+                // If client is attempting to log in with LOGIN <username> <password>.
+                // A LOGIN sent while the last one is still being checked is ignored.
+                else if(request.startsWith("LOGIN") && args.length == 3 && this.loggingIn.compareAndSet(false, true)) {
+                    workers.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                login(args[1].toLowerCase(), args[2]);
+                            } finally {
+                                loggingIn.set(false);
+                            }
+                        }
+                    });
+                }
+                
+                return;
+            }
+            
+            // If this is a MESSAGE request from client, broadcast to everyone in chat
+            if(request.startsWith("MESSAGE") && args.length >= 2) {
+                
+                // Write chat to the chat log and send it to everyone
+                sessions.publish(ChatJournal.getInstance(), this.username, request.substring("MESSAGE ".length()));
+            }
+            
+            // Manual logout from client
+            if(request.startsWith("LOGOUT")) {
+                close();
+            }
+        }
+        
+        /**
+         * Authenticate the user. Runs on a worker thread.
+         * @param username
+         * @param password
+         */
+        private void login(String username, String password) {
+            
+            if(!userHandler.authenticateUser(username, password)) {
+                send("LOGINDENIED");
+                send("LOGINREQUEST");
+                return;
+            }
+            
+            // Atomically claim the username
+            if(!sessions.claim(username, this)) {
+                send("ALREADYLOGGEDIN");
+                send("LOGINREQUEST");
+                return;
+            }
+            
+            // Report back to client that login authentication succeeded.
+            this.username = username;
+            send("LOGINACCEPTED");
+            
+            // Replay the latest messages to the new user, then start sending it new ones
+            sessions.enable(this.username, this, new Runnable() {
+                public void run() {
+                    for(ChatRecord record : ChatJournal.getInstance().recent(backlog)) {
+                        send("MESSAGE " + record.getUsername() + " " + record.getMessage());
+                    }
+                }
+            });
+            
+            // The client might have disconnected during authentication
+            if(this.closed) {
+                close();
+            }
+        }
+        
+        /**
+         * Cleanup when the client is disconnected. Safe to call from any
+         * thread, the channel itself is closed by the event loop.
+         */
+        private void close() {
+            this.closed = true;
+            this.outbound.clear();
+            
+            // Remove user from the online sessions
+            sessions.release(this.username, this);
+            
+            // Close channel with client
+            if(Thread.currentThread() == this.loop) {
+                closeChannel();
+            } else {
+                this.loop.wantClose(this);
+            }
+        }
+        
+        /**
+         * Cancel the key and close the channel. Only called on the event loop.
+         */
+        private void closeChannel() {
+            if(this.key != null) {
+                this.key.cancel();
+            }
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing socket for " + this.username + ": " + e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of outgoing lines for a single client. Broadcasting threads
+ * only enqueue, and the connection's own writer drains the queue, so a slow
+ * or stalled client can never block the sender or the rest of the lobby.
+ * 
+ * When the queue is full, the overflow policy decides what happens:
+ * DROP_OLDEST discards the oldest queued line to make room, DISCONNECT
+ * rejects the line so the caller can disconnect the slow consumer.
+ * @author Petter
+ *
+ */
+public class OutboundQueue {
+    
+    /**
+     * What to do when a client's queue is full
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DISCONNECT;
+        
+        /**
+         * Parse a policy from config, e.g. "dropOldest" or "disconnect"
+         * @param value Config value, may be null
+         * @return OverflowPolicy, DROP_OLDEST by default
+         */
+        public static OverflowPolicy parse(String value) {
+            if("disconnect".equalsIgnoreCase(value)) {
+                return DISCONNECT;
+            }
+            
+            return DROP_OLDEST;
+        }
+    }
+    
+    /**
+     * Queued lines
+     */
+    private ArrayBlockingQueue<String> queue;
+    
+    /**
+     * Overflow policy
+     */
+    private OverflowPolicy policy;
+    
+    /**
+     * Lines dropped from this queue
+     */
+    private AtomicLong drops = new AtomicLong();
+    
+    /**
+     * Create an outbound queue
+     * @param capacity Max number of queued lines
+     * @param policy What to do when the queue is full
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.queue = new ArrayBlockingQueue<String>(capacity);
+        this.policy = policy;
+    }
+    
+    /**
+     * Queue a line for the client without ever blocking.
+     * @param line
+     * @return boolean false if the queue is full and the policy is DISCONNECT
+     */
+    public boolean offer(String line) {
+        while(!this.queue.offer(line)) {
+            
+            // Slow consumer, let the caller disconnect it
+            if(this.policy == OverflowPolicy.DISCONNECT) {
+                return false;
+            }
+            
+            // Make room by dropping the oldest line
+            if(this.queue.poll() != null) {
+                this.drops.incrementAndGet();
+                ServerMetrics.outboundQueued.decrementAndGet();
+                ServerMetrics.outboundDropped.incrementAndGet();
+            }
+        }
+        
+        ServerMetrics.outboundQueued.incrementAndGet();
+        return true;
+    }
+    
+    /**
+     * Take the next line, if any
+     * @return String or null if the queue is empty
+     */
+    public String poll() {
+        String line = this.queue.poll();
+        
+        if(line != null) {
+            ServerMetrics.outboundQueued.decrementAndGet();
+        }
+        
+        return line;
+    }
+    
+    /**
+     * Wait for the next line
+     * @param timeout
+     * @param unit
+     * @return String or null if nothing arrived within the timeout
+     * @throws InterruptedException
+     */
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        String line = this.queue.poll(timeout, unit);
+        
+        if(line != null) {
+            ServerMetrics.outboundQueued.decrementAndGet();
+        }
+        
+        return line;
+    }
+    
+    /**
+     * Drop every queued line, used when the connection closes
+     */
+    public void clear() {
+        while(poll() != null) {
+            // Keep the global queue depth correct
+        }
+    }
+    
+    /**
+     * Number of lines currently queued
+     * @return int
+     */
+    public int depth() {
+        return this.queue.size();
+    }
+    
+    /**
+     * Number of lines dropped from this queue
+     * @return long
+     */
+    public long drops() {
+        return this.drops.get();
+    }
+    
+}
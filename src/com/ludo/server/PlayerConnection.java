@@ -0,0 +1,396 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.ludo.protocol.Message;
+import com.ludo.protocol.MessageStream;
+import com.ludo.protocol.MessageType;
+
+/**
+ * A connection to the game server. Every connection has a single reader,
+ * which asks for the client's username and then hands the connection to its
+ * router, which places it in the matchmaking queue or back in a game. Every
+ * line is parsed once into a Message, and once the connection is matched into
+ * a game, every message is passed on to the game's listener. Nothing ever waits for a
+ * line except the reader itself.
+ * 
+ * Lines sent to the client are queued and written by the connection's own
+ * writer, so a game or feed sending to a slow client never blocks on its
+ * socket. A client that lets its queue fill up is disconnected.
+ * @author Petter
+ *
+ */
+public class PlayerConnection implements Runnable {
+    
+    /**
+     * Receives the messages read from a connection
+     * @author Petter
+     *
+     */
+    public interface Listener {
+        
+        /**
+         * A message was read from the client
+         * @param connection
+         * @param message
+         */
+        void messageReceived(PlayerConnection connection, Message message);
+        
+        /**
+         * The client has disconnected
+         * @param connection
+         */
+        void disconnected(PlayerConnection connection);
+    }
+    
+    /**
+     * Decides where a connection goes once the client has sent its username
+     * @author Petter
+     *
+     */
+    public interface Router {
+        
+        /**
+         * The client has sent its username
+         * @param connection
+         */
+        void route(PlayerConnection connection);
+        
+        /**
+         * The client wants to watch a game
+         * @param connection
+         * @param gameId Game to watch, or -1 for any running game
+         */
+        void spectate(PlayerConnection connection, int gameId);
+        
+        /**
+         * The client disconnected before being attached to a game
+         * @param connection
+         */
+        void closed(PlayerConnection connection);
+    }
+    
+    /**
+     * Queued after the last line, tells the writer to close the connection
+     */
+    private static final String CLOSE = new String("CLOSE");
+    
+    private Socket socket;
+    private MessageStream stream;
+    
+    /**
+     * Lines waiting for the writer
+     */
+    private OutboundQueue outbound;
+    
+    /**
+     * Runs the reader and the writer
+     */
+    private ConnectionExecutor executor;
+    private String username = null;
+    
+    /**
+     * Token the client sent to take back its seat in a game, or null
+     */
+    private String reconnectToken = null;
+    
+    /**
+     * Offer the binary protocol to the client
+     */
+    private boolean binary;
+    
+    /**
+     * Routes the connection to matchmaking, or back to a game
+     */
+    private Router router;
+    
+    /**
+     * Receives the messages once attached to a game
+     */
+    private Listener listener;
+    
+    /**
+     * Messages read after the connection was matched, but before a listener was attached
+     */
+    private List<Message> pending = new ArrayList<Message>();
+    
+    /**
+     * When the connection was placed in the matchmaking queue, from System.nanoTime()
+     */
+    private long queuedAt;
+    
+    private volatile boolean matched = false;
+    private volatile boolean disconnected = false;
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
+    
+    /**
+     * Create a connection for an accepted client socket
+     * @param socket
+     * @param router
+     * @param binary Offer the binary protocol to the client
+     * @param executor Runs this connection's writer
+     * @param queueSize Max number of lines queued for the client
+     * @throws IOException
+     */
+    public PlayerConnection(Socket socket, Router router, boolean binary, ConnectionExecutor executor, int queueSize) throws IOException {
+        this.socket = socket;
+        this.router = router;
+        this.binary = binary;
+        this.executor = executor;
+        this.outbound = new OutboundQueue(queueSize, OutboundQueue.OverflowPolicy.DISCONNECT);
+        this.stream = new MessageStream(socket, true);
+    }
+    
+    /**
+     * For the game server to be able to update user tables
+     * in the database to increase the winner's score and the
+     * player's total played games, it has to request the client's
+     * username before the connection is queued. The request offers the
+     * binary protocol, which the client accepts in its answer. The reader
+     * then stays on the connection for as long as it is open.
+     */
+    public void run() {
+        
+        Message message = null;
+        
+        // Written before the writer starts, nothing is queued in text
+        // when the stream switches to binary
+        this.stream.send(this.binary ? "USERNAMEREQUEST " + MessageStream.BINARY : "USERNAMEREQUEST");
+        this.executor.execute("game-writer-" + this.socket.getRemoteSocketAddress(), new Runnable() {
+            public void run() {
+                write();
+            }
+        });
+        
+        try {
+            while((message = this.stream.read()) != null) {
+                
+                // Messages for the game
+                if(this.matched) {
+                    deliver(message);
+                }
+                
+                // If client sends username: USERNAME <username> [BINARY] [RECONNECT <token>]
+                else if(this.username == null && message.getType() == MessageType.USERNAME && message.size() > 0) {
+                    this.username = message.get(0);
+                    
+                    boolean useBinary = false;
+                    for(int i = 1; i < message.size(); i++) {
+                        if(MessageStream.BINARY.equals(message.get(i))) {
+                            useBinary = this.binary;
+                        } else if(MessageStream.RECONNECT.equals(message.get(i)) && i + 1 < message.size()) {
+                            this.reconnectToken = message.get(++i);
+                        }
+                    }
+                    
+                    // Everything after this line is binary
+                    if(useBinary) {
+                        this.stream.useBinary();
+                    }
+                    
+                    this.router.route(this);
+                }
+                
+                // If client wants to watch a game: SPECTATE [game id] [BINARY]
+                else if(this.username == null && message.getType() == MessageType.SPECTATE) {
+                    if(this.binary && MessageStream.BINARY.equals(message.get(message.size() - 1))) {
+                        this.stream.useBinary();
+                    }
+                    
+                    this.matched = true;
+                    this.router.spectate(this, message.getInt(0, -1));
+                }
+            }
+        } catch (IOException e) {
+            // Connection lost
+        }
+        
+        // Tell the game, if attached
+        synchronized(this) {
+            this.disconnected = true;
+            if(this.listener != null) {
+                this.listener.disconnected(this);
+            }
+        }
+        
+        // Leave the queue if not matched yet
+        this.router.closed(this);
+        
+        this.closed = true;
+        closeSocket();
+    }
+    
+    /**
+     * Drain the outbound queue to the client, flushing once the
+     * queue is empty so bursts are written together.
+     */
+    private void write() {
+        try {
+            while(!this.closed) {
+                String line = this.outbound.poll(1, TimeUnit.SECONDS);
+                
+                if(line == null) {
+                    continue;
+                }
+                
+                // Everything sent before close() has been written
+                if(line == CLOSE) {
+                    this.stream.flush();
+                    closeSocket();
+                    return;
+                }
+                
+                this.stream.send(line, this.outbound.depth() == 0);
+            }
+        } catch (InterruptedException e) {
+            closeSocket();
+        } finally {
+            this.outbound.clear();
+        }
+    }
+    
+    /**
+     * Close the socket, which also stops the reader
+     */
+    private void closeSocket() {
+        this.closed = true;
+        
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+    
+    /**
+     * Hand the connection over to a game
+     */
+    public void setMatched() {
+        this.matched = true;
+    }
+    
+    /**
+     * Attach the game listener. Messages read since the connection
+     * was matched are passed on first.
+     * @param listener
+     */
+    public synchronized void attach(Listener listener) {
+        this.listener = listener;
+        
+        for(Message message : this.pending) {
+            listener.messageReceived(this, message);
+        }
+        this.pending.clear();
+        
+        if(this.disconnected) {
+            listener.disconnected(this);
+        }
+    }
+    
+    /**
+     * Pass a message to the listener, or keep it until one is attached
+     * @param message
+     */
+    private synchronized void deliver(Message message) {
+        if(this.listener != null) {
+            this.listener.messageReceived(this, message);
+        } else {
+            this.pending.add(message);
+        }
+    }
+    
+    /**
+     * Queue a line for the client. Never blocks, the line is written
+     * by the connection's own writer.
+     * @param line
+     * @return boolean false if the connection is closed, or was just closed for falling behind
+     */
+    public boolean send(String line) {
+        if(this.closing || this.closed) {
+            return false;
+        }
+        
+        // The client is not keeping up, disconnect it
+        if(!this.outbound.offer(line)) {
+            System.out.println("Disconnecting slow player " + this.username);
+            ServerMetrics.slowConsumerDisconnects.incrementAndGet();
+            closeSocket();
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Close the connection once the lines sent so far have been written
+     */
+    public void close() {
+        send(CLOSE);
+        this.closing = true;
+    }
+    
+    /**
+     * Return connection socket
+     * @return socket
+     */
+    public Socket getSocket() {
+        return this.socket;
+    }
+    
+    /**
+     * Check if the connection uses the binary protocol
+     * @return boolean
+     */
+    public boolean isBinary() {
+        return this.stream.isBinary();
+    }
+    
+    /**
+     * Get the client's username
+     * @return username, or null if not received yet
+     */
+    public String getUsername() {
+        return this.username;
+    }
+    
+    /**
+     * Get the token the client sent to take back its seat in a game
+     * @return token, or null if none was sent
+     */
+    public String getReconnectToken() {
+        return this.reconnectToken;
+    }
+    
+    /**
+     * Check if the client has disconnected
+     * @return boolean
+     */
+    public boolean isDisconnected() {
+        return this.disconnected;
+    }
+    
+    /**
+     * Get the time the connection was queued
+     * @return System.nanoTime() when queued
+     */
+    public long getQueuedAt() {
+        return this.queuedAt;
+    }
+    
+    /**
+     * Set the time the connection was queued
+     * @param queuedAt System.nanoTime()
+     */
+    void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+}
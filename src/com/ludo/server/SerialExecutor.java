@@ -0,0 +1,88 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in the order they are submitted, on a shared
+ * executor. Many serial executors can share a small thread pool, and a
+ * task never runs at the same time as another task of the same serial
+ * executor, so the state they touch needs no locking.
+ * @author Petter
+ *
+ */
+public class SerialExecutor implements Executor {
+    
+    /**
+     * Tasks waiting to run
+     */
+    private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    
+    /**
+     * Set while a drain is scheduled or running on the shared executor
+     */
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    
+    /**
+     * Shared executor the tasks run on
+     */
+    private Executor executor;
+    
+    /**
+     * Runs the queued tasks
+     */
+    private Runnable drain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+    
+    /**
+     * Create a serial executor running on a shared executor
+     * @param executor
+     */
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Queue a task, scheduling a drain if none is pending
+     * @param task
+     */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        
+        if(this.scheduled.compareAndSet(false, true)) {
+            this.executor.execute(this.drain);
+        }
+    }
+    
+    /**
+     * Run queued tasks until the queue is empty
+     */
+    private void drain() {
+        while(true) {
+            Runnable task;
+            while((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Error running task: " + e);
+                    e.printStackTrace();
+                }
+            }
+            
+            this.scheduled.set(false);
+            
+            // A task may have been queued after the last poll
+            if(this.tasks.isEmpty() || !this.scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+}
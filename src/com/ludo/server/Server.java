@@ -3,6 +3,8 @@
  */
 package com.ludo.server;
 
+import com.ludo.config.Config;
+
 /**
  * @author Petter
  *
@@ -10,7 +12,11 @@ package com.ludo.server;
 public class Server extends Thread {
 
     /**
-     * TODO: Description
+     * Start the chat and game servers.
+     * 
+     * Run arguments:
+     * --threads=platform  Serve every connection on a platform thread (default)
+     * --threads=virtual   Serve every connection on a virtual thread
      * 
      * @param args Run arguments
      * @throws Exception Exceptions
@@ -19,11 +25,29 @@ public class Server extends Thread {
         
         System.out.println("Starting servers...");
         
-        // Chat Server
-        new ChatServer().start();
+        // Pick which kind of threads serve the connections
+        String threads = "platform";
+        for(String arg : args) {
+            if(arg.startsWith("--threads=")) {
+                threads = arg.substring("--threads=".length());
+            }
+        }
+        ConnectionExecutor executor = ConnectionExecutors.forMode(threads);
+        
+        Config config = new Config();
+        
+        // Print server metrics periodically
+        ServerMetrics.startReporting(config.getLong("metricsInterval", 0));
+        
+        // Chat Server, either thread per connection or non-blocking
+        if("nio".equals(config.getConfig("chatMode"))) {
+            new NioChatServer().start();
+        } else {
+            new ChatServer(executor).start();
+        }
         
         // Game Server
-        new GameServer().start();
+        new GameServer(executor).start();
       
 
     }
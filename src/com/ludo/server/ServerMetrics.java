@@ -0,0 +1,162 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server wide counters. They are updated lock-free from any thread and
+ * can be printed to the console periodically with metricsInterval=<seconds>
+ * in config.ini.
+ * @author Petter
+ *
+ */
+public class ServerMetrics {
+    
+    /**
+     * Lines currently waiting in chat outbound queues, across every connection
+     */
+    public static final AtomicLong outboundQueued = new AtomicLong();
+    
+    /**
+     * Lines dropped from full outbound queues
+     */
+    public static final AtomicLong outboundDropped = new AtomicLong();
+    
+    /**
+     * Clients disconnected for not keeping up with their outbound queue
+     */
+    public static final AtomicLong slowConsumerDisconnects = new AtomicLong();
+    
+    /**
+     * Games started by the matchmaker
+     */
+    public static final AtomicLong gamesFormed = new AtomicLong();
+    
+    /**
+     * Time players waited in the matchmaking queue, in milliseconds
+     */
+    public static final Samples queueWait = new Samples(4096);
+    
+    /**
+     * Turns that ran out of time
+     */
+    public static final AtomicLong turnTimeouts = new AtomicLong();
+    
+    /**
+     * Moves made on behalf of players who ran out of time
+     */
+    public static final AtomicLong autoMoves = new AtomicLong();
+    
+    /**
+     * Players who forfeited a game, by timeout or by not reconnecting
+     */
+    public static final AtomicLong forfeits = new AtomicLong();
+    
+    /**
+     * Players who came back to a game within the reconnection window
+     */
+    public static final AtomicLong reconnects = new AtomicLong();
+    
+    /**
+     * Game journal events dropped because the journal was full or closing
+     */
+    public static final AtomicLong journalDropped = new AtomicLong();
+    
+    /**
+     * When the metrics were loaded, for per second rates
+     */
+    private static final long started = System.nanoTime();
+    
+    /**
+     * Start printing the metrics to the console at a fixed interval
+     * @param seconds Interval in seconds, 0 or less disables reporting
+     */
+    public static void startReporting(long seconds) {
+        if(seconds <= 0) {
+            return;
+        }
+        
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        reporter.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                System.out.println(snapshot());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Current value of every metric on a single line
+     * @return String
+     */
+    public static String snapshot() {
+        return "Metrics:"
+                + " outboundQueued=" + outboundQueued.get()
+                + " outboundDropped=" + outboundDropped.get()
+                + " slowConsumerDisconnects=" + slowConsumerDisconnects.get()
+                + " gamesFormed=" + gamesFormed.get()
+                + String.format(" gamesPerSecond=%.2f", gamesFormed.get() / Math.max(1.0, (System.nanoTime() - started) / 1e9))
+                + " queueWaitMs(p50/p95/p99)=" + queueWait.percentile(50) + "/" + queueWait.percentile(95) + "/" + queueWait.percentile(99)
+                + " turnTimeouts=" + turnTimeouts.get()
+                + " autoMoves=" + autoMoves.get()
+                + " forfeits=" + forfeits.get()
+                + " reconnects=" + reconnects.get()
+                + " journalDropped=" + journalDropped.get();
+    }
+    
+    /**
+     * Keeps the latest samples of a value in a ring, for percentiles
+     * @author Petter
+     *
+     */
+    public static class Samples {
+        private long[] ring;
+        private long count = 0;
+        
+        public Samples(int size) {
+            this.ring = new long[size];
+        }
+        
+        /**
+         * Record a sample, replacing the oldest when the ring is full
+         * @param value
+         */
+        public synchronized void record(long value) {
+            this.ring[(int) (this.count++ % this.ring.length)] = value;
+        }
+        
+        /**
+         * Get a percentile of the recorded samples
+         * @param percent 0-100
+         * @return The value, or 0 if nothing is recorded
+         */
+        public long percentile(double percent) {
+            long[] values;
+            synchronized(this) {
+                values = Arrays.copyOf(this.ring, (int) Math.min(this.count, this.ring.length));
+            }
+            
+            if(values.length == 0) {
+                return 0;
+            }
+            
+            Arrays.sort(values);
+            int index = (int) Math.ceil(percent / 100 * values.length) - 1;
+            return values[Math.max(0, Math.min(values.length - 1, index))];
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * SessionRegistry keeps track of every online user and their chat session.
+ * 
+ * It is backed by concurrent maps, so claiming and releasing a username never
+ * take a global lock. A claimed session does not get broadcasts until it is
+ * enabled, after it has been sent LOGINACCEPTED and the backlog. Enabling
+ * takes the write side of a lock that publishing and broadcasting take the
+ * read side of, so a message published while a session is enabled is either
+ * in its backlog or sent to it live, never both and never neither.
+ * Broadcasts only exclude each other from enabling, not from each other.
+ * @author Petter
+ *
+ */
+public class SessionRegistry {
+    
+    /**
+     * Online sessions by username
+     */
+    private ConcurrentMap<String, ChatSession> sessions = new ConcurrentHashMap<String, ChatSession>();
+    
+    /**
+     * Sessions which get broadcasts, by username
+     */
+    private ConcurrentMap<String, ChatSession> enabled = new ConcurrentHashMap<String, ChatSession>();
+    
+    /**
+     * Read side for broadcasts, write side for enabling a session
+     */
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    /**
+     * Atomically claim a username for a session if the user is not already online.
+     * @param username Username
+     * @param session Session which will receive broadcasts
+     * @return boolean true if claimed, false if the user is already logged in
+     */
+    public boolean claim(String username, ChatSession session) {
+        return this.sessions.putIfAbsent(username, session) == null;
+    }
+    
+    /**
+     * Send a claimed session its backlog, then let it get broadcasts. No
+     * broadcast runs in between, or while the backlog is sent.
+     * @param username Username claimed by the session
+     * @param session Session
+     * @param backlog Sends the backlog to the session, may be null
+     * @return boolean false if the session no longer owns the username
+     */
+    public boolean enable(String username, ChatSession session, Runnable backlog) {
+        this.lock.writeLock().lock();
+        try {
+            if(this.sessions.get(username) != session) {
+                return false;
+            }
+            
+            if(backlog != null) {
+                backlog.run();
+            }
+            this.enabled.put(username, session);
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Release a username, but only if it is still owned by the given session,
+     * so a late cleanup can never log out a newer session for the same user.
+     * @param username Username
+     * @param session Session owning the username
+     * @return boolean true if the session was removed
+     */
+    public boolean release(String username, ChatSession session) {
+        if(username == null) {
+            return false;
+        }
+        
+        this.enabled.remove(username, session);
+        return this.sessions.remove(username, session);
+    }
+    
+    /**
+     * Check if a user is online
+     * @param username
+     * @return boolean
+     */
+    public boolean isOnline(String username) {
+        return this.sessions.containsKey(username);
+    }
+    
+    /**
+     * Get the session of an online user
+     * @param username
+     * @return ChatSession or null if the user is offline
+     */
+    public ChatSession get(String username) {
+        return this.sessions.get(username);
+    }
+    
+    /**
+     * Send a line to every enabled session
+     * @param line
+     */
+    public void broadcast(String line) {
+        this.lock.readLock().lock();
+        try {
+            for(ChatSession session : this.enabled.values()) {
+                session.send(line);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Log a chat message in the journal and send it to every enabled session,
+     * as one step for sessions being enabled
+     * @param journal Journal the backlog is read from, may be null
+     * @param username Sender
+     * @param message
+     */
+    public void publish(ChatJournal journal, String username, String message) {
+        this.lock.readLock().lock();
+        try {
+            if(journal != null) {
+                journal.log(username, message);
+            }
+            broadcast("MESSAGE " + username + " " + message);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Number of online users
+     * @return int
+     */
+    public int size() {
+        return this.sessions.size();
+    }
+    
+    /**
+     * Read-only view of the online sessions
+     * @return Collection of sessions
+     */
+    public Collection<ChatSession> sessions() {
+        return Collections.unmodifiableCollection(this.sessions.values());
+    }
+    
+}
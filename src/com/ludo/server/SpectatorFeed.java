@@ -0,0 +1,131 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the updates of a game to its spectators. The game publishes every
+ * update once, and the feed copies it to each spectator on the spectator
+ * threads, so the game does the same work with a thousand spectators as
+ * with none.
+ * 
+ * Neither the game nor the fan-out ever writes to a socket: every
+ * spectator has its own bounded queue, drained by its connection's
+ * writer. A spectator whose queue overflows is disconnected and dropped
+ * from the feed, so it cannot hold up the others.
+ *
+ * Publishing, adding and removing are queued in order on one serial
+ * executor, so a spectator added with a snapshot gets exactly the updates
+ * published after the snapshot was taken.
+ * @author Petter
+ *
+ */
+public class SpectatorFeed {
+    
+    /**
+     * Runs the fan-out in order
+     */
+    private SerialExecutor fanout;
+    
+    /**
+     * Spectators, only touched by the fan-out
+     */
+    private List<PlayerConnection> spectators = new ArrayList<PlayerConnection>();
+    
+    /**
+     * Spectators added and not yet removed, so updates are not queued for nobody
+     */
+    private AtomicInteger count = new AtomicInteger();
+    
+    /**
+     * Create a feed fanning out on shared threads
+     * @param executor
+     */
+    public SpectatorFeed(Executor executor) {
+        this.fanout = new SerialExecutor(executor);
+    }
+    
+    /**
+     * Publish an update to every spectator. Only queues the update.
+     * @param line
+     */
+    public void publish(final String line) {
+        if(this.count.get() == 0) {
+            return;
+        }
+        
+        this.fanout.execute(new Runnable() {
+            public void run() {
+                Iterator<PlayerConnection> iterator = spectators.iterator();
+                while(iterator.hasNext()) {
+                    
+                    // Disconnected for falling behind, or gone
+                    if(!iterator.next().send(line)) {
+                        iterator.remove();
+                        count.decrementAndGet();
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Add a spectator, who first gets a snapshot of the game. Must be
+     * called by the game, so no update falls between the snapshot and the
+     * updates that follow it.
+     * @param spectator
+     * @param snapshot
+     */
+    public void add(final PlayerConnection spectator, final String snapshot) {
+        this.count.incrementAndGet();
+        
+        this.fanout.execute(new Runnable() {
+            public void run() {
+                
+                // Left before being added
+                if(spectator.isDisconnected() || !spectator.send(snapshot)) {
+                    count.decrementAndGet();
+                    return;
+                }
+                
+                spectators.add(spectator);
+            }
+        });
+    }
+    
+    /**
+     * Remove a spectator who has left
+     * @param spectator
+     */
+    public void remove(final PlayerConnection spectator) {
+        this.fanout.execute(new Runnable() {
+            public void run() {
+                if(spectators.remove(spectator)) {
+                    count.decrementAndGet();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Close every spectator's connection once the updates
+     * published so far have been sent
+     */
+    public void close() {
+        this.fanout.execute(new Runnable() {
+            public void run() {
+                for(PlayerConnection spectator : spectators) {
+                    spectator.close();
+                }
+                spectators.clear();
+                count.set(0);
+            }
+        });
+    }
+}
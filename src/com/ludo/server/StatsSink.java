@@ -0,0 +1,237 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.ludo.config.Config;
+
+/**
+ * StatsSink collects game statistics (wins and games played) in memory
+ * and writes them to the database in the background.
+ * 
+ * Increments for the same user are added together, and are written as one
+ * JDBC batch every statsFlushInterval seconds, or as soon as statsFlushSize
+ * increments are waiting. A flush is written in one transaction, so a flush
+ * that fails has written nothing, and its increments are kept for the next
+ * one. Everything left is flushed when the server shuts down.
+ * @author Petter
+ *
+ */
+public class StatsSink {
+    
+    /**
+     * Shared stats sink for the game server
+     */
+    private static StatsSink instance;
+    
+    /**
+     * Pending increments by username: { wins, games }
+     */
+    private Map<String, int[]> pending = new HashMap<String, int[]>();
+    
+    /**
+     * Number of increments waiting to be flushed
+     */
+    private int pendingCount = 0;
+    
+    /**
+     * Flush as soon as this many increments are waiting
+     */
+    private int flushSize;
+    
+    /**
+     * Set while a flush for a full batch is queued
+     */
+    private boolean flushQueued = false;
+    
+    /**
+     * Writes the stats to the database
+     */
+    private UserHandler userHandler;
+    
+    /**
+     * Background flusher
+     */
+    private ScheduledExecutorService scheduler;
+    
+    /**
+     * Get the shared stats sink, starting it on first use
+     * @return StatsSink
+     */
+    public static synchronized StatsSink getInstance() {
+        if(instance == null) {
+            instance = new StatsSink(new Config());
+        }
+        
+        return instance;
+    }
+    
+    /**
+     * Create a stats sink with settings from config
+     * @param config
+     */
+    public StatsSink(Config config) {
+        this(config, new UserHandler());
+    }
+    
+    /**
+     * Create a stats sink writing through a given user handler
+     * @param config
+     * @param userHandler
+     */
+    StatsSink(Config config, UserHandler userHandler) {
+        this.userHandler = userHandler;
+        this.flushSize = config.getInt("statsFlushSize", 100);
+        long interval = config.getLong("statsFlushInterval", 5);
+        
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "stats-sink");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        // Flush periodically
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+        
+        // Flush what is left on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, "stats-sink-shutdown"));
+    }
+    
+    /**
+     * A player has won a game
+     * @param username
+     */
+    public void userWon(String username) {
+        add(username, 1, 0);
+    }
+    
+    /**
+     * A player has played a game
+     * @param username
+     */
+    public void userPlayed(String username) {
+        add(username, 0, 1);
+    }
+    
+    /**
+     * Write every pending increment to the database in a single batch
+     */
+    public void flush() {
+        Map<String, int[]> stats;
+        int count;
+        
+        // Take the pending increments
+        synchronized(this) {
+            if(this.pending.isEmpty()) {
+                return;
+            }
+            
+            stats = this.pending;
+            count = this.pendingCount;
+            this.pending = new HashMap<String, int[]>();
+            this.pendingCount = 0;
+            this.flushQueued = false;
+        }
+        
+        List<Object[]> rows = new ArrayList<Object[]>(stats.size());
+        for(Map.Entry<String, int[]> entry : stats.entrySet()) {
+            rows.add(new Object[] { entry.getValue()[0], entry.getValue()[1], entry.getKey() });
+        }
+        
+        // Keep the increments if the database is unavailable, the batch was rolled back
+        // so none of them were written
+        if(!this.userHandler.addStats(rows)) {
+            restore(stats, count);
+        }
+    }
+    
+    /**
+     * Put the increments of a failed flush back with the pending ones. They count
+     * towards flushSize again, the next add that reaches it queues a new flush.
+     * @param stats Increments by username: { wins, games }
+     * @param count Number of increments
+     */
+    private synchronized void restore(Map<String, int[]> stats, int count) {
+        for(Map.Entry<String, int[]> entry : stats.entrySet()) {
+            int[] pending = this.pending.get(entry.getKey());
+            
+            if(pending == null) {
+                this.pending.put(entry.getKey(), entry.getValue());
+            } else {
+                pending[0] += entry.getValue()[0];
+                pending[1] += entry.getValue()[1];
+            }
+        }
+        
+        this.pendingCount += count;
+    }
+    
+    /**
+     * Add increments for a user, flushing in the background when enough are waiting
+     * @param username
+     * @param wins
+     * @param games
+     */
+    private void add(String username, int wins, int games) {
+        
+        // Games without a known username can not be counted
+        if(username == null) {
+            return;
+        }
+        
+        if(merge(username, wins, games)) {
+            this.scheduler.execute(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Add increments for a user to the pending stats
+     * @param username
+     * @param wins
+     * @param games
+     * @return boolean true when flushSize increments are waiting and no flush is queued for them
+     */
+    private synchronized boolean merge(String username, int wins, int games) {
+        int[] stats = this.pending.get(username);
+        
+        if(stats == null) {
+            stats = new int[2];
+            this.pending.put(username, stats);
+        }
+        
+        stats[0] += wins;
+        stats[1] += games;
+        
+        this.pendingCount++;
+        if(this.pendingCount >= this.flushSize && !this.flushQueued) {
+            this.flushQueued = true;
+            return true;
+        }
+        
+        return false;
+    }
+    
+}
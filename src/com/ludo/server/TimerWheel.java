@@ -0,0 +1,167 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel. A single thread ticks through a ring of buckets,
+ * and every timeout sits in the bucket of the tick it expires on, with the
+ * number of full turns of the wheel still to go. Scheduling and cancelling
+ * are constant time, so every game can keep its own deadlines without a
+ * thread or a sleep of its own.
+ *
+ * Timeouts fire on the wheel thread, up to one tick late, so their tasks
+ * must be short. Game timeouts only queue an event for their game.
+ * @author Petter
+ *
+ */
+public class TimerWheel {
+    
+    /**
+     * Timeouts scheduled since the last tick
+     */
+    private ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    
+    /**
+     * Ring of buckets, only touched by the wheel thread
+     */
+    private List<List<Timeout>> buckets;
+    
+    /**
+     * Length of a tick in nanoseconds
+     */
+    private long tick;
+    
+    /**
+     * When the wheel started, from System.nanoTime()
+     */
+    private long start;
+    
+    /**
+     * Ticks done so far
+     */
+    private long ticks = 0;
+    
+    /**
+     * Create and start a timer wheel
+     * @param tick Length of a tick
+     * @param unit Unit of the tick
+     * @param size Number of buckets
+     * @param name Name of the wheel thread
+     */
+    public TimerWheel(long tick, TimeUnit unit, int size, String name) {
+        this.tick = Math.max(1, unit.toNanos(tick));
+        this.buckets = new ArrayList<List<Timeout>>(size);
+        for(int i = 0; i < size; i++) {
+            this.buckets.add(new ArrayList<Timeout>());
+        }
+        
+        this.start = System.nanoTime();
+        
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                tickLoop();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Run a task after a delay
+     * @param task Short task, run on the wheel thread
+     * @param delay
+     * @param unit
+     * @return Timeout, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        this.added.add(timeout);
+        return timeout;
+    }
+    
+    /**
+     * Tick until the thread is interrupted
+     */
+    private void tickLoop() {
+        while(true) {
+            
+            // Sleep until the next tick is due
+            long next = this.start + (this.ticks + 1) * this.tick;
+            long sleep = next - System.nanoTime();
+            if(sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            
+            this.ticks++;
+            
+            // Place newly scheduled timeouts in their buckets
+            Timeout timeout;
+            while((timeout = this.added.poll()) != null) {
+                if(timeout.cancelled) {
+                    continue;
+                }
+                
+                long expiresOn = Math.max(this.ticks, (timeout.deadline - this.start + this.tick - 1) / this.tick);
+                timeout.rounds = (expiresOn - this.ticks) / this.buckets.size();
+                this.buckets.get((int) (expiresOn % this.buckets.size())).add(timeout);
+            }
+            
+            // Fire the timeouts of this tick
+            Iterator<Timeout> it = this.buckets.get((int) (this.ticks % this.buckets.size())).iterator();
+            while(it.hasNext()) {
+                timeout = it.next();
+                
+                if(timeout.cancelled) {
+                    it.remove();
+                } else if(timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    it.remove();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("Error running timeout: " + e);
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * A scheduled task
+     * @author Petter
+     *
+     */
+    public static class Timeout {
+        private Runnable task;
+        private long deadline;
+        private long rounds;
+        private volatile boolean cancelled = false;
+        
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+        
+        /**
+         * Cancel the timeout, if it has not fired yet. It is
+         * removed from the wheel when its bucket comes up.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+    }
+
+}
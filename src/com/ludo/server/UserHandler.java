@@ -3,8 +3,7 @@
  */
 package com.ludo.server;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.util.List;
 
 /**
  * UserHandler takes care of handling users, such as checking them in the
@@ -15,6 +14,16 @@ import java.sql.SQLException;
 public class UserHandler {
     DatabaseHandler database = new DatabaseHandler();
     
+    /**
+     * Queries, prepared once per pooled connection
+     */
+    private static final String AUTHENTICATE_USER = "SELECT id FROM users WHERE username=? AND password=?";
+    private static final String USERNAME_TAKEN = "SELECT id FROM users WHERE username=?";
+    private static final String NEW_USER = "INSERT INTO users (username, password) VALUES (?, ?)";
+    private static final String USER_WON = "UPDATE users SET win=win+1 WHERE username=?";
+    private static final String USER_PLAYED = "UPDATE users SET games=games+1 WHERE username=?";
+    private static final String ADD_STATS = "UPDATE users SET win=win+?, games=games+? WHERE username=?";
+    
     /**
      * Authenticate user by checking if a row with specified username and password exists in database.
      * @param username
@@ -23,23 +32,8 @@ public class UserHandler {
      */
     public boolean authenticateUser(String username, String password) {
         
-        // Fetch user with password from database
-        ResultSet results = database.select("SELECT id, username, password FROM users WHERE username=\"" + username + "\" AND password=\"" + password + "\";");
-        
-        try {
-            
-            // If user is found, authentication is successful
-            if(results.next()) {
-                return true;
-            } else {
-                return false;
-            }
-        } catch (SQLException e) {
-            System.out.println("Error finding username and password from the database");
-            e.printStackTrace();
-        }
-        
-        return false;
+        // If user is found, authentication is successful
+        return database.exists(AUTHENTICATE_USER, username, password);
     }
     
     /**
@@ -50,7 +44,7 @@ public class UserHandler {
     public void newUser(String username, String password) {
         
         // Insert username and password to database
-        database.insert("INSERT INTO users (username, password) VALUES (\"" + username + "\", \"" + password + "\");");
+        database.update(NEW_USER, username, password);
     }
     
     /**
@@ -61,22 +55,7 @@ public class UserHandler {
     public boolean usernameTaken(String username) {
         
         // Try to find user from database
-        ResultSet results = database.select("SELECT id, username FROM users WHERE username=\"" + username + "\";");
-        
-        try {
-            
-            // If username is found
-            if(results.next()) {
-                return true;
-            } else {
-                return false;
-            }
-        } catch (SQLException e) {
-            System.out.println("Error returning if user exists in the database");
-            e.printStackTrace();
-        }
-        
-        return false;
+        return database.exists(USERNAME_TAKEN, username);
     }
     
     /**
@@ -84,7 +63,7 @@ public class UserHandler {
      * @param username
      */
     public void userWon(String username) {
-        database.update("UPDATE users SET win=win+1 WHERE username=" + username);
+        database.update(USER_WON, username);
     }
     
     /**
@@ -92,7 +71,16 @@ public class UserHandler {
      * @param username
      */
     public void userPlayed(String username) {
-        database.update("UPDATE users SET games=games+1 WHERE username=" + username);
+        database.update(USER_PLAYED, username);
+    }
+    
+    /**
+     * Add wins and played games for many users in a single batch.
+     * @param rows One row per user: { wins, games, username }
+     * @return boolean true if the stats were saved
+     */
+    public boolean addStats(List<Object[]> rows) {
+        return database.batch(ADD_STATS, rows);
     }
 
 }
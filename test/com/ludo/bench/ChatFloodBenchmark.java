@@ -0,0 +1,183 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.util.Arrays;
+
+import com.ludo.client.ChatMessage;
+import com.ludo.client.ChatView;
+import com.ludo.client.UiDispatcher;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.TextArea;
+import javafx.scene.layout.StackPane;
+import javafx.stage.Stage;
+
+/**
+ * Measures frame times while a chat is flooded. A background thread sends
+ * chat lines at a fixed rate, either to a ChatView through the UiDispatcher,
+ * or to a TextArea with one Platform.runLater per line, as the chat used to,
+ * while an AnimationTimer records the time between frames.
+ * @author Petter
+ *
+ */
+public class ChatFloodBenchmark extends Application {
+    
+    /**
+     * Chat lines sent
+     */
+    private static int lines = 20000;
+    
+    /**
+     * Chat lines sent per second
+     */
+    private static int rate = 5000;
+    
+    /**
+     * Send lines to a text area one runLater at a time instead of to a chat view
+     */
+    private static boolean direct = false;
+    
+    /**
+     * Time between frames, in nanoseconds
+     */
+    private long[] frames = new long[1 << 16];
+    private int frameCount = 0;
+    private long lastFrame = 0;
+    
+    /**
+     * Run the benchmark and print the frame times.
+     *
+     * Run arguments:
+     * --lines=N              Chat lines to send (default 20000)
+     * --rate=N               Chat lines per second (default 5000)
+     * --direct               A TextArea and one Platform.runLater per line instead of a ChatView
+     *
+     * @param args Run arguments
+     */
+    public static void main(String[] args) {
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--lines=")) {
+                    lines = Integer.parseInt(arg.substring("--lines=".length()));
+                } else if(arg.startsWith("--rate=")) {
+                    rate = Math.max(1, Integer.parseInt(arg.substring("--rate=".length())));
+                } else if(arg.equals("--direct")) {
+                    direct = true;
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        launch(new String[0]);
+    }
+    
+    @Override
+    public void start(Stage stage) throws Exception {
+        final TextArea area = new TextArea();
+        final ChatView chat = new ChatView();
+        stage.setScene(new Scene(new StackPane(direct ? area : chat), 640, 480));
+        stage.setTitle("Chat flood");
+        stage.show();
+        
+        // Record the time between frames
+        new AnimationTimer() {
+            public void handle(long now) {
+                if(lastFrame != 0 && frameCount < frames.length) {
+                    frames[frameCount++] = now - lastFrame;
+                }
+                lastFrame = now;
+            }
+        }.start();
+        
+        Thread flood = new Thread(new Runnable() {
+            public void run() {
+                flood(area, chat);
+            }
+        }, "chat-flood");
+        flood.setDaemon(true);
+        flood.start();
+    }
+    
+    /**
+     * Send the chat lines at the set rate, then report
+     * @param area Chat with --direct
+     * @param chat
+     */
+    private void flood(final TextArea area, ChatView chat) {
+        UiDispatcher ui = UiDispatcher.getInstance();
+        long start = System.nanoTime();
+        
+        for(int i = 0; i < lines; i++) {
+            
+            // Keep to the rate
+            long due = start + i * 1000000000L / rate;
+            long wait = due - System.nanoTime();
+            if(wait > 1000000) {
+                try {
+                    Thread.sleep(wait / 1000000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            
+            final String text = "chat line number " + i;
+            if(direct) {
+                Platform.runLater(new Runnable() {
+                    public void run() {
+                        area.appendText("user: " + text + "\n");
+                    }
+                });
+            } else {
+                ui.append(chat, new ChatMessage("user", text));
+            }
+        }
+        
+        // Let the view catch up, then report on the JavaFX thread
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            return;
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        
+        Platform.runLater(new Runnable() {
+            public void run() {
+                report(seconds);
+                Platform.exit();
+            }
+        });
+    }
+    
+    /**
+     * Print the frame times
+     * @param seconds Length of the run
+     */
+    private void report(double seconds) {
+        long[] sorted = Arrays.copyOf(this.frames, this.frameCount);
+        Arrays.sort(sorted);
+        if(sorted.length == 0) {
+            System.out.println("No frames");
+            return;
+        }
+        
+        long total = 0;
+        for(long frame : sorted) {
+            total += frame;
+        }
+        
+        System.out.printf("%s: %d lines at %d lines/s, %d frames in %.2f s (%.1f fps)%n", direct ? "TextArea, runLater per line" : "ChatView, UiDispatcher", lines, rate, sorted.length, seconds, sorted.length / seconds);
+        System.out.printf("Frame time: avg %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                total / 1e6 / sorted.length, sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+}
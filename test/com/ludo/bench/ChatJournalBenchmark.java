@@ -0,0 +1,150 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import com.ludo.config.Config;
+import com.ludo.server.ChatHistory;
+import com.ludo.server.ChatJournal;
+
+/**
+ * Measures what writing the chat log costs the threads that broadcast chat.
+ * Several threads log messages as fast as they can, either appending to the
+ * chat history themselves, as every broadcast did before the journal, or
+ * through a ChatJournal. Reports the time a call takes on the calling
+ * thread, and the time until every message is in the history.
+ *
+ * The history is written to a temporary directory, which is removed after.
+ *
+ * Run arguments:
+ * --threads=N     Logging threads (default 8)
+ * --messages=N    Messages per thread (default 100000)
+ * --fsync         Force every journal batch to disk (chatLogFsync=true)
+ * @author Petter
+ *
+ */
+public class ChatJournalBenchmark {
+    
+    private static int threads = 8;
+    private static int messages = 100000;
+    private static boolean fsync = false;
+    
+    public static void main(String[] args) throws Exception {
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--threads=")) {
+                    threads = Math.max(1, Integer.parseInt(arg.substring("--threads=".length())));
+                } else if(arg.startsWith("--messages=")) {
+                    messages = Math.max(1, Integer.parseInt(arg.substring("--messages=".length())));
+                } else if(arg.equals("--fsync")) {
+                    fsync = true;
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        run(false);
+        run(true);
+    }
+    
+    /**
+     * Log every message and print the times
+     * @param journaled Log through a ChatJournal, or append to the history directly
+     */
+    private static void run(boolean journaled) throws Exception {
+        File dir = Files.createTempDirectory("chat-bench").toFile();
+        File file = new File(dir, "config.ini");
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("chatHistoryDir=" + new File(dir, "history").getAbsolutePath().replace('\\', '/') + "\n");
+            writer.write("chatLogFsync=" + fsync + "\n");
+            writer.write("chatLogQueueSize=" + Math.max(8192, threads * 1024) + "\n");
+        } finally {
+            writer.close();
+        }
+        Config config = new Config(file.getAbsolutePath());
+        
+        final ChatJournal journal = journaled ? new ChatJournal(config) : null;
+        final ChatHistory history = journaled ? journal.getHistory() : new ChatHistory(config);
+        
+        final long[][] calls = new long[threads][messages];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] loggers = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            final int thread = t;
+            loggers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    
+                    String user = "user" + thread;
+                    for(int m = 0; m < messages; m++) {
+                        long before = System.nanoTime();
+                        if(journal != null) {
+                            journal.log(user, "message number " + m);
+                        } else {
+                            history.append(System.currentTimeMillis(), user, "message number " + m);
+                        }
+                        calls[thread][m] = System.nanoTime() - before;
+                    }
+                }
+            });
+            loggers[t].start();
+        }
+        
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread logger : loggers) {
+            logger.join();
+        }
+        double logged = (System.nanoTime() - begin) / 1e6;
+        
+        // Wait for the journal to write everything
+        if(journal != null) {
+            journal.close();
+        }
+        history.force();
+        double written = (System.nanoTime() - begin) / 1e6;
+        
+        long[] all = new long[threads * messages];
+        for(int t = 0; t < threads; t++) {
+            System.arraycopy(calls[t], 0, all, t * messages, messages);
+        }
+        Arrays.sort(all);
+        
+        System.out.printf("%-8s logged in %8.1f ms, written in %8.1f ms, %9.0f messages/s | call p50 %.2f us, p99 %.2f us, max %.2f ms%n",
+                journaled ? "journal" : "direct", logged, written, all.length / (written / 1e3),
+                all[all.length / 2] / 1e3, all[(int) (all.length * 0.99)] / 1e3, all[all.length - 1] / 1e6);
+        
+        delete(dir);
+    }
+    
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        if(!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for a running chat server, in either chatMode. Connects
+ * many clients, registers and logs them in, then has each of them send
+ * chat messages at a fixed rate for a while. Every client reads every
+ * broadcast, and the time from sending a message to getting it back is
+ * measured for the client's own messages.
+ *
+ * The server needs its database, as the clients register. Users are named
+ * load0, load1 and so on, and are registered again on every run, which is
+ * answered with ALREADYEXISTS after the first.
+ *
+ * Run arguments:
+ * --host=HOST       Chat server (default localhost)
+ * --port=N          Chat port (default 4040)
+ * --clients=N       Connected clients (default 500)
+ * --rate=N          Messages per second per client (default 1)
+ * --seconds=N       How long the clients send (default 30)
+ * @author Petter
+ *
+ */
+public class ChatLoad {
+    
+    private static String host = "localhost";
+    private static int port = 4040;
+    private static int clients = 500;
+    private static int rate = 1;
+    private static int seconds = 30;
+    
+    /**
+     * Lines received by all clients
+     */
+    private static AtomicLong received = new AtomicLong();
+    
+    /**
+     * Tells this run's messages from those in the backlog of earlier runs
+     */
+    private static long run = System.nanoTime() ^ System.currentTimeMillis();
+    
+    public static void main(String[] args) throws Exception {
+        try {
+            for(String arg : args) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                if(arg.startsWith("--host=")) {
+                    host = value;
+                } else if(arg.startsWith("--port=")) {
+                    port = Integer.parseInt(value);
+                } else if(arg.startsWith("--clients=")) {
+                    clients = Math.max(1, Integer.parseInt(value));
+                } else if(arg.startsWith("--rate=")) {
+                    rate = Math.max(1, Integer.parseInt(value));
+                } else if(arg.startsWith("--seconds=")) {
+                    seconds = Math.max(1, Integer.parseInt(value));
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        // Connect and log in every client
+        final CountDownLatch loggedIn = new CountDownLatch(clients);
+        List<LoadClient> all = new ArrayList<LoadClient>();
+        long start = System.nanoTime();
+        for(int i = 0; i < clients; i++) {
+            LoadClient client = new LoadClient(i, loggedIn);
+            all.add(client);
+            Thread thread = new Thread(client, "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if(!loggedIn.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Only " + (clients - loggedIn.getCount()) + " of " + clients + " clients logged in");
+            return;
+        }
+        System.out.printf("%d clients logged in in %.1f s%n", clients, (System.nanoTime() - start) / 1e9);
+        
+        // Every client sends rate messages a second, spread over the second
+        long interval = TimeUnit.SECONDS.toNanos(1) / ((long) rate * clients);
+        long sent = 0;
+        received.set(0);
+        start = System.nanoTime();
+        for(int round = 0; round < rate * seconds; round++) {
+            for(LoadClient client : all) {
+                long due = start + sent * interval;
+                long wait = due - System.nanoTime();
+                if(wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                client.send("MESSAGE " + run + " " + System.nanoTime());
+                sent++;
+            }
+        }
+        
+        // Let the last broadcasts arrive
+        Thread.sleep(2000);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        
+        long[] trips = merge(all);
+        System.out.printf("sent %d messages, %d lines delivered, %.0f lines/s%n", sent, received.get(), received.get() / elapsed);
+        System.out.printf("round trip of own messages: %d of %d back, %s%n", trips.length, sent, summary(trips));
+        
+        for(LoadClient client : all) {
+            client.close();
+        }
+    }
+    
+    /**
+     * Round trips of every client, sorted
+     * @param all Clients
+     * @return long[] Microseconds
+     */
+    private static long[] merge(List<LoadClient> all) {
+        List<long[]> parts = new ArrayList<long[]>();
+        int total = 0;
+        for(LoadClient client : all) {
+            long[] part = client.trips();
+            parts.add(part);
+            total += part.length;
+        }
+        
+        long[] merged = new long[total];
+        int at = 0;
+        for(long[] part : parts) {
+            System.arraycopy(part, 0, merged, at, part.length);
+            at += part.length;
+        }
+        
+        Arrays.sort(merged);
+        return merged;
+    }
+    
+    /**
+     * Describe round trips
+     * @param sorted Microseconds, sorted
+     * @return Percentiles in milliseconds
+     */
+    private static String summary(long[] sorted) {
+        if(sorted.length == 0) {
+            return "-";
+        }
+        
+        return String.format("p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms", sorted[sorted.length / 2] / 1e3,
+                sorted[(int) (sorted.length * 0.99)] / 1e3, sorted[(int) (sorted.length * 0.999)] / 1e3, sorted[sorted.length - 1] / 1e3);
+    }
+    
+    /**
+     * One chat client: logs in, then reads every line until closed
+     * @author Petter
+     *
+     */
+    private static class LoadClient implements Runnable {
+        private String username;
+        private CountDownLatch loggedIn;
+        private Socket socket;
+        private PrintWriter out;
+        
+        /**
+         * Round trips of own messages, in microseconds
+         */
+        private long[] trips = new long[rate * seconds];
+        private int count = 0;
+        
+        public LoadClient(int id, CountDownLatch loggedIn) {
+            this.username = "load" + id;
+            this.loggedIn = loggedIn;
+        }
+        
+        public synchronized void send(String line) {
+            if(this.out != null) {
+                this.out.print(line + "\n");
+                this.out.flush();
+            }
+        }
+        
+        private synchronized void record(long micros) {
+            if(this.count < this.trips.length) {
+                this.trips[this.count++] = micros;
+            }
+        }
+        
+        public synchronized long[] trips() {
+            return Arrays.copyOf(this.trips, this.count);
+        }
+        
+        public synchronized void close() {
+            if(this.socket == null) {
+                return;
+            }
+            
+            send("LOGOUT");
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        
+        public void run() {
+            try {
+                BufferedReader in;
+                synchronized(this) {
+                    this.socket = new Socket(host, port);
+                    this.socket.setTcpNoDelay(true);
+                    in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+                    this.out = new PrintWriter(this.socket.getOutputStream(), false);
+                }
+                
+                send("REGISTER " + this.username + " load");
+                send("LOGIN " + this.username + " load");
+                
+                String line;
+                boolean accepted = false;
+                while((line = in.readLine()) != null) {
+                    long now = System.nanoTime();
+                    
+                    if(!accepted) {
+                        if(line.equals("LOGINACCEPTED")) {
+                            accepted = true;
+                            this.loggedIn.countDown();
+                        } else if(line.equals("LOGINDENIED")) {
+                            
+                            // The registration may not have been stored yet
+                            Thread.sleep(100);
+                            send("LOGIN " + this.username + " load");
+                        }
+                        continue;
+                    }
+                    
+                    received.incrementAndGet();
+                    
+                    // MESSAGE <username> <run> <sent at>
+                    String[] args = line.split(" ");
+                    if(args.length == 4 && args[1].equals(this.username) && args[2].equals(Long.toString(run))) {
+                        record((now - Long.parseLong(args[3])) / 1000);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(this.username + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
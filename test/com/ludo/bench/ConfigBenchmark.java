@@ -0,0 +1,157 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import com.ludo.config.Config;
+
+/**
+ * Measures config lookups from many threads, as the servers make them on
+ * every connection and every game. Compares reading and parsing config.ini
+ * on every lookup, which is what Config used to do, with lookups in the
+ * shared snapshot, as strings and as numbers.
+ *
+ * Run from the directory holding config.ini.
+ *
+ * Run arguments:
+ * --threads=N     Looking up threads (default 8)
+ * --lookups=N     Lookups per thread (default 1000000, a hundredth of it for rereads)
+ * @author Petter
+ *
+ */
+public class ConfigBenchmark {
+    
+    private static int threads = 8;
+    private static int lookups = 1000000;
+    
+    /**
+     * Keeps the results alive
+     */
+    private static volatile long sink;
+    
+    public static void main(String[] args) throws Exception {
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--threads=")) {
+                    threads = Math.max(1, Integer.parseInt(arg.substring("--threads=".length())));
+                } else if(arg.startsWith("--lookups=")) {
+                    lookups = Math.max(100, Integer.parseInt(arg.substring("--lookups=".length())));
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        final Config config = new Config();
+        
+        // Twice, the first round warms up
+        for(int round = 0; round < 2; round++) {
+            measure("reread", lookups / 100, new Lookup() {
+                public long lookup() {
+                    return Integer.parseInt(read("config.ini").get("chatPort"));
+                }
+            });
+            measure("getConfig", lookups, new Lookup() {
+                public long lookup() {
+                    return config.getConfig("chatPort").length();
+                }
+            });
+            measure("getInt", lookups, new Lookup() {
+                public long lookup() {
+                    return config.getInt("chatPort", 0);
+                }
+            });
+            measure("getInt missing", lookups, new Lookup() {
+                public long lookup() {
+                    return config.getInt("noSuchKey", 0);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Run lookups on every thread and print the time per lookup
+     * @param name
+     * @param count Lookups per thread
+     * @param lookup
+     */
+    private static void measure(String name, final int count, final Lookup lookup) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    
+                    long total = 0;
+                    for(int i = 0; i < count; i++) {
+                        total += lookup.lookup();
+                    }
+                    sink += total;
+                }
+            });
+            workers[t].start();
+        }
+        
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        
+        System.out.printf("%-16s %10.1f ns per lookup, %12.0f lookups/s%n", name, (double) elapsed / count,
+                (long) count * threads / (elapsed / 1e9));
+    }
+    
+    /**
+     * Read and parse a config file, as Config used to on every lookup
+     * @param filename
+     * @return Map of names and values
+     */
+    private static Map<String, String> read(String filename) {
+        Map<String, String> configuration = new HashMap<String, String>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(filename));
+            try {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    String[] config = line.split("=");
+                    if(!line.startsWith("#") && config.length == 2) {
+                        configuration.put(config[0].trim(), config[1].trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading " + filename + ": " + e);
+        }
+        return configuration;
+    }
+    
+    /**
+     * One lookup
+     * @author Petter
+     *
+     */
+    private interface Lookup {
+        long lookup();
+    }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ludo.server.ConnectionExecutor;
+import com.ludo.server.ConnectionExecutors;
+
+/**
+ * Compares the connection executors, the way the servers use them: every
+ * accepted loopback connection is served by a task that blocks reading it,
+ * and echoes what it reads. Measures how long it takes to accept and start
+ * serving every connection, the threads and heap they take while they are
+ * all blocked, and the echo round trip of each connection in turn.
+ *
+ * Run arguments:
+ * --threads=platform|virtual   Executor to measure (default platform)
+ * --connections=N              Connections held open at once (default 1000)
+ * @author Petter
+ *
+ */
+public class ConnectionBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        String threads = "platform";
+        int connections = 1000;
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--threads=")) {
+                    threads = arg.substring("--threads=".length());
+                } else if(arg.startsWith("--connections=")) {
+                    connections = Math.max(1, Integer.parseInt(arg.substring("--connections=".length())));
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        ConnectionExecutor executor = ConnectionExecutors.forMode(threads);
+        System.out.println("Executor: " + executor);
+        
+        ServerSocket listener = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+        int threadsBefore = Thread.activeCount();
+        long heapBefore = usedHeap();
+        
+        // Connect and start serving every connection
+        List<Socket> clients = new ArrayList<Socket>();
+        long start = System.nanoTime();
+        for(int i = 0; i < connections; i++) {
+            clients.add(new Socket(listener.getInetAddress(), listener.getLocalPort()));
+            final Socket socket = listener.accept();
+            executor.execute("echo-" + i, new Runnable() {
+                public void run() {
+                    echo(socket);
+                }
+            });
+        }
+        double accepted = (System.nanoTime() - start) / 1e6;
+        
+        // Every task is blocked reading now
+        Thread.sleep(500);
+        System.out.printf("%d connections served in %.1f ms%n", connections, accepted);
+        System.out.printf("platform threads: %d more, heap: %.1f MB more%n", Thread.activeCount() - threadsBefore, (usedHeap() - heapBefore) / 1e6);
+        
+        // Wake every task in turn
+        long[] trips = new long[connections];
+        for(int i = 0; i < connections; i++) {
+            Socket client = clients.get(i);
+            OutputStream out = client.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            
+            long sent = System.nanoTime();
+            out.write("ping\n".getBytes("UTF-8"));
+            out.flush();
+            in.readLine();
+            trips[i] = System.nanoTime() - sent;
+        }
+        Arrays.sort(trips);
+        System.out.printf("echo round trip: p50 %.1f us, p99 %.1f us, max %.1f us%n", trips[connections / 2] / 1e3,
+                trips[(int) (connections * 0.99)] / 1e3, trips[connections - 1] / 1e3);
+        
+        for(Socket client : clients) {
+            client.close();
+        }
+        listener.close();
+    }
+    
+    /**
+     * Serve a connection: echo lines until it is closed
+     * @param socket
+     */
+    private static void echo(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            String line;
+            while((line = in.readLine()) != null) {
+                out.println(line);
+            }
+        } catch (IOException e) {
+            // Closed by the benchmark
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+    
+    /**
+     * Heap in use after a collection
+     * @return long Bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
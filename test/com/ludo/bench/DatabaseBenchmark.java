@@ -0,0 +1,143 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import com.ludo.config.Config;
+import com.ludo.server.DatabaseHandler;
+
+/**
+ * Measures the login query, as many users log in at once. Compares opening
+ * a connection and preparing the query for every login, which is what the
+ * DatabaseHandler used to do, with the pooled connections and cached
+ * statements of the DatabaseHandler. Reports the time of a login query at
+ * p50, p99 and max, and logins per second.
+ *
+ * Needs the database from config.ini, with its JDBC driver on the class
+ * path. Run from the directory holding config.ini.
+ *
+ * Run arguments:
+ * --threads=N     Concurrent logins (default 16)
+ * --queries=N     Logins per thread (default 500)
+ * @author Petter
+ *
+ */
+public class DatabaseBenchmark {
+    
+    private static final String AUTHENTICATE_USER = "SELECT id FROM users WHERE username=? AND password=?";
+    
+    private static int threads = 16;
+    private static int queries = 500;
+    
+    public static void main(String[] args) throws Exception {
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--threads=")) {
+                    threads = Math.max(1, Integer.parseInt(arg.substring("--threads=".length())));
+                } else if(arg.startsWith("--queries=")) {
+                    queries = Math.max(1, Integer.parseInt(arg.substring("--queries=".length())));
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        Config config = new Config();
+        final String url = config.getConfig("databaseUrl");
+        final String user = config.getConfig("databaseUser");
+        final String password = config.getConfig("databasePassword");
+        final DatabaseHandler database = new DatabaseHandler();
+        
+        measure("connect per query", new Query() {
+            public void run(int thread, int query) throws SQLException {
+                Connection connection = DriverManager.getConnection(url, user, password);
+                try {
+                    PreparedStatement statement = connection.prepareStatement(AUTHENTICATE_USER);
+                    statement.setString(1, "user" + thread);
+                    statement.setString(2, "password");
+                    ResultSet results = statement.executeQuery();
+                    results.next();
+                    results.close();
+                    statement.close();
+                } finally {
+                    connection.close();
+                }
+            }
+        });
+        
+        measure("pooled", new Query() {
+            public void run(int thread, int query) {
+                database.exists(AUTHENTICATE_USER, "user" + thread, "password");
+            }
+        });
+    }
+    
+    /**
+     * Run the queries on every thread and print the times
+     * @param name
+     * @param query
+     */
+    private static void measure(String name, final Query query) throws InterruptedException {
+        final long[][] times = new long[threads][queries];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for(int q = 0; q < queries; q++) {
+                            long before = System.nanoTime();
+                            query.run(thread, q);
+                            times[thread][q] = System.nanoTime() - before;
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (SQLException e) {
+                        System.out.println("Query failed: " + e);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        
+        long[] all = new long[threads * queries];
+        for(int t = 0; t < threads; t++) {
+            System.arraycopy(times[t], 0, all, t * queries, queries);
+        }
+        Arrays.sort(all);
+        
+        System.out.printf("%-18s %8.0f logins/s | p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", name, all.length / elapsed,
+                all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6, all[all.length - 1] / 1e6);
+    }
+    
+    /**
+     * One login query
+     * @author Petter
+     *
+     */
+    private interface Query {
+        void run(int thread, int query) throws SQLException;
+    }
+
+}
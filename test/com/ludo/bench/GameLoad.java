@@ -0,0 +1,326 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.ludo.config.Config;
+import com.ludo.server.ConnectionExecutors;
+import com.ludo.server.GameServer;
+import com.ludo.server.ServerMetrics;
+
+/**
+ * Load generator for the game server. Connects many players at once, as a
+ * burst of users pressing play, and measures how long each of them waits
+ * from sending its username until its game starts, and how many players
+ * are matched into games per second.
+ *
+ * With --play the players also play their games to the end, each moving
+ * its first piece that is allowed to move. Then it reports how long a move
+ * takes from being sent until the server broadcasts it, and how many games
+ * are finished per second and per core. With --server it also reports the
+ * heap used and the threads running while every game is in progress, on
+ * both sides of the sockets, as
+ * games hosted per GB of heap.
+ *
+ * The game server can be started in this process, with the settings in
+ * config.ini, or a running one can be used. Its output is hidden when it
+ * runs in this process.
+ *
+ * Run arguments:
+ * --server        Start a game server in this process
+ * --host=HOST     Game server (default localhost)
+ * --port=N        Game port (default gamePort from config.ini)
+ * --players=N     Players connecting at once (default 1000)
+ * --play          Play every game to the end
+ * @author Petter
+ *
+ */
+public class GameLoad {
+    
+    private static String host = "localhost";
+    private static int port = new Config().getInt("gamePort", 5050);
+    private static int players = 1000;
+    private static boolean play = false;
+    
+    public static void main(String[] args) throws Exception {
+        boolean server = false;
+        try {
+            for(String arg : args) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                if(arg.equals("--server")) {
+                    server = true;
+                } else if(arg.startsWith("--host=")) {
+                    host = value;
+                } else if(arg.startsWith("--port=")) {
+                    port = Integer.parseInt(value);
+                } else if(arg.startsWith("--players=")) {
+                    players = Math.max(1, Integer.parseInt(value));
+                } else if(arg.equals("--play")) {
+                    play = true;
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        PrintStream report = System.out;
+        long heapBefore = usedHeap();
+        if(server) {
+            System.setOut(new PrintStream(new OutputStream() {
+                public void write(int b) {
+                    // Hide the server's output
+                }
+            }));
+            new GameServer(ConnectionExecutors.platform()).start();
+            Thread.sleep(500);
+        }
+        
+        final CountDownLatch started = new CountDownLatch(players);
+        final CountDownLatch finished = new CountDownLatch(players);
+        List<LoadPlayer> all = new ArrayList<LoadPlayer>();
+        long begin = System.nanoTime();
+        for(int i = 0; i < players; i++) {
+            LoadPlayer player = new LoadPlayer("gameload" + i, started, finished);
+            all.add(player);
+            Thread thread = new Thread(player, "game-load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        // Lobbies short of maxPlayers wait for lobbyTimeout
+        boolean done = started.await(120, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        
+        long[] waits = new long[players];
+        int matched = 0;
+        for(LoadPlayer player : all) {
+            if(player.wait >= 0) {
+                waits[matched++] = player.wait;
+            }
+        }
+        waits = Arrays.copyOf(waits, matched);
+        Arrays.sort(waits);
+        
+        report.printf("%d of %d players matched in %.2f s, %.0f players/s%s%n", matched, players, elapsed, matched / elapsed, done ? "" : " (timed out)");
+        if(matched > 0) {
+            report.printf("wait for a game: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n", waits[matched / 2] / 1e6,
+                    waits[(int) (matched * 0.99)] / 1e6, waits[matched - 1] / 1e6);
+        }
+        
+        if(play) {
+            
+            // Every game in progress, the players are in this process too
+            if(server) {
+                long games = ServerMetrics.gamesFormed.get();
+                long heap = usedHeap() - heapBefore;
+                report.printf("%d games in progress: %.1f MB heap, %d threads, %.0f games per GB of heap%n", games,
+                        heap / 1e6, Thread.activeCount(), games / (heap / 1e9));
+            }
+            
+            done = finished.await(600, TimeUnit.SECONDS);
+            elapsed = (System.nanoTime() - begin) / 1e9;
+            report(report, all, elapsed, done);
+        }
+        
+        for(LoadPlayer player : all) {
+            player.close();
+        }
+        System.exit(0);
+    }
+    
+    /**
+     * Print the move round trips and finished games
+     * @param report
+     * @param all
+     * @param elapsed Seconds since the first player connected
+     * @param done If every game finished in time
+     */
+    private static void report(PrintStream report, List<LoadPlayer> all, double elapsed, boolean done) {
+        int moves = 0;
+        int won = 0;
+        for(LoadPlayer player : all) {
+            moves += player.moves;
+            won += player.won ? 1 : 0;
+        }
+        
+        long[] trips = new long[moves];
+        moves = 0;
+        for(LoadPlayer player : all) {
+            System.arraycopy(player.trips, 0, trips, moves, player.moves);
+            moves += player.moves;
+        }
+        Arrays.sort(trips);
+        
+        int cores = Runtime.getRuntime().availableProcessors();
+        report.printf("%d games won in %.2f s, %.1f games/s, %.1f games/s per core (%d cores)%s%n", won, elapsed,
+                won / elapsed, won / elapsed / cores, cores, done ? "" : " (timed out)");
+        if(moves > 0) {
+            report.printf("%d moves, round trip: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", moves, trips[moves / 2] / 1e6,
+                    trips[(int) (moves * 0.99)] / 1e6, trips[moves - 1] / 1e6);
+        }
+    }
+    
+    /**
+     * Heap in use after a collection
+     * @return bytes
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        Thread.sleep(200);
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    /**
+     * One player: sends its username and waits for its game to start,
+     * then plays it to the end with --play
+     * @author Petter
+     *
+     */
+    private static class LoadPlayer implements Runnable {
+        private String username;
+        private CountDownLatch started;
+        private CountDownLatch finished;
+        private Socket socket;
+        
+        /**
+         * Nanoseconds from sending the username to the start of the game, -1 until then
+         */
+        private volatile long wait = -1;
+        
+        /**
+         * Nanoseconds from sending each move until it was broadcast
+         */
+        private long[] trips = new long[64];
+        private volatile int moves = 0;
+        
+        /**
+         * If this player's game ended with a winner
+         */
+        private volatile boolean won = false;
+        
+        public LoadPlayer(String username, CountDownLatch started, CountDownLatch finished) {
+            this.username = username;
+            this.started = started;
+            this.finished = finished;
+        }
+        
+        public synchronized void close() {
+            if(this.socket == null) {
+                return;
+            }
+            
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        
+        public void run() {
+            try {
+                BufferedReader in;
+                PrintWriter out;
+                synchronized(this) {
+                    this.socket = new Socket(host, port);
+                    this.socket.setTcpNoDelay(true);
+                    in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), "UTF-8"));
+                    out = new PrintWriter(this.socket.getOutputStream(), true);
+                }
+                
+                // USERNAMEREQUEST, answered in text
+                in.readLine();
+                long sent = System.nanoTime();
+                out.println("USERNAME " + this.username);
+                
+                String line;
+                while((line = in.readLine()) != null) {
+                    if(line.startsWith("STARTGAME")) {
+                        this.wait = System.nanoTime() - sent;
+                        this.started.countDown();
+                        
+                        if(play) {
+                            play(line.split(" ")[1], in, out);
+                        }
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(this.username + ": " + e.getMessage());
+            } finally {
+                this.finished.countDown();
+            }
+        }
+        
+        /**
+         * Play the game to the end. On its turn the player tries its pieces
+         * in order until the server accepts a move.
+         * @param color This player's color
+         * @param in
+         * @param out
+         * @throws IOException
+         */
+        private void play(String color, BufferedReader in, PrintWriter out) throws IOException {
+            long sent = 0;
+            int piece = 0;
+            
+            String line;
+            while((line = in.readLine()) != null) {
+                String[] args = line.split(" ");
+                
+                // TURN <color> <dice> <version> <own color>, try the first piece
+                if(args[0].equals("TURN")) {
+                    sent = 0;
+                    if(args[1].equals(color)) {
+                        piece = 1;
+                        sent = System.nanoTime();
+                        out.println("MOVE " + piece + " " + color);
+                    }
+                }
+                
+                // Not allowed, try the next piece
+                else if(args[0].equals("MOVEDENIED") && sent != 0 && piece < 4) {
+                    piece++;
+                    out.println("MOVE " + piece + " " + color);
+                }
+                
+                // MOVE <piece id> <position> <color> <version> <own color>
+                else if(args[0].equals("MOVE") && args[3].equals(color) && sent != 0) {
+                    if(this.moves == this.trips.length) {
+                        this.trips = Arrays.copyOf(this.trips, this.moves * 2);
+                    }
+                    this.trips[this.moves] = System.nanoTime() - sent;
+                    this.moves++;
+                    sent = 0;
+                }
+                
+                else if(args[0].equals("WIN")) {
+                    this.won = args[1].equals(color);
+                    return;
+                }
+                
+                else if(args[0].equals("GAMEOVER")) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import com.ludo.i18n.MessageBundle;
+
+/**
+ * Measures text lookups, as a view makes them for every label while it is
+ * initialised. Compares looking the bundle up with ResourceBundle.getBundle
+ * for every text, which is what MessageBundle used to do, with a lookup in
+ * the preloaded table. The config reads that used to come with every lookup
+ * are measured by ConfigBenchmark.
+ *
+ * Run from the directory holding config.ini, with src on the class path
+ * for the bundles.
+ *
+ * Run arguments:
+ * --rounds=N     Lookups of every key (default 100000)
+ * @author Petter
+ *
+ */
+public class MessageBundleBenchmark {
+    
+    private static final String BUNDLE = "com.ludo.i18n.MessagesBundle";
+    
+    /**
+     * Keeps the results alive
+     */
+    private static volatile long sink;
+    
+    public static void main(String[] args) {
+        int rounds = 100000;
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--rounds=")) {
+                    rounds = Math.max(1, Integer.parseInt(arg.substring("--rounds=".length())));
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        Locale locale = MessageBundle.getLocale();
+        List<String> keys = new ArrayList<String>(ResourceBundle.getBundle(BUNDLE, locale).keySet());
+        MessageBundle messages = new MessageBundle();
+        System.out.println(keys.size() + " keys in " + locale);
+        
+        // Twice, the first round warms up
+        long total = 0;
+        for(int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for(int r = 0; r < rounds; r++) {
+                for(String key : keys) {
+                    total += ResourceBundle.getBundle(BUNDLE, locale).getString(key).length();
+                }
+            }
+            report("getBundle", System.nanoTime() - start, (long) rounds * keys.size());
+            
+            start = System.nanoTime();
+            for(int r = 0; r < rounds; r++) {
+                for(String key : keys) {
+                    total += messages.retriveText(key).length();
+                }
+            }
+            report("retriveText", System.nanoTime() - start, (long) rounds * keys.size());
+        }
+        
+        sink = total;
+    }
+    
+    private static void report(String name, long nanos, long lookups) {
+        System.out.printf("%-12s %8.1f ns per lookup%n", name, (double) nanos / lookups);
+    }
+
+}
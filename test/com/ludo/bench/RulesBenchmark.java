@@ -0,0 +1,256 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+
+import com.ludo.game.BoardTopology;
+import com.ludo.game.Rules;
+
+/**
+ * Measures the rules engine, as a game runs it on every turn: finding the
+ * legal moves, making one and checking for a win. Compares players holding
+ * Piece objects and a String color, which is what GameServer used to do,
+ * with the packed board of Rules. Both play the same random games with the
+ * same rules, and report moves per second and bytes allocated per move.
+ *
+ * Run arguments:
+ * --games=N     Games played by each model (default 200000)
+ * --seed=N      Random seed (default 1)
+ * @author Petter
+ *
+ */
+public class RulesBenchmark {
+    
+    private static final String[] COLORS = { "red", "blue", "yellow", "green" };
+    
+    /**
+     * Keeps the results alive
+     */
+    private static volatile long sink;
+    
+    public static void main(String[] args) {
+        int games = 200000;
+        long seed = 1;
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--games=")) {
+                    games = Math.max(1, Integer.parseInt(arg.substring("--games=".length())));
+                } else if(arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        // Twice, the first round warms up
+        for(int round = 0; round < 2; round++) {
+            measure("objects", games, seed, new Engine() {
+                public long play(SplittableRandom random) {
+                    return playObjects(random);
+                }
+            });
+            measure("Rules", games, seed, new Engine() {
+                public long play(SplittableRandom random) {
+                    return playRules(Rules.newBoard(), random);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Play the games and print the moves per second
+     * @param name
+     * @param games
+     * @param seed
+     * @param engine
+     */
+    private static void measure(String name, int games, long seed, Engine engine) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long allocated = allocatedBytes();
+        long moves = 0;
+        
+        long start = System.nanoTime();
+        for(int game = 0; game < games; game++) {
+            moves += engine.play(random);
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        
+        sink += moves;
+        System.out.printf("%-8s %12.0f moves/s, %6.1f ns per move, %6.2f bytes allocated per move%n", name,
+                moves / (elapsed / 1e9), (double) elapsed / moves, (double) allocated / moves);
+    }
+    
+    /**
+     * Play a game on the packed board
+     * @param board
+     * @param random
+     * @return Moves made
+     */
+    private static long playRules(byte[] board, SplittableRandom random) {
+        long moves = 0;
+        
+        for(int turn = 0; ; turn++) {
+            int color = turn % COLORS.length;
+            int dice = 1 + random.nextInt(BoardTopology.MAX_DICE);
+            
+            int legal = Rules.legalMoves(board, color, dice);
+            if(legal == 0) {
+                continue;
+            }
+            
+            Rules.apply(board, color, Integer.numberOfTrailingZeros(legal), dice);
+            moves++;
+            
+            if(Rules.hasWon(board, color)) {
+                return moves;
+            }
+        }
+    }
+    
+    /**
+     * Play a game with Piece objects, making the same moves as playRules
+     * @param random
+     * @return Moves made
+     */
+    private static long playObjects(SplittableRandom random) {
+        Player[] players = new Player[COLORS.length];
+        for(int i = 0; i < players.length; i++) {
+            players[i] = new Player(COLORS[i]);
+        }
+        long moves = 0;
+        
+        for(int turn = 0; ; turn++) {
+            Player player = players[turn % players.length];
+            int dice = 1 + random.nextInt(BoardTopology.MAX_DICE);
+            
+            // Find the player by color, as the game did for every MOVE
+            for(Player other : players) {
+                if(other.getColor().equals(player.getColor())) {
+                    player = other;
+                }
+            }
+            
+            if(!player.canMoveAny(dice)) {
+                continue;
+            }
+            
+            for(Piece piece : player.pieces) {
+                if(piece.move(dice)) {
+                    break;
+                }
+            }
+            moves++;
+            
+            if(player.hasWon()) {
+                return moves;
+            }
+        }
+    }
+    
+    /**
+     * A player with its pieces, as in the old GameServer
+     * @author Petter
+     *
+     */
+    private static class Player {
+        private Piece[] pieces = new Piece[Rules.PIECES];
+        private String color;
+        
+        public Player(String color) {
+            for(int i = 0; i < this.pieces.length; i++) {
+                this.pieces[i] = new Piece();
+            }
+            this.color = color;
+        }
+        
+        public String getColor() {
+            return this.color;
+        }
+        
+        public boolean canMoveAny(int dice) {
+            for(Piece piece : this.pieces) {
+                if(piece.validMove(dice)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        public boolean hasWon() {
+            for(Piece piece : this.pieces) {
+                if(!piece.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * A piece, as in the old GameServer, with the rules of Rules
+     * @author Petter
+     *
+     */
+    private static class Piece {
+        private int position = Rules.HOME;
+        
+        public boolean validMove(int dice) {
+            return target(dice) >= 0;
+        }
+        
+        public boolean move(int dice) {
+            int target = target(dice);
+            if(target < 0) {
+                return false;
+            }
+            this.position = target;
+            return true;
+        }
+        
+        private int target(int dice) {
+            if(isDone()) {
+                return -1;
+            }
+            if(this.position == Rules.HOME) {
+                return dice == Rules.LEAVE_HOME ? Rules.START : -1;
+            }
+            int target = this.position + dice;
+            return target <= Rules.GOAL ? target : -1;
+        }
+        
+        public boolean isDone() {
+            return this.position == Rules.GOAL;
+        }
+    }
+    
+    /**
+     * Bytes allocated by this thread so far, -1 if the JVM cannot tell
+     * @return long
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+    
+    /**
+     * One way of playing a game
+     * @author Petter
+     *
+     */
+    private interface Engine {
+        long play(SplittableRandom random);
+    }
+
+}
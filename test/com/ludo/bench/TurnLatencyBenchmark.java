@@ -0,0 +1,245 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.swing.JDialog;
+import javax.swing.JOptionPane;
+import javax.swing.Timer;
+
+import com.ludo.client.NotificationOverlay;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.layout.StackPane;
+import javafx.stage.Stage;
+
+/**
+ * Measures how long a scripted game's turns take to process when every
+ * turn shows a notification. A game handler thread plays the turns one
+ * after the other, and each turn tells the player it is their turn, either
+ * with a NotificationOverlay, or with a message dialog on the handler
+ * thread, as the game controller used to. A dialog waits until it is
+ * closed, here after a set time, as if the user clicked OK.
+ *
+ * For every turn it records how long the handler was blocked and how long
+ * until the notification was on screen, a dialog when its window opened and
+ * a banner in the first frame it is part of.
+ * @author Petter
+ *
+ */
+public class TurnLatencyBenchmark extends Application {
+    
+    /**
+     * Turns played
+     */
+    private static int turns = 20;
+    
+    /**
+     * Time before a dialog is closed, in milliseconds
+     */
+    private static int close = 1000;
+    
+    /**
+     * Show message dialogs instead of the overlay
+     */
+    private static boolean dialog = false;
+    
+    /**
+     * Time the handler was blocked and time until shown, per turn, in
+     * nanoseconds. -1 if a notification was never shown.
+     */
+    private long[] blocked;
+    private long[] shown;
+    
+    /**
+     * When each notification was asked for, by text
+     */
+    private Map<String, Long> requested = new ConcurrentHashMap<String, Long>();
+    
+    /**
+     * Run the benchmark and print the turn latencies.
+     *
+     * Run arguments:
+     * --turns=N              Turns to play (default 20)
+     * --dialog               A message dialog per turn instead of the overlay
+     * --close=MS             Time before a dialog is closed (default 1000)
+     *
+     * @param args Run arguments
+     */
+    public static void main(String[] args) {
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--turns=")) {
+                    turns = Math.max(1, Integer.parseInt(arg.substring("--turns=".length())));
+                } else if(arg.startsWith("--close=")) {
+                    close = Math.max(0, Integer.parseInt(arg.substring("--close=".length())));
+                } else if(arg.equals("--dialog")) {
+                    dialog = true;
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        launch(new String[0]);
+    }
+    
+    @Override
+    public void start(Stage stage) throws Exception {
+        this.blocked = new long[turns];
+        this.shown = new long[turns];
+        Arrays.fill(this.shown, -1);
+        
+        final NotificationOverlay overlay = new NotificationOverlay();
+        stage.setScene(new Scene(new StackPane(overlay), 640, 480));
+        stage.setTitle("Turn latency");
+        stage.show();
+        
+        // Note when each banner is first part of a frame
+        new AnimationTimer() {
+            public void handle(long now) {
+                for(Node node : overlay.getChildren()) {
+                    seen(((Label) node).getText(), System.nanoTime());
+                }
+            }
+        }.start();
+        
+        Thread handler = new Thread(new Runnable() {
+            public void run() {
+                play(overlay);
+            }
+        }, "game-handler");
+        handler.setDaemon(true);
+        handler.start();
+    }
+    
+    /**
+     * Play the turns on the handler thread, then report
+     * @param overlay
+     */
+    private void play(NotificationOverlay overlay) {
+        long start = System.nanoTime();
+        
+        for(int turn = 0; turn < turns; turn++) {
+            String text = "Your turn, you rolled " + (turn % 6 + 1) + " (turn " + turn + ")";
+            
+            long before = System.nanoTime();
+            this.requested.put(text, before);
+            if(dialog) {
+                showDialog(text);
+            } else {
+                overlay.show(text);
+            }
+            this.blocked[turn] = System.nanoTime() - before;
+        }
+        
+        long handled = System.nanoTime() - start;
+        
+        // Let the last banners reach the screen
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            return;
+        }
+        
+        final double millis = handled / 1e6;
+        Platform.runLater(new Runnable() {
+            public void run() {
+                report(millis);
+                Platform.exit();
+                System.exit(0);
+            }
+        });
+    }
+    
+    /**
+     * Show a message dialog and wait until it is closed, as the game
+     * controller did. It is closed after the set time.
+     * @param text
+     */
+    private void showDialog(final String text) {
+        JOptionPane pane = new JOptionPane(text, JOptionPane.INFORMATION_MESSAGE);
+        final JDialog window = pane.createDialog("Ludo");
+        
+        window.addWindowListener(new WindowAdapter() {
+            public void windowOpened(WindowEvent event) {
+                seen(text, System.nanoTime());
+            }
+        });
+        
+        Timer timer = new Timer(close, new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                window.dispose();
+            }
+        });
+        timer.setRepeats(false);
+        timer.start();
+        
+        // Modal, blocks until the dialog is closed
+        window.setVisible(true);
+    }
+    
+    /**
+     * A notification is on screen
+     * @param text
+     * @param now
+     */
+    private void seen(String text, long now) {
+        Long asked = this.requested.remove(text);
+        if(asked == null) {
+            return;
+        }
+        
+        int turn = Integer.parseInt(text.substring(text.lastIndexOf(' ') + 1, text.length() - 1));
+        this.shown[turn] = now - asked;
+    }
+    
+    /**
+     * Print the turn latencies
+     * @param millis Time the handler took for every turn
+     */
+    private void report(double millis) {
+        System.out.printf("%s: %d turns in %.1f ms%n", dialog ? "Dialog, closed after " + close + " ms" : "Overlay", turns, millis);
+        System.out.println("Handler blocked: " + summary(this.blocked));
+        
+        // Banners replaced before a frame are never shown
+        long[] seen = new long[turns];
+        int count = 0;
+        for(long time : this.shown) {
+            if(time >= 0) {
+                seen[count++] = time;
+            }
+        }
+        if(count > 0) {
+            System.out.println("Shown after:     " + summary(Arrays.copyOf(seen, count)));
+        }
+        if(count < turns) {
+            System.out.println((turns - count) + " notifications were replaced before they were shown");
+        }
+    }
+    
+    private static String summary(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %.3f ms, p99 %.3f ms, max %.3f ms", sorted[sorted.length / 2] / 1e6,
+                sorted[(int) (sorted.length * 0.99)] / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * 
+ */
+package com.ludo.bench;
+
+import java.util.Arrays;
+
+import com.ludo.client.ViewRegistry;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.fxml.FXMLLoader;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.scene.layout.StackPane;
+import javafx.stage.Stage;
+
+/**
+ * Measures how long it takes to switch screens. Cold switches load the
+ * FXML view every time, as the client used to, warm switches take the
+ * view from a ViewRegistry, where it was preloaded in the background and
+ * is reset on reuse. Every switch sets the view as the root of a shown
+ * scene, and the time includes the layout of the next frame.
+ * @author Petter
+ *
+ */
+public class ViewBenchmark extends Application {
+    
+    private static final String[] VIEWS = { ViewRegistry.LOGIN, ViewRegistry.MAIN, ViewRegistry.GAME };
+    
+    /**
+     * Times every view is switched to
+     */
+    private static int rounds = 50;
+    
+    private Scene scene;
+    
+    /**
+     * Run the benchmark and print the switch times.
+     *
+     * Run arguments:
+     * --rounds=N             Switches to every view (default 50)
+     *
+     * @param args Run arguments
+     */
+    public static void main(String[] args) {
+        try {
+            for(String arg : args) {
+                if(arg.startsWith("--rounds=")) {
+                    rounds = Math.max(1, Integer.parseInt(arg.substring("--rounds=".length())));
+                } else {
+                    System.out.println("Unknown argument: " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        
+        launch(new String[0]);
+    }
+    
+    @Override
+    public void start(Stage stage) throws Exception {
+        this.scene = new Scene(new StackPane(), 920, 640);
+        stage.setScene(this.scene);
+        stage.setTitle("Screen switches");
+        stage.show();
+        
+        // First switch to each view, before any FXML has been loaded
+        long[][] cold = new long[VIEWS.length][rounds];
+        for(int v = 0; v < VIEWS.length; v++) {
+            long start = System.nanoTime();
+            show((Parent) new FXMLLoader(getClass().getResource(VIEWS[v])).load());
+            cold[v][0] = System.nanoTime() - start;
+        }
+        
+        // Loading the view on every switch
+        for(int round = 1; round < rounds; round++) {
+            for(int v = 0; v < VIEWS.length; v++) {
+                long start = System.nanoTime();
+                show((Parent) new FXMLLoader(getClass().getResource(VIEWS[v])).load());
+                cold[v][round] = System.nanoTime() - start;
+            }
+        }
+        
+        // Preload, give the loader time to finish, as it would while the user logs in
+        ViewRegistry views = new ViewRegistry();
+        views.preload(VIEWS);
+        Thread.sleep(1000);
+        
+        long[][] warm = new long[VIEWS.length][rounds];
+        for(int round = 0; round < rounds; round++) {
+            for(int v = 0; v < VIEWS.length; v++) {
+                long start = System.nanoTime();
+                show(views.get(VIEWS[v]).getRoot());
+                warm[v][round] = System.nanoTime() - start;
+            }
+        }
+        
+        for(int v = 0; v < VIEWS.length; v++) {
+            String name = VIEWS[v].substring(VIEWS[v].lastIndexOf('/') + 1);
+            System.out.printf("%-14s first %7.2f ms | cold %s | warm %s%n", name, cold[v][0] / 1e6,
+                    summary(Arrays.copyOfRange(cold[v], 1, rounds)), summary(warm[v]));
+        }
+        
+        Platform.exit();
+    }
+    
+    /**
+     * Show a view, and lay it out as the next frame would
+     * @param root
+     */
+    private void show(Parent root) {
+        this.scene.setRoot(root);
+        root.applyCss();
+        root.layout();
+    }
+    
+    /**
+     * Describe switch times
+     * @param times Nanoseconds
+     * @return Average, median and max in milliseconds
+     */
+    private static String summary(long[] times) {
+        if(times.length == 0) {
+            return "-";
+        }
+        
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        
+        long total = 0;
+        for(long time : sorted) {
+            total += time;
+        }
+        
+        return String.format("avg %6.2f ms, p50 %6.2f ms, max %6.2f ms", total / 1e6 / sorted.length, sorted[sorted.length / 2] / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * 
+ */
+package com.ludo.config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+
+/**
+ * Checks of the Config: typed lookups with defaults, and reloads when the
+ * file changes on disk, which must keep the current values when the new
+ * file is missing keys.
+ *
+ * Run with java -ea com.ludo.config.ConfigTest, exits with status 1
+ * if a check fails.
+ * @author Petter
+ *
+ */
+public class ConfigTest {
+    
+    /**
+     * How long a reload is waited for, in milliseconds
+     */
+    private static final long RELOAD_WAIT = 5000;
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("config").toFile();
+        File file = new File(dir, "test.ini");
+        try {
+            write(file, "# Test\nport=4040\ninterval=5000000000\nname=ludo\nbroken=12x\nflag=true\n");
+            Config config = new Config(file.getAbsolutePath());
+            
+            lookups(config);
+            reloads(config, file);
+        } finally {
+            new File(dir, "test.ini").delete();
+            dir.delete();
+        }
+        
+        System.out.println(failures == 0 ? "ConfigTest passed" : "ConfigTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    private static void lookups(Config config) {
+        check(config.getInt("port", 0) == 4040, "int value");
+        check(config.getInt("port", 0) == 4040, "int value, cached");
+        check(config.getLong("interval", 0) == 5000000000L, "long value");
+        check(config.getInt("interval", 7) == 7, "long value read as int gives the default");
+        check(config.getInt("broken", 3) == 3 && config.getInt("broken", 4) == 4, "not a number gives the default of each call");
+        check(config.getLong("missing", 9) == 9, "missing value gives the default");
+        check(config.getBoolean("flag", false) && config.getBoolean("missing", true), "boolean values");
+        check("ludo".equals(config.getConfig("name")) && config.getConfig("missing") == null, "string values");
+    }
+    
+    private static void reloads(Config config, File file) throws Exception {
+        
+        // Lost keys, as if read while it was being written
+        write(file, "# Test\nport=5050\n");
+        Thread.sleep(1000);
+        check(config.getInt("port", 0) == 4040 && "ludo".equals(config.getConfig("name")), "file missing keys is not used");
+        
+        // Every key, one changed
+        write(file, "# Test\nport=6060\ninterval=5000000000\nname=ludo\nbroken=12x\nflag=true\n");
+        long deadline = System.currentTimeMillis() + RELOAD_WAIT;
+        while(config.getInt("port", 0) != 6060 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        check(config.getInt("port", 0) == 6060, "changed file is reloaded");
+        
+        // Values set through the config are kept and written
+        config.setConfig("added", "42");
+        check(config.getInt("added", 0) == 42 && config.getInt("port", 0) == 6060, "set value is used at once");
+        Thread.sleep(500);
+        check(config.getInt("added", 0) == 42, "set value survives the reload it causes");
+    }
+    
+    private static void write(File file, String text) throws Exception {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+}
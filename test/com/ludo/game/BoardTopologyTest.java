@@ -0,0 +1,207 @@
+/**
+ * 
+ */
+package com.ludo.game;
+
+/**
+ * Exhaustive checks of the BoardTopology tables against the rules they
+ * replaced: every color, position and dice roll is compared with the
+ * arithmetic Rules did on its own, and with the field arithmetic of the
+ * client's movePiece on the main track. Also checks that the fields of
+ * every route cover the board as expected.
+ *
+ * Run with java -ea com.ludo.game.BoardTopologyTest, exits with status 1
+ * if a check fails.
+ * @author Petter
+ *
+ */
+public class BoardTopologyTest {
+    
+    /**
+     * The goal the old rules used, mapLength in config.ini
+     */
+    private static final int OLD_GOAL = 59;
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) {
+        targets();
+        fields();
+        tracks();
+        roads();
+        rules();
+        
+        System.out.println(failures == 0 ? "BoardTopologyTest passed" : "BoardTopologyTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Every move is the same as with the old rules
+     */
+    private static void targets() {
+        check(BoardTopology.GOAL == OLD_GOAL, "goal is the old default mapLength");
+        
+        for(int position = 0; position <= BoardTopology.GOAL; position++) {
+            check(BoardTopology.target(position, 0) == -1, "no move without a roll from " + position);
+            
+            for(int dice = 1; dice <= BoardTopology.MAX_DICE; dice++) {
+                int expected = oldTarget(position, dice);
+                check(BoardTopology.target(position, dice) == expected, "target from " + position + " with " + dice
+                        + " is " + BoardTopology.target(position, dice) + ", was " + expected);
+                
+                for(int color = 0; color < 4; color++) {
+                    int field = expected < 0 ? -1 : BoardTopology.field(color, expected);
+                    check(BoardTopology.fieldAfter(color, position, dice) == field, "field after " + dice + " from "
+                            + position + " of color " + color + " is " + BoardTopology.fieldAfter(color, position, dice) + ", expected " + field);
+                }
+            }
+        }
+    }
+    
+    /**
+     * The main track is where the client used to put it
+     */
+    private static void fields() {
+        for(int color = 0; color < 4; color++) {
+            check(BoardTopology.field(color, Rules.HOME) == 0, "home of color " + color);
+            
+            for(int position = Rules.START; position <= BoardTopology.LAP; position++) {
+                int expected = oldClientField(color, position);
+                check(BoardTopology.field(color, position) == expected, "field of " + position + " for color " + color
+                        + " is " + BoardTopology.field(color, position) + ", was " + expected);
+            }
+            
+            check(BoardTopology.field(color, BoardTopology.LAP) == BoardTopology.field(color, Rules.START), "a lap ends on the start field of color " + color);
+        }
+    }
+    
+    /**
+     * Every color passes every field of the main track once
+     */
+    private static void tracks() {
+        for(int color = 0; color < 4; color++) {
+            int[] seen = new int[BoardTopology.TRACK + 1];
+            
+            for(int position = Rules.START; position <= BoardTopology.TRACK; position++) {
+                int field = BoardTopology.field(color, position);
+                if(field < 1 || field > BoardTopology.TRACK) {
+                    check(false, "field " + field + " of " + position + " for color " + color + " is off the track");
+                    continue;
+                }
+                seen[field]++;
+                check(BoardTopology.roadColor(field) == -1, "track field " + field + " is on no road");
+            }
+            
+            for(int field = 1; field <= BoardTopology.TRACK; field++) {
+                check(seen[field] == 1, "color " + color + " passes field " + field + " " + seen[field] + " times");
+            }
+        }
+    }
+    
+    /**
+     * Every field of the roads to goal belongs to a single color
+     */
+    private static void roads() {
+        int[] owner = new int[BoardTopology.FIELDS];
+        for(int field = 0; field < owner.length; field++) {
+            owner[field] = -1;
+        }
+        
+        for(int color = 0; color < 4; color++) {
+            for(int position = BoardTopology.LAP + 1; position <= BoardTopology.GOAL; position++) {
+                int field = BoardTopology.field(color, position);
+                if(field <= BoardTopology.TRACK || field >= BoardTopology.FIELDS) {
+                    check(false, "road position " + position + " of color " + color + " is on field " + field);
+                    continue;
+                }
+                
+                check(owner[field] == -1, "road field " + field + " is used by colors " + owner[field] + " and " + color);
+                owner[field] = color;
+                check(BoardTopology.roadColor(field) == color, "road field " + field + " belongs to color " + color);
+            }
+        }
+        
+        for(int field = BoardTopology.TRACK + 1; field < BoardTopology.FIELDS; field++) {
+            check(owner[field] != -1, "road field " + field + " is used");
+        }
+    }
+    
+    /**
+     * Rules moves the way the tables say, on every piece of every color
+     */
+    private static void rules() {
+        byte[] board = Rules.newBoard();
+        
+        for(int position = 0; position <= BoardTopology.GOAL; position++) {
+            for(int dice = 1; dice <= BoardTopology.MAX_DICE; dice++) {
+                int expected = oldTarget(position, dice);
+                
+                for(int color = 0; color < 4; color++) {
+                    for(int piece = 0; piece < Rules.PIECES; piece++) {
+                        int index = Rules.index(color, piece);
+                        board[index] = (byte) position;
+                        
+                        check(Rules.isLegal(board, color, piece, dice) == (expected >= 0), "legal move of " + position + " with " + dice);
+                        check(((Rules.legalMoves(board, color, dice) >> piece) & 1) == (expected >= 0 ? 1 : 0), "legal moves of " + position + " with " + dice);
+                        check(Rules.apply(board, color, piece, dice) == expected, "move of " + position + " with " + dice);
+                        check(board[index] == (expected >= 0 ? expected : position), "board after moving " + position + " with " + dice);
+                        
+                        board[index] = 0;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * A move as the old Rules made it, before the topology tables
+     * @param position
+     * @param dice
+     * @return New position, or -1 if the move is not allowed
+     */
+    private static int oldTarget(int position, int dice) {
+        
+        // A piece in the goal stays there
+        if(position == OLD_GOAL) {
+            return -1;
+        }
+        
+        // If piece is in home, a 6 is required to move out
+        if(position == Rules.HOME) {
+            return dice == Rules.LEAVE_HOME ? Rules.START : -1;
+        }
+        
+        // The goal must be reached exactly, not passed
+        int target = position + dice;
+        return target <= OLD_GOAL ? target : -1;
+    }
+    
+    /**
+     * Field of a main track position, as the client's movePiece used to
+     * work it out. Only used up to a lap, where it did not hop to a road.
+     * @param color
+     * @param fieldsMoved
+     * @return Absolute field
+     */
+    private static int oldClientField(int color, int fieldsMoved) {
+        int positionOffset = color * 13;
+        int positionWrap = 52;
+        
+        int position = fieldsMoved + positionOffset;
+        if(position > positionWrap) {
+            position = position % positionWrap;
+        }
+        
+        return position;
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+}
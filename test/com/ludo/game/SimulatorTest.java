@@ -0,0 +1,112 @@
+/**
+ * 
+ */
+package com.ludo.game;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks of the self-play Simulator: every strategy only makes legal
+ * moves and finishes its games, every game has a single winner, and a
+ * seed gives the same results however many threads play it.
+ *
+ * Run with java -ea com.ludo.game.SimulatorTest, exits with status 1
+ * if a check fails.
+ * @author Petter
+ *
+ */
+public class SimulatorTest {
+    
+    /**
+     * More than a single block of games, so the work is split
+     */
+    private static final long GAMES = 10000;
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) {
+        String[] names = { "random", "greedy", "safe" };
+        Strategy[] all = new Strategy[names.length];
+        for(int i = 0; i < names.length; i++) {
+            all[i] = Strategies.fromName(names[i]);
+            check(all[i] != null, "strategy " + names[i]);
+        }
+        if(failures > 0) {
+            report();
+            return;
+        }
+        
+        // Every strategy against every other, illegal moves throw
+        for(Strategy first : all) {
+            for(Strategy second : all) {
+                Strategy[] seats = { first, second, first, second };
+                try {
+                    Simulator.Result result = new Simulator(seats, 7).run(GAMES, new ForkJoinPool(2));
+                    totals(result, seats.length, first + " vs " + second);
+                } catch (IllegalStateException e) {
+                    check(false, e.getMessage());
+                }
+            }
+        }
+        
+        // Fewer seats than colors
+        Strategy[] two = { all[0], all[2] };
+        totals(new Simulator(two, 3).run(GAMES, new ForkJoinPool(1)), two.length, "two seats");
+        
+        // Same seed, different parallelism
+        Strategy[] seats = { all[0], all[1], all[2], all[0] };
+        Simulator.Result one = new Simulator(seats, 11).run(GAMES, new ForkJoinPool(1));
+        Simulator.Result four = new Simulator(seats, 11).run(GAMES, new ForkJoinPool(4));
+        boolean same = one.getTurns() == four.getTurns() && one.getUnfinished() == four.getUnfinished();
+        for(int seat = 0; seat < seats.length; seat++) {
+            same &= one.getWins(seat) == four.getWins(seat);
+        }
+        check(same, "same results on 1 and 4 threads");
+        
+        Simulator.Result other = new Simulator(seats, 12).run(GAMES, new ForkJoinPool(1));
+        check(other.getTurns() != one.getTurns(), "another seed plays other games");
+        
+        // Seats are limited to the colors of the board
+        try {
+            new Simulator(new Strategy[5], 1);
+            check(false, "five seats are rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        
+        report();
+    }
+    
+    /**
+     * Check the totals of a run
+     * @param result
+     * @param seats
+     * @param name
+     */
+    private static void totals(Simulator.Result result, int seats, String name) {
+        long wins = 0;
+        for(int seat = 0; seat < seats; seat++) {
+            wins += result.getWins(seat);
+        }
+        
+        check(result.getGames() == GAMES, name + ": every game played");
+        check(result.getUnfinished() == 0, name + ": every game finished");
+        check(wins == GAMES, name + ": one winner per game");
+        check(result.getTurns() >= GAMES * Rules.PIECES * 2, name + ": games take turns");
+    }
+    
+    private static void report() {
+        System.out.println(failures == 0 ? "SimulatorTest passed" : "SimulatorTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+}
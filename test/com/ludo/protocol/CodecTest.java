@@ -0,0 +1,310 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Round trips of the text and binary codecs: every line the server and
+ * the clients send must read back as the same line and the same message,
+ * whether it fits its binary layout or falls back to a text line. Also
+ * checks broken frames and lines, and a MessageStream switching from
+ * text to binary in the middle of a connection.
+ *
+ * Run with java -ea com.ludo.protocol.CodecTest, exits with status 1
+ * if a check fails.
+ * @author Petter
+ *
+ */
+public class CodecTest {
+    
+    /**
+     * Lines sent by the server, to players and, without the last colour, to spectators
+     */
+    private static final String[] FROM_SERVER = {
+        "USERNAMEREQUEST",
+        "USERNAMEREQUEST BINARY",
+        "NEWUSERINQUEUE",
+        "NEWUSERINQUEUE red",
+        "STARTGAME red 0f1e2d3c4b5a69788796a5b4c3d2e1f0",
+        "STARTGAME",
+        "TURN blue 6 0 green",
+        "TURN blue 6 1234567",
+        "MOVE 3 59 yellow 2147483647 red",
+        "MOVE 0 0 green 128 green",
+        "MOVE 0 1 green 16384",
+        "MOVEDENIED",
+        "NOWIN green",
+        "NOWIN",
+        "WIN red blue",
+        "WIN red",
+        "FORFEIT green 0 red",
+        "GAMEOVER",
+        "MESSAGE red hello there",
+        "MESSAGE blue  two  spaces ",
+        "MESSAGE yellow caf\u00e9 \u263a \ud83c\udfb2",
+        "SNAPSHOT 42 4 blue 5 0 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 59 red",
+        "SNAPSHOT 42 4 blue 5 0 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 59",
+        
+        // Do not fit their layouts, sent as lines
+        "TURN purple 6 1 red",
+        "TURN blue 6 -1 red",
+        "MOVE 3 256 red 1 red",
+        "MOVE 03 5 red 1 red",
+        "MOVE 3 5 red 99999999999 red",
+        "MOVE 3 5 red 1 red extra",
+        "TURN  blue 6 1 red",
+        "WIN red blue ",
+        "MESSAGE red",
+        "HELLO world",
+        "",
+    };
+    
+    /**
+     * Lines sent by clients
+     */
+    private static final String[] FROM_CLIENT = {
+        "USERNAME bob",
+        "USERNAME bob BINARY RECONNECT 0f1e2d3c4b5a69788796a5b4c3d2e1f0",
+        "MOVE 1 red",
+        "MOVE 4 green",
+        "MESSAGE hi there",
+        "MESSAGE \u00e6\u00f8\u00e5",
+        "SPECTATE 3 BINARY",
+        "SPECTATE",
+        "MOVE 1",
+        "MOVE 1 red 2",
+    };
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws Exception {
+        for(String line : FROM_SERVER) {
+            roundTrip(line, true);
+        }
+        for(String line : FROM_CLIENT) {
+            roundTrip(line, false);
+        }
+        
+        streams();
+        layouts();
+        brokenFrames();
+        brokenLines();
+        switchToBinary();
+        
+        System.out.println(failures == 0 ? "CodecTest passed" : "CodecTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Send a line through every codec, as a line and as a parsed message
+     * @param line
+     * @param server True if the server sends the line
+     */
+    private static void roundTrip(String line, boolean server) throws IOException {
+        Message expected = Message.parse(line);
+        
+        check(line, "text", new TextCodec(), new TextCodec(), expected, false);
+        check(line, "text message", new TextCodec(), new TextCodec(), expected, true);
+        check(line, "binary", new BinaryCodec(server), new BinaryCodec(!server), expected, false);
+        check(line, "binary message", new BinaryCodec(server), new BinaryCodec(!server), expected, true);
+    }
+    
+    /**
+     * Write a line with one codec, read it back with another and compare
+     */
+    private static void check(String line, String name, MessageCodec writer, MessageCodec reader, Message expected, boolean parsed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if(parsed) {
+            writer.write(expected, out);
+        } else {
+            writer.write(line, out);
+        }
+        
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        Message message = reader.read(in);
+        if(message == null) {
+            check(line.isEmpty() && reader instanceof TextCodec, name + ": \"" + line + "\" read back");
+            return;
+        }
+        
+        check(message.getType() == expected.getType(), name + ": type of \"" + line + "\"");
+        check(in.read() == -1, name + ": \"" + line + "\" read whole");
+        
+        // A message is encoded from its arguments, which does not keep extra spaces
+        if(parsed) {
+            check(normalize(line).equals(normalize(message.getLine())), name + ": \"" + line + "\" read back as \"" + message.getLine() + "\"");
+            return;
+        }
+        check(line.equals(message.getLine()), name + ": \"" + line + "\" read back as \"" + message.getLine() + "\"");
+        
+        // Arguments are the same, a binary text field holds the rest of the line
+        for(int i = 0; i < message.size(); i++) {
+            boolean last = i == message.size() - 1;
+            check(last ? message.getText(i).equals(expected.getText(i)) : message.get(i).equals(expected.get(i)),
+                    name + ": argument " + i + " of \"" + line + "\"");
+            check(message.getInt(i, -7) == expected.getInt(i, -7), name + ": number " + i + " of \"" + line + "\"");
+        }
+    }
+    
+    private static String normalize(String line) {
+        return line.trim().replaceAll(" +", " ");
+    }
+    
+    /**
+     * Many messages on one stream read back in order, then the end
+     */
+    private static void streams() throws IOException {
+        MessageCodec[][] codecs = { { new TextCodec(), new TextCodec() }, { new BinaryCodec(true), new BinaryCodec(false) } };
+        
+        for(MessageCodec[] codec : codecs) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for(int i = 0; i < 1000; i++) {
+                codec[0].write(FROM_SERVER[i % (FROM_SERVER.length - 1)], out);
+            }
+            
+            InputStream in = new ByteArrayInputStream(out.toByteArray());
+            boolean same = true;
+            for(int i = 0; i < 1000; i++) {
+                Message message = codec[1].read(in);
+                same &= message != null && message.getLine().equals(FROM_SERVER[i % (FROM_SERVER.length - 1)]);
+            }
+            check(same, codec[0].getClass().getSimpleName() + ": messages read back in order");
+            check(codec[1].read(in) == null, codec[0].getClass().getSimpleName() + ": end of stream");
+        }
+    }
+    
+    /**
+     * Messages that fit their layout are smaller than their lines, and long ones keep their frame
+     */
+    private static void layouts() throws IOException {
+        check(size(new BinaryCodec(true), "MOVE 3 59 yellow 2147483647 red") < size(new TextCodec(), "MOVE 3 59 yellow 2147483647 red"), "binary MOVE is smaller");
+        check(size(new BinaryCodec(true), "TURN blue 6 1234567 green") == 1 + 1 + 1 + 1 + 3 + 1, "TURN frame is length, opcode, colour, dice, varint and colour");
+        
+        StringBuilder text = new StringBuilder("MESSAGE red ");
+        for(int i = 0; i < 3000; i++) {
+            text.append('\u00e5');
+        }
+        String line = text.toString();
+        Message message = new BinaryCodec(false).read(new ByteArrayInputStream(bytes(new BinaryCodec(true), line)));
+        check(message != null && line.equals(message.getLine()), "6 kB text in a frame with a 2 byte length");
+    }
+    
+    /**
+     * Broken frames are errors, not messages
+     */
+    private static void brokenFrames() {
+        failsToRead(new byte[] { 0 }, IOException.class, "empty frame");
+        failsToRead(new byte[] { (byte) 0x81, (byte) 0x80, 0x04 }, IOException.class, "frame over 64 kB");
+        failsToRead(new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 }, IOException.class, "endless frame length");
+        failsToRead(new byte[] { 5, 4, 1 }, EOFException.class, "frame cut off");
+        failsToRead(new byte[] { 1, 0x7f }, IOException.class, "unknown opcode");
+        failsToRead(new byte[] { 2, (byte) (MessageType.NOWIN.ordinal() + 1), 9 }, IOException.class, "colour out of range");
+        failsToRead(new byte[] { 1, (byte) (MessageType.USERNAME.ordinal() + 1) }, IOException.class, "client message from server");
+    }
+    
+    /**
+     * Line breaks of the text protocol
+     */
+    private static void brokenLines() throws IOException {
+        InputStream in = new ByteArrayInputStream("NOWIN red\r\nGAMEOVER".getBytes(StandardCharsets.UTF_8));
+        TextCodec codec = new TextCodec();
+        check("NOWIN red".equals(codec.read(in).getLine()), "CRLF line");
+        check("GAMEOVER".equals(codec.read(in).getLine()), "last line without a line break");
+        check(codec.read(in) == null, "end of text stream");
+        
+        byte[] line = new byte[70 * 1024];
+        Arrays.fill(line, (byte) 'a');
+        try {
+            codec.read(new ByteArrayInputStream(line));
+            check(false, "line over 64 kB is rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * Both sides of a socket switch to binary right after the line agreeing on it
+     */
+    private static void switchToBinary() throws IOException {
+        ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        Socket serverSocket = listener.accept();
+        listener.close();
+        
+        try {
+            MessageStream server = new MessageStream(serverSocket, true);
+            MessageStream client = new MessageStream(clientSocket, false);
+            
+            server.send("USERNAMEREQUEST " + MessageStream.BINARY);
+            Message request = client.read();
+            check(request.getType() == MessageType.USERNAMEREQUEST && MessageStream.BINARY.equals(request.get(0)), "binary offered");
+            
+            client.send("USERNAME bob " + MessageStream.BINARY);
+            client.useBinary();
+            Message answer = server.read();
+            check(answer.getType() == MessageType.USERNAME && MessageStream.BINARY.equals(answer.get(1)), "binary accepted");
+            server.useBinary();
+            check(server.isBinary() && client.isBinary(), "both sides binary");
+            
+            for(String line : FROM_SERVER) {
+                if(!line.isEmpty()) {
+                    server.send(line, false);
+                }
+            }
+            server.send("GAMEOVER");
+            for(String line : FROM_SERVER) {
+                if(!line.isEmpty()) {
+                    Message message = client.read();
+                    check(message != null && line.equals(message.getLine()), "\"" + line + "\" over the socket");
+                }
+            }
+            check(client.read().getType() == MessageType.GAMEOVER, "flushed last message");
+            
+            client.send(Message.parse("MOVE 2 blue"));
+            check("MOVE 2 blue".equals(server.read().getLine()), "client message over the socket");
+        } finally {
+            clientSocket.close();
+            serverSocket.close();
+        }
+    }
+    
+    private static void failsToRead(byte[] frame, Class<? extends IOException> expected, String description) {
+        try {
+            Message message = new BinaryCodec(false).read(new ByteArrayInputStream(frame));
+            check(false, description + " read as " + message);
+        } catch (IOException e) {
+            check(expected.isInstance(e), description + " threw " + e);
+        }
+    }
+    
+    private static int size(MessageCodec codec, String line) throws IOException {
+        return bytes(codec, line).length;
+    }
+    
+    private static byte[] bytes(MessageCodec codec, String line) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(line, out);
+        return out.toByteArray();
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/**
+ * 
+ */
+package com.ludo.protocol;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress check of the single reader of a game connection. A server sends
+ * heavy chat interleaved with moves over a real socket, in the text and
+ * the binary protocol, and the client's MessageDispatcher hands them to a
+ * slow chat handler and a game handler. Every message must reach the
+ * handler of its type exactly once and in order, and no handler may run
+ * twice at the same time. Prints how many messages per second were read
+ * and dispatched.
+ *
+ * Run with java -ea com.ludo.protocol.MessageDispatcherTest, exits with
+ * status 1 if a check fails.
+ * @author Petter
+ *
+ */
+public class MessageDispatcherTest {
+    
+    /**
+     * Moves sent in each run
+     */
+    private static final int MOVES = 20000;
+    
+    /**
+     * Chat messages sent between two moves
+     */
+    private static final int CHAT_PER_MOVE = 3;
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws Exception {
+        ExecutorService handlers = Executors.newFixedThreadPool(4);
+        try {
+            run(false, handlers);
+            run(true, handlers);
+        } finally {
+            handlers.shutdown();
+        }
+        
+        System.out.println(failures == 0 ? "MessageDispatcherTest passed" : "MessageDispatcherTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Send the messages over a socket and check what the handlers get
+     * @param binary Use the binary protocol
+     * @param handlers
+     */
+    private static void run(boolean binary, ExecutorService handlers) throws Exception {
+        ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        final Socket server = listener.accept();
+        listener.close();
+        
+        final MessageStream serverStream = new MessageStream(server, true);
+        MessageStream clientStream = new MessageStream(client, false);
+        if(binary) {
+            serverStream.useBinary();
+            clientStream.useBinary();
+        }
+        
+        final CountDownLatch done = new CountDownLatch(2);
+        final OrderedHandler chat = new OrderedHandler(MessageType.MESSAGE, 1, MOVES * CHAT_PER_MOVE, done, true);
+        final OrderedHandler game = new OrderedHandler(MessageType.MOVE, 3, MOVES, done, false);
+        
+        MessageDispatcher dispatcher = new MessageDispatcher(clientStream, handlers);
+        dispatcher.register(chat, MessageType.MESSAGE);
+        dispatcher.register(game, MessageType.MOVE);
+        Thread reader = new Thread(dispatcher, "dispatcher-test-reader");
+        reader.start();
+        
+        // Chat and moves interleaved, as a game with a busy chat
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                int chats = 0;
+                for(int move = 1; move <= MOVES; move++) {
+                    for(int i = 0; i < CHAT_PER_MOVE; i++) {
+                        chats++;
+                        serverStream.send("MESSAGE red " + chats + " hello there", false);
+                    }
+                    serverStream.send("MOVE " + (move % 4) + " " + (move % 60) + " blue " + move + " green", move % 64 == 0);
+                }
+                serverStream.send("NOWIN red");
+            }
+        }, "dispatcher-test-writer");
+        
+        long start = System.nanoTime();
+        writer.start();
+        boolean finished = done.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        
+        String name = binary ? "binary" : "text";
+        check(finished, name + ": every message handled in time");
+        check(chat.check(name) & game.check(name), name + ": handlers got their messages in order");
+        
+        System.out.printf("%-6s %d messages in %.1f ms, %.0f messages/s%n", name, MOVES * (CHAT_PER_MOVE + 1),
+                elapsed / 1e6, MOVES * (CHAT_PER_MOVE + 1) / (elapsed / 1e9));
+        
+        writer.join();
+        client.close();
+        server.close();
+        reader.join(5000);
+    }
+    
+    /**
+     * Checks that it gets messages of one type, numbered from 1 at a given
+     * argument, in order and one at a time
+     * @author Petter
+     *
+     */
+    private static class OrderedHandler implements MessageHandler {
+        private MessageType type;
+        private int counter;
+        private int expected;
+        private CountDownLatch done;
+        private boolean slow;
+        
+        private int next = 1;
+        private AtomicInteger running = new AtomicInteger();
+        private volatile String error;
+        
+        public OrderedHandler(MessageType type, int counter, int expected, CountDownLatch done, boolean slow) {
+            this.type = type;
+            this.counter = counter;
+            this.expected = expected;
+            this.done = done;
+            this.slow = slow;
+        }
+        
+        public void handle(Message message) {
+            if(this.running.incrementAndGet() != 1) {
+                fail("handled twice at the same time");
+            }
+            
+            if(message.getType() != this.type) {
+                fail("got " + message);
+            } else if(number(message) != this.next) {
+                fail("got " + message + ", expected number " + this.next);
+            } else if(++this.next > this.expected) {
+                this.done.countDown();
+            }
+            
+            // A chat window falling behind now and then
+            if(this.slow && this.next % 5000 == 0) {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+            this.running.decrementAndGet();
+        }
+        
+        /**
+         * Number of a message. Chat is a single text field in the binary
+         * protocol, so its number is read from the start of the text, which
+         * must have arrived whole.
+         * @param message
+         * @return int, -1 if missing
+         */
+        private int number(Message message) {
+            if(this.type != MessageType.MESSAGE) {
+                return message.getInt(this.counter, -1);
+            }
+            
+            String text = message.getText(this.counter);
+            int end = text.indexOf(' ');
+            try {
+                return end > 0 && text.endsWith(" hello there") ? Integer.parseInt(text.substring(0, end)) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        
+        private void fail(String error) {
+            if(this.error == null) {
+                this.error = error;
+            }
+        }
+        
+        /**
+         * Print the first error, if any
+         * @param name
+         * @return True if every message was handled in order
+         */
+        public boolean check(String name) {
+            if(this.error != null) {
+                System.out.println(name + " " + this.type + ": " + this.error);
+            }
+            return this.error == null && this.next == this.expected + 1;
+        }
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+}
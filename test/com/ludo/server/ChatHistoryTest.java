@@ -0,0 +1,151 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import com.ludo.config.Config;
+import com.ludo.server.ChatHistory.ChatRecord;
+
+/**
+ * Checks of the ChatHistory: reading the latest messages and the messages
+ * since a point in time across sealed segments, reopening the history, and
+ * cutting long messages without splitting UTF-8 characters.
+ *
+ * Run with java -ea com.ludo.server.ChatHistoryTest, exits with status 1
+ * if a check fails.
+ * @author Petter
+ *
+ */
+public class ChatHistoryTest {
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws Exception {
+        truncateOnCharacters();
+        readAcrossSegments();
+        
+        System.out.println(failures == 0 ? "ChatHistoryTest passed" : "ChatHistoryTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    private static void truncateOnCharacters() {
+        byte[] text = "a\u00e6\u00f8\u00e5\u20ac\ud834\udd1e".getBytes(StandardCharsets.UTF_8);
+        
+        for(int max = 0; max <= text.length; max++) {
+            byte[] cut = ChatHistory.truncate(text, max);
+            String decoded = new String(cut, StandardCharsets.UTF_8);
+            check(cut.length <= max, "cut to " + max + " bytes is at most " + max + " bytes");
+            check("a\u00e6\u00f8\u00e5\u20ac\ud834\udd1e".startsWith(decoded), "cut to " + max + " bytes is a whole-character prefix, got " + decoded);
+            check(max - cut.length < 4, "cut to " + max + " bytes drops less than a character");
+        }
+        
+        check(ChatHistory.truncate(text, 100) == text, "short text is kept as it is");
+    }
+    
+    private static void readAcrossSegments() throws Exception {
+        File dir = Files.createTempDirectory("chat-history").toFile();
+        try {
+            Config config = config(dir);
+            
+            // Small segments, so the messages span many of them
+            ChatHistory history = new ChatHistory(config);
+            for(int m = 0; m < 500; m++) {
+                history.append(1000 + m, "user" + (m % 3), "message \u00f8 " + m);
+            }
+            
+            check(segments(dir) > 10, "history rotated into many segments, got " + segments(dir));
+            checkRange(history.last(20), 480, 20, "last 20");
+            checkRange(history.last(1000), 500 - kept(history), kept(history), "last beyond the history");
+            checkRange(history.since(1000 + 450), 450, 50, "since a timestamp");
+            
+            // Every read again, after reopening
+            history.force();
+            ChatHistory reopened = new ChatHistory(config);
+            checkRange(reopened.last(20), 480, 20, "last 20 after reopening");
+            checkRange(reopened.since(1000 + 300), 300, 200, "since after reopening");
+            
+            // Writing on after reopening
+            reopened.append(2000, "user0", "after");
+            List<ChatRecord> last = reopened.last(2);
+            check(last.size() == 2 && last.get(1).getMessage().equals("after") && last.get(0).getMessage().equals("message \u00f8 499"), "append after reopening");
+            
+            // Too long for a segment, cut on a character
+            StringBuilder longText = new StringBuilder();
+            for(int i = 0; i < 1000; i++) {
+                longText.append('\u20ac');
+            }
+            reopened.append(3000, "user0", longText.toString());
+            String stored = reopened.last(1).get(0).getMessage();
+            check(stored.length() > 0 && stored.replace("\u20ac", "").isEmpty(), "long message cut on a character");
+        } finally {
+            delete(dir);
+        }
+    }
+    
+    /**
+     * Number of messages the history has kept, after retention
+     * @param history
+     * @return int
+     */
+    private static int kept(ChatHistory history) {
+        return history.last(Integer.MAX_VALUE).size();
+    }
+    
+    /**
+     * Check that records are the messages numbered first to first + count - 1, in order
+     */
+    private static void checkRange(List<ChatRecord> records, int first, int count, String description) {
+        boolean ok = records.size() == count;
+        for(int i = 0; ok && i < count; i++) {
+            ChatRecord record = records.get(i);
+            int m = first + i;
+            ok = record.getTimestamp() == 1000 + m && record.getUsername().equals("user" + (m % 3)) && record.getMessage().equals("message \u00f8 " + m);
+        }
+        check(ok, description + ": expected messages " + first + " to " + (first + count - 1) + ", got " + records.size() + " records");
+    }
+    
+    private static Config config(File dir) throws Exception {
+        File file = new File(dir, "config.ini");
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("chatHistoryDir=" + new File(dir, "history").getAbsolutePath().replace('\\', '/') + "\n");
+            writer.write("chatSegmentSize=1024\n");
+            writer.write("chatHistorySegments=100\n");
+        } finally {
+            writer.close();
+        }
+        return new Config(file.getAbsolutePath());
+    }
+    
+    private static int segments(File dir) {
+        String[] names = new File(dir, "history").list();
+        return names == null ? 0 : names.length;
+    }
+    
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+}
@@ -0,0 +1,573 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.ludo.server.ConnectionPool.PooledConnection;
+
+/**
+ * Checks of the ConnectionPool and of DatabaseHandler's batches, against a
+ * stub JDBC driver for jdbc:stub: URLs that keeps every connection in
+ * memory. Covers reuse, the borrow timeout, discarding broken connections,
+ * validating connections that were idle a while, evicting idle connections
+ * while others borrow them, and batches that commit, roll back or break
+ * their connection.
+ *
+ * Run with java -ea com.ludo.server.ConnectionPoolTest, exits with status 1
+ * if a check fails.
+ * @author Petter
+ *
+ */
+public class ConnectionPoolTest {
+    
+    /**
+     * Every connection the stub driver has opened
+     */
+    private static List<StubConnection> opened = new ArrayList<StubConnection>();
+    
+    /**
+     * Time a stub connection takes to close once it is marked closed, in milliseconds
+     */
+    private static volatile long closeDelay = 0;
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws Exception {
+        DriverManager.registerDriver(new StubDriver());
+        
+        reuse();
+        borrowTimeout();
+        discard();
+        validateAfterIdle();
+        evictIdle();
+        evictWhileBorrowing();
+        batches();
+        
+        System.out.println(failures == 0 ? "ConnectionPoolTest passed" : "ConnectionPoolTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * A released connection is borrowed again, with its prepared statements
+     */
+    private static void reuse() throws Exception {
+        ConnectionPool pool = pool(2, 60000);
+        int before = opened.size();
+        
+        PooledConnection first = pool.borrow();
+        PreparedStatement statement = first.prepare("SELECT 1");
+        pool.release(first);
+        
+        PooledConnection second = pool.borrow();
+        check(second == first, "released connection is reused");
+        check(second.prepare("SELECT 1") == statement, "prepared statement is cached");
+        check(opened.size() == before + 1, "one connection opened");
+        
+        // Most recently used first
+        PooledConnection third = pool.borrow();
+        pool.release(third);
+        pool.release(second);
+        check(pool.borrow() == second, "most recently released connection is borrowed first");
+        pool.release(second);
+        
+        pool.close();
+        check(stub(second).closed && stub(third).closed, "close closes idle connections");
+    }
+    
+    /**
+     * Borrowing waits for a free connection, then gives up
+     */
+    private static void borrowTimeout() throws Exception {
+        final ConnectionPool pool = pool(1, 60000);
+        setField(pool, "borrowTimeout", 200L);
+        
+        final PooledConnection held = pool.borrow();
+        long start = System.nanoTime();
+        try {
+            pool.borrow();
+            check(false, "borrowing from an empty pool times out");
+        } catch (SQLException e) {
+            long waited = (System.nanoTime() - start) / 1000000;
+            check(waited >= 150 && waited < 2000, "borrow waited about the timeout, " + waited + " ms");
+        }
+        
+        // A connection released while waiting is handed over
+        Thread releaser = new Thread(new Runnable() {
+            public void run() {
+                sleep(50);
+                pool.release(held);
+            }
+        });
+        releaser.start();
+        check(pool.borrow() == held, "waiting borrower gets the released connection");
+        releaser.join();
+        
+        // A failed connect gives its slot back
+        pool.release(held);
+        pool.borrow();
+        ConnectionPool failing = new ConnectionPool("jdbc:stub:fail", null, null, 1, 60000);
+        setField(failing, "borrowTimeout", 200L);
+        for(int i = 0; i < 2; i++) {
+            try {
+                failing.borrow();
+                check(false, "borrowing fails when the database is down");
+            } catch (SQLException e) {
+                check(e.getMessage().startsWith("Stub database is down"), "connect error " + i + " is passed on, got " + e.getMessage());
+            }
+        }
+        
+        failing.close();
+        pool.close();
+    }
+    
+    /**
+     * A discarded connection is closed and its slot can be borrowed again
+     */
+    private static void discard() throws Exception {
+        ConnectionPool pool = pool(1, 60000);
+        setField(pool, "borrowTimeout", 200L);
+        
+        PooledConnection broken = pool.borrow();
+        PreparedStatement statement = broken.prepare("SELECT 1");
+        pool.discard(broken);
+        check(stub(broken).closed, "discarded connection is closed");
+        check(stub(statement).closed, "statements of a discarded connection are closed");
+        
+        PooledConnection next = pool.borrow();
+        check(next != broken, "a new connection replaces the discarded one");
+        
+        pool.discard(null);
+        pool.release(null);
+        pool.close();
+    }
+    
+    /**
+     * Connections idle for a while are validated, and closed if broken
+     */
+    private static void validateAfterIdle() throws Exception {
+        ConnectionPool pool = pool(2, 10 * 60000);
+        
+        // Recently used, not validated
+        PooledConnection recent = pool.borrow();
+        pool.release(recent);
+        stub(recent).valid = false;
+        check(pool.borrow() == recent, "recently used connection is not validated");
+        check(stub(recent).validations == 0, "no validation query for a recently used connection");
+        pool.release(recent);
+        
+        // Idle a while and broken, replaced
+        setField(recent, "lastUsed", System.currentTimeMillis() - 60000);
+        PooledConnection replaced = pool.borrow();
+        check(replaced != recent, "broken idle connection is not borrowed");
+        check(stub(recent).validations == 1 && stub(recent).closed, "broken idle connection is validated and closed");
+        
+        // Idle a while and working, reused
+        pool.release(replaced);
+        setField(replaced, "lastUsed", System.currentTimeMillis() - 60000);
+        check(pool.borrow() == replaced, "working idle connection is reused");
+        check(stub(replaced).validations == 1, "working idle connection is validated");
+        
+        pool.close();
+    }
+    
+    /**
+     * Only connections idle longer than the idle timeout are evicted
+     */
+    private static void evictIdle() throws Exception {
+        ConnectionPool pool = pool(3, 60000);
+        
+        PooledConnection old = pool.borrow();
+        PooledConnection fresh = pool.borrow();
+        PooledConnection borrowed = pool.borrow();
+        pool.release(old);
+        pool.release(fresh);
+        setField(old, "lastUsed", System.currentTimeMillis() - 120000);
+        
+        evict(pool);
+        check(stub(old).closed, "connection idle past the timeout is closed");
+        check(!stub(fresh).closed, "recently released connection is kept");
+        check(!stub(borrowed).closed, "borrowed connection is kept");
+        check(pool.borrow() == fresh, "kept connection is still borrowed");
+        
+        pool.close();
+    }
+    
+    /**
+     * Evicting every idle connection while others borrow and release them
+     * never closes a connection that is in use, and loses none
+     */
+    private static void evictWhileBorrowing() throws Exception {
+        final ConnectionPool pool = pool(2, 0);
+        
+        // A connection closed before it leaves the idle deque could be borrowed meanwhile
+        closeDelay = 1;
+        final int before = opened.size();
+        final AtomicInteger closedInUse = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+        
+        for(int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for(int i = 0; i < 2000; i++) {
+                            PooledConnection pooled = pool.borrow();
+                            if(stub(pooled).closed) {
+                                closedInUse.incrementAndGet();
+                            }
+                            Thread.yield();
+                            if(stub(pooled).closed) {
+                                closedInUse.incrementAndGet();
+                            }
+                            pool.release(pooled);
+                        }
+                    } catch (SQLException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        
+        while(done.getCount() > 0) {
+            evict(pool);
+        }
+        
+        check(errors.get() == 0, "no borrow failed while evicting");
+        check(closedInUse.get() == 0, closedInUse.get() + " connections were closed while borrowed");
+        
+        // Everything released is idle, and evicted at last
+        evict(pool);
+        int open = 0;
+        for(StubConnection connection : opened.subList(before, opened.size())) {
+            open += connection.closed ? 0 : 1;
+        }
+        check(open == 0, open + " connections left open after evicting everything idle");
+        pool.close();
+        closeDelay = 0;
+    }
+    
+    /**
+     * Batches commit or roll back as a whole, and leave the connection and
+     * its cached statement as they found them
+     */
+    private static void batches() throws Exception {
+        ConnectionPool pool = pool(1, 60000);
+        setField(pool, "borrowTimeout", 200L);
+        setStaticField(DatabaseHandler.class, "pool", pool);
+        DatabaseHandler database = new DatabaseHandler();
+        String query = "UPDATE users SET win=win+?, games=games+? WHERE username=?";
+        
+        // Committed
+        check(database.batch(query, rows(3)), "batch is written");
+        PooledConnection pooled = pool.borrow();
+        StubConnection connection = stub(pooled);
+        StubStatement statement = stub(pooled.prepare(query));
+        pool.release(pooled);
+        check(connection.commits == 1 && connection.rollbacks == 0, "batch is committed");
+        check(connection.autoCommit, "autocommit is turned back on");
+        check(statement.executed.equals(Arrays.asList(3)), "batch executed its 3 rows");
+        check(database.batch(query, new ArrayList<Object[]>()), "an empty batch is nothing to write");
+        
+        // Rolled back, the connection is kept
+        connection.failBatches = 1;
+        check(!database.batch(query, rows(2)), "failed batch is reported");
+        check(connection.rollbacks == 1 && connection.commits == 1, "failed batch is rolled back");
+        check(connection.autoCommit, "autocommit is turned back on after a failed batch");
+        check(statement.rows == 0, "cached statement is cleared after a failed batch");
+        check(!connection.closed, "working connection is kept after a failed batch");
+        
+        // The next batch only holds its own rows
+        check(database.batch(query, rows(4)), "batch after a failed one is written");
+        check(statement.executed.equals(Arrays.asList(3, 4)), "next batch executed only its own rows, got " + statement.executed);
+        
+        // The connection breaks, it is discarded and its slot freed
+        connection.failBatches = 1;
+        connection.breakOnFailure = true;
+        check(!database.batch(query, rows(1)), "batch on a broken connection fails");
+        check(connection.closed, "broken connection is discarded");
+        PooledConnection next = pool.borrow();
+        check(stub(next) != connection, "a new connection replaces the broken one");
+        pool.release(next);
+        check(database.batch(query, rows(2)), "batch on the new connection is written");
+        
+        pool.close();
+    }
+    
+    private static ConnectionPool pool(int size, long idleTimeout) {
+        return new ConnectionPool("jdbc:stub:test", "ludo", null, size, idleTimeout);
+    }
+    
+    private static List<Object[]> rows(int count) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for(int i = 0; i < count; i++) {
+            rows.add(new Object[] { 1, 1, "user" + i });
+        }
+        return rows;
+    }
+    
+    /**
+     * Run the evictor's pass right away
+     */
+    private static void evict(ConnectionPool pool) throws Exception {
+        Method evictIdle = ConnectionPool.class.getDeclaredMethod("evictIdle");
+        evictIdle.setAccessible(true);
+        evictIdle.invoke(pool);
+    }
+    
+    private static void setField(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+    
+    private static void setStaticField(Class<?> type, String name, Object value) throws Exception {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+    
+    private static StubConnection stub(PooledConnection pooled) {
+        return (StubConnection) Proxy.getInvocationHandler(pooled.getConnection());
+    }
+    
+    private static StubStatement stub(Statement statement) {
+        return (StubStatement) Proxy.getInvocationHandler(statement);
+    }
+    
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+    
+    /**
+     * Value a stub returns from a method it does not implement
+     */
+    private static Object nothing(Method method) {
+        Class<?> type = method.getReturnType();
+        if(type == boolean.class) {
+            return false;
+        }
+        if(type == int.class) {
+            return 0;
+        }
+        if(type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+    
+    /**
+     * Driver for jdbc:stub: URLs, jdbc:stub:fail can not connect
+     * @author Petter
+     *
+     */
+    private static class StubDriver implements Driver {
+        
+        public Connection connect(String url, Properties info) throws SQLException {
+            if(!acceptsURL(url)) {
+                return null;
+            }
+            if(url.equals("jdbc:stub:fail")) {
+                throw new SQLException("Stub database is down");
+            }
+            
+            StubConnection connection = new StubConnection();
+            synchronized(opened) {
+                opened.add(connection);
+            }
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, connection);
+        }
+        
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:stub:");
+        }
+        
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+        
+        public int getMajorVersion() {
+            return 1;
+        }
+        
+        public int getMinorVersion() {
+            return 0;
+        }
+        
+        public boolean jdbcCompliant() {
+            return false;
+        }
+        
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+    
+    /**
+     * A connection held in memory. It counts commits, rollbacks and
+     * validations, and can be told to fail its next batches.
+     * @author Petter
+     *
+     */
+    private static class StubConnection implements InvocationHandler {
+        private volatile boolean closed = false;
+        private volatile boolean valid = true;
+        private boolean autoCommit = true;
+        private int commits = 0;
+        private int rollbacks = 0;
+        private int validations = 0;
+        
+        /**
+         * Batches that fail before any succeeds again
+         */
+        private int failBatches = 0;
+        
+        /**
+         * A failing batch also breaks the connection
+         */
+        private boolean breakOnFailure = false;
+        
+        public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+            String name = method.getName();
+            
+            if(name.equals("close")) {
+                this.closed = true;
+                sleep(closeDelay);
+                return null;
+            }
+            if(name.equals("isClosed")) {
+                return this.closed;
+            }
+            if(name.equals("isValid")) {
+                this.validations++;
+                return this.valid && !this.closed;
+            }
+            if(this.closed) {
+                throw new SQLException("Connection is closed");
+            }
+            
+            if(name.equals("prepareStatement") || name.equals("createStatement")) {
+                Class<?> type = name.equals("createStatement") ? Statement.class : PreparedStatement.class;
+                return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new StubStatement(this));
+            }
+            if(name.equals("setAutoCommit")) {
+                this.autoCommit = (Boolean) args[0];
+            } else if(name.equals("getAutoCommit")) {
+                return this.autoCommit;
+            } else if(name.equals("commit")) {
+                this.commits++;
+            } else if(name.equals("rollback")) {
+                this.rollbacks++;
+            }
+            return nothing(method);
+        }
+    }
+    
+    /**
+     * A statement of a stub connection. Queries find one row, updates
+     * change one, and batches record how many rows they executed.
+     * @author Petter
+     *
+     */
+    private static class StubStatement implements InvocationHandler {
+        private StubConnection connection;
+        private volatile boolean closed = false;
+        
+        /**
+         * Rows added to the current batch
+         */
+        private int rows = 0;
+        
+        /**
+         * Rows of every batch executed
+         */
+        private List<Integer> executed = new ArrayList<Integer>();
+        
+        public StubStatement(StubConnection connection) {
+            this.connection = connection;
+        }
+        
+        public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+            String name = method.getName();
+            
+            if(name.equals("close")) {
+                this.closed = true;
+                return null;
+            }
+            if(this.closed || this.connection.closed) {
+                throw new SQLException("Statement is closed");
+            }
+            
+            if(name.equals("addBatch")) {
+                this.rows++;
+            } else if(name.equals("clearBatch")) {
+                this.rows = 0;
+            } else if(name.equals("executeBatch")) {
+                if(this.connection.failBatches > 0) {
+                    this.connection.failBatches--;
+                    if(this.connection.breakOnFailure) {
+                        this.connection.valid = false;
+                    }
+                    throw new SQLException("Stub batch failed");
+                }
+                this.executed.add(this.rows);
+                int[] counts = new int[this.rows];
+                Arrays.fill(counts, 1);
+                this.rows = 0;
+                return counts;
+            } else if(name.equals("executeUpdate")) {
+                return 1;
+            } else if(name.equals("executeQuery")) {
+                return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                    private boolean read = false;
+                    
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getName().equals("next")) {
+                            boolean first = !this.read;
+                            this.read = true;
+                            return first;
+                        }
+                        return nothing(method);
+                    }
+                });
+            }
+            return nothing(method);
+        }
+    }
+
+}
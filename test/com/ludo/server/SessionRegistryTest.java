@@ -0,0 +1,272 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks of the SessionRegistry: claiming and releasing usernames, which
+ * sessions get broadcasts, and a stress run where sessions are enabled while
+ * messages are broadcast, which checks that every message reaches a session
+ * exactly once, in its backlog or live.
+ *
+ * Run with java -ea com.ludo.server.SessionRegistryTest, exits with status 1
+ * if a check fails.
+ * @author Petter
+ *
+ */
+public class SessionRegistryTest {
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws Exception {
+        claimIsExclusive();
+        releaseOnlyByOwner();
+        broadcastOnlyToEnabled();
+        enableAfterRelease();
+        concurrentClaims();
+        backlogOrLive();
+        
+        System.out.println(failures == 0 ? "SessionRegistryTest passed" : "SessionRegistryTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    private static void claimIsExclusive() {
+        SessionRegistry sessions = new SessionRegistry();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        
+        check(sessions.claim("alice", first), "first claim succeeds");
+        check(!sessions.claim("alice", second), "second claim of the same name fails");
+        check(sessions.get("alice") == first, "name is owned by the first session");
+        check(sessions.isOnline("alice") && sessions.size() == 1, "one user online");
+    }
+    
+    private static void releaseOnlyByOwner() {
+        SessionRegistry sessions = new SessionRegistry();
+        Recorder owner = new Recorder();
+        Recorder other = new Recorder();
+        
+        sessions.claim("bob", owner);
+        check(!sessions.release("bob", other), "another session cannot release the name");
+        check(sessions.isOnline("bob"), "name still claimed");
+        check(!sessions.release(null, owner), "null name is ignored");
+        check(sessions.release("bob", owner), "owner releases the name");
+        check(!sessions.isOnline("bob") && sessions.size() == 0, "nobody online");
+        check(sessions.claim("bob", other), "released name can be claimed again");
+    }
+    
+    private static void broadcastOnlyToEnabled() {
+        SessionRegistry sessions = new SessionRegistry();
+        Recorder claimed = new Recorder();
+        Recorder enabled = new Recorder();
+        
+        sessions.claim("carol", claimed);
+        sessions.claim("dave", enabled);
+        sessions.enable("dave", enabled, null);
+        
+        sessions.broadcast("one");
+        sessions.publish(null, "dave", "two");
+        
+        check(claimed.lines().isEmpty(), "claimed session gets no broadcasts before it is enabled");
+        check(enabled.lines().equals(list("one", "MESSAGE dave two")), "enabled session gets broadcasts in order");
+        
+        sessions.release("dave", enabled);
+        sessions.broadcast("three");
+        check(enabled.lines().size() == 2, "released session gets no broadcasts");
+    }
+    
+    private static void enableAfterRelease() {
+        SessionRegistry sessions = new SessionRegistry();
+        final Recorder session = new Recorder();
+        
+        sessions.claim("erin", session);
+        sessions.release("erin", session);
+        check(!sessions.enable("erin", session, new Runnable() {
+            public void run() {
+                session.send("backlog");
+            }
+        }), "released session cannot be enabled");
+        check(session.lines().isEmpty(), "backlog not sent to a released session");
+        
+        sessions.broadcast("late");
+        check(session.lines().isEmpty(), "released session gets no broadcasts");
+    }
+    
+    /**
+     * Many threads claim the same names at once, exactly one wins each name
+     */
+    private static void concurrentClaims() throws InterruptedException {
+        final int threads = 16;
+        final int names = 1000;
+        final SessionRegistry sessions = new SessionRegistry();
+        final AtomicInteger wins = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        
+        List<Thread> claimers = new ArrayList<Thread>();
+        for(int t = 0; t < threads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    Recorder session = new Recorder();
+                    await(start);
+                    for(int n = 0; n < names; n++) {
+                        if(sessions.claim("user" + n, session)) {
+                            wins.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            claimers.add(thread);
+        }
+        
+        start.countDown();
+        for(Thread thread : claimers) {
+            thread.join();
+        }
+        
+        check(wins.get() == names, "every name claimed exactly once, got " + wins.get() + " of " + names);
+        check(sessions.size() == names, "registry holds every name");
+    }
+    
+    /**
+     * Sessions are enabled while other threads broadcast numbered messages.
+     * A session enabled first records every broadcast, and is the backlog of
+     * the others, as the chat journal is for the servers. Every session must
+     * see every message exactly once, in its backlog or live, in order.
+     */
+    private static void backlogOrLive() throws InterruptedException {
+        final int senders = 4;
+        final int messages = 20000;
+        final int joiners = 200;
+        final SessionRegistry sessions = new SessionRegistry();
+        
+        final Recorder journal = new Recorder();
+        sessions.claim("journal", journal);
+        sessions.enable("journal", journal, null);
+        
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int s = 0; s < senders; s++) {
+            final int sender = s;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    await(start);
+                    for(int m = 0; m < messages; m++) {
+                        sessions.broadcast(sender + ":" + m);
+                    }
+                }
+            }));
+        }
+        
+        final List<Recorder> joined = Collections.synchronizedList(new ArrayList<Recorder>());
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                await(start);
+                for(int j = 0; j < joiners; j++) {
+                    final Recorder session = new Recorder();
+                    sessions.claim("joiner" + j, session);
+                    sessions.enable("joiner" + j, session, new Runnable() {
+                        public void run() {
+                            for(String line : journal.lines()) {
+                                session.send(line);
+                            }
+                        }
+                    });
+                    joined.add(session);
+                    Thread.yield();
+                }
+            }
+        }));
+        
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        
+        int bad = 0;
+        for(Recorder session : joined) {
+            if(!complete(session.lines(), senders, messages)) {
+                bad++;
+            }
+        }
+        check(journal.lines().size() == senders * messages, "journal got every message");
+        check(bad == 0, bad + " of " + joiners + " sessions missed or repeated a message");
+    }
+    
+    /**
+     * Check that lines hold every message of every sender once, each sender in order
+     * @param lines
+     * @param senders
+     * @param messages
+     * @return boolean
+     */
+    private static boolean complete(List<String> lines, int senders, int messages) {
+        int[] next = new int[senders];
+        for(String line : lines) {
+            int colon = line.indexOf(':');
+            int sender = Integer.parseInt(line.substring(0, colon));
+            if(Integer.parseInt(line.substring(colon + 1)) != next[sender]) {
+                return false;
+            }
+            next[sender]++;
+        }
+        
+        for(int count : next) {
+            if(count != messages) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static List<String> list(String... lines) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, lines);
+        return list;
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+    
+    /**
+     * Session which keeps the lines it is sent
+     * @author Petter
+     *
+     */
+    private static class Recorder implements ChatSession {
+        private List<String> lines = new ArrayList<String>();
+        
+        public synchronized void send(String line) {
+            this.lines.add(line);
+        }
+        
+        public synchronized List<String> lines() {
+            return new ArrayList<String>(this.lines);
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks of the SpectatorFeed over real sockets: a spectator that stops
+ * reading must neither slow down the game publishing updates nor the
+ * other spectators. It is disconnected once its queue is full, while a
+ * spectator that keeps reading gets the snapshot and every update in
+ * order.
+ *
+ * Run with java -ea com.ludo.server.SpectatorFeedTest, exits with status 1
+ * if a check fails.
+ * @author Petter
+ *
+ */
+public class SpectatorFeedTest {
+    
+    /**
+     * Lines queued for the stalled spectator
+     */
+    private static final int QUEUE_SIZE = 16;
+    
+    /**
+     * Updates published, about 1 kB each
+     */
+    private static final int UPDATES = 3000;
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws Exception {
+        ExecutorService fanout = Executors.newFixedThreadPool(2);
+        ConnectionExecutor executor = ConnectionExecutors.platform();
+        ServerSocket listener = new ServerSocket();
+        listener.setReceiveBufferSize(4096);
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        
+        try {
+            Socket reading = connect(listener);
+            Socket stalled = connect(listener);
+            PlayerConnection readingSpectator = accept(listener, executor, UPDATES + 2);
+            PlayerConnection stalledSpectator = accept(listener, executor, QUEUE_SIZE);
+            
+            final BufferedReader in = new BufferedReader(new InputStreamReader(reading.getInputStream(), StandardCharsets.UTF_8));
+            check("USERNAMEREQUEST".equals(in.readLine()), "username requested");
+            
+            // Reads everything the feed sends, checking the order
+            final int[] received = { -1 };
+            final String[] error = { null };
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String line;
+                        while((line = in.readLine()) != null) {
+                            if(received[0] == -1) {
+                                received[0] = line.equals("SNAPSHOT 0") ? 0 : -2;
+                            } else if(line.startsWith("UPDATE " + (received[0] + 1) + " ")) {
+                                received[0]++;
+                            } else if(error[0] == null) {
+                                error[0] = "got " + line.substring(0, Math.min(20, line.length())) + " after " + received[0];
+                            }
+                        }
+                    } catch (IOException e) {
+                        error[0] = e.toString();
+                    }
+                }
+            });
+            reader.start();
+            
+            long disconnects = ServerMetrics.slowConsumerDisconnects.get();
+            SpectatorFeed feed = new SpectatorFeed(fanout);
+            feed.add(readingSpectator, "SNAPSHOT 0");
+            feed.add(stalledSpectator, "SNAPSHOT 0");
+            
+            StringBuilder padding = new StringBuilder();
+            for(int i = 0; i < 1000; i++) {
+                padding.append('x');
+            }
+            
+            long start = System.nanoTime();
+            for(int update = 1; update <= UPDATES; update++) {
+                feed.publish("UPDATE " + update + " " + padding);
+            }
+            long publishing = System.nanoTime() - start;
+            check(publishing < 1000000000L, "publishing does not wait for spectators, took " + publishing / 1000000 + " ms");
+            
+            feed.close();
+            reader.join(20000);
+            
+            check(!reader.isAlive(), "reading spectator closed after the last update");
+            check(error[0] == null, "reading spectator: " + error[0]);
+            check(received[0] == UPDATES, "reading spectator got " + received[0] + " of " + UPDATES + " updates");
+            
+            long deadline = System.currentTimeMillis() + 5000;
+            while(!stalledSpectator.isDisconnected() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            check(stalledSpectator.isDisconnected(), "stalled spectator disconnected");
+            check(ServerMetrics.slowConsumerDisconnects.get() == disconnects + 1, "one slow consumer disconnected");
+            check(!readingSpectator.send("late"), "nothing is sent after close");
+            
+            reading.close();
+            stalled.close();
+        } finally {
+            listener.close();
+            fanout.shutdown();
+        }
+        
+        System.out.println(failures == 0 ? "SpectatorFeedTest passed" : "SpectatorFeedTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Connect a client with a small receive buffer, so a client that
+     * does not read fills it quickly
+     */
+    private static Socket connect(ServerSocket listener) throws IOException {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(listener.getLocalSocketAddress());
+        return socket;
+    }
+    
+    /**
+     * Accept a connection and start its reader, as the game server does
+     */
+    private static PlayerConnection accept(ServerSocket listener, ConnectionExecutor executor, int queueSize) throws IOException {
+        Socket socket = listener.accept();
+        socket.setSendBufferSize(4096);
+        
+        PlayerConnection connection = new PlayerConnection(socket, new PlayerConnection.Router() {
+            public void route(PlayerConnection connection) {
+            }
+            
+            public void spectate(PlayerConnection connection, int gameId) {
+            }
+            
+            public void closed(PlayerConnection connection) {
+            }
+        }, false, executor, queueSize);
+        executor.execute("spectator", connection);
+        return connection;
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+}
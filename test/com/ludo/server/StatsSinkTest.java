@@ -0,0 +1,276 @@
+/**
+ * 
+ */
+package com.ludo.server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import com.ludo.config.Config;
+
+/**
+ * Checks of the StatsSink with a stub UserHandler in place of the database:
+ * increments for a user are added together into one row, a full batch is
+ * flushed without waiting for the interval, and the increments of a flush
+ * that failed are kept, written by the next flush and still trigger one
+ * when enough are waiting. A stress run with failing flushes checks that
+ * no increment is lost or written twice.
+ *
+ * Run with java -ea com.ludo.server.StatsSinkTest, exits with status 1
+ * if a check fails.
+ * @author Petter
+ *
+ */
+public class StatsSinkTest {
+    
+    /**
+     * Increments that trigger a flush
+     */
+    private static final int FLUSH_SIZE = 5;
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("stats").toFile();
+        File file = new File(dir, "stats.ini");
+        
+        // The interval is long enough to never flush during the test
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("statsFlushSize=" + FLUSH_SIZE + "\nstatsFlushInterval=3600\n");
+        } finally {
+            writer.close();
+        }
+        Config config = new Config(file.getAbsolutePath());
+        
+        try {
+            coalesce(config);
+            flushWhenFull(config);
+            retryAfterFailure(config);
+            failingFlushes(config);
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+        
+        System.out.println(failures == 0 ? "StatsSinkTest passed" : "StatsSinkTest: " + failures + " failed");
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Increments of a user are written as a single row
+     */
+    private static void coalesce(Config config) {
+        StubUserHandler users = new StubUserHandler();
+        StatsSink sink = new StatsSink(config, users);
+        
+        sink.userPlayed("alice");
+        sink.userWon("alice");
+        sink.userPlayed("alice");
+        sink.userPlayed("bob");
+        sink.userPlayed(null);
+        check(users.calls() == 0, "nothing is written before a full batch or the interval");
+        
+        sink.flush();
+        check(users.calls() == 1, "flush writes one batch");
+        check(users.rows(0) == 2, "one row per user, got " + users.rows(0));
+        check(users.total("alice", 0) == 1 && users.total("alice", 1) == 2, "alice won 1 of 2 games");
+        check(users.total("bob", 0) == 0 && users.total("bob", 1) == 1, "bob played 1 game");
+        
+        sink.flush();
+        check(users.calls() == 1, "nothing to flush");
+    }
+    
+    /**
+     * A full batch is flushed in the background right away
+     */
+    private static void flushWhenFull(Config config) throws Exception {
+        StubUserHandler users = new StubUserHandler();
+        StatsSink sink = new StatsSink(config, users);
+        
+        for(int i = 0; i < FLUSH_SIZE - 1; i++) {
+            sink.userPlayed("user" + i);
+        }
+        Thread.sleep(100);
+        check(users.calls() == 0, "no flush below flushSize");
+        
+        sink.userPlayed("user0");
+        check(users.await(1), "flush at flushSize");
+        check(users.total("user0", 1) == 2 && users.rows(0) == FLUSH_SIZE - 1, "full batch is written");
+    }
+    
+    /**
+     * A failed flush keeps its increments, and a flush is queued again
+     * once enough are waiting
+     */
+    private static void retryAfterFailure(Config config) throws Exception {
+        StubUserHandler users = new StubUserHandler();
+        StatsSink sink = new StatsSink(config, users);
+        
+        users.fail(1);
+        for(int i = 0; i < FLUSH_SIZE; i++) {
+            sink.userWon("carol");
+        }
+        check(users.await(1), "flush at flushSize");
+        check(users.written() == 0, "failed flush wrote nothing");
+        
+        // Already over flushSize with the kept increments, the next one flushes
+        sink.userPlayed("dave");
+        check(users.await(2), "a flush is queued again after a failed one");
+        check(users.total("carol", 0) == FLUSH_SIZE, "kept increments are written, carol won " + users.total("carol", 0));
+        check(users.total("dave", 1) == 1, "new increments are written with them");
+        
+        sink.userWon("erin");
+        sink.flush();
+        check(users.calls() == 3 && users.total("carol", 0) == FLUSH_SIZE, "written increments are not written again");
+    }
+    
+    /**
+     * Many threads add while every other flush fails, nothing is lost or counted twice
+     */
+    private static void failingFlushes(Config config) throws Exception {
+        final StubUserHandler users = new StubUserHandler();
+        users.failEveryOther = true;
+        final StatsSink sink = new StatsSink(config, users);
+        final int threads = 4;
+        final int games = 5000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        
+        for(int t = 0; t < threads; t++) {
+            final String username = "player" + t;
+            new Thread(new Runnable() {
+                public void run() {
+                    for(int i = 0; i < games; i++) {
+                        sink.userPlayed(username);
+                        if(i % 3 == 0) {
+                            sink.userWon(username);
+                        }
+                        if(i % 500 == 0) {
+                            sink.flush();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        
+        // Flush until everything is written
+        for(int i = 0; i < 10; i++) {
+            sink.flush();
+        }
+        Thread.sleep(200);
+        sink.flush();
+        sink.flush();
+        
+        check(users.failed() > 0, "some flushes failed");
+        for(int t = 0; t < threads; t++) {
+            String username = "player" + t;
+            check(users.total(username, 1) == games, username + " played " + users.total(username, 1) + " of " + games + " games");
+            check(users.total(username, 0) == (games + 2) / 3, username + " won " + users.total(username, 0) + " of " + (games + 2) / 3 + " games");
+        }
+    }
+    
+    private static void check(boolean condition, String description) {
+        if(!condition) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+    
+    /**
+     * Records the batches it is asked to write, and fails some of them
+     * @author Petter
+     *
+     */
+    private static class StubUserHandler extends UserHandler {
+        private List<List<Object[]>> batches = new ArrayList<List<Object[]>>();
+        private Map<String, int[]> totals = new HashMap<String, int[]>();
+        private int failNext = 0;
+        private int failed = 0;
+        private boolean failEveryOther = false;
+        
+        @Override
+        public synchronized boolean addStats(List<Object[]> rows) {
+            this.batches.add(new ArrayList<Object[]>(rows));
+            notifyAll();
+            
+            if(this.failNext > 0 || (this.failEveryOther && this.batches.size() % 2 == 1)) {
+                this.failNext = Math.max(0, this.failNext - 1);
+                this.failed++;
+                return false;
+            }
+            
+            for(Object[] row : rows) {
+                int[] total = this.totals.get(row[2]);
+                if(total == null) {
+                    total = new int[2];
+                    this.totals.put((String) row[2], total);
+                }
+                total[0] += (Integer) row[0];
+                total[1] += (Integer) row[1];
+            }
+            return true;
+        }
+        
+        public synchronized void fail(int batches) {
+            this.failNext = batches;
+        }
+        
+        public synchronized int calls() {
+            return this.batches.size();
+        }
+        
+        public synchronized int failed() {
+            return this.failed;
+        }
+        
+        public synchronized int rows(int batch) {
+            return this.batches.get(batch).size();
+        }
+        
+        /**
+         * Wins (0) or games (1) written for a user
+         */
+        public synchronized int total(String username, int column) {
+            int[] total = this.totals.get(username);
+            return total == null ? 0 : total[column];
+        }
+        
+        /**
+         * Games written for every user
+         */
+        public synchronized int written() {
+            int games = 0;
+            for(int[] total : this.totals.values()) {
+                games += total[0] + total[1];
+            }
+            return games;
+        }
+        
+        /**
+         * Wait until a number of batches have been asked for
+         * @return false if they were not asked for in time
+         */
+        public synchronized boolean await(int calls) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while(this.batches.size() < calls && System.currentTimeMillis() < deadline) {
+                wait(50);
+            }
+            
+            // Let the sink finish handling the answer
+            wait(50);
+            return this.batches.size() >= calls;
+        }
+    }
+
+}
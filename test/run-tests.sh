@@ -0,0 +1,29 @@
+#!/bin/sh
+# Compile the sources and the test tree, then run every *Test class.
+# The client needs JavaFX: set JAVAFX_LIB to the JavaFX lib directory to
+# include it, otherwise the client sources and tests, and the benchmarks
+# that use JavaFX, are left out.
+cd "$(dirname "$0")/.." || exit 1
+
+OUT=${OUT:-build/test}
+rm -rf "$OUT" && mkdir -p "$OUT"
+
+if [ -n "$JAVAFX_LIB" ]; then
+    CP="$JAVAFX_LIB/*"
+    find src test -name "*.java" > "$OUT/sources.txt"
+else
+    CP=""
+    find src test -name "*.java" | grep -v "/client/" | xargs grep -L "^import javafx\." > "$OUT/sources.txt"
+fi
+
+javac -encoding ISO-8859-1 -cp "$CP" -d "$OUT" @"$OUT/sources.txt" || exit 1
+
+status=0
+for test in $(cd test && find . -name "*Test.java" | sed 's|^\./||; s|\.java$||; s|/|.|g'); do
+    if [ -z "$JAVAFX_LIB" ] && echo "$test" | grep -q "\.client\."; then
+        continue
+    fi
+    java -ea -cp "$OUT:src:$CP" "$test" || status=1
+done
+
+exit $status